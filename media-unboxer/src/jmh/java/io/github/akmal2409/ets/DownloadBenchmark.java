@@ -0,0 +1,156 @@
+package io.github.akmal2409.ets;
+
+import io.github.akmal2409.ets.store.RangedDownloader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import software.amazon.awssdk.core.async.AsyncResponseTransformer;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.model.NoSuchBucketException;
+import software.amazon.awssdk.transfer.s3.model.UploadFileRequest;
+
+/**
+ * Measures source download throughput against the S3 endpoint from the {@link Configuration},
+ * usually the MinIO instance from docker compose. An object of every size is uploaded once to the
+ * {@value #BUCKET} bucket and then downloaded with a single GET streamed to the file and with the
+ * ranged download, which is run with a flush of the destination after every part and after every
+ * group of parts, e.g.
+ * <pre>
+ * mvn -Pjmh package
+ * java -cp target/media-unboxer-1.0-SNAPSHOT-jar-with-dependencies.jar org.openjdk.jmh.Main \
+ *   DownloadBenchmark -p sizeMiB=64,512
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+public class DownloadBenchmark {
+
+  private static final String BUCKET = "download-benchmark";
+
+  /**
+   * Ranged download with the given number of parts per flush of the destination.
+   */
+  @State(Scope.Benchmark)
+  public static class Ranged {
+
+    @Param({"1", "16"})
+    public int partsPerSync;
+
+    private RangedDownloader rangedDownloader;
+
+    @Setup
+    public void setUp(DownloadBenchmark benchmark) {
+      final var config = benchmark.configuration;
+      rangedDownloader = new RangedDownloader(benchmark.s3AsyncClient,
+          config.getS3DownloadPartSizeBytes(), config.getS3MaxInFlightParts(), partsPerSync);
+    }
+  }
+
+  @Param({"64", "512", "2048"})
+  public long sizeMiB;
+
+  private Configuration configuration;
+  private S3AsyncClient s3AsyncClient;
+  private Path workDirectory;
+  private Path destination;
+  private String key;
+
+  @Setup
+  public void setUp() throws IOException {
+    configuration = new Configuration();
+    final var dependencyFactory = DependencyFactory.withConfiguration(configuration);
+    s3AsyncClient = dependencyFactory.newS3AsyncClient(
+        dependencyFactory.newAwsCredentialsProvider());
+    workDirectory = Files.createTempDirectory("download-benchmark");
+    key = String.format("object-%dMiB", sizeMiB);
+    destination = workDirectory.resolve(key + ".downloaded");
+
+    createBucketIfMissing(s3AsyncClient);
+    final var source = workDirectory.resolve(key);
+
+    writeRandomFile(source, sizeMiB * 1024 * 1024);
+    dependencyFactory.newS3TransferManager(s3AsyncClient)
+        .uploadFile(UploadFileRequest.builder()
+                        .putObjectRequest(b -> b.bucket(BUCKET).key(key))
+                        .source(source)
+                        .build())
+        .completionFuture().join();
+    Files.delete(source);
+  }
+
+  /**
+   * Every download starts from scratch, a journal left by the previous one would skip all parts.
+   */
+  @Setup(Level.Invocation)
+  public void clearWorkDirectory() throws IOException {
+    try (var files = Files.list(workDirectory)) {
+      for (Path file : files.toList()) {
+        Files.deleteIfExists(file);
+      }
+    }
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    clearWorkDirectory();
+    Files.deleteIfExists(workDirectory);
+    s3AsyncClient.close();
+  }
+
+  /**
+   * Baseline, streams the body to the file, a buffered single part would not fit a byte[].
+   */
+  @Benchmark
+  public void singleRequest() {
+    s3AsyncClient.getObject(b -> b.bucket(BUCKET).key(key),
+        AsyncResponseTransformer.toFile(destination)).join();
+  }
+
+  @Benchmark
+  public long ranged(Ranged ranged) throws IOException, InterruptedException {
+    return ranged.rangedDownloader.download(BUCKET, key, destination);
+  }
+
+  private static void createBucketIfMissing(S3AsyncClient s3AsyncClient) {
+    try {
+      s3AsyncClient.headBucket(b -> b.bucket(BUCKET)).join();
+    } catch (CompletionException e) {
+      if (!(e.getCause() instanceof NoSuchBucketException)) {
+        throw e;
+      }
+      s3AsyncClient.createBucket(b -> b.bucket(BUCKET)).join();
+    }
+  }
+
+  private static void writeRandomFile(Path path, long bytes) throws IOException {
+    final var buffer = new byte[1024 * 1024];
+
+    try (OutputStream out = Files.newOutputStream(path)) {
+      for (long written = 0; written < bytes; written += buffer.length) {
+        ThreadLocalRandom.current().nextBytes(buffer);
+        out.write(buffer, 0, (int) Math.min(buffer.length, bytes - written));
+      }
+    }
+  }
+}
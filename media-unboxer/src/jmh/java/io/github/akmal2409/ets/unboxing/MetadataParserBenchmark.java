@@ -0,0 +1,174 @@
+package io.github.akmal2409.ets.unboxing;
+
+import io.github.akmal2409.ets.Configuration;
+import io.github.akmal2409.ets.DependencyFactory;
+import io.github.akmal2409.ets.control.StageStats;
+import io.github.akmal2409.ets.unboxing.MediaStreams.AudioStream;
+import io.github.akmal2409.ets.unboxing.MediaStreams.VideoStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the stream analysis of {@link ContainerMetadataParser} with the ffprobe one. By default
+ * the setup generates a 30 s MPEG-4 Part 2 video with an AAC track in every container with the
+ * configured ffmpeg, other media files can be passed as a parameter, e.g.
+ * <pre>
+ * mvn -Pjmh package
+ * java -cp target/media-unboxer-1.0-SNAPSHOT-jar-with-dependencies.jar org.openjdk.jmh.Main \
+ *   MetadataParserBenchmark -p media=/media/movie.mkv,/media/movie.mp4
+ * </pre>
+ * The setup fails when both paths do not produce the same streams, so the numbers always compare
+ * equivalent results.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class MetadataParserBenchmark {
+
+  private static final String GENERATED_MKV = "generated.mkv";
+  private static final String GENERATED_MP4 = "generated.mp4";
+
+  @Param({GENERATED_MKV, GENERATED_MP4})
+  public String media;
+
+  private Path mediaPath;
+  private Path generatedDirectory;
+  private MediaUnboxer mediaUnboxer;
+
+  @Setup
+  public void setUp() throws IOException, InterruptedException {
+    final var configuration = new Configuration();
+
+    if (media.equals(GENERATED_MKV) || media.equals(GENERATED_MP4)) {
+      generatedDirectory = Files.createTempDirectory("metadata-parser-benchmark");
+      mediaPath = generate(configuration.getFFmpegPath(), generatedDirectory.resolve(media));
+    } else {
+      mediaPath = Path.of(media);
+    }
+
+    if (!Files.isRegularFile(mediaPath)) {
+      throw new IllegalArgumentException("Media file " + mediaPath + " does not exist");
+    }
+
+    final var dependencyFactory = DependencyFactory.withConfiguration(configuration);
+    final var meterRegistry = dependencyFactory.newMeterRegistry();
+    mediaUnboxer = dependencyFactory.newMediaUnboxer(
+        dependencyFactory.newFFmpegProcessRunner(meterRegistry),
+        Executors.newVirtualThreadPerTaskExecutor(),
+        dependencyFactory.newFFmpegProcessScheduler(new StageStats(), meterRegistry),
+        dependencyFactory.newTimeBudgetEstimator(meterRegistry),
+        new StageStats());
+
+    final var parsed = ContainerMetadataParser.parse(mediaPath)
+                           .orElseThrow(() -> new IllegalArgumentException(
+                               "Media file " + mediaPath + " is not supported by the parser"));
+    final var probed = mediaUnboxer.probeStreams(mediaPath);
+
+    // ffprobe reports the duration as a float, the parser leaves out what only the decoder knows
+    final boolean same = withoutVideoDetails(parsed).equals(withoutVideoDetails(probed))
+                             && withoutAudioDetails(parsed).equals(withoutAudioDetails(probed))
+                             && containerVideoDetails(parsed).equals(containerVideoDetails(probed))
+                             && containerAudioDetails(parsed).equals(containerAudioDetails(probed))
+                             && parsed.subtitles().equals(probed.subtitles())
+                             && parsed.containerFormat().equals(probed.containerFormat())
+                             && Math.abs(parsed.durationSeconds() - probed.durationSeconds())
+                                    < 0.001;
+
+    if (!same) {
+      throw new IllegalStateException(
+          "Parser and ffprobe disagree on " + mediaPath + ": " + parsed + " vs " + probed);
+    }
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    if (generatedDirectory != null) {
+      Files.deleteIfExists(mediaPath);
+      Files.deleteIfExists(generatedDirectory);
+    }
+  }
+
+  /**
+   * Encodes test patterns with the encoders every ffmpeg build has, the muxer is chosen by the
+   * extension of the file.
+   */
+  private static Path generate(Path ffmpeg, Path file) throws IOException, InterruptedException {
+    final var process = new ProcessBuilder(ffmpeg.toString(), "-hide_banner", "-loglevel", "error",
+        "-f", "lavfi", "-i", "testsrc=duration=30:size=1280x720:rate=25",
+        "-f", "lavfi", "-i", "sine=duration=30:sample_rate=48000",
+        "-c:v", "mpeg4", "-c:a", "aac", "-metadata:s:a:0", "language=eng", file.toString())
+                            .inheritIO()
+                            .start();
+
+    if (process.waitFor() != 0) {
+      throw new IllegalStateException("ffmpeg could not generate " + file);
+    }
+
+    return file;
+  }
+
+  private static List<VideoStream> withoutVideoDetails(MediaStreams streams) {
+    return streams.videoStreams().stream()
+               .map(video -> new VideoStream(video.index(), video.codec(), video.height(),
+                   video.width(), video.fps()))
+               .toList();
+  }
+
+  private static List<AudioStream> withoutAudioDetails(MediaStreams streams) {
+    return streams.audioStreams().stream()
+               .map(audio -> new AudioStream(audio.index(), audio.codec(), audio.lang()))
+               .toList();
+  }
+
+  /**
+   * Colour properties of the video details, the pixel format is known only to the decoder.
+   */
+  private static List<List<String>> containerVideoDetails(MediaStreams streams) {
+    return streams.videoStreams().stream()
+               .map(VideoStream::details)
+               .map(details -> Arrays.asList(details.colorRange(), details.colorSpace(),
+                   details.colorTransfer(), details.colorPrimaries()))
+               .toList();
+  }
+
+  /**
+   * Sample rate and channels of the audio details, the layout of more than two channels is known
+   * only to the decoder.
+   */
+  private static List<List<Integer>> containerAudioDetails(MediaStreams streams) {
+    return streams.audioStreams().stream()
+               .map(AudioStream::details)
+               .map(details -> List.of(details.sampleRate(), details.channels()))
+               .toList();
+  }
+
+  @Benchmark
+  public MediaStreams metadataParser() {
+    return ContainerMetadataParser.parse(mediaPath).orElseThrow();
+  }
+
+  @Benchmark
+  public MediaStreams ffprobe() {
+    return mediaUnboxer.probeStreams(mediaPath);
+  }
+}
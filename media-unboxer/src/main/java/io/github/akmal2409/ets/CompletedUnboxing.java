@@ -1,17 +1,29 @@
 package io.github.akmal2409.ets;
 
 import io.github.akmal2409.ets.unboxing.MediaCollection.Audio;
+import io.github.akmal2409.ets.unboxing.MediaCollection.Source;
 import io.github.akmal2409.ets.unboxing.MediaCollection.Subtitles;
 import io.github.akmal2409.ets.unboxing.MediaCollection.Video;
 import java.util.List;
 import java.util.UUID;
 
+/**
+ * Manifest published once a job is unboxed. Besides the files it describes the source and every
+ * stream in enough detail that downstream stages do not have to probe them again.
+ */
 public record CompletedUnboxing(
+    int manifestVersion,
     UUID jobId,
     List<Video> videos,
     List<Audio> audio,
     List<Subtitles> subtitles,
-    String outputPrefix
+    String outputPrefix,
+    Source source // null when the job reused output recorded before the source was described
 ) {
 
+  /**
+   * Version 1 had only the file names, codecs and languages. Version 2 adds the stream details,
+   * the source and the size and checksum of every output.
+   */
+  public static final int MANIFEST_VERSION = 2;
 }
@@ -1,6 +1,13 @@
 package io.github.akmal2409.ets;
 
+import io.github.akmal2409.ets.control.Stage;
+import io.github.akmal2409.ets.store.S3ClientType;
+import io.github.akmal2409.ets.store.SourceTransferMode;
+import io.github.akmal2409.ets.unboxing.ExtractionMode;
+import io.github.akmal2409.ets.unboxing.UnboxingEngineType;
 import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
 
 public class Configuration {
 
@@ -12,7 +19,121 @@ public class Configuration {
     return 5672;
   }
 
+  /**
+   * Jobs processed concurrently by the worker when it starts, across all consumer channels. The
+   * {@link io.github.akmal2409.ets.control.ConcurrencyController} adjusts it within
+   * [{@link #getMinParallelism()}, {@link #getMaxParallelism()}].
+   */
   public int getParallelism() {
+    return 4;
+  }
+
+  public int getMinParallelism() {
+    return 1;
+  }
+
+  public int getMaxParallelism() {
+    return 16;
+  }
+
+  public Duration getConcurrencyControlInterval() {
+    return Duration.ofSeconds(30);
+  }
+
+  /**
+   * Factor the job limit is multiplied by when the worker is saturated.
+   */
+  public double getConcurrencyDecreaseFactor() {
+    return 0.7;
+  }
+
+  /**
+   * Share of the smoothed per-job throughput below which a stage is considered saturated.
+   */
+  public double getThroughputDegradationThreshold() {
+    return 0.6;
+  }
+
+  /**
+   * Jobs that may run the stage at once. Stages have separate limits so that e.g. the download of
+   * one job overlaps with the extraction of another. Remote probes mostly wait for small ranged
+   * reads, so more of them run at once.
+   */
+  public int getStageWorkers(Stage stage) {
+    return switch (stage) {
+      case REMOTE_PROBE -> 4;
+      case DOWNLOAD, EXTRACT, UPLOAD -> 2;
+      case PROBE -> 1;
+    };
+  }
+
+  /**
+   * Jobs that may wait for a worker of the stage. Bounds how much finished work, e.g. downloaded
+   * sources, piles up on the scratch disk in front of a slower stage.
+   */
+  public int getStageQueueCapacity(Stage stage) {
+    return 1;
+  }
+
+  /**
+   * Key prefix of the index from source digests to earlier outputs, stored in the output bucket.
+   */
+  public String getDedupIndexPrefix() {
+    return ".dedup/";
+  }
+
+  /**
+   * Largest size of the downloaded sources kept on a drive for retries and re-runs of jobs, taken
+   * from its scratch space. 0 disables the cache.
+   */
+  public long getSourceCacheCapacityBytes() {
+    return 20L * 1024 * 1024 * 1024;
+  }
+
+  /**
+   * Share of the scratch space of a drive the cached sources may take, so small drives keep most
+   * of their space for the jobs. 0 disables the cache.
+   */
+  public double getSourceCacheFraction() {
+    return 0.2;
+  }
+
+  /**
+   * Share of the usable space of the media folders, measured at startup, that the jobs may reserve.
+   */
+  public double getScratchSpaceFraction() {
+    return 0.9;
+  }
+
+  /**
+   * Scratch space a job is estimated to need per byte of its source. A downloaded source may be
+   * remuxed and is then extracted, a streamed one only leaves the extracted streams on disk.
+   */
+  public double getScratchFootprintFactor(SourceTransferMode sourceTransferMode) {
+    return switch (sourceTransferMode) {
+      case DOWNLOAD -> 3.0;
+      case STREAM -> 1.2;
+    };
+  }
+
+  /**
+   * How long a job waits for scratch space before it is requeued.
+   */
+  public Duration getScratchAdmissionTimeout() {
+    return Duration.ofMinutes(2);
+  }
+
+  /**
+   * Average wait for ffmpeg permits above which the worker is considered saturated.
+   */
+  public Duration getMaxFFmpegQueueWait() {
+    return Duration.ofSeconds(10);
+  }
+
+  /**
+   * Channels consuming the inbound queue, the prefetch of each is a share of the parallelism.
+   */
+  public int getConsumerChannels() {
     return 1;
   }
 
@@ -24,6 +145,32 @@ public class Configuration {
     return "media-unboxing-job-completion-queue";
   }
 
+  /**
+   * Queue failed jobs wait in for {@link #getJobRetryDelay()} before the broker moves them back to
+   * the inbound queue.
+   */
+  public String getRetryTaskQueueName() {
+    return "media-unboxing-job-queue-retry";
+  }
+
+  /**
+   * Queue of jobs that cannot be processed, each with the reason in its headers.
+   */
+  public String getDeadLetterTaskQueueName() {
+    return "media-unboxing-job-queue-dlq";
+  }
+
+  /**
+   * Deliveries of a failing job, including the first one, before it is dead-lettered.
+   */
+  public int getMaxJobAttempts() {
+    return 5;
+  }
+
+  public Duration getJobRetryDelay() {
+    return Duration.ofMinutes(1);
+  }
+
   public String getS3Region() {
     return "us-east-1";
   }
@@ -32,8 +179,26 @@ public class Configuration {
     return "http://localhost:9000";
   }
 
-  public Path getMediaFolder() {
-    return Path.of("/tmp");
+  /**
+   * Scratch roots, e.g. one per mounted drive, that keep the files of the jobs.
+   */
+  public List<Path> getMediaFolders() {
+    return List.of(Path.of("/tmp"));
+  }
+
+  /**
+   * Time after its last change a job directory that no job uses is reclaimed. Has to outlast the
+   * retries of a job, whose redeliveries resume from the directory.
+   */
+  public Duration getAbandonedJobDirectoryTtl() {
+    return Duration.ofHours(6);
+  }
+
+  /**
+   * How often abandoned job directories are reclaimed and the usage of the jobs is measured.
+   */
+  public Duration getScratchSweepInterval() {
+    return Duration.ofMinutes(5);
   }
 
   public Path getFFmpegPath() {
@@ -43,4 +208,192 @@ public class Configuration {
   public Path getFFProbePath() {
     return Path.of("/opt/homebrew/bin/ffprobe");
   }
+
+  /**
+   * Whether Matroska and MP4 sources are analysed in process instead of with ffprobe.
+   */
+  public boolean isMetadataParserEnabled() {
+    return true;
+  }
+
+  public UnboxingEngineType getUnboxingEngine() {
+    return UnboxingEngineType.PROCESS;
+  }
+
+  /**
+   * libavformat, libavcodec and libavutil as passed to dlopen, used by
+   * {@link UnboxingEngineType#LIBAV}.
+   */
+  public List<String> getLibAvLibraries() {
+    return List.of("libavformat.so", "libavcodec.so", "libavutil.so");
+  }
+
+  /**
+   * Streams every source is reported to hold by {@link UnboxingEngineType#SYNTHETIC}.
+   */
+  public int getSyntheticVideoStreams() {
+    return 1;
+  }
+
+  public int getSyntheticAudioStreams() {
+    return 2;
+  }
+
+  public int getSyntheticSubtitleStreams() {
+    return 2;
+  }
+
+  /**
+   * Throughput of copying a single stream with {@link UnboxingEngineType#SYNTHETIC}.
+   */
+  public long getSyntheticStreamBytesPerSecond() {
+    return 200L * 1024 * 1024;
+  }
+
+  /**
+   * Bitrate of the synthetic media, the reported duration is derived from it (roughly 8 Mbit/s).
+   */
+  public long getSyntheticMediaBytesPerSecond() {
+    return 1024 * 1024;
+  }
+
+  /**
+   * Probability of every synthetic remux to fail.
+   */
+  public double getSyntheticFailureProbability() {
+    return 0;
+  }
+
+  /**
+   * Whether a packet index sidecar is written for every extracted video.
+   */
+  public boolean isPacketIndexEnabled() {
+    return true;
+  }
+
+  /**
+   * Target duration of the keyframe aligned chunks every video is additionally split into for
+   * parallel transcoding, zero disables chunking.
+   */
+  public Duration getVideoChunkDuration() {
+    return Duration.ZERO;
+  }
+
+  /**
+   * Whether every extracted stream is uploaded while the other streams are still being extracted.
+   * Only {@link ExtractionMode#PER_STREAM} finalizes the outputs one by one, a single ffmpeg pass
+   * writes all the trailers when it exits. Sources streamed from S3 are always demuxed in a single
+   * pass, so their uploads are never pipelined.
+   */
+  public boolean isUploadPipeliningEnabled() {
+    return true;
+  }
+
+  /**
+   * {@link ExtractionMode#PER_STREAM} when uploads are pipelined, otherwise
+   * {@link ExtractionMode#SINGLE_PASS} reads the source only once.
+   */
+  public ExtractionMode getExtractionMode() {
+    return isUploadPipeliningEnabled() ? ExtractionMode.PER_STREAM : ExtractionMode.SINGLE_PASS;
+  }
+
+  public SourceTransferMode getSourceTransferMode() {
+    return SourceTransferMode.DOWNLOAD;
+  }
+
+
+  /**
+   * Permits shared by all concurrently running ffmpeg processes of the worker.
+   */
+  public int getMaxFFmpegPermits() {
+    return Runtime.getRuntime().availableProcessors();
+  }
+
+  public int getVideoExtractionWeight() {
+    return 4;
+  }
+
+  public int getAudioExtractionWeight() {
+    return 1;
+  }
+
+  public int getSubtitlesExtractionWeight() {
+    return 1;
+  }
+
+  public Duration getMetricsLoggingInterval() {
+    return Duration.ofMinutes(1);
+  }
+
+  public Duration getMinUnboxingTimeBudget() {
+    return Duration.ofSeconds(30);
+  }
+
+  public Duration getMaxUnboxingTimeBudget() {
+    return Duration.ofHours(2);
+  }
+
+  /**
+   * Multiplier applied to the predicted stream-copy time to get the job's time budget.
+   */
+  public double getUnboxingTimeBudgetSlack() {
+    return 3.0;
+  }
+
+  /**
+   * Weight of the most recent job in the moving average of stream-copy throughput.
+   */
+  public double getThroughputSmoothingFactor() {
+    return 0.2;
+  }
+
+  public double getInitialStreamCopyBytesPerSecond() {
+    return 100.0 * 1024 * 1024;
+  }
+
+  public double getInitialStreamCopyMediaSecondsPerSecond() {
+    return 50.0;
+  }
+
+  public S3ClientType getS3ClientType() {
+    return S3ClientType.NETTY;
+  }
+
+  /**
+   * Size of a single ranged GET when downloading the source.
+   */
+  public long getS3DownloadPartSizeBytes() {
+    return 16L * 1024 * 1024;
+  }
+
+  /**
+   * Ranged GETs of a single download that may be in flight at once. Together with the part size it
+   * bounds the memory used for buffering.
+   */
+  public int getS3MaxInFlightParts() {
+    return 16;
+  }
+
+  /**
+   * Downloaded parts the destination is flushed to the disk for at once before they are journaled.
+   * One flush per part makes the disk sync on every arrival, a crash loses at most this many parts,
+   * which are downloaded again.
+   */
+  public int getS3DownloadPartsPerSync() {
+    return 16;
+  }
+
+  /**
+   * Maximum number of concurrent connections of the S3 client, shared by all downloads and uploads.
+   */
+  public int getS3MaxConcurrency() {
+    return 64;
+  }
+
+  /**
+   * Throughput the CRT client sizes its connection pool for, ignored by the Netty client.
+   */
+  public double getS3TargetThroughputGbps() {
+    return 10.0;
+  }
 }
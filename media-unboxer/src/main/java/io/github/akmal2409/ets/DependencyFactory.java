@@ -3,17 +3,46 @@ package io.github.akmal2409.ets;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.github.kokorin.jaffree.ffprobe.FFprobe;
 import com.rabbitmq.client.ConnectionFactory;
+import io.github.akmal2409.ets.control.ConcurrencyController;
+import io.github.akmal2409.ets.control.Stage;
+import io.github.akmal2409.ets.control.StagePipeline;
+import io.github.akmal2409.ets.control.StageStats;
+import io.github.akmal2409.ets.exception.ConfigurationException;
+import io.github.akmal2409.ets.store.DedupIndex;
 import io.github.akmal2409.ets.store.MediaStore;
+import io.github.akmal2409.ets.store.RangedDownloader;
+import io.github.akmal2409.ets.store.ScratchBudget;
+import io.github.akmal2409.ets.store.ScratchSpaceManager;
+import io.github.akmal2409.ets.store.SourceCache;
+import io.github.akmal2409.ets.unboxing.FFmpegProcessRunner;
+import io.github.akmal2409.ets.unboxing.FFmpegProcessScheduler;
+import io.github.akmal2409.ets.unboxing.MediaType;
 import io.github.akmal2409.ets.unboxing.MediaUnboxer;
+import io.github.akmal2409.ets.unboxing.ProcessEngine;
+import io.github.akmal2409.ets.unboxing.SyntheticEngine;
+import io.github.akmal2409.ets.unboxing.TimeBudgetEstimator;
+import io.github.akmal2409.ets.unboxing.UnboxingEngine;
+import io.github.akmal2409.ets.unboxing.libav.LibAvEngine;
+import io.micrometer.core.instrument.Clock;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.logging.LoggingMeterRegistry;
+import io.micrometer.core.instrument.logging.LoggingRegistryConfig;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.URI;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.time.Duration;
-import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ExecutorService;
-import net.bramp.ffmpeg.FFmpeg;
-import net.bramp.ffmpeg.FFmpegExecutor;
 import software.amazon.awssdk.auth.credentials.AwsCredentialsProvider;
 import software.amazon.awssdk.auth.credentials.DefaultCredentialsProvider;
+import software.amazon.awssdk.http.nio.netty.NettyNioAsyncHttpClient;
 import software.amazon.awssdk.regions.Region;
 import software.amazon.awssdk.services.s3.S3AsyncClient;
 import software.amazon.awssdk.services.s3.S3Client;
@@ -46,14 +75,27 @@ public class DependencyFactory {
                .build();
   }
 
-    public S3AsyncClient newS3AsyncClient(AwsCredentialsProvider credentialsProvider) {
-      return S3AsyncClient.builder()
-                 .region(Region.of(configuration.getS3Region()))
-                 .endpointOverride(URI.create(configuration.getS3Endpoint()))
-                 .credentialsProvider(credentialsProvider)
-                 .forcePathStyle(true)
-                 .build();
-    }
+  public S3AsyncClient newS3AsyncClient(AwsCredentialsProvider credentialsProvider) {
+    return switch (configuration.getS3ClientType()) {
+      case CRT -> S3AsyncClient.crtBuilder()
+                      .region(Region.of(configuration.getS3Region()))
+                      .endpointOverride(URI.create(configuration.getS3Endpoint()))
+                      .credentialsProvider(credentialsProvider)
+                      .forcePathStyle(true)
+                      .targetThroughputInGbps(configuration.getS3TargetThroughputGbps())
+                      .minimumPartSizeInBytes(configuration.getS3DownloadPartSizeBytes())
+                      .maxConcurrency(configuration.getS3MaxConcurrency())
+                      .build();
+      case NETTY -> S3AsyncClient.builder()
+                        .region(Region.of(configuration.getS3Region()))
+                        .endpointOverride(URI.create(configuration.getS3Endpoint()))
+                        .credentialsProvider(credentialsProvider)
+                        .forcePathStyle(true)
+                        .httpClientBuilder(NettyNioAsyncHttpClient.builder()
+                                               .maxConcurrency(configuration.getS3MaxConcurrency()))
+                        .build();
+    };
+  }
 
   public S3TransferManager newS3TransferManager(S3AsyncClient asyncClient) {
     return S3TransferManager.builder()
@@ -74,28 +116,193 @@ public class DependencyFactory {
                .findAndRegisterModules();
   }
 
-  public MediaStore newS3Store(S3TransferManager transferManager) {
-    return new MediaStore(configuration.getMediaFolder(),
-        transferManager);
+  public ScratchSpaceManager newScratchSpaceManager(MeterRegistry meterRegistry) {
+    return new ScratchSpaceManager(configuration.getMediaFolders(),
+        configuration.getAbandonedJobDirectoryTtl(), configuration.getScratchSweepInterval(),
+        meterRegistry);
+  }
+
+  public MediaStore newS3Store(ScratchSpaceManager scratchSpaceManager,
+      S3TransferManager transferManager, S3AsyncClient asyncClient, SourceCache sourceCache,
+      StageStats downloads) {
+    return new MediaStore(scratchSpaceManager,
+        transferManager, asyncClient, newRangedDownloader(asyncClient), sourceCache, downloads);
+  }
+
+  public DedupIndex newDedupIndex(S3AsyncClient asyncClient, ObjectMapper objectMapper,
+      MeterRegistry meterRegistry) {
+    return new DedupIndex(asyncClient, objectMapper, configuration.getDedupIndexPrefix(),
+        meterRegistry);
+  }
+
+  /**
+   * @param scratchDrives result of {@link #newScratchDrives()}
+   */
+  public SourceCache newSourceCache(List<ScratchBudget.Volume> scratchDrives,
+      MeterRegistry meterRegistry) {
+    return new SourceCache(scratchDrives.stream()
+                               .map(drive -> new ScratchBudget.Volume(drive.roots(),
+                                   sourceCacheCapacityOf(drive)))
+                               .toList(), meterRegistry);
+  }
+
+  public RangedDownloader newRangedDownloader(S3AsyncClient asyncClient) {
+    return new RangedDownloader(asyncClient, configuration.getS3DownloadPartSizeBytes(),
+        configuration.getS3MaxInFlightParts(), configuration.getS3DownloadPartsPerSync());
+  }
+
+  public FFmpegProcessRunner newFFmpegProcessRunner(MeterRegistry meterRegistry) {
+    return new FFmpegProcessRunner(configuration.getFFmpegPath(), meterRegistry);
+  }
+
+  public FFprobe newFFprobe() {
+    return FFprobe.atPath(configuration.getFFProbePath().getParent());
+  }
+
+  /**
+   * Cached sources take a share of the scratch space of the drive, at most the configured
+   * capacity, so the jobs always keep the rest.
+   */
+  private long sourceCacheCapacityOf(ScratchBudget.Volume scratchDrive) {
+    return Math.max(0, Math.min(configuration.getSourceCacheCapacityBytes(),
+        (long) (scratchDrive.capacityBytes() * configuration.getSourceCacheFraction())));
+  }
+
+  /**
+   * Registry that periodically writes all the worker metrics to the log.
+   */
+  public MeterRegistry newMeterRegistry() {
+    return new LoggingMeterRegistry(new LoggingRegistryConfig() {
+      @Override
+      public String get(String key) {
+        return null; // defaults
+      }
+
+      @Override
+      public Duration step() {
+        return configuration.getMetricsLoggingInterval();
+      }
+    }, Clock.SYSTEM);
+  }
+
+  public FFmpegProcessScheduler newFFmpegProcessScheduler(StageStats queueWaits,
+      MeterRegistry meterRegistry) {
+    return new FFmpegProcessScheduler(configuration.getMaxFFmpegPermits(),
+        Map.of(MediaType.VIDEO, configuration.getVideoExtractionWeight(),
+            MediaType.AUDIO, configuration.getAudioExtractionWeight(),
+            MediaType.SUBTITLES, configuration.getSubtitlesExtractionWeight()),
+        queueWaits, meterRegistry);
+  }
+
+  public MediaUnboxer newMediaUnboxer(FFmpegProcessRunner processRunner,
+      ExecutorService executorService, FFmpegProcessScheduler processScheduler,
+      TimeBudgetEstimator timeBudgetEstimator, StageStats extractions) {
+    return new MediaUnboxer(newUnboxingEngine(processRunner), executorService,
+        timeBudgetEstimator, configuration.getExtractionMode(), processScheduler, extractions,
+        configuration.isMetadataParserEnabled(), configuration.isPacketIndexEnabled(),
+        configuration.getVideoChunkDuration());
   }
 
-  public FFmpegExecutor newFFmpegExecutor() {
+  public UnboxingEngine newUnboxingEngine(FFmpegProcessRunner processRunner) {
+    return switch (configuration.getUnboxingEngine()) {
+      case PROCESS -> new ProcessEngine(processRunner, this::newFFprobe,
+          configuration.getFFProbePath());
+      case LIBAV -> LibAvEngine.load(configuration.getLibAvLibraries());
+      case SYNTHETIC -> new SyntheticEngine(configuration.getSyntheticVideoStreams(),
+          configuration.getSyntheticAudioStreams(), configuration.getSyntheticSubtitleStreams(),
+          configuration.getSyntheticStreamBytesPerSecond(),
+          configuration.getSyntheticMediaBytesPerSecond(),
+          configuration.getSyntheticFailureProbability());
+    };
+  }
+
+  public JobExecutor newJobExecutor(MeterRegistry meterRegistry) {
+    return new JobExecutor(configuration.getParallelism(), meterRegistry);
+  }
+
+  public ConcurrencyController newConcurrencyController(JobExecutor jobExecutor,
+      StageStats downloads, StageStats extractions, StageStats queueWaits,
+      MeterRegistry meterRegistry) {
+    return new ConcurrencyController(jobExecutor, downloads, extractions, queueWaits,
+        configuration.getMinParallelism(), configuration.getMaxParallelism(),
+        configuration.getConcurrencyControlInterval(),
+        configuration.getConcurrencyDecreaseFactor(),
+        configuration.getThroughputDegradationThreshold(),
+        configuration.getMaxFFmpegQueueWait(), configuration.getThroughputSmoothingFactor(),
+        meterRegistry);
+  }
+
+  /**
+   * Drives of the media folders with their scratch space, i.e. the share of their usable space,
+   * measured at startup, that the jobs and the cached sources may take.
+   */
+  public List<ScratchBudget.Volume> newScratchDrives() {
+    // several roots may live on the same drive
+    final var rootsByDrive = new LinkedHashMap<FileStore, List<Path>>();
+    final var drives = new ArrayList<ScratchBudget.Volume>();
+
     try {
-      return new FFmpegExecutor(
-          new FFmpeg(configuration.getFFmpegPath().toString()),
-          new net.bramp.ffmpeg.FFprobe(configuration.getFFProbePath().toString())
-      );
+      for (Path folder : configuration.getMediaFolders()) {
+        rootsByDrive.computeIfAbsent(Files.getFileStore(folder), drive -> new ArrayList<>())
+            .add(folder);
+      }
+
+      for (var drive : rootsByDrive.entrySet()) {
+        drives.add(new ScratchBudget.Volume(drive.getValue(),
+            (long) (drive.getKey().getUsableSpace() * configuration.getScratchSpaceFraction())));
+      }
     } catch (IOException e) {
-      throw new RuntimeException(e);
+      throw new UncheckedIOException("Cannot inspect the media folders", e);
     }
+
+    return drives;
   }
 
-  public FFprobe newFFprobe() {
-    return FFprobe.atPath(configuration.getFFProbePath().getParent());
+  /**
+   * Budget of the scratch space the cached sources leave to the jobs on every drive.
+   *
+   * @param scratchDrives result of {@link #newScratchDrives()}
+   * @throws ConfigurationException if no drive has space left for the jobs
+   */
+  public ScratchBudget newScratchBudget(List<ScratchBudget.Volume> scratchDrives,
+      MeterRegistry meterRegistry) {
+    final var volumes = scratchDrives.stream()
+                            .map(drive -> new ScratchBudget.Volume(drive.roots(),
+                                drive.capacityBytes() - sourceCacheCapacityOf(drive)))
+                            .filter(volume -> volume.capacityBytes() > 0)
+                            .toList();
+
+    if (volumes.isEmpty()) {
+      throw new ConfigurationException(String.format(
+          "No scratch space for jobs on the media folders %s, scratch space per drive %s, "
+              + "scratch space fraction %.2f, source cache fraction %.2f",
+          configuration.getMediaFolders(),
+          scratchDrives.stream().map(ScratchBudget.Volume::capacityBytes).toList(),
+          configuration.getScratchSpaceFraction(), configuration.getSourceCacheFraction()));
+    }
+
+    return new ScratchBudget(volumes,
+        configuration.getScratchFootprintFactor(configuration.getSourceTransferMode()),
+        configuration.getScratchAdmissionTimeout(), meterRegistry);
+  }
+
+  public StagePipeline newStagePipeline(MeterRegistry meterRegistry) {
+    final var workers = new EnumMap<Stage, Integer>(Stage.class);
+    final var queueCapacity = new EnumMap<Stage, Integer>(Stage.class);
+
+    for (Stage stage : Stage.values()) {
+      workers.put(stage, configuration.getStageWorkers(stage));
+      queueCapacity.put(stage, configuration.getStageQueueCapacity(stage));
+    }
+
+    return new StagePipeline(workers, queueCapacity, meterRegistry);
   }
 
-  public MediaUnboxer newMediaUnboxer(FFmpegExecutor fFmpegExecutor,
-      FFprobe fFprobe, ExecutorService executorService) {
-    return new MediaUnboxer(fFmpegExecutor, fFprobe, executorService, Duration.of(4, ChronoUnit.MINUTES));
+  public TimeBudgetEstimator newTimeBudgetEstimator(MeterRegistry meterRegistry) {
+    return new TimeBudgetEstimator(configuration.getMinUnboxingTimeBudget(),
+        configuration.getMaxUnboxingTimeBudget(), configuration.getUnboxingTimeBudgetSlack(),
+        configuration.getThroughputSmoothingFactor(),
+        configuration.getInitialStreamCopyBytesPerSecond(),
+        configuration.getInitialStreamCopyMediaSecondsPerSecond(), meterRegistry);
   }
 }
@@ -0,0 +1,214 @@
+package io.github.akmal2409.ets;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.github.akmal2409.ets.exception.CheckpointException;
+import io.github.akmal2409.ets.unboxing.MediaCollection;
+import io.github.akmal2409.ets.unboxing.MediaStreams;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Journal of the stages a job has completed, stored as {@value #FILE_NAME} in the job directory.
+ * The directory outlives failed attempts, so a redelivered job continues from the first unfinished
+ * stage: the prepared source is not downloaded and remuxed again, extracted streams are not
+ * extracted again and only files missing from the output are uploaded.
+ * <p>
+ * Every update replaces the file atomically, an interrupted write leaves the previous state.
+ */
+public class JobCheckpoint {
+
+  /**
+   * Serialized form of the checkpoint.
+   *
+   * @param sourceHash  SHA-256 digest of the source as a lowercase hex string.
+   * @param demuxSource name of the prepared source file inside the job directory.
+   * @param uploaded    paths of the uploaded files relative to the directory of extracted files.
+   */
+  record State(
+      UUID jobId,
+      String source,
+      String out,
+      @Nullable String sourceHash,
+      @Nullable String demuxSource,
+      @Nullable MediaStreams streams,
+      @Nullable MediaCollection extracted,
+      Set<String> uploaded,
+      boolean published
+  ) {
+
+  }
+
+  private static final Logger log = LoggerFactory.getLogger(JobCheckpoint.class);
+  private static final String FILE_NAME = "checkpoint.json";
+
+  private final ObjectMapper objectMapper;
+  private final Path path;
+  private State state;
+
+  private JobCheckpoint(ObjectMapper objectMapper, Path path, State state) {
+    this.objectMapper = objectMapper;
+    this.path = path;
+    this.state = state;
+  }
+
+  /**
+   * Loads the checkpoint of the job from the job directory. A missing, unreadable or foreign
+   * checkpoint, e.g. one of a job with the same id but a different source, yields an empty one.
+   */
+  public static JobCheckpoint load(@NotNull ObjectMapper objectMapper,
+      @NotNull Path jobDirectory, @NotNull Job job) {
+    final var path = jobDirectory.resolve(FILE_NAME);
+    final var empty = new State(job.jobId(), job.source(), job.out(), null, null, null, null,
+        Set.of(), false);
+
+    if (Files.notExists(path)) {
+      return new JobCheckpoint(objectMapper, path, empty);
+    }
+
+    try {
+      final var state = objectMapper.readValue(path.toFile(), State.class);
+
+      if (job.jobId().equals(state.jobId()) && job.source().equals(state.source())
+              && job.out().equals(state.out())) {
+        log.info(
+            "message=Resuming job from checkpoint;job_id={};source_prepared={};extracted={};uploaded={};published={}",
+            job.jobId(), state.demuxSource() != null, state.extracted() != null,
+            state.uploaded().size(), state.published());
+        return new JobCheckpoint(objectMapper, path, state);
+      }
+
+      log.warn("message=Ignoring checkpoint of a different job manifest;job_id={}", job.jobId());
+    } catch (IOException e) {
+      log.warn("message=Ignoring unreadable checkpoint;job_id={};path={}", job.jobId(), path, e);
+    }
+
+    return new JobCheckpoint(objectMapper, path, empty);
+  }
+
+  /**
+   * @return prepared source if it is still present on disk, otherwise {@code null}.
+   */
+  public synchronized @Nullable Path demuxSource() {
+    if (state.demuxSource() == null || state.streams() == null) {
+      return null;
+    }
+
+    final var demuxSource = path.resolveSibling(state.demuxSource());
+    return Files.exists(demuxSource) ? demuxSource : null;
+  }
+
+  public synchronized @Nullable String sourceHash() {
+    return state.sourceHash();
+  }
+
+  public synchronized @Nullable MediaStreams streams() {
+    return state.streams();
+  }
+
+  /**
+   * @return extracted streams if all of them are still present on disk, otherwise {@code null}.
+   */
+  public synchronized @Nullable MediaCollection extracted() {
+    final var extracted = state.extracted();
+
+    if (extracted == null) {
+      return null;
+    }
+
+    final boolean complete = extracted.videos().stream()
+                                 .allMatch(video -> isPresent(extracted, video))
+                                 && extracted.audio().stream()
+                                        .allMatch(audio -> isPresent(extracted, audio.filename()))
+                                 && extracted.subtitles().stream()
+                                        .allMatch(sub -> isPresent(extracted, sub.filename()));
+
+    return complete ? extracted : null;
+  }
+
+  /**
+   * Checks the video with its packet index and chunks.
+   */
+  private boolean isPresent(MediaCollection extracted, MediaCollection.Video video) {
+    return isPresent(extracted, video.filename())
+               && (video.packetIndex() == null || isPresent(extracted, video.packetIndex()))
+               && (video.chunks() == null || video.chunks().stream()
+                                                 .allMatch(chunk -> isPresent(extracted,
+                                                     chunk.filename())));
+  }
+
+  public synchronized boolean isUploaded(@NotNull Path relativePath) {
+    return state.uploaded().contains(relativePath.toString());
+  }
+
+  public synchronized boolean isPublished() {
+    return state.published();
+  }
+
+  /**
+   * Records the source file that can be demuxed directly along with its streams.
+   */
+  public synchronized void recordSourcePrepared(@NotNull Path demuxSource,
+      @NotNull MediaStreams streams) {
+    update(new State(state.jobId(), state.source(), state.out(), state.sourceHash(),
+        demuxSource.getFileName().toString(), streams, state.extracted(), state.uploaded(),
+        state.published()));
+  }
+
+  /**
+   * Records the content digest of the source, see {@link #sourceHash()}.
+   */
+  public synchronized void recordSourceHash(@NotNull String sourceHash) {
+    update(new State(state.jobId(), state.source(), state.out(), sourceHash, state.demuxSource(),
+        state.streams(), state.extracted(), state.uploaded(), state.published()));
+  }
+
+  public synchronized void recordExtracted(@NotNull MediaCollection extracted) {
+    update(new State(state.jobId(), state.source(), state.out(), state.sourceHash(),
+        state.demuxSource(), state.streams(), extracted, state.uploaded(), state.published()));
+  }
+
+  /**
+   * Records a file that was confirmed by S3.
+   *
+   * @param relativePath path relative to the directory of extracted files.
+   */
+  public synchronized void recordUploaded(@NotNull Path relativePath) {
+    final var uploaded = new HashSet<>(state.uploaded());
+    uploaded.add(relativePath.toString());
+
+    update(new State(state.jobId(), state.source(), state.out(), state.sourceHash(),
+        state.demuxSource(), state.streams(), state.extracted(), Set.copyOf(uploaded),
+        state.published()));
+  }
+
+  public synchronized void recordPublished() {
+    update(new State(state.jobId(), state.source(), state.out(), state.sourceHash(),
+        state.demuxSource(), state.streams(), state.extracted(), state.uploaded(), true));
+  }
+
+  private boolean isPresent(MediaCollection extracted, String filename) {
+    return Files.exists(extracted.basePath().resolve(filename));
+  }
+
+  private void update(State newState) {
+    final var temporaryPath = path.resolveSibling(FILE_NAME + ".tmp");
+
+    try {
+      objectMapper.writeValue(temporaryPath.toFile(), newState);
+      Files.move(temporaryPath, path, StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+      state = newState;
+    } catch (IOException e) {
+      throw new CheckpointException("Cannot write checkpoint " + path, e, state.jobId());
+    }
+  }
+}
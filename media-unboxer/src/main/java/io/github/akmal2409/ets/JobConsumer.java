@@ -6,13 +6,35 @@ import com.rabbitmq.client.AMQP.BasicProperties;
 import com.rabbitmq.client.Channel;
 import com.rabbitmq.client.DefaultConsumer;
 import com.rabbitmq.client.Envelope;
+import io.github.akmal2409.ets.control.Stage;
+import io.github.akmal2409.ets.control.StagePipeline;
+import io.github.akmal2409.ets.exception.FileNotFoundException;
+import io.github.akmal2409.ets.exception.UnsupportedMediaException;
+import io.github.akmal2409.ets.store.DedupIndex;
+import io.github.akmal2409.ets.store.DownloadedSource;
 import io.github.akmal2409.ets.store.MediaStore;
+import io.github.akmal2409.ets.store.ScratchBudget;
+import io.github.akmal2409.ets.store.ScratchSpaceManager;
+import io.github.akmal2409.ets.store.SourceObject;
+import io.github.akmal2409.ets.store.SourceTransferMode;
 import io.github.akmal2409.ets.unboxing.ContainerFormat;
+import io.github.akmal2409.ets.unboxing.ContainerSniffer;
 import io.github.akmal2409.ets.unboxing.MediaCollection;
+import io.github.akmal2409.ets.unboxing.MediaStreams;
 import io.github.akmal2409.ets.unboxing.MediaType;
 import io.github.akmal2409.ets.unboxing.MediaUnboxer;
+import io.github.akmal2409.ets.unboxing.RemoteStreams;
 import io.github.akmal2409.ets.utils.FileUtils;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Stream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import software.amazon.awssdk.utils.StringUtils;
@@ -26,26 +48,70 @@ public class JobConsumer extends DefaultConsumer {
     }
   }
 
+  /**
+   * Delivery of a job, kept to forward the message to the retry or dead letter queue unchanged.
+   */
+  private record Delivery(Envelope envelope, BasicProperties properties, byte[] body) {
+
+  }
+
+  /**
+   * Retries of the job so far, same header as the orchestrator uses for its retries.
+   */
+  private static final String RETRY_COUNT_HEADER = "X-RETRY-COUNT";
+
+  /**
+   * Why the job was dead-lettered.
+   */
+  private static final String FAILURE_REASON_HEADER = "X-FAILURE-REASON";
+
   private static final Logger log = LoggerFactory.getLogger(JobConsumer.class);
   private final ObjectMapper objectMapper;
   private final MediaStore mediaStore;
   private final MediaUnboxer mediaUnboxer;
   private final String outboundQueue;
   private final String outboundExchange;
+  private final String retryQueue;
+  private final String deadLetterQueue;
+  private final int maxAttempts;
+  private final SourceTransferMode sourceTransferMode;
+  private final JobExecutor jobExecutor;
+  private final StagePipeline stagePipeline;
+  private final ScratchBudget scratchBudget;
+  private final ScratchSpaceManager scratchSpaceManager;
+  private final DedupIndex dedupIndex;
 
   public JobConsumer(Channel channel, ObjectMapper objectMapper, MediaStore s3Store,
-      MediaUnboxer mediaUnboxer, String outboundQueue, String outboundExchange) {
+      MediaUnboxer mediaUnboxer, String outboundQueue, String outboundExchange,
+      String retryQueue, String deadLetterQueue, int maxAttempts,
+      SourceTransferMode sourceTransferMode, JobExecutor jobExecutor,
+      StagePipeline stagePipeline, ScratchBudget scratchBudget,
+      ScratchSpaceManager scratchSpaceManager, DedupIndex dedupIndex) {
     super(channel);
     this.objectMapper = objectMapper;
     this.mediaStore = s3Store;
     this.mediaUnboxer = mediaUnboxer;
     this.outboundQueue = outboundQueue;
     this.outboundExchange = outboundExchange;
+    this.retryQueue = retryQueue;
+    this.deadLetterQueue = deadLetterQueue;
+    this.maxAttempts = maxAttempts;
+    this.sourceTransferMode = sourceTransferMode;
+    this.jobExecutor = jobExecutor;
+    this.stagePipeline = stagePipeline;
+    this.scratchBudget = scratchBudget;
+    this.scratchSpaceManager = scratchSpaceManager;
+    this.dedupIndex = dedupIndex;
   }
 
+  /**
+   * Validates the delivery and hands the job over to the {@link JobExecutor}, the job is acked,
+   * retried or dead-lettered by the task that processed it.
+   */
   @Override
   public void handleDelivery(String consumerTag, Envelope envelope, BasicProperties properties,
       byte[] body) throws IOException {
+    final var delivery = new Delivery(envelope, properties, body);
     Job job = null;
 
     try {
@@ -55,7 +121,7 @@ public class JobConsumer extends DefaultConsumer {
           "message=Invalid job manifest received;worker={};consumer_tag={};routing_key={};exchange={}",
           WorkerConstants.WORKER_NAME, consumerTag, envelope.getRoutingKey(),
           envelope.getExchange(), e);
-      getChannel().basicAck(envelope.getDeliveryTag(), false); // TODO: Send to DLQ
+      deadLetter(delivery, "Invalid job manifest: " + e.getOriginalMessage());
       return;
     }
 
@@ -69,37 +135,467 @@ public class JobConsumer extends DefaultConsumer {
           "message={};worker={};job_id={};source={};consumer_tag={};routing_key={};exchange={}",
           e.getMessage(), WorkerConstants.WORKER_NAME, job.jobId(), job.source(), consumerTag,
           envelope.getRoutingKey(), envelope.getExchange(), e);
-      getChannel().basicAck(envelope.getDeliveryTag(), false); // TODO: Send to DLQ
+      deadLetter(delivery, e.getMessage());
       return;
     }
 
-    final var mediaPath = mediaStore.downloadSource(job.jobId(), job.source());
+    final var validJob = job;
 
     try {
-      // unify container format for all videos
-      final var convertedMediaPath = mediaUnboxer.convertContainerFormat(mediaPath,
-          mediaPath.getParent(), ContainerFormat.MKV, MediaType.VIDEO);
-      final var unboxedFilesPath = convertedMediaPath.getParent().resolve("unboxed");
+      jobExecutor.submit(() -> process(validJob, delivery));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      requeue(envelope);
+    }
+  }
 
-      final MediaCollection mediaCollection =
-          mediaUnboxer.unboxMediaContainer(convertedMediaPath, unboxedFilesPath);
+  private void process(Job job, Delivery delivery) {
+    final var envelope = delivery.envelope();
 
-      // upload unboxed media to the output destination
-      mediaStore.uploadProcessedFiles(job.out(), unboxedFilesPath);
+    try {
+      final SourceObject sourceObject;
 
-      final var report = new CompletedUnboxing(job.jobId(),
-          mediaCollection.videos(), mediaCollection.audio(), mediaCollection.subtitles(),
-          job.out()
-      );
+      try {
+        sourceObject = mediaStore.headSource(job.jobId(), job.source());
+      } catch (FileNotFoundException e) {
+        log.error("message={};job_id={};worker={}", e.getMessage(), job.jobId(),
+            WorkerConstants.WORKER_NAME, e);
+        deadLetter(delivery, e.getMessage());
+        return;
+      }
 
-      getChannel().basicPublish(outboundExchange, outboundQueue, null,
-          objectMapper.writeValueAsBytes(report));
-      getChannel().basicAck(envelope.getDeliveryTag(), false);
+      final long sourceBytes = sourceObject.sizeBytes();
+
+      if (!scratchBudget.fits(sourceBytes)) {
+        // a worker with more scratch space may take it, the retries bound how long it circulates
+        log.warn(
+            "message=Job does not fit the scratch space, deferring;job_id={};source_bytes={};footprint_bytes={};worker={}",
+            job.jobId(), sourceBytes, scratchBudget.footprintOf(sourceBytes),
+            WorkerConstants.WORKER_NAME);
+        retry(delivery, String.format(
+            "Footprint of %d bytes exceeds the scratch space of worker %s",
+            scratchBudget.footprintOf(sourceBytes), WorkerConstants.WORKER_NAME));
+        return;
+      }
+
+      // a previous delivery left its files where they are, otherwise the job directory goes where
+      // the source is cached so it is linked instead of downloaded
+      final var previousJobRoot = scratchSpaceManager.findJobRoot(job.jobId());
+      final var reservation = scratchBudget.reserve(job.jobId(), sourceBytes,
+          previousJobRoot != null ? previousJobRoot
+              : mediaStore.cachedSourceRoot(job.source(), sourceObject),
+          scratchSpaceManager.findOutputRoot(job.jobId()));
+
+      if (reservation.isEmpty()) {
+        // another worker or a later delivery may have the space
+        log.info("message=Deferring job until scratch space is available;job_id={};worker={}",
+            job.jobId(), WorkerConstants.WORKER_NAME);
+        requeue(envelope);
+        return;
+      }
+
+      try (var reserved = reservation.get()) {
+        processOrElseFail(job, delivery, sourceObject, reserved);
+      }
+    } catch (Exception e) {
+      log.error("message=Job failed;job_id={};attempt={};max_attempts={};worker={}",
+          job.jobId(), retryCountOf(delivery) + 1, maxAttempts, WorkerConstants.WORKER_NAME, e);
+
+      try {
+        retry(delivery, e.toString());
+      } catch (IOException retryException) {
+        // the delivery is requeued by the broker once the channel closes
+        log.error("message=Cannot retry job;job_id={};worker={}", job.jobId(),
+            WorkerConstants.WORKER_NAME, retryException);
+      }
+    }
+  }
+
+  private void processOrElseFail(Job job, Delivery delivery, SourceObject sourceObject,
+      ScratchBudget.Reservation reservation) throws IOException, InterruptedException {
+    final var envelope = delivery.envelope();
+    final var jobDirectory = scratchSpaceManager.createJobDirectory(job.jobId(),
+        reservation.jobRoot());
+    boolean acked = false;
+
+    try (var ticket = stagePipeline.admit(job.jobId())) {
+      final var checkpoint = JobCheckpoint.load(objectMapper, jobDirectory, job);
+
+      if (!checkpoint.isPublished()) {
+        final var mediaCollection = unbox(job, sourceObject, jobDirectory,
+            reservation.outputRoot(), checkpoint, ticket);
+
+        final var report = new CompletedUnboxing(CompletedUnboxing.MANIFEST_VERSION, job.jobId(),
+            mediaCollection.videos(), mediaCollection.audio(), mediaCollection.subtitles(),
+            job.out(), mediaCollection.source()
+        );
+
+        publish(objectMapper.writeValueAsBytes(report));
+        checkpoint.recordPublished();
+
+        final var sourceHash = checkpoint.sourceHash();
+
+        if (sourceHash != null) {
+          dedupIndex.record(sourceHash, new DedupIndex.Entry(job.out(), report.videos(),
+              report.audio(), report.subtitles(), report.source()));
+        }
+      }
+
+      ack(envelope);
+      acked = true;
+    } catch (UnsupportedMediaException e) {
+      log.error("message={};job_id={};source={};worker={}", e.getMessage(), job.jobId(),
+          job.source(), WorkerConstants.WORKER_NAME, e);
+      deadLetter(delivery, e.getMessage());
+      acked = true;
     } finally {
-      FileUtils.deleteDirectory(mediaPath.getParent());
+      if (acked) {
+        scratchSpaceManager.reclaimJobDirectories(job.jobId());
+      } else {
+        // checkpointed stages are picked up by the redelivery
+        scratchSpaceManager.releaseJobDirectories(job.jobId());
+      }
+    }
+  }
+
+  // channel is shared by all the jobs of the consumer, its operations must not interleave
+  private void publish(byte[] body) throws IOException {
+    synchronized (getChannel()) {
+      getChannel().basicPublish(outboundExchange, outboundQueue, null, body);
+    }
+  }
+
+  private void ack(Envelope envelope) throws IOException {
+    synchronized (getChannel()) {
+      getChannel().basicAck(envelope.getDeliveryTag(), false);
+    }
+  }
+
+  private void requeue(Envelope envelope) throws IOException {
+    synchronized (getChannel()) {
+      getChannel().basicNack(envelope.getDeliveryTag(), false, true);
+    }
+  }
+
+  /**
+   * Sends the job to the retry queue, from which it returns to the inbound queue after the retry
+   * delay, or dead-letters it once it has been delivered the maximum number of times. Unlike a
+   * requeue, a failing job neither returns immediately nor forever.
+   */
+  private void retry(Delivery delivery, String reason) throws IOException {
+    final int retryCount = retryCountOf(delivery) + 1;
+
+    if (retryCount >= maxAttempts) {
+      deadLetter(delivery, String.format("Failed %d times, last failure: %s", retryCount,
+          reason));
+      return;
+    }
+
+    forward(delivery, retryQueue, Map.of(RETRY_COUNT_HEADER, retryCount));
+  }
+
+  /**
+   * Moves the job to the dead letter queue with the reason it cannot be processed.
+   */
+  private void deadLetter(Delivery delivery, String reason) throws IOException {
+    log.warn("message=Dead-lettering job;routing_key={};reason={};worker={}",
+        delivery.envelope().getRoutingKey(), reason, WorkerConstants.WORKER_NAME);
+    forward(delivery, deadLetterQueue, Map.of(FAILURE_REASON_HEADER, reason));
+  }
+
+  /**
+   * Publishes a copy of the delivery with additional headers to the queue and acks the original.
+   * Should the worker die in between, the job is delivered twice rather than lost.
+   */
+  private void forward(Delivery delivery, String queue, Map<String, Object> headers)
+      throws IOException {
+    final Map<String, Object> forwardedHeaders = new HashMap<>();
+
+    if (delivery.properties() != null && delivery.properties().getHeaders() != null) {
+      forwardedHeaders.putAll(delivery.properties().getHeaders());
+    }
+    forwardedHeaders.putAll(headers);
+
+    final var properties = (delivery.properties() != null ? delivery.properties().builder()
+                                : new BasicProperties.Builder())
+                               .headers(forwardedHeaders)
+                               .build();
+
+    synchronized (getChannel()) {
+      getChannel().basicPublish("", queue, properties, delivery.body());
+      getChannel().basicAck(delivery.envelope().getDeliveryTag(), false);
+    }
+  }
+
+  private static int retryCountOf(Delivery delivery) {
+    final var headers = delivery.properties() != null ? delivery.properties().getHeaders() : null;
+
+    return headers != null && headers.get(RETRY_COUNT_HEADER) instanceof Number retryCount
+               ? retryCount.intValue() : 0;
+  }
+
+  /**
+   * Runs the stages that are not in the checkpoint yet and uploads the extracted files that are
+   * missing from the output. Every stage is entered through the ticket, so the jobs of the worker
+   * overlap by stage.
+   */
+  private MediaCollection unbox(Job job, SourceObject sourceObject, Path jobDirectory,
+      Path outputRoot, JobCheckpoint checkpoint, StagePipeline.Ticket ticket)
+      throws IOException, InterruptedException {
+    final var unboxedFilesPath = scratchSpaceManager.createOutputDirectory(job.jobId(),
+        jobDirectory, outputRoot);
+    // every file is uploaded as soon as ffmpeg finalized it, which for a single-pass remux is
+    // only once all the streams are extracted
+    final var upload = mediaStore.beginProcessedFilesUpload(job.out(), unboxedFilesPath,
+        file -> checkpoint.recordUploaded(unboxedFilesPath.relativize(file)));
+    final Consumer<Path> onExtracted = file -> {
+      if (!checkpoint.isUploaded(unboxedFilesPath.relativize(file))) {
+        upload.submit(file);
+      }
+    };
+
+    MediaCollection mediaCollection = checkpoint.extracted();
+
+    try {
+      if (mediaCollection == null) {
+        mediaCollection = switch (sourceTransferMode) {
+          case STREAM -> unboxStreamedSource(job, sourceObject, jobDirectory, unboxedFilesPath,
+              checkpoint, ticket, onExtracted);
+          case DOWNLOAD -> unboxDownloadedSource(job, sourceObject, jobDirectory,
+              unboxedFilesPath, checkpoint, ticket,
+              probeRemotely(job, sourceObject, jobDirectory, checkpoint, ticket), onExtracted);
+        };
+        checkpoint.recordExtracted(mediaCollection);
+        ticket.enter(Stage.UPLOAD);
+      } else {
+        log.info("message=Streams already extracted, uploading missing files;job_id={};worker={}",
+            job.jobId(), WorkerConstants.WORKER_NAME);
+        ticket.enter(Stage.UPLOAD);
+
+        final var basePath = mediaCollection.basePath();
+        mediaCollection.videos().forEach(video -> onExtracted.accept(
+            basePath.resolve(video.filename())));
+        mediaCollection.videos().stream()
+            .filter(video -> video.packetIndex() != null)
+            .forEach(video -> onExtracted.accept(basePath.resolve(video.packetIndex())));
+        mediaCollection.videos().stream()
+            .filter(video -> video.chunks() != null)
+            .flatMap(video -> video.chunks().stream())
+            .forEach(chunk -> onExtracted.accept(basePath.resolve(chunk.filename())));
+        mediaCollection.audio().forEach(audio -> onExtracted.accept(
+            basePath.resolve(audio.filename())));
+        mediaCollection.subtitles().forEach(subtitles -> onExtracted.accept(
+            basePath.resolve(subtitles.filename())));
+      }
+    } catch (RuntimeException | IOException | InterruptedException e) {
+      upload.cancel();
+      throw e;
+    }
+
+    upload.awaitCompletion();
+    return mediaCollection;
+  }
+
+  /**
+   * Probes the streams of the source from its container header before it is downloaded, and
+   * rejects sources without any audio or video.
+   *
+   * @return streams of the source or {@code null} if the source was already prepared or has to be
+   * probed once downloaded
+   * @throws UnsupportedMediaException if the source has nothing to unbox
+   */
+  private RemoteStreams probeRemotely(Job job, SourceObject sourceObject, Path jobDirectory,
+      JobCheckpoint checkpoint, StagePipeline.Ticket ticket)
+      throws IOException, InterruptedException {
+    if (checkpoint.demuxSource() != null) {
+      return null;
+    }
+
+    ticket.enter(Stage.REMOTE_PROBE);
+    final var remoteStreams = mediaUnboxer.analyseRemoteStreams(job.jobId(),
+        (offset, length) -> mediaStore.fetchSourceRange(job.jobId(), job.source(), offset,
+            length), sourceObject.sizeBytes(), jobDirectory.resolve("probe")).orElse(null);
+
+    if (remoteStreams != null && remoteStreams.indexed()
+            && remoteStreams.streams().videoStreams().isEmpty()
+            && remoteStreams.streams().audioStreams().isEmpty()) {
+      throw new UnsupportedMediaException("Source has neither video nor audio streams",
+          job.jobId());
+    }
+
+    return remoteStreams;
+  }
+
+  /**
+   * @param remoteStreams result of {@link #probeRemotely(Job, SourceObject, Path,
+   *                      JobCheckpoint, StagePipeline.Ticket)}, the downloaded source is not
+   *                      probed again when they are complete and can be demuxed directly
+   */
+  private MediaCollection unboxDownloadedSource(Job job, SourceObject sourceObject,
+      Path jobDirectory, Path unboxedFilesPath, JobCheckpoint checkpoint,
+      StagePipeline.Ticket ticket, RemoteStreams remoteStreams, Consumer<Path> onExtracted)
+      throws IOException, InterruptedException {
+    Path demuxSourcePath = checkpoint.demuxSource();
+    MediaStreams streams = checkpoint.streams();
+
+    if (demuxSourcePath == null || streams == null) {
+      ticket.enter(Stage.DOWNLOAD);
+      final var downloaded = mediaStore.downloadSource(job.jobId(), job.source(), sourceObject,
+          jobDirectory);
+      final var mediaPath = downloaded.path();
+      final var duplicate = copyDuplicate(job, downloaded, unboxedFilesPath, checkpoint);
+
+      if (duplicate != null) {
+        return duplicate;
+      }
+
+      demuxSourcePath = mediaPath;
+
+      if (remoteStreams != null && remoteStreams.indexed()
+              && mediaUnboxer.isDirectlyDemuxable(remoteStreams.streams())) {
+        streams = remoteStreams.streams();
+      } else {
+        ticket.enter(Stage.PROBE);
+        streams = mediaUnboxer.analyseStreams(mediaPath);
+      }
+
+      final boolean remuxed = !mediaUnboxer.isDirectlyDemuxable(streams);
+
+      if (remuxed) {
+        // unify container format only when the source cannot be demuxed as is
+        demuxSourcePath = mediaUnboxer.convertContainerFormat(job.jobId(), mediaPath,
+            jobDirectory.resolve("remuxed"), ContainerFormat.MKV, MediaType.VIDEO);
+        streams = mediaUnboxer.analyseStreams(demuxSourcePath);
+      }
+
+      log.info("message=Selected demux path;job_id={};container={};demux_path={};worker={}",
+          job.jobId(), streams.containerFormat(), remuxed ? "remuxed" : "direct",
+          WorkerConstants.WORKER_NAME);
+      checkpoint.recordSourcePrepared(demuxSourcePath, streams);
+    } else {
+      log.info("message=Source already prepared;job_id={};container={};worker={}",
+          job.jobId(), streams.containerFormat(), WorkerConstants.WORKER_NAME);
+    }
+
+    ticket.enter(Stage.EXTRACT);
+    return mediaUnboxer.unboxMediaContainer(job.jobId(), demuxSourcePath, streams,
+        unboxedFilesPath, onExtracted);
+  }
+
+  /**
+   * Probes the container from the first bytes of the object and, when it can be demuxed without
+   * random access, pipes the object straight into ffmpeg. Otherwise falls back to
+   * {@link #unboxDownloadedSource(Job, SourceObject, Path, Path, JobCheckpoint,
+   * StagePipeline.Ticket, RemoteStreams, Consumer)}.
+   */
+  private MediaCollection unboxStreamedSource(Job job, SourceObject sourceObject,
+      Path jobDirectory, Path unboxedFilesPath, JobCheckpoint checkpoint,
+      StagePipeline.Ticket ticket, Consumer<Path> onExtracted)
+      throws IOException, InterruptedException {
+    if (checkpoint.demuxSource() != null) {
+      // an earlier delivery already fell back to the download
+      return unboxDownloadedSource(job, sourceObject, jobDirectory, unboxedFilesPath, checkpoint,
+          ticket, null, onExtracted);
+    }
+
+    ticket.enter(Stage.REMOTE_PROBE);
+    byte[] header = mediaStore.fetchSourceRange(job.jobId(), job.source(), 0,
+        ContainerSniffer.INITIAL_HEADER_BYTES);
+    final long headerLength = ContainerSniffer.streamableHeaderLength(header, header.length);
+
+    if (headerLength < 0 || headerLength > ContainerSniffer.MAX_HEADER_BYTES) {
+      log.info("message=Source requires random access, downloading;job_id={};demux_path={};worker={}",
+          job.jobId(), "downloaded", WorkerConstants.WORKER_NAME);
+      return unboxDownloadedSource(job, sourceObject, jobDirectory, unboxedFilesPath, checkpoint,
+          ticket, null, onExtracted);
+    }
+
+    if (headerLength > header.length) {
+      header = mediaStore.fetchSourceRange(job.jobId(), job.source(), 0, (int) headerLength);
+    }
+
+    final var headerPath = jobDirectory.resolve("header");
+    Files.write(headerPath, header);
+    final var streams = mediaUnboxer.analyseStreams(headerPath);
+
+    if (!mediaUnboxer.isDirectlyDemuxable(streams)) {
+      log.info("message=Source cannot be demuxed directly, downloading;job_id={};container={};demux_path={};worker={}",
+          job.jobId(), streams.containerFormat(), "downloaded", WorkerConstants.WORKER_NAME);
+      return unboxDownloadedSource(job, sourceObject, jobDirectory, unboxedFilesPath, checkpoint,
+          ticket, null, onExtracted);
+    }
+
+    log.info("message=Selected demux path;job_id={};container={};demux_path={};worker={}",
+        job.jobId(), streams.containerFormat(), "streamed", WorkerConstants.WORKER_NAME);
+
+    ticket.enter(Stage.EXTRACT);
+    try (var pipe = mediaStore.streamSource(job.jobId(), job.source(), jobDirectory)) {
+      final var mediaCollection =
+          mediaUnboxer.unboxMediaStream(job.jobId(), pipe.path(), sourceObject.sizeBytes(),
+              streams, unboxedFilesPath, onExtracted);
+      final long streamedBytes = pipe.awaitCompletion();
+      log.debug("message=Streamed source;job_id={};bytes={}", job.jobId(), streamedBytes);
+      // the digest is only known at the end, it lets later jobs with the same source copy the output
+      checkpoint.recordSourceHash(pipe.contentHash());
+      return mediaCollection;
     }
   }
 
+  /**
+   * Looks up the digest of the downloaded source and, when the same content was unboxed before,
+   * copies the streams of the earlier output to the output of the job instead of extracting them
+   * again. Only a source linked from the cache is hashed here, a download hashes it on the way.
+   *
+   * @return streams of the earlier job or {@code null} if the source has to be unboxed.
+   */
+  private MediaCollection copyDuplicate(Job job, DownloadedSource downloaded,
+      Path unboxedFilesPath, JobCheckpoint checkpoint) throws IOException {
+    String sourceHash = checkpoint.sourceHash();
+
+    if (sourceHash == null) {
+      sourceHash = downloaded.contentHash() != null ? downloaded.contentHash()
+                       : FileUtils.sha256(downloaded.path());
+      checkpoint.recordSourceHash(sourceHash);
+    }
+
+    final var duplicate = dedupIndex.find(job.out(), sourceHash);
+
+    if (duplicate.isEmpty()) {
+      return null;
+    }
+
+    final var entry = duplicate.get();
+
+    if (!entry.outputPrefix().equals(job.out())) {
+      final var relativeKeys = Stream.of(
+              entry.videos().stream().map(MediaCollection.Video::filename),
+              entry.videos().stream().map(MediaCollection.Video::packetIndex)
+                  .filter(Objects::nonNull),
+              entry.videos().stream().map(MediaCollection.Video::chunks)
+                  .filter(Objects::nonNull)
+                  .flatMap(List::stream)
+                  .map(MediaCollection.Chunk::filename),
+              entry.audio().stream().map(MediaCollection.Audio::filename),
+              entry.subtitles().stream().map(MediaCollection.Subtitles::filename))
+                                   .flatMap(Function.identity())
+                                   .toList();
+
+      try {
+        mediaStore.copyProcessedFiles(job.jobId(), entry.outputPrefix(), job.out(),
+            relativeKeys);
+      } catch (FileNotFoundException e) {
+        log.warn("message=Output of the same source is incomplete, unboxing;job_id={};from={};worker={}",
+            job.jobId(), entry.outputPrefix(), WorkerConstants.WORKER_NAME, e);
+        return null;
+      }
+    }
+
+    log.info("message=Source was unboxed before, reusing output;job_id={};from={};source_hash={};worker={}",
+        job.jobId(), entry.outputPrefix(), sourceHash, WorkerConstants.WORKER_NAME);
+    return new MediaCollection(entry.videos(), entry.audio(), entry.subtitles(), entry.source(),
+        unboxedFilesPath);
+  }
+
   private void validateJob(Job job) {
     if (job.jobId() == null) {
       throw new InvalidManifestException("jobId is null");
@@ -0,0 +1,149 @@
+package io.github.akmal2409.ets;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs jobs on virtual threads so that the AMQP dispatch thread only hands deliveries over. At most
+ * {@code limit} jobs run at once, a submission beyond that blocks the submitting consumer until a
+ * job finishes, which also holds back further deliveries of its channel. The limit can be changed
+ * at runtime, lowering it lets the running jobs finish and only delays new ones.
+ */
+public class JobExecutor implements AutoCloseable {
+
+  private static final Logger log = LoggerFactory.getLogger(JobExecutor.class);
+
+  private final ExecutorService executorService;
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition slotAvailable = lock.newCondition();
+
+  private int limit;
+  private int running;
+  private int peakRunning;
+
+  public JobExecutor(int limit, @NotNull MeterRegistry meterRegistry) {
+    if (limit < 1) {
+      throw new IllegalArgumentException("Job concurrency must be positive, got " + limit);
+    }
+
+    this.limit = limit;
+    this.executorService = Executors.newThreadPerTaskExecutor(
+        Thread.ofVirtual().name("job-", 0).factory());
+
+    Gauge.builder("worker.jobs.running", this, JobExecutor::runningJobs)
+        .description("Jobs that are being processed")
+        .register(meterRegistry);
+    Gauge.builder("worker.jobs.capacity", this, JobExecutor::getLimit)
+        .description("Jobs that can be processed at once")
+        .register(meterRegistry);
+  }
+
+  /**
+   * Starts the job once a slot is free.
+   *
+   * @throws InterruptedException if interrupted while waiting for a slot
+   */
+  public void submit(@NotNull Runnable job) throws InterruptedException {
+    lock.lock();
+    try {
+      while (running >= limit) {
+        slotAvailable.await();
+      }
+      running++;
+      peakRunning = Math.max(peakRunning, running);
+    } finally {
+      lock.unlock();
+    }
+
+    try {
+      executorService.execute(() -> {
+        try {
+          job.run();
+        } finally {
+          releaseSlot();
+        }
+      });
+    } catch (RuntimeException e) {
+      releaseSlot();
+      throw e;
+    }
+  }
+
+  public void setLimit(int limit) {
+    if (limit < 1) {
+      throw new IllegalArgumentException("Job concurrency must be positive, got " + limit);
+    }
+
+    lock.lock();
+    try {
+      this.limit = limit;
+      slotAvailable.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public int getLimit() {
+    lock.lock();
+    try {
+      return limit;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public int runningJobs() {
+    lock.lock();
+    try {
+      return running;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns the highest number of jobs that ran at once since the previous call.
+   */
+  public int drainPeakRunningJobs() {
+    lock.lock();
+    try {
+      final int peak = peakRunning;
+      peakRunning = running;
+      return peak;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Stops accepting jobs and waits for the running ones to finish.
+   */
+  @Override
+  public void close() throws InterruptedException {
+    executorService.shutdown();
+
+    if (!executorService.awaitTermination(1, TimeUnit.MINUTES)) {
+      log.warn("message=Jobs still running after shutdown, interrupting;running_jobs={}",
+          runningJobs());
+      executorService.shutdownNow();
+    }
+  }
+
+  private void releaseSlot() {
+    lock.lock();
+    try {
+      running--;
+      slotAvailable.signal();
+    } finally {
+      lock.unlock();
+    }
+  }
+}
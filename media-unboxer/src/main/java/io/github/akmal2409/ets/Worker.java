@@ -1,6 +1,9 @@
 package io.github.akmal2409.ets;
 
+import io.github.akmal2409.ets.control.StageStats;
+import io.github.akmal2409.ets.unboxing.FFmpegProcessRunner;
 import java.io.IOException;
+import java.util.Map;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeoutException;
 import org.slf4j.Logger;
@@ -14,31 +17,74 @@ public class Worker {
     final var config = new Configuration();
     final var dependencyFactory = DependencyFactory.withConfiguration(config);
 
+    final var meterRegistry = dependencyFactory.newMeterRegistry();
     final var connectionFactory = dependencyFactory.newConnectionFactory();
     final var objectMapper = dependencyFactory.newObjectMapper();
-    final var mediaStore = dependencyFactory.newS3Store(
-        dependencyFactory.newS3TransferManager(dependencyFactory.newS3AsyncClient(
-            dependencyFactory.newAwsCredentialsProvider()
-        )));
+    final var s3AsyncClient = dependencyFactory.newS3AsyncClient(
+        dependencyFactory.newAwsCredentialsProvider());
+    // stage statistics that drive the concurrency controller
+    final var downloads = new StageStats();
+    final var extractions = new StageStats();
+    final var queueWaits = new StageStats();
+
+    final var scratchSpaceManager = dependencyFactory.newScratchSpaceManager(meterRegistry);
+    // the cached sources and the jobs split the space measured once
+    final var scratchDrives = dependencyFactory.newScratchDrives();
+    final var mediaStore = dependencyFactory.newS3Store(scratchSpaceManager,
+        dependencyFactory.newS3TransferManager(s3AsyncClient), s3AsyncClient,
+        dependencyFactory.newSourceCache(scratchDrives, meterRegistry), downloads);
+    final var processRunner = dependencyFactory.newFFmpegProcessRunner(meterRegistry);
     final var mediaUnboxer = dependencyFactory.newMediaUnboxer(
-        dependencyFactory.newFFmpegExecutor(), dependencyFactory.newFFprobe(),
-        Executors.newVirtualThreadPerTaskExecutor()
+        processRunner, Executors.newVirtualThreadPerTaskExecutor(),
+        dependencyFactory.newFFmpegProcessScheduler(queueWaits, meterRegistry),
+        dependencyFactory.newTimeBudgetEstimator(meterRegistry),
+        extractions
     );
+    final var jobExecutor = dependencyFactory.newJobExecutor(meterRegistry);
+    final var stagePipeline = dependencyFactory.newStagePipeline(meterRegistry);
+    final var scratchBudget = dependencyFactory.newScratchBudget(scratchDrives,
+        meterRegistry);
+    final var dedupIndex = dependencyFactory.newDedupIndex(s3AsyncClient, objectMapper,
+        meterRegistry);
+    final var concurrencyController = dependencyFactory.newConcurrencyController(jobExecutor,
+        downloads, extractions, queueWaits, meterRegistry);
+
+    // ffmpeg children would otherwise outlive the worker
+    Runtime.getRuntime().addShutdownHook(new Thread(
+        () -> processRunner.killAll(FFmpegProcessRunner.KillReason.SHUTDOWN)));
 
     try {
       final var connection = connectionFactory.newConnection();
-      final var channel = connection.createChannel();
+      final int channels = config.getConsumerChannels();
+
+      for (int i = 0; i < channels; i++) {
+        final var channel = connection.createChannel();
+
+        channel.queueDeclare(config.getInboundTaskQueueName(), true, false, false, null);
+        channel.queueDeclare(config.getOutboundTaskQueueName(), true, false, false, null);
+        // failed jobs expire from the retry queue back into the inbound queue
+        channel.queueDeclare(config.getRetryTaskQueueName(), true, false, false, Map.of(
+            "x-message-ttl", (int) config.getJobRetryDelay().toMillis(),
+            "x-dead-letter-exchange", "",
+            "x-dead-letter-routing-key", config.getInboundTaskQueueName()));
+        channel.queueDeclare(config.getDeadLetterTaskQueueName(), true, false, false, null);
+
+        // deliveries are capped by the prefetch of the channel, the controller spreads the job
+        // slots over the channels
+        concurrencyController.attach(channel, config.getInboundTaskQueueName(),
+            new JobConsumer(channel, objectMapper, mediaStore,
+                mediaUnboxer, config.getOutboundTaskQueueName(), "",
+                config.getRetryTaskQueueName(), config.getDeadLetterTaskQueueName(),
+                config.getMaxJobAttempts(), config.getSourceTransferMode(), jobExecutor,
+                stagePipeline, scratchBudget, scratchSpaceManager, dedupIndex));
+      }
 
-      channel.basicQos(config.getParallelism());
-      channel.queueDeclare(config.getInboundTaskQueueName(), true, false, false, null);
-      channel.queueDeclare(config.getOutboundTaskQueueName(), true, false, false, null);
+      concurrencyController.start();
 
-      channel.basicConsume(config.getInboundTaskQueueName(),
-          new JobConsumer(channel, objectMapper, mediaStore,
-              mediaUnboxer, config.getOutboundTaskQueueName(), ""));
       log.debug(
-          "message=Started media-unboxer worker. Listening to queue {} at host rabbitmq://{}:{}",
-          config.getInboundTaskQueueName(), config.getRabbitMQHost(), config.getRabbitMQPort());
+          "message=Started media-unboxer worker. Listening to queue {} at host rabbitmq://{}:{};channels={};parallelism={}",
+          config.getInboundTaskQueueName(), config.getRabbitMQHost(), config.getRabbitMQPort(),
+          channels, config.getParallelism());
     } catch (TimeoutException | IOException e) {
       log.error("message=Error while establishing connection to rabbitmq host;"
                     + "rabbit_host={}", String.format("%s:%d", config.getRabbitMQHost(),
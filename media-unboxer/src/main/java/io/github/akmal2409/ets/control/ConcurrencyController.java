@@ -0,0 +1,269 @@
+package io.github.akmal2409.ets.control;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Consumer;
+import io.github.akmal2409.ets.JobExecutor;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Adjusts the number of concurrently processed jobs with additive increase and multiplicative
+ * decrease. Every interval it compares the per-job download and extraction throughput with their
+ * smoothed history and checks how long extractions waited for ffmpeg permits:
+ * <ul>
+ *   <li>a throughput that dropped below {@code degradationThreshold} of its history or an average
+ *   queue wait above {@code maxQueueWait} means the disk, network or CPU is saturated, the limit is
+ *   multiplied by {@code decreaseFactor};</li>
+ *   <li>otherwise, if all the slots were used, the limit grows by one;</li>
+ *   <li>otherwise the worker is not short of slots and the limit stays.</li>
+ * </ul>
+ * The limit is applied to the {@link JobExecutor} and, split evenly, to the prefetch of the
+ * attached consumers. Equal bounds turn the controller into a static limit.
+ * <p>
+ * Every channel carries a single consumer and the prefetch is set for the whole channel, which the
+ * broker applies to the running consumer at once. After a decrease the broker holds deliveries back
+ * until the unacknowledged ones drop below the new prefetch, so consumers are never restarted and
+ * a decrease never adds deliveries on top of the outstanding ones.
+ */
+public class ConcurrencyController implements AutoCloseable {
+
+  private enum Decision {
+    INCREASE, DECREASE, HOLD
+  }
+
+  /**
+   * The only consumer of a queue on its channel.
+   */
+  private static final class Subscription {
+
+    private final Channel channel;
+    private final String queue;
+    private final Consumer consumer;
+    private String consumerTag;
+
+    private Subscription(Channel channel, String queue, Consumer consumer) {
+      this.channel = channel;
+      this.queue = queue;
+      this.consumer = consumer;
+    }
+
+    /**
+     * Limits the unacknowledged deliveries of the channel, starting the consumer the first time.
+     */
+    private void applyPrefetch(int prefetch) throws IOException {
+      // the channel is shared with the jobs acking their deliveries
+      synchronized (channel) {
+        channel.basicQos(prefetch, true);
+
+        if (consumerTag == null) {
+          consumerTag = channel.basicConsume(queue, false, consumer);
+        }
+      }
+    }
+  }
+
+  private static final Logger log = LoggerFactory.getLogger(ConcurrencyController.class);
+
+  private final JobExecutor jobExecutor;
+  private final StageStats downloads;
+  private final StageStats extractions;
+  private final StageStats queueWaits;
+  private final int minLimit;
+  private final int maxLimit;
+  private final Duration interval;
+  private final double decreaseFactor;
+  private final double degradationThreshold;
+  private final Duration maxQueueWait;
+  private final double smoothingFactor;
+  private final MeterRegistry meterRegistry;
+  private final List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+  private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+      Thread.ofPlatform().name("concurrency-controller").daemon().factory());
+
+  private volatile double downloadThroughput = Double.NaN;
+  private volatile double extractionThroughput = Double.NaN;
+  private volatile double lastQueueWaitMillis;
+  private volatile int prefetch;
+
+  public ConcurrencyController(@NotNull JobExecutor jobExecutor, @NotNull StageStats downloads,
+      @NotNull StageStats extractions, @NotNull StageStats queueWaits, int minLimit, int maxLimit,
+      @NotNull Duration interval, double decreaseFactor, double degradationThreshold,
+      @NotNull Duration maxQueueWait, double smoothingFactor,
+      @NotNull MeterRegistry meterRegistry) {
+    if (minLimit < 1 || maxLimit < minLimit) {
+      throw new IllegalArgumentException(String.format(
+          "Invalid concurrency bounds [%d, %d]", minLimit, maxLimit));
+    }
+
+    if (decreaseFactor <= 0 || decreaseFactor >= 1) {
+      throw new IllegalArgumentException(
+          "Decrease factor must be in (0, 1), got " + decreaseFactor);
+    }
+
+    this.jobExecutor = jobExecutor;
+    this.downloads = downloads;
+    this.extractions = extractions;
+    this.queueWaits = queueWaits;
+    this.minLimit = minLimit;
+    this.maxLimit = maxLimit;
+    this.interval = interval;
+    this.decreaseFactor = decreaseFactor;
+    this.degradationThreshold = degradationThreshold;
+    this.maxQueueWait = maxQueueWait;
+    this.smoothingFactor = smoothingFactor;
+    this.meterRegistry = meterRegistry;
+
+    jobExecutor.setLimit(Math.min(maxLimit, Math.max(minLimit, jobExecutor.getLimit())));
+
+    Gauge.builder("worker.concurrency.limit", jobExecutor, JobExecutor::getLimit)
+        .description("Jobs the worker is allowed to process at once")
+        .register(meterRegistry);
+    Gauge.builder("worker.concurrency.prefetch", this, controller -> controller.prefetch)
+        .description("Prefetch of every consumer")
+        .register(meterRegistry);
+    Gauge.builder("worker.stage.download.throughput", this,
+            controller -> controller.downloadThroughput)
+        .description("Smoothed download throughput of a single job")
+        .baseUnit("bytes/s")
+        .register(meterRegistry);
+    Gauge.builder("worker.stage.extraction.throughput", this,
+            controller -> controller.extractionThroughput)
+        .description("Smoothed extraction throughput of a single job")
+        .baseUnit("bytes/s")
+        .register(meterRegistry);
+    Gauge.builder("worker.stage.queue.wait", this, controller -> controller.lastQueueWaitMillis)
+        .description("Average wait for ffmpeg permits during the last interval")
+        .baseUnit("ms")
+        .register(meterRegistry);
+  }
+
+  /**
+   * Registers a consumer of the queue whose prefetch follows the limit, it starts consuming with
+   * {@link #start()}. The channel must not carry other consumers, they would share its prefetch.
+   */
+  public void attach(@NotNull Channel channel, @NotNull String queue,
+      @NotNull Consumer consumer) {
+    subscriptions.add(new Subscription(channel, queue, consumer));
+  }
+
+  /**
+   * Starts the attached consumers and the periodic adjustment of the limit.
+   */
+  public void start() throws IOException {
+    applyPrefetch(jobExecutor.getLimit());
+    scheduler.scheduleAtFixedRate(this::adjustSafely, interval.toMillis(), interval.toMillis(),
+        TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public void close() {
+    scheduler.shutdownNow();
+  }
+
+  private void adjustSafely() {
+    try {
+      adjust();
+    } catch (Exception e) {
+      log.error("message=Cannot adjust concurrency", e);
+    }
+  }
+
+  void adjust() throws IOException {
+    final var downloadWindow = downloads.drain();
+    final var extractionWindow = extractions.drain();
+    final var queueWaitWindow = queueWaits.drain();
+    final int peakRunning = jobExecutor.drainPeakRunningJobs();
+    final int limit = jobExecutor.getLimit();
+
+    String congestion = null;
+
+    if (queueWaitWindow.operations() > 0
+            && queueWaitWindow.averageDuration().compareTo(maxQueueWait) > 0) {
+      congestion = "ffmpeg_queue_wait";
+    } else if (isDegraded(downloadWindow, downloadThroughput)) {
+      congestion = "download_throughput";
+    } else if (isDegraded(extractionWindow, extractionThroughput)) {
+      congestion = "extraction_throughput";
+    }
+
+    downloadThroughput = smooth(downloadThroughput, downloadWindow);
+    extractionThroughput = smooth(extractionThroughput, extractionWindow);
+    lastQueueWaitMillis = queueWaitWindow.averageDuration().toMillis();
+
+    final Decision decision;
+    final int newLimit;
+
+    if (congestion != null && limit > minLimit) {
+      decision = Decision.DECREASE;
+      newLimit = Math.max(minLimit, Math.min(limit - 1, (int) (limit * decreaseFactor)));
+    } else if (congestion == null && peakRunning >= limit && limit < maxLimit) {
+      decision = Decision.INCREASE;
+      newLimit = limit + 1;
+    } else {
+      decision = Decision.HOLD;
+      newLimit = limit;
+    }
+
+    Counter.builder("worker.concurrency.decisions")
+        .description("Decisions of the concurrency controller")
+        .tag("decision", decision.name().toLowerCase())
+        .register(meterRegistry)
+        .increment();
+
+    if (decision != Decision.HOLD) {
+      jobExecutor.setLimit(newLimit);
+      applyPrefetch(newLimit);
+
+      log.info(
+          "message=Adjusted job concurrency;decision={};limit={};new_limit={};congestion={};peak_running={};download_bps={};extraction_bps={};queue_wait_ms={}",
+          decision, limit, newLimit, congestion, peakRunning,
+          (long) downloadWindow.bytesPerSecond(), (long) extractionWindow.bytesPerSecond(),
+          queueWaitWindow.averageDuration().toMillis());
+    }
+  }
+
+  private boolean isDegraded(StageStats.Window window, double history) {
+    return window.operations() > 0 && !Double.isNaN(history)
+               && window.bytesPerSecond() < history * degradationThreshold;
+  }
+
+  private double smooth(double history, StageStats.Window window) {
+    if (window.operations() == 0) {
+      return history;
+    }
+
+    return Double.isNaN(history)
+               ? window.bytesPerSecond()
+               : history + smoothingFactor * (window.bytesPerSecond() - history);
+  }
+
+  private void applyPrefetch(int limit) throws IOException {
+    final int consumerPrefetch = prefetchOf(limit);
+
+    if (consumerPrefetch == prefetch) {
+      return;
+    }
+
+    for (Subscription subscription : subscriptions) {
+      subscription.applyPrefetch(consumerPrefetch);
+    }
+
+    prefetch = consumerPrefetch;
+  }
+
+  private int prefetchOf(int limit) {
+    return subscriptions.isEmpty() ? 0
+               : Math.max(1, (limit + subscriptions.size() - 1) / subscriptions.size());
+  }
+}
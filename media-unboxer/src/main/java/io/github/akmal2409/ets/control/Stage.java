@@ -0,0 +1,39 @@
+package io.github.akmal2409.ets.control;
+
+/**
+ * Stages of a job in the order they are run. A job may skip stages but never returns to an earlier
+ * one.
+ */
+public enum Stage {
+
+  /**
+   * Analysis of the source from ranged reads of the object before it is transferred, e.g. of its
+   * container header.
+   */
+  REMOTE_PROBE,
+
+  /**
+   * Transfer of the source to the scratch disk.
+   */
+  DOWNLOAD,
+
+  /**
+   * Analysis of the transferred source and remuxing when it cannot be demuxed directly.
+   */
+  PROBE,
+
+  /**
+   * Extraction of the streams with ffmpeg.
+   */
+  EXTRACT,
+
+  /**
+   * Waiting for the extracted streams to reach the output destination.
+   */
+  UPLOAD;
+
+  Stage next() {
+    final var stages = values();
+    return ordinal() + 1 < stages.length ? stages[ordinal() + 1] : null;
+  }
+}
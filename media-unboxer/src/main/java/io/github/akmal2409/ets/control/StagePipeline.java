@@ -0,0 +1,204 @@
+package io.github.akmal2409.ets.control;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Lets the jobs of the worker overlap by stage, e.g. the source of the next job is downloaded while
+ * the current one is being extracted, without letting any stage run ahead of the others.
+ * <p>
+ * Every {@link Stage} has a number of workers, the jobs that may run it at once, and a queue
+ * capacity, the jobs that finished the previous stage and wait for a worker. A job starts a stage
+ * only when a worker is free and the queue of the following stage has room for it, so a fast stage
+ * blocks instead of piling up downloaded or extracted files on the scratch disk.
+ * <p>
+ * A job waits only for stages after the ones it holds, the queue slot of the stage it is about to
+ * run and the workers and queue slots of later stages, which rules out a cycle of jobs waiting for
+ * each other as long as the last stage never waits.
+ */
+public class StagePipeline {
+
+  /**
+   * Position of a single job in the pipeline, closing it leaves the pipeline.
+   */
+  public class Ticket implements AutoCloseable {
+
+    private final UUID jobId;
+    private Stage entered;
+    private Stage running;
+    private Stage reserved;
+
+    private Ticket(UUID jobId) {
+      this.jobId = jobId;
+    }
+
+    /**
+     * Leaves the current stage and waits until the job can run the given one. Stages may be
+     * skipped, e.g. a streamed source has no download stage, but never entered again, every job
+     * moves through the stages in their order.
+     *
+     * @throws IllegalStateException if the stage is not after the last one the job entered
+     * @throws InterruptedException  if interrupted while waiting, the job runs no stage anymore
+     */
+    public void enter(@NotNull Stage stage) throws InterruptedException {
+      if (entered != null && stage.compareTo(entered) <= 0) {
+        throw new IllegalStateException(String.format(
+            "Job %s cannot enter stage %s after stage %s", jobId, stage, entered));
+      }
+
+      final var next = stage.next();
+      final long waitStart = System.nanoTime();
+
+      lock.lock();
+      try {
+        if (running != null) {
+          runningJobs.merge(running, -1, Integer::sum);
+          running = null;
+        }
+
+        // a skipped stage must not keep its queue slot while the job waits for a later stage,
+        // another job may need it to make progress
+        if (reserved != null && reserved != stage) {
+          queuedJobs.merge(reserved, -1, Integer::sum);
+          reserved = null;
+        }
+
+        changed.signalAll();
+
+        while (runningJobs.get(stage) >= workers.get(stage)
+                   || (next != null && queuedJobs.get(next) >= queueCapacity.get(next))) {
+          changed.await();
+        }
+
+        if (reserved != null) {
+          queuedJobs.merge(reserved, -1, Integer::sum);
+        }
+
+        runningJobs.merge(stage, 1, Integer::sum);
+        running = stage;
+        entered = stage;
+
+        // the room in the next queue is held while this stage runs
+        if (next != null) {
+          queuedJobs.merge(next, 1, Integer::sum);
+        }
+        reserved = next;
+        changed.signalAll();
+      } finally {
+        lock.unlock();
+      }
+
+      final var wait = Duration.ofNanos(System.nanoTime() - waitStart);
+      waitTimers.get(stage).record(wait);
+      log.debug("message=Entered stage;job_id={};stage={};wait_ms={}", jobId, stage,
+          wait.toMillis());
+    }
+
+    @Override
+    public void close() {
+      lock.lock();
+      try {
+        if (running != null) {
+          runningJobs.merge(running, -1, Integer::sum);
+          running = null;
+        }
+
+        if (reserved != null) {
+          queuedJobs.merge(reserved, -1, Integer::sum);
+          reserved = null;
+        }
+
+        changed.signalAll();
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+
+  private static final Logger log = LoggerFactory.getLogger(StagePipeline.class);
+
+  private final Map<Stage, Integer> workers;
+  private final Map<Stage, Integer> queueCapacity;
+  private final Map<Stage, Integer> runningJobs = new EnumMap<>(Stage.class);
+  private final Map<Stage, Integer> queuedJobs = new EnumMap<>(Stage.class);
+  private final Map<Stage, Timer> waitTimers = new EnumMap<>(Stage.class);
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition changed = lock.newCondition();
+
+  /**
+   * @param workers       jobs that may run the stage at once
+   * @param queueCapacity jobs that may wait for a worker of the stage
+   */
+  public StagePipeline(@NotNull Map<Stage, Integer> workers,
+      @NotNull Map<Stage, Integer> queueCapacity, @NotNull MeterRegistry meterRegistry) {
+    this.workers = new EnumMap<>(Stage.class);
+    this.queueCapacity = new EnumMap<>(Stage.class);
+
+    for (Stage stage : Stage.values()) {
+      final int stageWorkers = workers.getOrDefault(stage, 1);
+      final int stageQueueCapacity = queueCapacity.getOrDefault(stage, 1);
+
+      if (stageWorkers < 1 || stageQueueCapacity < 1) {
+        throw new IllegalArgumentException(String.format(
+            "Workers and queue capacity of stage %s must be positive, got %d and %d", stage,
+            stageWorkers, stageQueueCapacity));
+      }
+
+      this.workers.put(stage, stageWorkers);
+      this.queueCapacity.put(stage, stageQueueCapacity);
+      runningJobs.put(stage, 0);
+      queuedJobs.put(stage, 0);
+
+      final var stageTag = stage.name().toLowerCase();
+
+      Gauge.builder("worker.stage.jobs.running", this, pipeline -> pipeline.runningJobs(stage))
+          .description("Jobs running the stage")
+          .tag("stage", stageTag)
+          .register(meterRegistry);
+      Gauge.builder("worker.stage.jobs.queued", this, pipeline -> pipeline.queuedJobs(stage))
+          .description("Jobs waiting for the stage, including the ones still running the previous"
+                           + " stage")
+          .tag("stage", stageTag)
+          .register(meterRegistry);
+      waitTimers.put(stage, Timer.builder("worker.stage.wait")
+                                .description("Time a job waited to start the stage")
+                                .tag("stage", stageTag)
+                                .register(meterRegistry));
+    }
+  }
+
+  /**
+   * Admits the job to the pipeline, the job has to {@link Ticket#enter(Stage)} its first stage.
+   */
+  public Ticket admit(@NotNull UUID jobId) {
+    return new Ticket(jobId);
+  }
+
+  public int runningJobs(@NotNull Stage stage) {
+    lock.lock();
+    try {
+      return runningJobs.get(stage);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public int queuedJobs(@NotNull Stage stage) {
+    lock.lock();
+    try {
+      return queuedJobs.get(stage);
+    } finally {
+      lock.unlock();
+    }
+  }
+}
@@ -0,0 +1,55 @@
+package io.github.akmal2409.ets.control;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.LongAdder;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Accumulates the work done by a stage of the worker, e.g. downloads or extractions, between two
+ * decisions of the {@link ConcurrencyController}. Recording is lock free so it can be called from
+ * any number of jobs.
+ */
+public class StageStats {
+
+  /**
+   * Work recorded during a window.
+   *
+   * @param bytes processed by the completed operations
+   * @param busyNanos summed wall time of the completed operations
+   * @param operations number of completed operations
+   */
+  public record Window(long bytes, long busyNanos, long operations) {
+
+    /**
+     * @return average bytes per second of a single operation, 0 without operations.
+     */
+    public double bytesPerSecond() {
+      return busyNanos == 0 ? 0 : bytes * 1e9 / busyNanos;
+    }
+
+    /**
+     * @return average duration of an operation, zero without operations.
+     */
+    public Duration averageDuration() {
+      return operations == 0 ? Duration.ZERO : Duration.ofNanos(busyNanos / operations);
+    }
+  }
+
+  private final LongAdder bytes = new LongAdder();
+  private final LongAdder busyNanos = new LongAdder();
+  private final LongAdder operations = new LongAdder();
+
+  public void record(long processedBytes, @NotNull Duration elapsed) {
+    bytes.add(processedBytes);
+    busyNanos.add(elapsed.toNanos());
+    operations.increment();
+  }
+
+  /**
+   * Returns the work recorded since the previous call and starts a new window.
+   */
+  public Window drain() {
+    return new Window(bytes.sumThenReset(), busyNanos.sumThenReset(),
+        operations.sumThenReset());
+  }
+}
@@ -0,0 +1,10 @@
+package io.github.akmal2409.ets.exception;
+
+import java.util.UUID;
+
+public class CheckpointException extends JobExecutionFailureException {
+
+  public CheckpointException(String message, Throwable cause, UUID jobId) {
+    super(message, cause, jobId);
+  }
+}
@@ -0,0 +1,15 @@
+package io.github.akmal2409.ets.exception;
+
+/**
+ * Settings of the worker that cannot work on the machine it runs on, thrown at startup.
+ */
+public class ConfigurationException extends RuntimeException {
+
+  public ConfigurationException(String message) {
+    super(message);
+  }
+
+  public ConfigurationException(String message, Throwable cause) {
+    super(message, cause);
+  }
+}
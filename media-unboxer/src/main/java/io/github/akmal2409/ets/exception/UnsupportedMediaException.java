@@ -0,0 +1,10 @@
+package io.github.akmal2409.ets.exception;
+
+import java.util.UUID;
+
+public class UnsupportedMediaException extends JobExecutionFailureException {
+
+  public UnsupportedMediaException(String message, UUID jobId) {
+    super(message, jobId);
+  }
+}
@@ -0,0 +1,120 @@
+package io.github.akmal2409.ets.store;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.github.akmal2409.ets.unboxing.MediaCollection.Audio;
+import io.github.akmal2409.ets.unboxing.MediaCollection.Source;
+import io.github.akmal2409.ets.unboxing.MediaCollection.Subtitles;
+import io.github.akmal2409.ets.unboxing.MediaCollection.Video;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.io.IOException;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletionException;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.core.async.AsyncRequestBody;
+import software.amazon.awssdk.core.async.AsyncResponseTransformer;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+
+/**
+ * Index from the SHA-256 digest of a source to the output of the last job that unboxed it. Every
+ * entry is a small JSON object stored under {@code {keyPrefix}{digest}.json} in the bucket of the
+ * output, so the workers that write to the same bucket share the index.
+ * <p>
+ * The index is best effort, an entry may point to an output that was deleted since and failures to
+ * read or write it are treated as a miss.
+ */
+public class DedupIndex {
+
+  /**
+   * @param outputPrefix protocol formatted output of the job that produced the streams, e.g.
+   *                     s3://bucket/keyPrefix
+   */
+  public record Entry(
+      String outputPrefix,
+      List<Video> videos,
+      List<Audio> audio,
+      List<Subtitles> subtitles,
+      Source source // null for entries recorded before the source was described
+  ) {
+
+  }
+
+  private static final Logger log = LoggerFactory.getLogger(DedupIndex.class);
+
+  private final S3AsyncClient s3AsyncClient;
+  private final ObjectMapper objectMapper;
+  private final String keyPrefix;
+  private final Counter hits;
+  private final Counter misses;
+
+  public DedupIndex(@NotNull S3AsyncClient s3AsyncClient, @NotNull ObjectMapper objectMapper,
+      @NotNull String keyPrefix, @NotNull MeterRegistry meterRegistry) {
+    this.s3AsyncClient = s3AsyncClient;
+    this.objectMapper = objectMapper;
+    this.keyPrefix = keyPrefix;
+
+    this.hits = Counter.builder("dedup.hits")
+                    .description("Sources that were unboxed before")
+                    .register(meterRegistry);
+    this.misses = Counter.builder("dedup.misses")
+                      .description("Sources without an earlier output")
+                      .register(meterRegistry);
+  }
+
+  /**
+   * Looks up the earlier output of a source in the bucket of the given output.
+   *
+   * @param output      protocol formatted output of the job, e.g. s3://bucket/keyPrefix
+   * @param contentHash SHA-256 digest of the source as a lowercase hex string
+   */
+  public Optional<Entry> find(@NotNull String output, @NotNull String contentHash) {
+    final var bucket = S3Output.from(output).getBucket();
+    final var key = keyOf(contentHash);
+
+    try {
+      final var body = s3AsyncClient.getObject(b -> b.bucket(bucket).key(key),
+          AsyncResponseTransformer.toBytes()).join();
+      final var entry = objectMapper.readValue(body.asByteArray(), Entry.class);
+
+      hits.increment();
+      return Optional.of(entry);
+    } catch (CompletionException e) {
+      if (!(e.getCause() instanceof NoSuchKeyException)) {
+        log.warn("message=Cannot read dedup index, assuming unseen source;bucket={};key={}",
+            bucket, key, e.getCause());
+      }
+    } catch (IOException e) {
+      log.warn("message=Ignoring malformed dedup index entry;bucket={};key={}", bucket, key, e);
+    }
+
+    misses.increment();
+    return Optional.empty();
+  }
+
+  /**
+   * Points the digest to the given output, replacing the earlier one. The most recent output is the
+   * least likely one to be deleted.
+   */
+  public void record(@NotNull String contentHash, @NotNull Entry entry) {
+    final var bucket = S3Output.from(entry.outputPrefix()).getBucket();
+    final var key = keyOf(contentHash);
+
+    try {
+      s3AsyncClient.putObject(b -> b.bucket(bucket).key(key).contentType("application/json"),
+          AsyncRequestBody.fromBytes(objectMapper.writeValueAsBytes(entry))).join();
+      log.debug("message=Recorded dedup index entry;bucket={};key={};output={}", bucket, key,
+          entry.outputPrefix());
+    } catch (CompletionException | JsonProcessingException e) {
+      log.warn("message=Cannot record dedup index entry;bucket={};key={}", bucket, key, e);
+    }
+  }
+
+  private String keyOf(String contentHash) {
+    return keyPrefix + contentHash + ".json";
+  }
+}
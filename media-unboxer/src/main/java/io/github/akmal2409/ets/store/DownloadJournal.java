@@ -0,0 +1,135 @@
+package io.github.akmal2409.ets.store;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.Collection;
+
+/**
+ * Append-only record of the parts of a ranged download that are already on disk, kept next to the
+ * downloaded file as {@code {file}.parts}. The first line identifies the object and the part layout,
+ * every following line is the index of a part that was written and flushed. A journal that belongs
+ * to a different object version or part size is discarded.
+ */
+final class DownloadJournal implements Closeable {
+
+  private static final String SUFFIX = ".parts";
+
+  private final FileChannel channel;
+  private final BitSet completedParts;
+
+  private DownloadJournal(FileChannel channel, BitSet completedParts) {
+    this.channel = channel;
+    this.completedParts = completedParts;
+  }
+
+  /**
+   * Opens the journal of the destination, continuing the existing one when it describes the same
+   * object and part size, otherwise starting from scratch.
+   */
+  static DownloadJournal open(Path destination, String eTag, long objectSize, long partSizeBytes)
+      throws IOException {
+    final var journalPath = destination.resolveSibling(destination.getFileName() + SUFFIX);
+    final var header = String.format("etag=%s;size=%d;part_size=%d", eTag, objectSize,
+        partSizeBytes);
+    final var completedParts = new BitSet();
+    long journaledBytes = 0;
+
+    if (Files.exists(journalPath)) {
+      final var content = Files.readAllBytes(journalPath);
+      // a line without its line feed was cut off while it was appended, e.g. the worker died
+      final var lines = new String(content, 0, lastLineEnd(content), StandardCharsets.UTF_8)
+                            .split("\n", -1);
+
+      if (lines.length > 1 && lines[0].equals(header)) {
+        final long partCount = (objectSize + partSizeBytes - 1) / partSizeBytes;
+        journaledBytes = header.getBytes(StandardCharsets.UTF_8).length + 1;
+
+        for (int i = 1; i < lines.length - 1; i++) {
+          final int part;
+
+          try {
+            part = Integer.parseInt(lines[i]);
+          } catch (NumberFormatException e) {
+            break;
+          }
+
+          if (part < 0 || part >= partCount) {
+            break;
+          }
+          completedParts.set(part);
+          journaledBytes += lines[i].length() + 1;
+        }
+      }
+    }
+
+    final FileChannel channel;
+
+    if (completedParts.isEmpty()) {
+      channel = FileChannel.open(journalPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+          StandardOpenOption.TRUNCATE_EXISTING);
+      channel.write(ByteBuffer.wrap((header + "\n").getBytes(StandardCharsets.UTF_8)));
+      channel.force(false);
+    } else {
+      channel = FileChannel.open(journalPath, StandardOpenOption.WRITE,
+          StandardOpenOption.APPEND);
+      // later lines would be appended to a cut off or rejected one
+      channel.truncate(journaledBytes);
+    }
+
+    return new DownloadJournal(channel, completedParts);
+  }
+
+  /**
+   * Length of the content up to and including its last line feed.
+   */
+  private static int lastLineEnd(byte[] content) {
+    int end = content.length;
+
+    while (end > 0 && content[end - 1] != '\n') {
+      end--;
+    }
+
+    return end;
+  }
+
+  boolean isCompleted(int part) {
+    synchronized (completedParts) {
+      return completedParts.get(part);
+    }
+  }
+
+  int completedCount() {
+    synchronized (completedParts) {
+      return completedParts.cardinality();
+    }
+  }
+
+  /**
+   * Records the parts as done, the data of the parts must already be flushed to the disk.
+   */
+  void markCompleted(Collection<Integer> parts) throws IOException {
+    final var lines = new StringBuilder();
+
+    for (int part : parts) {
+      lines.append(part).append('\n');
+    }
+
+    synchronized (completedParts) {
+      channel.write(ByteBuffer.wrap(lines.toString().getBytes(StandardCharsets.UTF_8)));
+      channel.force(false);
+      parts.forEach(completedParts::set);
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+}
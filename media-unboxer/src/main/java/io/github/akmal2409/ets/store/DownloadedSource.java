@@ -0,0 +1,16 @@
+package io.github.akmal2409.ets.store;
+
+import java.nio.file.Path;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Source file in the job directory.
+ *
+ * @param path        location of the file
+ * @param contentHash SHA-256 digest of the file as a lowercase hex string computed during the
+ *                    download, {@code null} if the file was linked from the {@link SourceCache}
+ */
+public record DownloadedSource(@NotNull Path path, @Nullable String contentHash) {
+
+}
@@ -1,22 +1,31 @@
 package io.github.akmal2409.ets.store;
 
+import io.github.akmal2409.ets.control.StageStats;
 import io.github.akmal2409.ets.exception.DuplicateJobException;
+import io.github.akmal2409.ets.exception.FileNotFoundException;
+import io.github.akmal2409.ets.exception.ProcessedFilesCopyException;
 import io.github.akmal2409.ets.exception.VideoDownloadException;
 import java.io.IOException;
-import java.nio.file.Files;
+import java.io.InputStream;
 import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
 import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionException;
+import java.util.function.Consumer;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.core.async.AsyncResponseTransformer;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.model.CompletedMultipartUpload;
+import software.amazon.awssdk.services.s3.model.CompletedPart;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
 import software.amazon.awssdk.transfer.s3.S3TransferManager;
-import software.amazon.awssdk.transfer.s3.model.DirectoryUpload;
-import software.amazon.awssdk.transfer.s3.model.DownloadFileRequest;
-import software.amazon.awssdk.transfer.s3.model.FileDownload;
-import software.amazon.awssdk.transfer.s3.model.UploadDirectoryRequest;
-import software.amazon.awssdk.transfer.s3.progress.LoggingTransferListener;
 
 /**
  * Class containing required operations for carrying out a preprocessing job such as downloading the
@@ -25,20 +34,36 @@ import software.amazon.awssdk.transfer.s3.progress.LoggingTransferListener;
 public class MediaStore {
 
   private static final Logger log = LoggerFactory.getLogger(MediaStore.class);
+  /**
+   * Largest object that can be copied with a single CopyObject request.
+   */
+  private static final long MAX_SINGLE_COPY_BYTES = 5L * 1024 * 1024 * 1024;
+  private static final long COPY_PART_BYTES = 512L * 1024 * 1024;
 
   /**
-   * Storage folder that keeps the source files. {videoFolder}/{jobId}/{filename}.{extension}
+   * Keeps the job directories, the source is stored as {jobDirectory}/{filename}.{extension}
    */
-  private final Path videoFolder;
+  private final ScratchSpaceManager scratchSpaceManager;
   private final S3TransferManager s3TransferManager;
+  private final S3AsyncClient s3AsyncClient;
+  private final RangedDownloader rangedDownloader;
+  private final SourceCache sourceCache;
+  private final StageStats downloads;
 
-  public MediaStore(@NotNull Path videoFolder,
-      @NotNull S3TransferManager s3TransferManager) {
-    this.videoFolder = videoFolder;
+  public MediaStore(@NotNull ScratchSpaceManager scratchSpaceManager,
+      @NotNull S3TransferManager s3TransferManager,
+      @NotNull S3AsyncClient s3AsyncClient,
+      @NotNull RangedDownloader rangedDownloader,
+      @NotNull SourceCache sourceCache,
+      @NotNull StageStats downloads) {
+    this.scratchSpaceManager = scratchSpaceManager;
     this.s3TransferManager = s3TransferManager;
+    this.s3AsyncClient = s3AsyncClient;
+    this.rangedDownloader = rangedDownloader;
+    this.sourceCache = sourceCache;
+    this.downloads = downloads;
   }
 
-
   /**
    * Downloads source video file to the folder on disk and returns the path to the file.
    *
@@ -46,98 +71,308 @@ public class MediaStore {
    * @param source e.g. s3://bucket/key
    * @return path to the file.
    * @throws VideoDownloadException if the download failed or preparation for download
-   * @throws DuplicateJobException  if the contents cannot be stored because this job has associated
-   *                                files on disk.
+   * @throws DuplicateJobException  if the job is already being processed by this worker.
    */
   public Path downloadSource(@NotNull UUID jobId, @NotNull String source) {
+    return downloadSource(jobId, source, headSource(jobId, source),
+        scratchSpaceManager.createJobDirectory(jobId)).path();
+  }
+
+  /**
+   * Downloads source video file to an existing job directory and returns the path to the file. The
+   * file is linked from the {@link SourceCache} when the same version of the object was downloaded
+   * before, otherwise it is fetched with parallel ranged requests, see {@link RangedDownloader}.
+   *
+   * @param jobId        of the transcoding job.
+   * @param source       e.g. s3://bucket/key
+   * @param sourceObject result of {@link #headSource(UUID, String)} for the source
+   * @param jobDirectory directory created with {@link ScratchSpaceManager#createJobDirectory(UUID)}
+   * @return the file and, unless it came from the cache, its digest.
+   * @throws VideoDownloadException if the download failed
+   */
+  public DownloadedSource downloadSource(@NotNull UUID jobId, @NotNull String source,
+      @NotNull SourceObject sourceObject, @NotNull Path jobDirectory) {
     final var s3Source = S3Source.from(source);
 
     final String fileName = s3Source.getFileName();
 
-    Path jobDirectory;
     log.debug("message=Preparing to download video;job_id={}bucket={};file={}", jobId, s3Source.getBucket(),
         s3Source.getKey());
-    try {
-      jobDirectory = createJobDirectoryOrElseFail(jobId);
-      log.debug("message=Created job directory {};jobId={}", jobDirectory, jobId);
-    } catch (IOException e) {
-      throw new VideoDownloadException("Cannot set up folder", e, jobId);
-    }
 
     final var filePath = jobDirectory.resolve(fileName);
 
-    final FileDownload download = s3TransferManager
-                                      .downloadFile(
-                                          DownloadFileRequest.builder()
-                                              .getObjectRequest(b -> b.bucket(s3Source.getBucket()).key( s3Source.getKey()))
-                                              .destination(filePath)
-                                              .addTransferListener(
-                                                  LoggingTransferListener.create())
-                                              .build());
+    final long startNanos = System.nanoTime();
 
     try {
-      download.completionFuture().join();
-      log.debug("message=Downloaded file successfully;jobId={};bucket={};file={};location={}",
-          jobId, s3Source.getBucket(), s3Source.getKey(), jobDirectory);
+      final var eTag = sourceObject.eTag();
+
+      if (sourceCache.linkInto(s3Source.getBucket(), s3Source.getKey(), eTag, filePath)) {
+        log.debug("message=Using cached source;jobId={};bucket={};file={};location={}", jobId,
+            s3Source.getBucket(), s3Source.getKey(), jobDirectory);
+        return new DownloadedSource(filePath, null);
+      }
+
+      final long bytes = sourceObject.sizeBytes();
+      final var contentHash = rangedDownloader.download(s3Source.getBucket(), s3Source.getKey(),
+          eTag, bytes, filePath);
+      sourceCache.admit(s3Source.getBucket(), s3Source.getKey(), eTag, filePath);
+
+      final long elapsedNanos = System.nanoTime() - startNanos;
+      final long elapsedMillis = Math.max(1, elapsedNanos / 1_000_000);
+      downloads.record(bytes, Duration.ofNanos(elapsedNanos));
 
-      return filePath;
+      log.debug(
+          "message=Downloaded file successfully;jobId={};bucket={};file={};location={};bytes={};elapsed_ms={};mib_per_second={}",
+          jobId, s3Source.getBucket(), s3Source.getKey(), jobDirectory, bytes, elapsedMillis,
+          String.format("%.1f", bytes * 1000.0 / elapsedMillis / (1024 * 1024)));
+
+      return new DownloadedSource(filePath, contentHash);
     } catch (CancellationException e) {
       throw new VideoDownloadException("Download failed because it was cancelled", e, jobId);
     } catch (CompletionException e) {
       throw new VideoDownloadException("Download failed due to exception", e.getCause(), jobId);
+    } catch (IOException e) {
+      throw new VideoDownloadException("Download failed due to exception", e, jobId);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new VideoDownloadException("Download was interrupted", e, jobId);
     }
   }
 
   /**
-   * Uploads directory with processed files such as segments, index file, audio etc. to the
-   * destination bucket with a prefix. Files located at the top of the folder will have
-   * {@code keyPrefix} all files in the nested directories will have a key: {@code keyPrefix} +
-   * directories + fileName
+   * Looks up the size and version of the source object without downloading it.
    *
-   * @param output protocol formatted string e.g. s3://bucket/keyPrefix
-   * @param directory path to upload.
+   * @param jobId  of the transcoding job.
+   * @param source e.g. s3://bucket/key
+   * @throws FileNotFoundException  if the object does not exist
+   * @throws VideoDownloadException if the request failed
    */
-  public void uploadProcessedFiles(String output,
-      @NotNull Path directory) {
-    S3Output s3Output = S3Output.from(output);
+  public SourceObject headSource(@NotNull UUID jobId, @NotNull String source) {
+    final var s3Source = S3Source.from(source);
 
-    log.debug(
-        "message=Starting upload of processed files from directory {} to bucket {} with key {};bucket={}",
-        directory, s3Output.getBucket(), s3Output.getKey(), s3Output.getBucket());
+    try {
+      final var head = s3AsyncClient.headObject(
+          b -> b.bucket(s3Source.getBucket()).key(s3Source.getKey())).join();
+      return new SourceObject(head.contentLength(), head.eTag());
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof NoSuchKeyException) {
+        throw new FileNotFoundException("Source " + source + " does not exist");
+      }
+      throw new VideoDownloadException("Cannot look up source", e.getCause(), jobId);
+    }
+  }
 
-    final var uploadRequest = UploadDirectoryRequest.builder()
-                                  .followSymbolicLinks(false)
-                                  .maxDepth(10)
-                                  .s3Prefix(s3Output.getKey())
-                                  .source(directory)
-                                  .bucket(s3Output.getBucket())
-                                  .build();
+  /**
+   * @param source       e.g. s3://bucket/key
+   * @param sourceObject result of {@link #headSource(UUID, String)} for the source
+   * @return scratch root whose source cache holds this version of the source, {@code null} if it
+   * is not cached. A job directory on this root links the source instead of downloading it.
+   */
+  public @Nullable Path cachedSourceRoot(@NotNull String source,
+      @NotNull SourceObject sourceObject) {
+    final var s3Source = S3Source.from(source);
+    return sourceCache.rootOf(s3Source.getBucket(), s3Source.getKey(), sourceObject.eTag());
+  }
 
-    final DirectoryUpload upload = this.s3TransferManager.uploadDirectory(uploadRequest);
+  /**
+   * Fetches a byte range of the source object, used to inspect the container before committing to a
+   * transfer mode.
+   *
+   * @param jobId  of the transcoding job.
+   * @param source e.g. s3://bucket/key
+   * @param offset of the first byte
+   * @param length maximum number of bytes, fewer are returned when the object is shorter
+   * @throws VideoDownloadException if the request failed
+   */
+  public byte[] fetchSourceRange(@NotNull UUID jobId, @NotNull String source, long offset,
+      int length) {
+    final var s3Source = S3Source.from(source);
+    final var range = String.format("bytes=%d-%d", offset, offset + length - 1);
 
     try {
-      upload.completionFuture().join();
-      log.debug(
-          "message=Finished upload of processed files from directory {} to bucket {} with key {};bucket={}",
-          directory, s3Output.getBucket(), s3Output.getKey(), s3Output.getBucket());
+      return s3AsyncClient.getObject(
+              b -> b.bucket(s3Source.getBucket()).key(s3Source.getKey()).range(range),
+              AsyncResponseTransformer.toBytes())
+                 .join()
+                 .asByteArray();
+    } catch (CancellationException e) {
+      throw new VideoDownloadException("Range request was cancelled", e, jobId);
+    } catch (CompletionException e) {
+      throw new VideoDownloadException("Range request failed due to exception", e.getCause(),
+          jobId);
+    }
+  }
+
+  /**
+   * Starts streaming the source object into a named pipe located in the job directory. The body is
+   * written as it arrives from S3, so the reader of the pipe can start demuxing right away.
+   *
+   * @param jobId        of the transcoding job.
+   * @param source       e.g. s3://bucket/key
+   * @param jobDirectory directory created with {@link ScratchSpaceManager#createJobDirectory(UUID)}
+   * @return pipe that has to be closed once the reader is done.
+   * @throws VideoDownloadException if the object cannot be opened or the pipe cannot be created
+   */
+  public SourcePipe streamSource(@NotNull UUID jobId, @NotNull String source,
+      @NotNull Path jobDirectory) {
+    final var s3Source = S3Source.from(source);
+    final InputStream body;
+
+    try {
+      body = s3AsyncClient.getObject(
+              b -> b.bucket(s3Source.getBucket()).key(s3Source.getKey()),
+              AsyncResponseTransformer.toBlockingInputStream())
+                 .join();
+    } catch (CancellationException e) {
+      throw new VideoDownloadException("Streaming was cancelled", e, jobId);
     } catch (CompletionException e) {
-      throw new ProcessedFilesUploadFailedException(directory, s3Output.getBucket(), s3Output.getBucket());
+      throw new VideoDownloadException("Cannot open source stream", e.getCause(), jobId);
+    }
+
+    try {
+      final var pipe = SourcePipe.open(jobId,
+          jobDirectory.resolve(s3Source.getFileName() + ".pipe"), body);
+      log.debug("message=Streaming source through pipe {};job_id={};bucket={};file={}",
+          pipe.path(), jobId, s3Source.getBucket(), s3Source.getKey());
+      return pipe;
+    } catch (IOException e) {
+      try {
+        body.close();
+      } catch (IOException closeException) {
+        e.addSuppressed(closeException);
+      }
+      throw new VideoDownloadException("Cannot create source pipe", e, jobId);
     }
   }
 
-  private Path createJobDirectoryOrElseFail(UUID jobId) throws IOException {
-    final var jobFileFolder = videoFolder.resolve(jobId.toString());
+  /**
+   * Copies the processed files of an earlier job to the output destination, the data is copied by
+   * S3 and not transferred through the worker. Objects larger than the single request limit of
+   * CopyObject are copied in parts with UploadPartCopy.
+   *
+   * @param jobId        of the transcoding job.
+   * @param from         protocol formatted output of the earlier job e.g. s3://bucket/keyPrefix
+   * @param to           protocol formatted output of the job
+   * @param relativeKeys keys of the files relative to the outputs
+   * @throws FileNotFoundException       if a file is missing from the earlier output
+   * @throws ProcessedFilesCopyException if a copy failed
+   */
+  public void copyProcessedFiles(@NotNull UUID jobId, @NotNull String from, @NotNull String to,
+      @NotNull List<String> relativeKeys) {
+    final var source = S3Output.from(from);
+    final var destination = S3Output.from(to);
 
-    synchronized (MediaStore.class) {
-      if (Files.exists(jobFileFolder)) {
-        log.error("message=Duplicate job detected;jobId={}", jobId);
-        throw new DuplicateJobException(
-            "Cannot create directory for a job because it already exists: " + jobFileFolder, jobId);
-      } else {
-        Files.createDirectories(jobFileFolder);
+    final var copies = relativeKeys.stream()
+                           .map(relativeKey -> copyObject(source.getBucket(),
+                               source.keyOf(relativeKey), destination.getBucket(),
+                               destination.keyOf(relativeKey)))
+                           .toList();
+
+    try {
+      CompletableFuture.allOf(copies.toArray(CompletableFuture[]::new)).join();
+      log.debug("message=Copied processed files;job_id={};from={};to={};files={}", jobId, from,
+          to, relativeKeys.size());
+    } catch (CompletionException e) {
+      copies.forEach(copy -> copy.cancel(true));
+
+      if (e.getCause() instanceof NoSuchKeyException) {
+        throw new FileNotFoundException("Processed files of " + from + " are incomplete");
       }
+      throw new ProcessedFilesCopyException("Cannot copy processed files from " + from,
+          e.getCause(), jobId);
     }
+  }
+
+  private CompletableFuture<Void> copyObject(String sourceBucket, String sourceKey,
+      String destinationBucket, String destinationKey) {
+    return s3AsyncClient.headObject(b -> b.bucket(sourceBucket).key(sourceKey))
+               .thenCompose(head -> {
+                 if (head.contentLength() <= MAX_SINGLE_COPY_BYTES) {
+                   return s3AsyncClient.copyObject(b -> b.sourceBucket(sourceBucket)
+                                                           .sourceKey(sourceKey)
+                                                           .destinationBucket(destinationBucket)
+                                                           .destinationKey(destinationKey))
+                              .thenApply(response -> null);
+                 }
+
+                 return copyObjectInParts(sourceBucket, sourceKey, head.eTag(),
+                     head.contentLength(), destinationBucket, destinationKey);
+               });
+  }
+
+  private CompletableFuture<Void> copyObjectInParts(String sourceBucket, String sourceKey,
+      String eTag, long objectSize, String destinationBucket, String destinationKey) {
+    return s3AsyncClient.createMultipartUpload(b -> b.bucket(destinationBucket)
+                                                        .key(destinationKey))
+               .thenCompose(multipartUpload -> {
+                 final var uploadId = multipartUpload.uploadId();
+                 final List<CompletableFuture<CompletedPart>> parts = new ArrayList<>();
+                 int partNumber = 1;
+
+                 for (long offset = 0; offset < objectSize;
+                     offset += COPY_PART_BYTES, partNumber++) {
+                   final int number = partNumber;
+                   final var range = String.format("bytes=%d-%d", offset,
+                       Math.min(objectSize, offset + COPY_PART_BYTES) - 1);
 
-    return jobFileFolder;
+                   parts.add(s3AsyncClient.uploadPartCopy(b -> b.sourceBucket(sourceBucket)
+                                                                  .sourceKey(sourceKey)
+                                                                  .copySourceIfMatch(eTag)
+                                                                  .copySourceRange(range)
+                                                                  .destinationBucket(
+                                                                      destinationBucket)
+                                                                  .destinationKey(destinationKey)
+                                                                  .uploadId(uploadId)
+                                                                  .partNumber(number))
+                                 .thenApply(response -> CompletedPart.builder()
+                                                            .partNumber(number)
+                                                            .eTag(response.copyPartResult().eTag())
+                                                            .build()));
+                 }
+
+                 return CompletableFuture.allOf(parts.toArray(CompletableFuture[]::new))
+                            .thenCompose(ignored -> s3AsyncClient.completeMultipartUpload(
+                                b -> b.bucket(destinationBucket)
+                                         .key(destinationKey)
+                                         .uploadId(uploadId)
+                                         .multipartUpload(CompletedMultipartUpload.builder()
+                                                              .parts(parts.stream()
+                                                                         .map(CompletableFuture::join)
+                                                                         .toList())
+                                                              .build())))
+                            .<Void>thenApply(response -> null)
+                            .whenComplete((ignored, e) -> {
+                              if (e != null) {
+                                // parts of an abandoned upload are billed until it is aborted
+                                s3AsyncClient.abortMultipartUpload(b -> b.bucket(destinationBucket)
+                                                                            .key(destinationKey)
+                                                                            .uploadId(uploadId));
+                              }
+                            });
+               });
+  }
+
+  /**
+   * Prepares an upload of processed files that are submitted one by one as soon as they are
+   * produced. Files located at the top of the directory get the key prefix of the output, files in
+   * nested directories get the prefix + directories + file name.
+   *
+   * @param output    protocol formatted string e.g. s3://bucket/keyPrefix
+   * @param directory base directory of the files that will be submitted.
+   */
+  public ProcessedFilesUpload beginProcessedFilesUpload(String output, @NotNull Path directory) {
+    return beginProcessedFilesUpload(output, directory, file -> {});
+  }
+
+  /**
+   * Same as {@link #beginProcessedFilesUpload(String, Path)}, notifying the listener about every
+   * file that is stored in the output destination.
+   *
+   * @param onUploaded called with the path of the file once S3 confirmed it.
+   */
+  public ProcessedFilesUpload beginProcessedFilesUpload(String output, @NotNull Path directory,
+      @NotNull Consumer<Path> onUploaded) {
+    return new ProcessedFilesUpload(s3TransferManager, s3AsyncClient, S3Output.from(output),
+        directory, onUploaded);
   }
 }
@@ -0,0 +1,197 @@
+package io.github.akmal2409.ets.store;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.transfer.s3.S3TransferManager;
+import software.amazon.awssdk.transfer.s3.model.CompletedFileUpload;
+import software.amazon.awssdk.transfer.s3.model.UploadFileRequest;
+
+/**
+ * Upload of processed files that is fed file by file while they are being produced. Every submitted
+ * file starts its own (multipart) upload right away, so the network transfer overlaps with the
+ * extraction of the remaining streams.
+ * <p>
+ * Keys are built the same way as with a directory upload: {@code keyPrefix} + path relative to the
+ * base directory.
+ * <p>
+ * Files that are already stored under their key with the same content, e.g. uploaded by a previous
+ * delivery of the job before the worker died, are not uploaded again.
+ */
+public class ProcessedFilesUpload {
+
+  private static final Logger log = LoggerFactory.getLogger(ProcessedFilesUpload.class);
+  private static final String KEY_DELIMITER = "/";
+
+  private static final Executor CONTENT_CHECK_EXECUTOR = task -> Thread.ofVirtual()
+                                                                     .name("upload-check")
+                                                                     .start(task);
+
+  private final S3TransferManager s3TransferManager;
+  private final S3AsyncClient s3AsyncClient;
+  private final S3Output output;
+  private final Path baseDirectory;
+  private final Consumer<Path> onUploaded;
+  private final List<CompletableFuture<?>> pendingUploads = new ArrayList<>();
+  private boolean cancelled;
+
+  ProcessedFilesUpload(S3TransferManager s3TransferManager, S3AsyncClient s3AsyncClient,
+      S3Output output, Path baseDirectory, Consumer<Path> onUploaded) {
+    this.s3TransferManager = s3TransferManager;
+    this.s3AsyncClient = s3AsyncClient;
+    this.output = output;
+    this.baseDirectory = baseDirectory;
+    this.onUploaded = onUploaded;
+  }
+
+  /**
+   * Starts the upload of a finalized file. The file must not be modified afterwards.
+   *
+   * @param file located under the base directory.
+   */
+  public void submit(@NotNull Path file) {
+    final var key = keyOf(file);
+
+    final var upload = CompletableFuture.supplyAsync(() -> isAlreadyUploaded(file, key),
+            CONTENT_CHECK_EXECUTOR)
+                           .thenCompose(uploaded -> {
+                             if (uploaded) {
+                               log.debug(
+                                   "message=Skipping upload of processed file {}, already present;bucket={};key={}",
+                                   file, output.getBucket(), key);
+                               return CompletableFuture.completedFuture(null);
+                             }
+
+                             return startUpload(file, key);
+                           })
+                           .thenRun(() -> onUploaded.accept(file));
+
+    synchronized (pendingUploads) {
+      pendingUploads.add(upload);
+    }
+  }
+
+  /**
+   * Waits for every submitted upload to be confirmed by S3.
+   *
+   * @throws ProcessedFilesUploadFailedException if any of the uploads failed.
+   */
+  public void awaitCompletion() {
+    final List<CompletableFuture<?>> uploads;
+
+    synchronized (pendingUploads) {
+      uploads = List.copyOf(pendingUploads);
+    }
+
+    try {
+      CompletableFuture.allOf(uploads.toArray(CompletableFuture[]::new)).join();
+      log.debug(
+          "message=Finished upload of processed files from directory {};bucket={};key={};files={}",
+          baseDirectory, output.getBucket(), output.getKey(), uploads.size());
+    } catch (CompletionException | CancellationException e) {
+      cancel();
+      throw new ProcessedFilesUploadFailedException(e.getCause() != null ? e.getCause() : e,
+          baseDirectory, output.getBucket(), output.getKey());
+    }
+  }
+
+  /**
+   * Aborts uploads that are still in progress, e.g. when the extraction failed.
+   */
+  public void cancel() {
+    synchronized (pendingUploads) {
+      cancelled = true;
+      pendingUploads.forEach(upload -> upload.cancel(true));
+    }
+  }
+
+  private CompletableFuture<CompletedFileUpload> startUpload(Path file, String key) {
+    synchronized (pendingUploads) {
+      if (cancelled) {
+        return CompletableFuture.failedFuture(new CancellationException("Upload was cancelled"));
+      }
+
+      log.debug("message=Starting upload of processed file {};bucket={};key={}", file,
+          output.getBucket(), key);
+
+      final var upload = s3TransferManager.uploadFile(UploadFileRequest.builder()
+                                                          .putObjectRequest(b -> b.bucket(
+                                                              output.getBucket()).key(key))
+                                                          .source(file)
+                                                          .build())
+                             .completionFuture();
+      // the composed future does not propagate cancellation to the transfer
+      pendingUploads.add(upload);
+      return upload;
+    }
+  }
+
+  /**
+   * Compares the stored object with the file. Single part uploads carry the MD5 of the content as
+   * their ETag, multipart ones only allow to compare the size.
+   */
+  private boolean isAlreadyUploaded(Path file, String key) {
+    try {
+      final var head = s3AsyncClient.headObject(b -> b.bucket(output.getBucket()).key(key))
+                           .join();
+
+      if (head.contentLength() != Files.size(file)) {
+        return false;
+      }
+
+      final var eTag = head.eTag().replace("\"", "");
+
+      return eTag.contains("-") || eTag.equalsIgnoreCase(md5Of(file));
+    } catch (CompletionException e) {
+      if (!(e.getCause() instanceof NoSuchKeyException)) {
+        log.warn("message=Cannot check existing object, uploading;bucket={};key={}",
+            output.getBucket(), key, e.getCause());
+      }
+      return false;
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private static String md5Of(Path file) throws IOException {
+    final MessageDigest digest;
+
+    try {
+      digest = MessageDigest.getInstance("MD5");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("MD5 is not supported by the platform", e);
+    }
+
+    final var buffer = new byte[1024 * 1024];
+
+    try (var in = Files.newInputStream(file)) {
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        digest.update(buffer, 0, read);
+      }
+    }
+
+    return HexFormat.of().formatHex(digest.digest());
+  }
+
+  private String keyOf(Path file) {
+    return output.keyOf(String.join(KEY_DELIMITER,
+        baseDirectory.relativize(file).toString().split("[/\\\\]")));
+  }
+}
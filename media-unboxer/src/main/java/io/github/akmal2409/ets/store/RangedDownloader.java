@@ -0,0 +1,328 @@
+package io.github.akmal2409.ets.store;
+
+import io.github.akmal2409.ets.utils.FileUtils;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.core.async.AsyncResponseTransformer;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+
+/**
+ * Downloads an object with parallel ranged GET requests, each part is written to its offset in the
+ * destination file as soon as it arrives. At most {@code maxInFlightParts} parts are requested
+ * at once, so the memory held by buffered parts is bounded by
+ * {@code partSizeBytes * maxInFlightParts}.
+ * <p>
+ * Completed parts are recorded in a {@link DownloadJournal} next to the destination, so a download
+ * that was interrupted, e.g. because the worker died, continues with the missing parts when it is
+ * started again for the same object. The destination is flushed once for every
+ * {@code partsPerSync} written parts, which are journaled together after the flush.
+ * <p>
+ * The parts are hashed in order as they arrive, so the SHA-256 digest of the object is known at the
+ * end of the download without reading the file again. A part that arrives before its predecessors
+ * keeps its slot until it is hashed, which keeps the memory bound.
+ */
+public class RangedDownloader {
+
+  private static final Logger log = LoggerFactory.getLogger(RangedDownloader.class);
+
+  private final S3AsyncClient s3AsyncClient;
+  private final long partSizeBytes;
+  private final int maxInFlightParts;
+  private final int partsPerSync;
+
+  public RangedDownloader(@NotNull S3AsyncClient s3AsyncClient, long partSizeBytes,
+      int maxInFlightParts, int partsPerSync) {
+    if (partSizeBytes < 1 || maxInFlightParts < 1 || partsPerSync < 1) {
+      throw new IllegalArgumentException(String.format(
+          "Part size, parts in flight and parts per sync must be positive, got %d, %d and %d",
+          partSizeBytes, maxInFlightParts, partsPerSync));
+    }
+
+    this.s3AsyncClient = s3AsyncClient;
+    this.partSizeBytes = partSizeBytes;
+    this.maxInFlightParts = maxInFlightParts;
+    this.partsPerSync = partsPerSync;
+  }
+
+  /**
+   * Downloads the object to the destination, resuming a previous attempt if its journal is present
+   * and matches the object, overwriting the destination otherwise. All parts are requested with the
+   * ETag of the object, so a concurrent overwrite fails the download instead of producing a mix of
+   * both versions.
+   *
+   * @return size of the object in bytes
+   * @throws java.util.concurrent.CompletionException if any of the requests failed
+   * @throws IOException                              if the destination cannot be written
+   * @throws InterruptedException                     if interrupted while waiting for a free slot
+   */
+  public long download(@NotNull String bucket, @NotNull String key, @NotNull Path destination)
+      throws IOException, InterruptedException {
+    final var head = s3AsyncClient.headObject(b -> b.bucket(bucket).key(key)).join();
+    download(bucket, key, head.eTag(), head.contentLength(), destination);
+    return head.contentLength();
+  }
+
+  /**
+   * Same as {@link #download(String, String, Path)} for an object whose metadata the caller already
+   * looked up.
+   *
+   * @return SHA-256 digest of the object as a lowercase hex string, the same as
+   * {@link io.github.akmal2409.ets.utils.FileUtils#sha256(Path)} of the destination. Parts
+   * downloaded by an earlier attempt are read back from the destination to hash them.
+   */
+  public String download(@NotNull String bucket, @NotNull String key, @NotNull String eTag,
+      long objectSize, @NotNull Path destination) throws IOException, InterruptedException {
+    final var inFlight = new Semaphore(maxInFlightParts);
+    final var failure = new AtomicReference<Throwable>();
+    final List<CompletableFuture<Void>> parts = new ArrayList<>();
+
+    try (var journal = DownloadJournal.open(destination, eTag, objectSize, partSizeBytes);
+        var channel = openDestination(destination, journal.completedCount() == 0)) {
+      final var unsynced = new UnsyncedParts(channel, journal, partsPerSync);
+      final var resumed = new BitSet();
+
+      for (int part = 0; (long) part * partSizeBytes < objectSize; part++) {
+        resumed.set(part, journal.isCompleted(part));
+      }
+
+      final var hasher = new PartHasher(channel, partSizeBytes, objectSize, resumed);
+
+      if (journal.completedCount() > 0) {
+        log.debug("message=Resuming download;bucket={};key={};completed_parts={};destination={}",
+            bucket, key, journal.completedCount(), destination);
+      }
+
+      try {
+        int part = 0;
+
+        for (long offset = 0; offset < objectSize && failure.get() == null;
+            offset += partSizeBytes, part++) {
+          if (resumed.get(part)) {
+            continue;
+          }
+
+          inFlight.acquire();
+
+          final int index = part;
+          final long first = offset;
+          final long last = Math.min(objectSize, offset + partSizeBytes) - 1;
+
+          parts.add(s3AsyncClient.getObject(
+                  b -> b.bucket(bucket).key(key).ifMatch(eTag)
+                           .range(String.format("bytes=%d-%d", first, last)),
+                  AsyncResponseTransformer.toBytes())
+                        // the slots of the parts hashed along with this one are free again
+                        .thenAccept(bytes -> inFlight.release(writePart(channel, unsynced,
+                            hasher, index, bytes.asByteBuffer(), first)))
+                        .whenComplete((ignored, e) -> {
+                          if (e != null) {
+                            failure.compareAndSet(null, e);
+                            inFlight.release();
+                          }
+                        }));
+        }
+      } catch (InterruptedException e) {
+        parts.forEach(part -> part.cancel(true));
+        throw e;
+      }
+
+      try {
+        CompletableFuture.allOf(parts.toArray(CompletableFuture[]::new)).join();
+      } catch (CompletionException e) {
+        // parts written before the failure are kept for the next attempt
+        try {
+          unsynced.sync();
+        } catch (IOException syncFailure) {
+          e.addSuppressed(syncFailure);
+        }
+        throw e;
+      }
+
+      unsynced.sync();
+      return hasher.finish();
+    }
+  }
+
+  public long getPartSizeBytes() {
+    return partSizeBytes;
+  }
+
+  public int getMaxInFlightParts() {
+    return maxInFlightParts;
+  }
+
+  public int getPartsPerSync() {
+    return partsPerSync;
+  }
+
+  private static FileChannel openDestination(Path destination, boolean fresh)
+      throws IOException {
+    if (fresh) {
+      // unlinking instead of truncating keeps other hard links of the file, e.g. cached sources
+      Files.deleteIfExists(destination);
+    }
+
+    return FileChannel.open(destination, StandardOpenOption.CREATE, StandardOpenOption.READ,
+        StandardOpenOption.WRITE);
+  }
+
+  /**
+   * @return number of parts hashed after this one was written
+   */
+  private static int writePart(FileChannel channel, UnsyncedParts unsynced, PartHasher hasher,
+      int part, ByteBuffer buffer, long position) {
+    try {
+      final var data = buffer.duplicate();
+      long offset = position;
+
+      while (buffer.hasRemaining()) {
+        offset += channel.write(buffer, offset);
+      }
+
+      unsynced.add(part);
+      return hasher.add(part, data);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Parts written to the destination but not journaled yet. A part is journaled only once its
+   * bytes cannot be lost anymore, a single flush of the destination covers all of them.
+   */
+  private static final class UnsyncedParts {
+
+    private final FileChannel channel;
+    private final DownloadJournal journal;
+    private final int partsPerSync;
+    private final List<Integer> parts = new ArrayList<>();
+
+    private UnsyncedParts(FileChannel channel, DownloadJournal journal, int partsPerSync) {
+      this.channel = channel;
+      this.journal = journal;
+      this.partsPerSync = partsPerSync;
+    }
+
+    synchronized void add(int part) throws IOException {
+      parts.add(part);
+
+      if (parts.size() >= partsPerSync) {
+        sync();
+      }
+    }
+
+    synchronized void sync() throws IOException {
+      if (parts.isEmpty()) {
+        return;
+      }
+
+      channel.force(false);
+      journal.markCompleted(parts);
+      parts.clear();
+    }
+  }
+
+  /**
+   * SHA-256 digest of the object fed with the parts in order. Parts that arrive early are held until
+   * their predecessors are hashed, parts of an earlier attempt are read from the destination.
+   */
+  private static final class PartHasher {
+
+    private final FileChannel channel;
+    private final long partSizeBytes;
+    private final long objectSize;
+    private final BitSet resumed;
+    private final MessageDigest digest = FileUtils.newSha256Digest();
+    private final Map<Integer, ByteBuffer> pending = new HashMap<>();
+    private int next;
+
+    private PartHasher(FileChannel channel, long partSizeBytes, long objectSize, BitSet resumed) {
+      this.channel = channel;
+      this.partSizeBytes = partSizeBytes;
+      this.objectSize = objectSize;
+      this.resumed = resumed;
+    }
+
+    /**
+     * Hashes the part as soon as all its predecessors are hashed.
+     *
+     * @return number of downloaded parts hashed by this call, including held ones
+     */
+    synchronized int add(int part, ByteBuffer data) throws IOException {
+      pending.put(part, data);
+      return drain();
+    }
+
+    /**
+     * Hashes the parts of an earlier attempt that follow the last downloaded one.
+     *
+     * @return digest of the object as a lowercase hex string
+     */
+    synchronized String finish() throws IOException {
+      drain();
+
+      if ((long) next * partSizeBytes < objectSize) {
+        throw new IllegalStateException("Part " + next + " was not downloaded");
+      }
+
+      return HexFormat.of().formatHex(digest.digest());
+    }
+
+    private int drain() throws IOException {
+      int hashed = 0;
+
+      while ((long) next * partSizeBytes < objectSize) {
+        final var data = pending.remove(next);
+
+        if (data != null) {
+          digest.update(data);
+          hashed++;
+        } else if (resumed.get(next)) {
+          hashResumed(next);
+        } else {
+          break;
+        }
+
+        next++;
+      }
+
+      return hashed;
+    }
+
+    private void hashResumed(int part) throws IOException {
+      final long end = Math.min(objectSize, (part + 1) * partSizeBytes);
+      final var buffer = ByteBuffer.allocate((int) Math.min(1024 * 1024, partSizeBytes));
+
+      for (long position = part * partSizeBytes; position < end; ) {
+        buffer.clear().limit((int) Math.min(buffer.capacity(), end - position));
+        final int read = channel.read(buffer, position);
+
+        if (read < 0) {
+          throw new IOException("Destination ends before part " + part);
+        }
+
+        position += read;
+        digest.update(buffer.flip());
+      }
+    }
+  }
+}
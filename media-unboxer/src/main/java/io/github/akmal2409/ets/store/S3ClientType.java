@@ -0,0 +1,18 @@
+package io.github.akmal2409.ets.store;
+
+/**
+ * HTTP implementation behind the asynchronous S3 client.
+ */
+public enum S3ClientType {
+
+  /**
+   * Default Java client on top of Netty.
+   */
+  NETTY,
+
+  /**
+   * Native AWS Common Runtime client, splits and parallelises transfers on its own and usually gets
+   * closer to the NIC bandwidth. Requires the aws-crt native library for the platform.
+   */
+  CRT
+}
@@ -46,6 +46,19 @@ public class S3Output {
         key);
   }
 
+  /**
+   * Key of an object stored under the output key, which is used as a prefix.
+   *
+   * @param relativeKey e.g. audio/eng.aac
+   */
+  public String keyOf(String relativeKey) {
+    if (key.isEmpty()) {
+      return relativeKey;
+    }
+
+    return key.endsWith("/") ? key + relativeKey : key + "/" + relativeKey;
+  }
+
   public String getBucket() {
     return bucket;
   }
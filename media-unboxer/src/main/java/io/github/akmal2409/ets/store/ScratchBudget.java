@@ -0,0 +1,343 @@
+package io.github.akmal2409.ets.store;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Scratch disk space shared by the jobs of the worker. A job reserves the space it is estimated to
+ * need before it writes anything, so concurrent jobs cannot fill a disk and fail halfway through.
+ * <p>
+ * The estimate is the size of the source multiplied by {@code footprintFactor}, which covers the
+ * downloaded source, a possible remuxed copy and the extracted streams. Every volume, i.e. drive
+ * with one or more scratch roots, has its own budget, because the files of a job directory cannot
+ * spill over to another drive. The extracted streams, about the size of the source, are reserved
+ * on another volume than the job directory when one has room, the rest of the footprint is
+ * reserved where the job directory is placed.
+ */
+public class ScratchBudget {
+
+  /**
+   * Scratch roots on the same drive and a share of its space, e.g. the space the jobs may use.
+   */
+  public record Volume(@NotNull List<Path> roots, long capacityBytes) {
+
+    public Volume {
+      roots = List.copyOf(roots);
+    }
+  }
+
+  /**
+   * Space held by a job until it is closed, with the roots its directories were placed on.
+   */
+  public class Reservation implements AutoCloseable {
+
+    private final UUID jobId;
+    private final Placement placement;
+    private boolean released;
+
+    private Reservation(UUID jobId, Placement placement) {
+      this.jobId = jobId;
+      this.placement = placement;
+    }
+
+    public long bytes() {
+      return placement.jobBytes() + placement.outputBytes();
+    }
+
+    /**
+     * @return root for the job directory.
+     */
+    public Path jobRoot() {
+      return placement.jobRoot();
+    }
+
+    /**
+     * @return root for the directory of the extracted streams.
+     */
+    public Path outputRoot() {
+      return placement.outputRoot();
+    }
+
+    @Override
+    public void close() {
+      lock.lock();
+      try {
+        if (!released) {
+          released = true;
+          reservedBytes[placement.jobVolume()] -= placement.jobBytes();
+          reservedBytes[placement.outputVolume()] -= placement.outputBytes();
+          spaceReleased.signalAll();
+          log.debug("message=Released scratch space;job_id={};bytes={};reserved_bytes={}", jobId,
+              bytes(), getReservedBytes());
+        }
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+
+  private record Placement(int jobVolume, Path jobRoot, long jobBytes, int outputVolume,
+                           Path outputRoot, long outputBytes) {
+
+  }
+
+  private static final Logger log = LoggerFactory.getLogger(ScratchBudget.class);
+
+  private final List<Volume> volumes;
+  private final double footprintFactor;
+  private final Duration admissionTimeout;
+  private final Counter deferredJobs;
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition spaceReleased = lock.newCondition();
+
+  private final long[] reservedBytes;
+
+  /**
+   * @param volumes          drives of the scratch roots with the space the jobs may use on them
+   * @param footprintFactor  space needed by a job per byte of its source
+   * @param admissionTimeout how long a job waits for space before it is deferred
+   */
+  public ScratchBudget(@NotNull List<Volume> volumes, double footprintFactor,
+      @NotNull Duration admissionTimeout, @NotNull MeterRegistry meterRegistry) {
+    if (volumes.isEmpty() || footprintFactor <= 0) {
+      throw new IllegalArgumentException(String.format(
+          "At least one volume and a positive footprint factor are required, got %d and %f",
+          volumes.size(), footprintFactor));
+    }
+
+    for (Volume volume : volumes) {
+      if (volume.roots().isEmpty() || volume.capacityBytes() < 1) {
+        throw new IllegalArgumentException(String.format(
+            "Volume needs roots and a positive capacity, got %s and %d", volume.roots(),
+            volume.capacityBytes()));
+      }
+    }
+
+    this.volumes = List.copyOf(volumes);
+    this.reservedBytes = new long[volumes.size()];
+    this.footprintFactor = footprintFactor;
+    this.admissionTimeout = admissionTimeout;
+
+    for (int index = 0; index < this.volumes.size(); index++) {
+      final var volume = this.volumes.get(index);
+      final int volumeIndex = index;
+
+      Gauge.builder("scratch.budget.capacity", volume, Volume::capacityBytes)
+          .description("Scratch space the jobs may use on the volume")
+          .baseUnit("bytes")
+          .tag("volume", volume.roots().get(0).toString())
+          .register(meterRegistry);
+      Gauge.builder("scratch.budget.reserved", this,
+              budget -> budget.getReservedBytes(volumeIndex))
+          .description("Scratch space reserved by running jobs on the volume")
+          .baseUnit("bytes")
+          .tag("volume", volume.roots().get(0).toString())
+          .register(meterRegistry);
+    }
+
+    this.deferredJobs = Counter.builder("scratch.admission.deferred")
+                            .description("Jobs deferred because the scratch space was reserved")
+                            .register(meterRegistry);
+  }
+
+  /**
+   * @return space the job with the given source size is estimated to need.
+   */
+  public long footprintOf(long sourceBytes) {
+    return (long) Math.ceil(sourceBytes * footprintFactor);
+  }
+
+  /**
+   * @return whether the job could ever be admitted, even with all the volumes free.
+   */
+  public boolean fits(long sourceBytes) {
+    final long footprint = footprintOf(sourceBytes);
+    final long outputBytes = outputBytesOf(sourceBytes, footprint);
+    return place(footprint - outputBytes, outputBytes, null, null, new long[volumes.size()])
+               != null;
+  }
+
+  /**
+   * Same as {@link #reserve(UUID, long, Path, Path)} without preferred roots.
+   */
+  public Optional<Reservation> reserve(@NotNull UUID jobId, long sourceBytes)
+      throws InterruptedException {
+    return reserve(jobId, sourceBytes, null, null);
+  }
+
+  /**
+   * Reserves the footprint of the job, waiting for other jobs to release space for at most the
+   * admission timeout.
+   *
+   * @param preferredJobRoot    root the job directory should be placed on if its volume has room,
+   *                            e.g. because the directory of a previous delivery is there
+   * @param preferredOutputRoot same for the directory of the extracted streams
+   * @return reservation or empty if the space did not become available in time.
+   * @throws InterruptedException if interrupted while waiting
+   */
+  public Optional<Reservation> reserve(@NotNull UUID jobId, long sourceBytes,
+      @Nullable Path preferredJobRoot, @Nullable Path preferredOutputRoot)
+      throws InterruptedException {
+    final long footprint = footprintOf(sourceBytes);
+    final long outputBytes = outputBytesOf(sourceBytes, footprint);
+    long remainingNanos = admissionTimeout.toNanos();
+
+    lock.lock();
+    try {
+      Placement placement;
+
+      while ((placement = place(footprint - outputBytes, outputBytes, preferredJobRoot,
+          preferredOutputRoot, reservedBytes)) == null) {
+        if (remainingNanos <= 0) {
+          deferredJobs.increment();
+          log.info(
+              "message=Not enough scratch space;job_id={};footprint_bytes={};reserved_bytes={}",
+              jobId, footprint, getReservedBytes());
+          return Optional.empty();
+        }
+        remainingNanos = spaceReleased.awaitNanos(remainingNanos);
+      }
+
+      reservedBytes[placement.jobVolume()] += placement.jobBytes();
+      reservedBytes[placement.outputVolume()] += placement.outputBytes();
+      log.debug(
+          "message=Reserved scratch space;job_id={};bytes={};job_root={};output_root={};reserved_bytes={}",
+          jobId, footprint, placement.jobRoot(), placement.outputRoot(), getReservedBytes());
+      return Optional.of(new Reservation(jobId, placement));
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return space reserved on all the volumes.
+   */
+  public long getReservedBytes() {
+    lock.lock();
+    try {
+      long total = 0;
+
+      for (long bytes : reservedBytes) {
+        total += bytes;
+      }
+
+      return total;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private long getReservedBytes(int volume) {
+    lock.lock();
+    try {
+      return reservedBytes[volume];
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * The extracted streams are about as large as the source, never more than the footprint.
+   */
+  private static long outputBytesOf(long sourceBytes, long footprint) {
+    return Math.min(sourceBytes, footprint);
+  }
+
+  /**
+   * Places the job directory on the preferred volume or the one with the most free space that has
+   * room, and the output on another volume with room, falling back to the volume of the job.
+   *
+   * @return placement or {@code null} if no volume has room.
+   */
+  private Placement place(long jobBytes, long outputBytes, Path preferredJobRoot,
+      Path preferredOutputRoot, long[] reserved) {
+    for (int jobVolume : candidates(preferredJobRoot, reserved)) {
+      final long jobFree = volumes.get(jobVolume).capacityBytes() - reserved[jobVolume];
+
+      if (jobFree < jobBytes) {
+        continue;
+      }
+
+      final var jobRoot = rootOn(jobVolume, preferredJobRoot, null);
+
+      for (int outputVolume : candidates(preferredOutputRoot, reserved)) {
+        if (outputVolume != jobVolume && volumes.get(outputVolume).capacityBytes()
+                                             - reserved[outputVolume] >= outputBytes) {
+          return new Placement(jobVolume, jobRoot, jobBytes, outputVolume,
+              rootOn(outputVolume, preferredOutputRoot, null), outputBytes);
+        }
+      }
+
+      if (jobFree >= jobBytes + outputBytes) {
+        return new Placement(jobVolume, jobRoot, jobBytes, jobVolume,
+            rootOn(jobVolume, preferredOutputRoot, jobRoot), outputBytes);
+      }
+    }
+
+    return null;
+  }
+
+  /**
+   * @return volumes in the order they are tried, the one of the preferred root first, then the
+   * ones with the most free space.
+   */
+  private List<Integer> candidates(Path preferredRoot, long[] reserved) {
+    final List<Integer> candidates = new ArrayList<>();
+
+    for (int volume = 0; volume < volumes.size(); volume++) {
+      candidates.add(volume);
+    }
+
+    final int preferred = volumeOf(preferredRoot);
+    candidates.sort(Comparator.<Integer>comparingInt(volume -> volume == preferred ? 0 : 1)
+                        .thenComparingLong(
+                            volume -> reserved[volume] - volumes.get(volume).capacityBytes()));
+    return candidates;
+  }
+
+  /**
+   * @param avoided root that should not be selected if the volume has others, so two directories
+   *                on one volume are still spread over its roots.
+   * @return preferred root if it is on the volume, otherwise the first root that is not avoided.
+   */
+  private Path rootOn(int volume, Path preferredRoot, Path avoided) {
+    final var roots = volumes.get(volume).roots();
+
+    if (preferredRoot != null && roots.contains(preferredRoot)) {
+      return preferredRoot;
+    }
+
+    return roots.stream()
+               .filter(root -> !root.equals(avoided))
+               .findFirst()
+               .orElse(roots.get(0));
+  }
+
+  private int volumeOf(Path root) {
+    if (root == null) {
+      return -1;
+    }
+
+    for (int volume = 0; volume < volumes.size(); volume++) {
+      if (volumes.get(volume).roots().contains(root)) {
+        return volume;
+      }
+    }
+
+    return -1;
+  }
+}
@@ -0,0 +1,471 @@
+package io.github.akmal2409.ets.store;
+
+import io.github.akmal2409.ets.exception.DuplicateJobException;
+import io.github.akmal2409.ets.exception.VideoDownloadException;
+import io.github.akmal2409.ets.utils.FileUtils;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.LinkOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Owns the job directories on the scratch roots.
+ * <p>
+ * Directories are created with atomic file system operations, a job is guarded only against
+ * another delivery of itself, so jobs never wait for each other. Reclaimed directories are renamed
+ * into the {@value #TRASH_DIRECTORY} folder of their root, which is instant, and deleted by a
+ * background reclaimer, so a finished job does not hold its slot while gigabytes are unlinked.
+ * Trash left behind by a previous run is reclaimed on startup.
+ * <p>
+ * Directories of failed jobs are kept for their next delivery. A sweeper reclaims the ones that no
+ * job of this worker uses and that have not changed for the abandoned directory TTL, e.g. because
+ * the job was dead-lettered or picked up by another worker, on startup and every sweep interval.
+ * It also measures the disk usage of the active jobs, files shared with the source cache are not
+ * counted.
+ */
+public class ScratchSpaceManager implements AutoCloseable {
+
+  private record TrashEntry(Path path, String kind, long trashedAtNanos) {
+
+  }
+
+  private static final Logger log = LoggerFactory.getLogger(ScratchSpaceManager.class);
+  private static final String OUTPUT_DIRECTORY_SUFFIX = ".unboxed";
+  private static final String TRASH_DIRECTORY = ".trash";
+
+  private final ScratchVolumes scratchVolumes;
+  /**
+   * Jobs whose directories are in use by this worker, with the roots that hold them.
+   */
+  private final ConcurrentMap<UUID, List<Path>> activeJobs = new ConcurrentHashMap<>();
+  /**
+   * Disk usage of the active jobs as of the last sweep.
+   */
+  private final ConcurrentMap<UUID, Long> jobUsage = new ConcurrentHashMap<>();
+  private final BlockingQueue<TrashEntry> trash = new LinkedBlockingQueue<>();
+  private final Duration abandonedDirectoryTtl;
+  private final Duration sweepInterval;
+  private final Timer reclaimLatency;
+  private final MeterRegistry meterRegistry;
+  private final Thread reclaimer;
+  private final Thread sweeper;
+
+  /**
+   * @param abandonedDirectoryTtl time after its last change a directory that no job uses is
+   *                              reclaimed
+   * @param sweepInterval         how often abandoned directories are looked for and the usage of
+   *                              the active jobs is measured
+   */
+  public ScratchSpaceManager(@NotNull List<Path> scratchRoots,
+      @NotNull Duration abandonedDirectoryTtl, @NotNull Duration sweepInterval,
+      @NotNull MeterRegistry meterRegistry) {
+    this.scratchVolumes = new ScratchVolumes(scratchRoots);
+    this.abandonedDirectoryTtl = abandonedDirectoryTtl;
+    this.sweepInterval = sweepInterval;
+    this.meterRegistry = meterRegistry;
+
+    for (Path root : scratchVolumes.roots()) {
+      Gauge.builder("scratch.root.used", root, ScratchSpaceManager::usedSpace)
+          .description("Used space of the drive that holds the scratch root")
+          .baseUnit("bytes")
+          .tag("root", root.toString())
+          .register(meterRegistry);
+    }
+
+    Gauge.builder("scratch.jobs.active", activeJobs, ConcurrentMap::size)
+        .description("Jobs with directories in use")
+        .register(meterRegistry);
+    Gauge.builder("scratch.jobs.usage", jobUsage,
+            usage -> usage.values().stream().mapToLong(Long::longValue).sum())
+        .description("Disk space used by the directories of the active jobs")
+        .baseUnit("bytes")
+        .register(meterRegistry);
+    Gauge.builder("scratch.jobs.usage.max", jobUsage,
+            usage -> usage.values().stream().mapToLong(Long::longValue).max().orElse(0))
+        .description("Disk space used by the directories of the largest active job")
+        .baseUnit("bytes")
+        .register(meterRegistry);
+    Gauge.builder("scratch.trash.pending", trash, BlockingQueue::size)
+        .description("Directories waiting to be deleted")
+        .register(meterRegistry);
+    this.reclaimLatency = Timer.builder("scratch.reclaim.latency")
+                              .description("Time from reclaiming a directory until it is deleted")
+                              .register(meterRegistry);
+
+    sweepTrash();
+    sweepAbandonedDirectories();
+    this.reclaimer = Thread.ofVirtual().name("scratch-reclaimer").start(this::reclaimLoop);
+    this.sweeper = Thread.ofVirtual().name("scratch-sweeper").start(this::sweepLoop);
+  }
+
+  /**
+   * Creates a directory that will hold all the files of the job. A directory left behind by a
+   * previous delivery of the job, e.g. when the worker died, is reused so that the transfers can
+   * resume from the files that are already there.
+   *
+   * @param jobId of the transcoding job.
+   * @return path to the job directory.
+   * @throws VideoDownloadException if the directory cannot be created
+   * @throws DuplicateJobException  if the job is already being processed by this worker.
+   */
+  public Path createJobDirectory(@NotNull UUID jobId) {
+    return createJobDirectory(jobId, null);
+  }
+
+  /**
+   * Same as {@link #createJobDirectory(UUID)} on the given root, usually the one the space of the
+   * job was reserved on. A directory of a previous delivery is reused wherever it is.
+   *
+   * @param root scratch root for a new directory, {@code null} to select one
+   */
+  public Path createJobDirectory(@NotNull UUID jobId, @Nullable Path root) {
+    final List<Path> roots = new CopyOnWriteArrayList<>();
+
+    if (activeJobs.putIfAbsent(jobId, roots) != null) {
+      log.error("message=Duplicate job detected;jobId={}", jobId);
+      throw new DuplicateJobException(
+          "Cannot create directory for a job because it is in use", jobId);
+    }
+
+    try {
+      final var jobDirectory = createDirectory(jobId.toString(), root, null);
+      roots.add(jobDirectory.getParent());
+      return jobDirectory;
+    } catch (IOException e) {
+      activeJobs.remove(jobId);
+      throw new VideoDownloadException("Cannot set up folder", e, jobId);
+    }
+  }
+
+  /**
+   * Creates the directory for the extracted files of the job. It is placed on another scratch root
+   * than the job directory when there is one, so reading the source and writing the streams do
+   * not compete for the same drive. A directory of a previous delivery is reused.
+   *
+   * @param jobId        of the transcoding job.
+   * @param jobDirectory directory created with {@link #createJobDirectory(UUID)}
+   * @return path to the output directory.
+   * @throws VideoDownloadException if the directory cannot be created
+   */
+  public Path createOutputDirectory(@NotNull UUID jobId, @NotNull Path jobDirectory) {
+    return createOutputDirectory(jobId, jobDirectory, null);
+  }
+
+  /**
+   * Same as {@link #createOutputDirectory(UUID, Path)} on the given root, usually the one the space
+   * of the extracted streams was reserved on. A directory of a previous delivery is reused wherever
+   * it is.
+   *
+   * @param root scratch root for a new directory, {@code null} to select one
+   */
+  public Path createOutputDirectory(@NotNull UUID jobId, @NotNull Path jobDirectory,
+      @Nullable Path root) {
+    try {
+      final var outputDirectory = createDirectory(jobId + OUTPUT_DIRECTORY_SUFFIX, root,
+          jobDirectory.getParent());
+      activeJobs.computeIfAbsent(jobId, id -> new CopyOnWriteArrayList<>())
+          .add(outputDirectory.getParent());
+      return outputDirectory;
+    } catch (IOException e) {
+      throw new VideoDownloadException("Cannot set up output folder", e, jobId);
+    }
+  }
+
+  /**
+   * Moves the directories of the job on all scratch roots to the trash once the job is done and
+   * allows the job to be picked up again. The space is freed in the background.
+   *
+   * @param jobId of the transcoding job.
+   */
+  public void reclaimJobDirectories(@NotNull UUID jobId) throws IOException {
+    try {
+      for (Path root : scratchVolumes.roots()) {
+        moveToTrash(root, jobId.toString(), "job");
+        moveToTrash(root, jobId + OUTPUT_DIRECTORY_SUFFIX, "output");
+      }
+    } finally {
+      releaseJobDirectories(jobId);
+    }
+  }
+
+  /**
+   * Keeps the files of the job on disk for the next delivery and allows the job to be picked up
+   * again.
+   *
+   * @param jobId of the transcoding job.
+   */
+  public void releaseJobDirectories(@NotNull UUID jobId) {
+    final var roots = activeJobs.remove(jobId);
+    jobUsage.remove(jobId);
+
+    if (roots != null) {
+      roots.forEach(scratchVolumes::release);
+    }
+  }
+
+  public List<Path> roots() {
+    return scratchVolumes.roots();
+  }
+
+  /**
+   * @return root that holds the job directory of a previous delivery, {@code null} if there is
+   * none.
+   */
+  public @Nullable Path findJobRoot(@NotNull UUID jobId) {
+    return scratchVolumes.find(jobId.toString());
+  }
+
+  /**
+   * @return root that holds the output directory of a previous delivery, {@code null} if there is
+   * none.
+   */
+  public @Nullable Path findOutputRoot(@NotNull UUID jobId) {
+    return scratchVolumes.find(jobId + OUTPUT_DIRECTORY_SUFFIX);
+  }
+
+  /**
+   * Disk space used by the directories of the job as of the last sweep, files shared with the
+   * source cache are not counted.
+   *
+   * @return size in bytes, 0 if the job is not active or was not measured yet
+   */
+  public long usageOf(@NotNull UUID jobId) {
+    return jobUsage.getOrDefault(jobId, 0L);
+  }
+
+  @Override
+  public void close() {
+    reclaimer.interrupt();
+    sweeper.interrupt();
+  }
+
+  private Path createDirectory(String directoryName, Path requestedRoot, Path avoidedRoot)
+      throws IOException {
+    final var existingRoot = scratchVolumes.find(directoryName);
+    final Path root;
+
+    if (existingRoot != null) {
+      root = existingRoot;
+    } else if (requestedRoot != null) {
+      root = requestedRoot;
+    } else {
+      root = scratchVolumes.select(avoidedRoot);
+    }
+
+    final var directory = root.resolve(directoryName);
+
+    try {
+      Files.createDirectory(directory);
+      log.debug("message=Created directory {}", directory);
+    } catch (FileAlreadyExistsException e) {
+      log.info("message=Reusing directory of a previous delivery;directory={}", directory);
+    }
+
+    scratchVolumes.acquire(root);
+    return directory;
+  }
+
+  private void moveToTrash(Path root, String directoryName, String kind) throws IOException {
+    final var directory = root.resolve(directoryName);
+
+    if (Files.notExists(directory)) {
+      return;
+    }
+
+    final var trashDirectory = Files.createDirectories(root.resolve(TRASH_DIRECTORY));
+    final var trashed = trashDirectory.resolve(directoryName + "-" + UUID.randomUUID());
+
+    // same file system, so the rename is atomic and does not touch the contents
+    Files.move(directory, trashed, StandardCopyOption.ATOMIC_MOVE);
+    trash.add(new TrashEntry(trashed, kind, System.nanoTime()));
+  }
+
+  private void sweepTrash() {
+    for (Path root : scratchVolumes.roots()) {
+      final var trashDirectory = root.resolve(TRASH_DIRECTORY);
+
+      if (!Files.isDirectory(trashDirectory)) {
+        continue;
+      }
+
+      try (var leftovers = Files.list(trashDirectory)) {
+        leftovers.forEach(path -> trash.add(new TrashEntry(path, "leftover", System.nanoTime())));
+      } catch (IOException e) {
+        log.warn("message=Cannot list trash of scratch root;root={}", root, e);
+      }
+    }
+  }
+
+  private void sweepLoop() {
+    while (!Thread.currentThread().isInterrupted()) {
+      try {
+        Thread.sleep(sweepInterval);
+      } catch (InterruptedException e) {
+        return;
+      }
+
+      sweepAbandonedDirectories();
+      measureActiveJobs();
+    }
+  }
+
+  /**
+   * Moves the job directories that no job of this worker uses and that have not changed within
+   * the TTL to the trash.
+   */
+  private void sweepAbandonedDirectories() {
+    final var cutoff = Instant.now().minus(abandonedDirectoryTtl);
+
+    for (Path root : scratchVolumes.roots()) {
+      try (var entries = Files.list(root)) {
+        for (Path directory : entries.toList()) {
+          final var directoryName = directory.getFileName().toString();
+          final var jobId = jobIdOf(directoryName);
+
+          if (jobId == null || activeJobs.containsKey(jobId) || !Files.isDirectory(directory)
+                  || lastModified(directory).isAfter(cutoff)) {
+            continue;
+          }
+
+          // holding the job keeps a new delivery from reusing the directory while it is moved
+          final List<Path> guard = new CopyOnWriteArrayList<>();
+
+          if (activeJobs.putIfAbsent(jobId, guard) != null) {
+            continue;
+          }
+
+          try {
+            moveToTrash(root, directoryName, "abandoned");
+            log.info("message=Reclaiming abandoned directory;directory={};ttl_h={}", directory,
+                abandonedDirectoryTtl.toHours());
+          } finally {
+            activeJobs.remove(jobId, guard);
+          }
+        }
+      } catch (IOException e) {
+        log.warn("message=Cannot sweep scratch root;root={}", root, e);
+      }
+    }
+  }
+
+  private void measureActiveJobs() {
+    for (var job : activeJobs.entrySet()) {
+      final var jobId = job.getKey();
+      long usedBytes = 0;
+
+      try {
+        for (Path root : Set.copyOf(job.getValue())) {
+          usedBytes += FileUtils.diskUsage(root.resolve(jobId.toString()))
+                           + FileUtils.diskUsage(root.resolve(jobId + OUTPUT_DIRECTORY_SUFFIX));
+        }
+      } catch (IOException e) {
+        log.debug("message=Cannot measure job directories;job_id={}", jobId, e);
+        continue;
+      }
+
+      // the job may have been released while it was measured
+      jobUsage.put(jobId, usedBytes);
+
+      if (!activeJobs.containsKey(jobId)) {
+        jobUsage.remove(jobId);
+      }
+    }
+  }
+
+  /**
+   * @return job that owns a job or output directory, {@code null} for any other entry of a root
+   */
+  private static UUID jobIdOf(String directoryName) {
+    var name = directoryName;
+
+    if (name.endsWith(OUTPUT_DIRECTORY_SUFFIX)) {
+      name = name.substring(0, name.length() - OUTPUT_DIRECTORY_SUFFIX.length());
+    }
+
+    try {
+      final var jobId = UUID.fromString(name);
+      return jobId.toString().equals(name) ? jobId : null;
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Latest change of the directory or of its direct entries, writes into the job directory replace
+   * its checkpoint and create files next to it.
+   */
+  private static Instant lastModified(Path directory) throws IOException {
+    var latest = Files.getLastModifiedTime(directory).toInstant();
+
+    try (var entries = Files.list(directory)) {
+      for (Path entry : entries.toList()) {
+        final var modified = Files.getLastModifiedTime(entry, LinkOption.NOFOLLOW_LINKS)
+                                 .toInstant();
+
+        if (modified.isAfter(latest)) {
+          latest = modified;
+        }
+      }
+    }
+
+    return latest;
+  }
+
+  private void reclaimLoop() {
+    while (!Thread.currentThread().isInterrupted()) {
+      final TrashEntry entry;
+
+      try {
+        entry = trash.take();
+      } catch (InterruptedException e) {
+        return;
+      }
+
+      try {
+        final long freedBytes = FileUtils.deleteDirectory(entry.path());
+        final var latency = Duration.ofNanos(System.nanoTime() - entry.trashedAtNanos());
+
+        reclaimLatency.record(latency);
+        DistributionSummary.builder("scratch.job.usage")
+            .description("Disk space freed by deleting a reclaimed directory")
+            .baseUnit("bytes")
+            .tag("directory", entry.kind())
+            .register(meterRegistry)
+            .record(freedBytes);
+        log.debug("message=Reclaimed directory {};bytes={};latency_ms={}", entry.path(),
+            freedBytes, latency.toMillis());
+      } catch (IOException e) {
+        log.error("message=Cannot delete reclaimed directory {}", entry.path(), e);
+      }
+    }
+  }
+
+  private static double usedSpace(Path root) {
+    try {
+      final var fileStore = Files.getFileStore(root);
+      return fileStore.getTotalSpace() - fileStore.getUsableSpace();
+    } catch (IOException e) {
+      return Double.NaN;
+    }
+  }
+}
@@ -0,0 +1,91 @@
+package io.github.akmal2409.ets.store;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Scratch roots of the worker, usually one per mounted drive. Directories are placed on the root
+ * with the most usable space per directory that is currently in use on it, so both the capacity
+ * and the I/O of the drives are shared by the jobs. Concurrent placements may see slightly stale
+ * counts, which only affects the balance.
+ */
+final class ScratchVolumes {
+
+  private static final Logger log = LoggerFactory.getLogger(ScratchVolumes.class);
+
+  private final List<Path> roots;
+  private final ConcurrentMap<Path, Integer> directoriesInUse = new ConcurrentHashMap<>();
+
+  ScratchVolumes(List<Path> roots) {
+    if (roots.isEmpty()) {
+      throw new IllegalArgumentException("At least one scratch root is required");
+    }
+
+    this.roots = List.copyOf(roots);
+    this.roots.forEach(root -> directoriesInUse.put(root, 0));
+  }
+
+  List<Path> roots() {
+    return roots;
+  }
+
+  /**
+   * @return root that contains a directory with the given name, {@code null} if there is none.
+   */
+  @Nullable Path find(String directoryName) {
+    return roots.stream()
+               .filter(root -> Files.isDirectory(root.resolve(directoryName)))
+               .findFirst()
+               .orElse(null);
+  }
+
+  /**
+   * Selects the root for a new directory.
+   *
+   * @param avoided root that should not be selected if there are others, e.g. the one that already
+   *                holds the source of the job, so that reads and writes go to different drives.
+   */
+  Path select(@Nullable Path avoided) {
+    Path selected = null;
+    double selectedScore = -1;
+
+    for (Path root : roots) {
+      if (root.equals(avoided) && roots.size() > 1) {
+        continue;
+      }
+
+      final double score = usableSpace(root) / (1.0 + directoriesInUse.get(root));
+
+      if (score > selectedScore) {
+        selected = root;
+        selectedScore = score;
+      }
+    }
+
+    return selected;
+  }
+
+  void acquire(Path root) {
+    directoriesInUse.merge(root, 1, Integer::sum);
+  }
+
+  void release(Path root) {
+    directoriesInUse.merge(root, -1, Integer::sum);
+  }
+
+  private static long usableSpace(Path root) {
+    try {
+      return Files.getFileStore(root).getUsableSpace();
+    } catch (IOException e) {
+      log.warn("message=Cannot read usable space of scratch root;root={}", root, e);
+      return 0;
+    }
+  }
+}
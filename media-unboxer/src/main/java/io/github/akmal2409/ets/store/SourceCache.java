@@ -0,0 +1,299 @@
+package io.github.akmal2409.ets.store;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * On-disk cache of downloaded sources, so retries and re-runs of a job do not download the same
+ * object again. Entries are keyed by bucket, key and ETag, an overwritten object is a miss.
+ * <p>
+ * Every scratch root has its own {@value #CACHE_DIRECTORY} folder and files are shared with the
+ * job directories through hard links, which only work within a file system, so nothing is copied
+ * in either direction. Every volume, i.e. drive with one or more scratch roots, has its own
+ * capacity, and the size of its entries is kept under it by evicting the least recently used ones.
+ * A volume without capacity caches nothing. The access order survives restarts through the
+ * modification time of the entries.
+ */
+public class SourceCache {
+
+  private record Entry(Path path, long size) {
+
+  }
+
+  /**
+   * Entries of one volume in access order, the least recently used first.
+   */
+  private static final class Shard {
+
+    private final ScratchBudget.Volume volume;
+    private final LinkedHashMap<Path, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long sizeBytes;
+
+    private Shard(ScratchBudget.Volume volume) {
+      this.volume = volume;
+    }
+  }
+
+  private static final Logger log = LoggerFactory.getLogger(SourceCache.class);
+  private static final String CACHE_DIRECTORY = ".source-cache";
+
+  private final List<Shard> shards;
+  private final Object lock = new Object();
+  private final Counter hits;
+  private final Counter misses;
+  private final Counter bytesSaved;
+  private final Counter evictions;
+
+  /**
+   * @param volumes drives of the scratch roots with the size of the sources cached on them, 0
+   *                disables the cache on the drive
+   */
+  public SourceCache(@NotNull List<ScratchBudget.Volume> volumes,
+      @NotNull MeterRegistry meterRegistry) {
+    this.shards = volumes.stream().map(Shard::new).toList();
+
+    this.hits = Counter.builder("source.cache.hits")
+                    .description("Sources served from the cache")
+                    .register(meterRegistry);
+    this.misses = Counter.builder("source.cache.misses")
+                      .description("Sources that had to be downloaded")
+                      .register(meterRegistry);
+    this.bytesSaved = Counter.builder("source.cache.bytes.saved")
+                          .description("Bytes that did not have to be downloaded")
+                          .baseUnit("bytes")
+                          .register(meterRegistry);
+    this.evictions = Counter.builder("source.cache.evictions")
+                         .description("Entries evicted to stay within the capacity")
+                         .register(meterRegistry);
+    Gauge.builder("source.cache.size", this, SourceCache::getSizeBytes)
+        .description("Total size of the cached sources")
+        .baseUnit("bytes")
+        .register(meterRegistry);
+
+    for (Shard shard : shards) {
+      if (shard.volume.capacityBytes() > 0) {
+        loadEntries(shard);
+      }
+    }
+  }
+
+  public boolean isEnabled() {
+    return shards.stream().anyMatch(shard -> shard.volume.capacityBytes() > 0);
+  }
+
+  /**
+   * Links the cached object into the destination.
+   *
+   * @return {@code true} on a hit, {@code false} if the object has to be downloaded.
+   */
+  public boolean linkInto(@NotNull String bucket, @NotNull String key, @NotNull String eTag,
+      @NotNull Path destination) {
+    if (!isEnabled()) {
+      return false;
+    }
+
+    final var root = rootContaining(destination);
+    final var shard = root == null ? null : shardOf(root);
+
+    synchronized (lock) {
+      final var entry = shard == null ? null
+                            : shard.entries.get(entryPath(root, bucket, key, eTag));
+
+      if (entry == null) {
+        misses.increment();
+        return false;
+      }
+
+      try {
+        Files.deleteIfExists(destination);
+        Files.createLink(destination, entry.path());
+        Files.setLastModifiedTime(entry.path(), FileTime.fromMillis(System.currentTimeMillis()));
+      } catch (IOException e) {
+        log.warn("message=Cannot link cached source, downloading;bucket={};key={};entry={}",
+            bucket, key, entry.path(), e);
+        misses.increment();
+        return false;
+      }
+
+      hits.increment();
+      bytesSaved.increment(entry.size());
+      log.debug("message=Source cache hit;bucket={};key={};bytes={}", bucket, key, entry.size());
+      return true;
+    }
+  }
+
+  /**
+   * Adds a completely downloaded object to the cache of its volume, evicting the least recently
+   * used entries if the capacity would be exceeded. Objects larger than the capacity are not
+   * cached.
+   */
+  public void admit(@NotNull String bucket, @NotNull String key, @NotNull String eTag,
+      @NotNull Path downloaded) {
+    final var root = rootContaining(downloaded);
+    final var shard = root == null ? null : shardOf(root);
+
+    if (shard == null || shard.volume.capacityBytes() < 1) {
+      return;
+    }
+
+    final var path = entryPath(root, bucket, key, eTag);
+
+    synchronized (lock) {
+      try {
+        final long size = Files.size(downloaded);
+
+        if (size > shard.volume.capacityBytes() || shard.entries.containsKey(path)) {
+          return;
+        }
+
+        evictUntilFree(shard, size);
+        Files.createDirectories(path.getParent());
+        Files.deleteIfExists(path);
+        Files.createLink(path, downloaded);
+
+        shard.entries.put(path, new Entry(path, size));
+        shard.sizeBytes += size;
+      } catch (IOException e) {
+        log.warn("message=Cannot cache source;bucket={};key={};file={}", bucket, key, downloaded,
+            e);
+      }
+    }
+  }
+
+  /**
+   * @return scratch root whose cache holds the object, {@code null} if it is not cached. A job
+   * directory on this root gets the source without a download.
+   */
+  public @Nullable Path rootOf(@NotNull String bucket, @NotNull String key,
+      @NotNull String eTag) {
+    synchronized (lock) {
+      for (Shard shard : shards) {
+        for (Path root : shard.volume.roots()) {
+          if (shard.entries.containsKey(entryPath(root, bucket, key, eTag))) {
+            return root;
+          }
+        }
+      }
+    }
+
+    return null;
+  }
+
+  public long getSizeBytes() {
+    synchronized (lock) {
+      return shards.stream().mapToLong(shard -> shard.sizeBytes).sum();
+    }
+  }
+
+  private void evictUntilFree(Shard shard, long requiredBytes) {
+    final var iterator = shard.entries.values().iterator();
+
+    while (shard.sizeBytes + requiredBytes > shard.volume.capacityBytes() && iterator.hasNext()) {
+      final var entry = iterator.next();
+
+      try {
+        // job directories that linked the entry keep their copy of the data
+        Files.deleteIfExists(entry.path());
+      } catch (IOException e) {
+        log.warn("message=Cannot evict cached source {}", entry.path(), e);
+        continue;
+      }
+
+      iterator.remove();
+      shard.sizeBytes -= entry.size();
+      evictions.increment();
+    }
+  }
+
+  /**
+   * @return scratch root the file is under, {@code null} if there is none.
+   */
+  private Path rootContaining(Path file) {
+    final var absoluteFile = file.toAbsolutePath();
+
+    return shards.stream()
+               .flatMap(shard -> shard.volume.roots().stream())
+               .filter(root -> absoluteFile.startsWith(root.toAbsolutePath()))
+               .findFirst()
+               .orElse(null);
+  }
+
+  private Shard shardOf(Path root) {
+    return shards.stream()
+               .filter(shard -> shard.volume.roots().contains(root))
+               .findFirst()
+               .orElse(null);
+  }
+
+  /**
+   * Entry of the object in the cache folder of the root.
+   */
+  private static Path entryPath(Path root, String bucket, String key, String eTag) {
+    return root.resolve(CACHE_DIRECTORY).resolve(sha256(bucket + "/" + key) + "-" + sha256(eTag));
+  }
+
+  private void loadEntries(Shard shard) {
+    final var found = new ArrayList<Map.Entry<Entry, FileTime>>();
+
+    for (Path root : shard.volume.roots()) {
+      final var cacheDirectory = root.resolve(CACHE_DIRECTORY);
+
+      if (!Files.isDirectory(cacheDirectory)) {
+        continue;
+      }
+
+      try (var files = Files.list(cacheDirectory)) {
+        for (Path file : files.toList()) {
+          final var attributes = Files.readAttributes(file, BasicFileAttributes.class);
+          found.add(Map.entry(new Entry(file, attributes.size()),
+              attributes.lastModifiedTime()));
+        }
+      } catch (IOException e) {
+        log.warn("message=Cannot load source cache of scratch root;root={}", root, e);
+      }
+    }
+
+    found.sort(Map.Entry.comparingByValue(Comparator.naturalOrder()));
+
+    synchronized (lock) {
+      for (var entry : found) {
+        shard.entries.put(entry.getKey().path(), entry.getKey());
+        shard.sizeBytes += entry.getKey().size();
+      }
+
+      evictUntilFree(shard, 0);
+
+      log.info("message=Loaded source cache;volume={};entries={};bytes={};capacity_bytes={}",
+          shard.volume.roots(), shard.entries.size(), shard.sizeBytes,
+          shard.volume.capacityBytes());
+    }
+  }
+
+  private static String sha256(String value) {
+    try {
+      return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256")
+                                          .digest(value.getBytes(StandardCharsets.UTF_8)));
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 is not supported by the platform", e);
+    }
+  }
+}
@@ -0,0 +1,14 @@
+package io.github.akmal2409.ets.store;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Metadata of the source object, looked up once per delivery and passed to every stage that needs
+ * it.
+ *
+ * @param sizeBytes size of the object
+ * @param eTag      version of the object, downloads fail when it changes
+ */
+public record SourceObject(long sizeBytes, @NotNull String eTag) {
+
+}
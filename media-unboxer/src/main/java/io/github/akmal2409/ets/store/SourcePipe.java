@@ -0,0 +1,133 @@
+package io.github.akmal2409.ets.store;
+
+import io.github.akmal2409.ets.exception.VideoDownloadException;
+import io.github.akmal2409.ets.utils.FileUtils;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.HexFormat;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Named pipe that is fed with the body of the source object on a separate thread. The pipe path
+ * can be handed to ffmpeg as a regular input so demuxing happens while the object is downloaded.
+ * The body is hashed on the way through, see {@link #contentHash()}.
+ */
+public class SourcePipe implements AutoCloseable {
+
+  private static final Logger log = LoggerFactory.getLogger(SourcePipe.class);
+
+  private final UUID jobId;
+  private final Path path;
+  private final CompletableFuture<Long> pump;
+  private final MessageDigest digest;
+  private String contentHash;
+
+  private SourcePipe(UUID jobId, Path path, CompletableFuture<Long> pump, MessageDigest digest) {
+    this.jobId = jobId;
+    this.path = path;
+    this.pump = pump;
+    this.digest = digest;
+  }
+
+  /**
+   * Creates a named pipe at {@code path} and starts copying {@code body} into it. The copy blocks
+   * until a reader opens the pipe.
+   *
+   * @throws IOException if the pipe cannot be created
+   */
+  static SourcePipe open(UUID jobId, Path path, InputStream body) throws IOException {
+    createNamedPipe(path);
+
+    final var pump = new CompletableFuture<Long>();
+    final var digest = FileUtils.newSha256Digest();
+
+    Thread.ofVirtual().name("source-pipe-" + jobId).start(() -> {
+      try (var in = new DigestInputStream(body, digest); var out = Files.newOutputStream(path)) {
+        pump.complete(in.transferTo(out));
+      } catch (Throwable e) {
+        pump.completeExceptionally(e);
+      }
+    });
+
+    return new SourcePipe(jobId, path, pump, digest);
+  }
+
+  public Path path() {
+    return path;
+  }
+
+  /**
+   * Waits until the whole object was written to the pipe.
+   *
+   * @return number of bytes transferred
+   * @throws VideoDownloadException if the transfer failed, in such case the reader has seen a
+   *                                truncated input
+   */
+  public long awaitCompletion() {
+    try {
+      return pump.join();
+    } catch (CompletionException e) {
+      throw new VideoDownloadException("Streaming of the source failed", e.getCause(), jobId);
+    }
+  }
+
+  /**
+   * Waits until the whole object was written to the pipe and returns its SHA-256 digest as a
+   * lowercase hex string, the same as {@link FileUtils#sha256(Path)} of a downloaded copy.
+   *
+   * @throws VideoDownloadException if the transfer failed
+   */
+  public synchronized String contentHash() {
+    if (contentHash == null) {
+      awaitCompletion();
+      contentHash = HexFormat.of().formatHex(digest.digest());
+    }
+
+    return contentHash;
+  }
+
+  @Override
+  public void close() {
+    if (!pump.isDone()) {
+      // the reader is gone, opening the read end releases a writer that is stuck in open(2)
+      // and makes a writer that is stuck in write(2) fail with a broken pipe
+      try (var ignored = Files.newInputStream(path)) {
+        log.debug("message=Released source pipe writer;job_id={};pipe={}", jobId, path);
+      } catch (IOException e) {
+        log.warn("message=Cannot release source pipe writer;job_id={};pipe={}", jobId, path, e);
+      }
+    }
+
+    try {
+      Files.deleteIfExists(path);
+    } catch (IOException e) {
+      log.warn("message=Cannot delete source pipe;job_id={};pipe={}", jobId, path, e);
+    }
+  }
+
+  private static void createNamedPipe(Path path) throws IOException {
+    final var process = new ProcessBuilder("mkfifo", path.toString())
+                            .redirectErrorStream(true)
+                            .start();
+
+    try {
+      final int exitCode = process.waitFor();
+
+      if (exitCode != 0) {
+        throw new IOException("mkfifo exited with code " + exitCode + " for " + path);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      process.destroyForcibly();
+      throw new IOException("Interrupted while creating named pipe " + path, e);
+    }
+  }
+}
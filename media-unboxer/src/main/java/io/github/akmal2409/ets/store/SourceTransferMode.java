@@ -0,0 +1,18 @@
+package io.github.akmal2409.ets.store;
+
+/**
+ * Describes how the source object is handed over to the unboxer.
+ */
+public enum SourceTransferMode {
+
+  /**
+   * The whole object is downloaded to the job directory before probing and extraction start.
+   */
+  DOWNLOAD,
+
+  /**
+   * The object body is piped into ffmpeg while it is being downloaded so demuxing overlaps with the
+   * network transfer. Containers that need random access fall back to {@link #DOWNLOAD}.
+   */
+  STREAM
+}
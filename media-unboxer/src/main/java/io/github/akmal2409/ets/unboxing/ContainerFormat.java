@@ -1,18 +1,28 @@
 package io.github.akmal2409.ets.unboxing;
 
 public enum ContainerFormat {
-  MKV("mkv", "mka", "mks");
+  MKV("matroska", "mkv", "mka", "mks");
 
+  final String formatName;
   final String videoExtension;
   final String audioExtension;
   final String subtitlesExtension;
 
-  ContainerFormat(String videoExtension, String audioExtension, String subtitlesExtension) {
+  ContainerFormat(String formatName, String videoExtension, String audioExtension,
+      String subtitlesExtension) {
+    this.formatName = formatName;
     this.videoExtension = videoExtension;
     this.audioExtension = audioExtension;
     this.subtitlesExtension = subtitlesExtension;
   }
 
+  /**
+   * Name of the muxer as known to ffmpeg.
+   */
+  public String getFormatName() {
+    return formatName;
+  }
+
   public String getExtensionByType(MediaType type) {
     return switch (type) {
       case AUDIO -> this.audioExtension;
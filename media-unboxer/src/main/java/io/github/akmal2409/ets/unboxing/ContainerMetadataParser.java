@@ -0,0 +1,246 @@
+package io.github.akmal2409.ets.unboxing;
+
+import io.github.akmal2409.ets.unboxing.MediaStreams.AudioDetails;
+import io.github.akmal2409.ets.unboxing.MediaStreams.VideoDetails;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads the streams of Matroska/WebM and MP4/MOV files from their metadata sections without forking
+ * ffprobe. Only the header elements are read with positional reads, the media data is never
+ * touched, so the parse costs the same for a small clip and for a movie.
+ * <p>
+ * The result matches what {@link MediaUnboxer#analyseStreams(Path)} builds from ffprobe, values
+ * ffprobe derives from decoding are not guessed: a file with anything the parsers do not
+ * understand, e.g. an unknown codec or a video track without a frame duration, yields empty and
+ * has to be probed with ffprobe. The stream details carry what the container declares, the colour
+ * properties of a video and the sample rate and channels of an audio track. The pixel format is
+ * known only to the decoder and left out.
+ */
+public final class ContainerMetadataParser {
+
+  /**
+   * Signals a file the parsers cannot describe exactly the way ffprobe would.
+   */
+  static class UnsupportedMetadataException extends Exception {
+
+    UnsupportedMetadataException(String message) {
+      super(message);
+    }
+  }
+
+  private static final Logger log = LoggerFactory.getLogger(ContainerMetadataParser.class);
+
+  /**
+   * Upper bound of a single metadata section that is read into memory.
+   */
+  static final int MAX_SECTION_BYTES = ContainerSniffer.MAX_HEADER_BYTES;
+
+  private static final Set<String> MP4_TOP_LEVEL_BOXES = Set.of(
+      "ftyp", "moov", "mdat", "free", "skip", "wide", "pdin");
+
+  /**
+   * Colour properties coded as in ISO/IEC 23091-4 mapped to the names ffprobe prints, unspecified
+   * and reserved values are missing.
+   */
+  private static final Map<Integer, String> COLOR_PRIMARIES = Map.ofEntries(
+      Map.entry(1, "bt709"),
+      Map.entry(4, "bt470m"),
+      Map.entry(5, "bt470bg"),
+      Map.entry(6, "smpte170m"),
+      Map.entry(7, "smpte240m"),
+      Map.entry(8, "film"),
+      Map.entry(9, "bt2020"),
+      Map.entry(10, "smpte428"),
+      Map.entry(11, "smpte431"),
+      Map.entry(12, "smpte432"),
+      Map.entry(22, "ebu3213"));
+  private static final Map<Integer, String> COLOR_TRANSFERS = Map.ofEntries(
+      Map.entry(1, "bt709"),
+      Map.entry(4, "gamma22"),
+      Map.entry(5, "gamma28"),
+      Map.entry(6, "smpte170m"),
+      Map.entry(7, "smpte240m"),
+      Map.entry(8, "linear"),
+      Map.entry(9, "log100"),
+      Map.entry(10, "log316"),
+      Map.entry(11, "iec61966-2-4"),
+      Map.entry(12, "bt1361e"),
+      Map.entry(13, "iec61966-2-1"),
+      Map.entry(14, "bt2020-10"),
+      Map.entry(15, "bt2020-12"),
+      Map.entry(16, "smpte2084"),
+      Map.entry(17, "smpte428"),
+      Map.entry(18, "arib-std-b67"));
+  private static final Map<Integer, String> COLOR_SPACES = Map.ofEntries(
+      Map.entry(0, "gbr"),
+      Map.entry(1, "bt709"),
+      Map.entry(4, "fcc"),
+      Map.entry(5, "bt470bg"),
+      Map.entry(6, "smpte170m"),
+      Map.entry(7, "smpte240m"),
+      Map.entry(8, "ycgco"),
+      Map.entry(9, "bt2020nc"),
+      Map.entry(10, "bt2020c"),
+      Map.entry(11, "smpte2085"),
+      Map.entry(12, "chroma-derived-nc"),
+      Map.entry(13, "chroma-derived-c"),
+      Map.entry(14, "ictcp"));
+  /**
+   * Layouts libavutil names a channel count by when the container does not tell the layout, only
+   * the ones every decoder agrees on.
+   */
+  private static final Map<Integer, String> DEFAULT_CHANNEL_LAYOUTS = Map.of(
+      1, "mono",
+      2, "stereo");
+
+  private ContainerMetadataParser() {
+    throw new IllegalStateException("Cannot instantiate a utility class");
+  }
+
+  /**
+   * @return streams of the file or empty if it has to be probed with ffprobe
+   */
+  public static Optional<MediaStreams> parse(@NotNull Path mediaFile) {
+    try (var channel = FileChannel.open(mediaFile, StandardOpenOption.READ)) {
+      final var head = read(channel, 0, 2 * ContainerSniffer.MP4_BOX_HEADER_SIZE);
+      final var magic = new byte[head.remaining()];
+      head.get(magic);
+
+      if (ContainerSniffer.startsWith(magic, magic.length, ContainerSniffer.EBML_MAGIC)) {
+        return Optional.of(MatroskaMetadataParser.parse(channel));
+      }
+
+      if (magic.length >= ContainerSniffer.MP4_BOX_HEADER_SIZE && MP4_TOP_LEVEL_BOXES.contains(
+          new String(magic, 4, 4, StandardCharsets.US_ASCII))) {
+        return Optional.of(Mp4MetadataParser.parse(channel));
+      }
+
+      return Optional.empty();
+    } catch (UnsupportedMetadataException e) {
+      log.debug("message=Falling back to ffprobe;file={};reason={}", mediaFile, e.getMessage());
+      return Optional.empty();
+    } catch (IOException | RuntimeException e) {
+      // a truncated or corrupted header is left for ffprobe to report
+      log.debug("message=Falling back to ffprobe, cannot parse metadata;file={}", mediaFile, e);
+      return Optional.empty();
+    }
+  }
+
+  /**
+   * Reads up to {@code length} bytes at the position, fewer at the end of the file.
+   *
+   * @return big endian buffer ready to be read
+   */
+  static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+    final var buffer = ByteBuffer.allocate(length).order(ByteOrder.BIG_ENDIAN);
+    long offset = position;
+
+    while (buffer.hasRemaining()) {
+      final int read = channel.read(buffer, offset);
+
+      if (read < 0) {
+        break;
+      }
+      offset += read;
+    }
+
+    return buffer.flip();
+  }
+
+  /**
+   * Details of a video track from the colour properties its container declares.
+   *
+   * @param colorRange     {@code tv}, {@code pc} or {@code null} when unspecified
+   * @param matrix         matrix coefficients code point
+   * @param transfer       transfer characteristics code point
+   * @param colorPrimaries colour primaries code point
+   */
+  static VideoDetails videoDetails(String colorRange, int matrix, int transfer,
+      int colorPrimaries) {
+    return VideoDetails.of(null, colorRange, COLOR_SPACES.get(matrix),
+        COLOR_TRANSFERS.get(transfer), COLOR_PRIMARIES.get(colorPrimaries));
+  }
+
+  /**
+   * Details of an audio track from the sample rate and channels its container declares.
+   */
+  static AudioDetails audioDetails(int sampleRate, int channels) {
+    return new AudioDetails(sampleRate, channels, DEFAULT_CHANNEL_LAYOUTS.get(channels));
+  }
+
+  /**
+   * Frame rate of {@code num / den} frames per second, rounded to the closest fraction whose terms
+   * do not exceed {@code max} the same way libavutil's av_reduce does, so the value is equal to the
+   * one ffprobe reports.
+   */
+  static double frameRate(long num, long den, long max) {
+    long a0Num = 0;
+    long a0Den = 1;
+    long a1Num = 1;
+    long a1Den = 0;
+
+    final long gcd = gcd(num, den);
+
+    if (gcd != 0) {
+      num /= gcd;
+      den /= gcd;
+    }
+
+    if (num <= max && den <= max) {
+      a1Num = num;
+      a1Den = den;
+      den = 0;
+    }
+
+    while (den != 0) {
+      long x = num / den;
+      final long nextDen = num - den * x;
+      final long a2Num = x * a1Num + a0Num;
+      final long a2Den = x * a1Den + a0Den;
+
+      if (a2Num > max || a2Den > max) {
+        if (a1Num != 0) {
+          x = (max - a0Num) / a1Num;
+        }
+        if (a1Den != 0) {
+          x = Math.min(x, (max - a0Den) / a1Den);
+        }
+        if (den * (2 * x * a1Den + a0Den) > num * a1Den) {
+          a1Num = x * a1Num + a0Num;
+          a1Den = x * a1Den + a0Den;
+        }
+        break;
+      }
+
+      a0Num = a1Num;
+      a0Den = a1Den;
+      a1Num = a2Num;
+      a1Den = a2Den;
+      num = den;
+      den = nextDen;
+    }
+
+    return a1Den == 0 ? 0 : (double) a1Num / a1Den;
+  }
+
+  private static long gcd(long a, long b) {
+    while (b != 0) {
+      final long remainder = a % b;
+      a = b;
+      b = remainder;
+    }
+    return a;
+  }
+}
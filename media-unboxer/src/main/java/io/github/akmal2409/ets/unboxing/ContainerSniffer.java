@@ -0,0 +1,117 @@
+package io.github.akmal2409.ets.unboxing;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Inspects the leading bytes of a media file to find out whether it can be demuxed from a
+ * non-seekable input such as a pipe.
+ */
+public final class ContainerSniffer {
+
+  /**
+   * Amount of leading bytes that is fetched first in order to detect the container.
+   */
+  public static final int INITIAL_HEADER_BYTES = 1 << 20;
+
+  /**
+   * Upper bound of a header that is worth fetching separately, sources with a bigger header (e.g.
+   * a huge MP4 moov atom) are better off downloaded.
+   */
+  public static final int MAX_HEADER_BYTES = 64 << 20;
+
+  static final byte[] EBML_MAGIC = {0x1A, 0x45, (byte) 0xDF, (byte) 0xA3};
+  static final int MP4_BOX_HEADER_SIZE = 8;
+
+  private ContainerSniffer() {
+    throw new IllegalStateException("Cannot instantiate a utility class");
+  }
+
+  /**
+   * Computes how many leading bytes of the file are required to probe its streams without random
+   * access.
+   * <ul>
+   *   <li>Matroska/WebM keeps the track information right after the EBML header, so the
+   *   available bytes are sufficient.</li>
+   *   <li>MP4/MOV is streamable only when the {@code moov} atom precedes {@code mdat}, in that case
+   *   the header spans up to the end of {@code moov}.</li>
+   * </ul>
+   *
+   * @param head   leading bytes of the file
+   * @param length number of valid bytes in {@code head}
+   * @return required header length in bytes or -1 if the container needs random access or is not
+   * recognised
+   */
+  public static long streamableHeaderLength(byte[] head, int length) {
+    if (startsWith(head, length, EBML_MAGIC)) {
+      return length;
+    }
+
+    return mp4MoovEnd(head, length);
+  }
+
+  private static long mp4MoovEnd(byte[] head, int length) {
+    long offset = 0;
+    boolean firstBox = true;
+
+    while (offset + MP4_BOX_HEADER_SIZE <= length) {
+      final int position = (int) offset;
+      long boxSize = readUInt32(head, position);
+      final String type = new String(head, position + 4, 4, StandardCharsets.US_ASCII);
+
+      if (firstBox && !"ftyp".equals(type)) {
+        return -1; // not an ISO base media file
+      }
+      firstBox = false;
+
+      if (boxSize == 1) {
+        if (position + 16 > length) {
+          return -1;
+        }
+        boxSize = readUInt64(head, position + 8);
+      } else if (boxSize == 0) {
+        return -1; // box extends to the end of the file
+      }
+
+      if (boxSize < MP4_BOX_HEADER_SIZE) {
+        return -1; // corrupted
+      }
+
+      switch (type) {
+        case "moov" -> {
+          return offset + boxSize;
+        }
+        case "mdat" -> {
+          return -1; // media data precedes the index, needs seeking to the end
+        }
+        default -> offset += boxSize;
+      }
+    }
+
+    return -1;
+  }
+
+  static boolean startsWith(byte[] data, int length, byte[] prefix) {
+    if (length < prefix.length) {
+      return false;
+    }
+
+    for (int i = 0; i < prefix.length; i++) {
+      if (data[i] != prefix[i]) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  static long readUInt32(byte[] data, int offset) {
+    return ((long) (data[offset] & 0xFF) << 24)
+               | ((data[offset + 1] & 0xFF) << 16)
+               | ((data[offset + 2] & 0xFF) << 8)
+               | (data[offset + 3] & 0xFF);
+  }
+
+  static long readUInt64(byte[] data, int offset) {
+    return (readUInt32(data, offset) << 32) | readUInt32(data, offset + 4);
+  }
+}
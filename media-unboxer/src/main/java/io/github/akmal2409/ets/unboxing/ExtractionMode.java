@@ -0,0 +1,22 @@
+package io.github.akmal2409.ets.unboxing;
+
+/**
+ * Strategy used by {@link MediaUnboxer} to demux the streams out of the source container.
+ */
+public enum ExtractionMode {
+
+  /**
+   * All selected streams are demuxed by a single ffmpeg invocation with one output per stream, so
+   * the source is read exactly once. The outputs are finalized together when the process exits,
+   * so their uploads cannot start before the whole remux is done. Use {@link #PER_STREAM} when
+   * uploads are meant to be pipelined with the extraction.
+   */
+  SINGLE_PASS,
+
+  /**
+   * Every stream is extracted by its own ffmpeg process. Each process reads the whole source, but
+   * a failure is isolated to a single stream and each output is uploaded while the other streams
+   * are still being extracted.
+   */
+  PER_STREAM
+}
@@ -0,0 +1,242 @@
+package io.github.akmal2409.ets.unboxing;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import net.bramp.ffmpeg.builder.FFmpegBuilder;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs ffmpeg child processes and keeps their handles, so that work which is no longer needed can
+ * be killed together with its descendants instead of running to completion in the background.
+ * <p>
+ * Processes are grouped per job. A group is killed when the job's deadline passes, when the job is
+ * cancelled (its thread is interrupted) or when the worker shuts down.
+ */
+public class FFmpegProcessRunner {
+
+  public enum KillReason {
+    DEADLINE, CANCELLED, SHUTDOWN
+  }
+
+  /**
+   * Consumes the standard output of a process while it runs.
+   */
+  @FunctionalInterface
+  public interface OutputReader {
+
+    void read(InputStream stdout) throws IOException;
+  }
+
+  private static final Logger log = LoggerFactory.getLogger(FFmpegProcessRunner.class);
+  private static final int OUTPUT_TAIL_LINES = 20;
+  private static final long OUTPUT_DRAIN_TIMEOUT_MILLIS = 1000;
+
+  private final Path ffmpegPath;
+  private final Set<ProcessGroup> groups = ConcurrentHashMap.newKeySet();
+  private final Map<KillReason, Counter> killedProcesses = new EnumMap<>(KillReason.class);
+
+  public FFmpegProcessRunner(@NotNull Path ffmpegPath, @NotNull MeterRegistry meterRegistry) {
+    this.ffmpegPath = ffmpegPath;
+
+    for (KillReason reason : KillReason.values()) {
+      killedProcesses.put(reason, Counter.builder("ffmpeg.processes.killed")
+                                      .description("ffmpeg processes killed before they exited")
+                                      .tag("reason", reason.name().toLowerCase())
+                                      .register(meterRegistry));
+    }
+
+    Gauge.builder("ffmpeg.processes.live", this, FFmpegProcessRunner::countLiveProcesses)
+        .description("ffmpeg processes started and not yet exited")
+        .register(meterRegistry);
+  }
+
+  /**
+   * Creates a group that owns all ffmpeg processes of a job. The group must be closed once the job
+   * no longer needs them, processes still alive at that point are killed.
+   */
+  public ProcessGroup newGroup(@NotNull UUID jobId) {
+    final var group = new ProcessGroup(jobId);
+    groups.add(group);
+    return group;
+  }
+
+  /**
+   * Kills every live process of every group, e.g. when the worker shuts down.
+   */
+  public void killAll(@NotNull KillReason reason) {
+    groups.forEach(group -> group.kill(reason));
+  }
+
+  private int countLiveProcesses() {
+    return groups.stream().mapToInt(group -> group.liveProcesses.size()).sum();
+  }
+
+  private void destroyTree(ProcessGroup group, Process process, KillReason reason) {
+    if (!process.isAlive()) {
+      return;
+    }
+
+    process.descendants().forEach(ProcessHandle::destroyForcibly);
+    process.destroyForcibly();
+    killedProcesses.get(reason).increment();
+    log.warn("message=Killed ffmpeg process;job_id={};pid={};reason={}", group.jobId,
+        process.pid(), reason);
+  }
+
+  /**
+   * ffmpeg processes that belong to a single job.
+   */
+  public final class ProcessGroup implements AutoCloseable {
+
+    private final UUID jobId;
+    private final Set<Process> liveProcesses = ConcurrentHashMap.newKeySet();
+    private volatile KillReason killReason;
+
+    private ProcessGroup(UUID jobId) {
+      this.jobId = jobId;
+    }
+
+    /**
+     * Runs ffmpeg with the arguments of the builder and waits for it to exit.
+     *
+     * @throws ConversionException  if ffmpeg cannot be started, exits with an error or the group
+     *                              was killed
+     * @throws InterruptedException if interrupted while waiting, the process is killed in that case
+     */
+    public void run(@NotNull FFmpegBuilder builder) throws InterruptedException {
+      final var command = new ArrayList<String>();
+      command.add(ffmpegPath.toString());
+      command.addAll(builder.build());
+
+      run(command, null);
+    }
+
+    /**
+     * Runs another tool of the ffmpeg suite, e.g. ffprobe, and hands its standard output to the
+     * reader on the calling thread. The error output is kept for the failure message the same way
+     * as the output of ffmpeg.
+     *
+     * @param command executable followed by its arguments
+     * @throws ConversionException  if the process cannot be started, its output cannot be read, it
+     *                              exits with an error or the group was killed
+     * @throws InterruptedException if interrupted while waiting, the process is killed in that case
+     */
+    public void run(@NotNull List<String> command, OutputReader stdoutReader)
+        throws InterruptedException {
+      if (killReason != null) {
+        throw new ConversionException("Process group of job " + jobId + " was killed: "
+                                          + killReason);
+      }
+
+      final Process process;
+
+      try {
+        process = new ProcessBuilder(command)
+                      .redirectErrorStream(stdoutReader == null)
+                      .start();
+      } catch (IOException e) {
+        throw new ConversionException("Cannot start " + command.get(0), e);
+      }
+
+      liveProcesses.add(process);
+      final var outputTail = new ArrayDeque<String>(OUTPUT_TAIL_LINES);
+      final var outputDrain = Thread.ofVirtual()
+                                  .name("ffmpeg-output-" + process.pid())
+                                  .start(() -> drainOutput(process,
+                                      stdoutReader == null ? process.getInputStream()
+                                          : process.getErrorStream(), outputTail));
+
+      try {
+        if (stdoutReader != null) {
+          try (var stdout = process.getInputStream()) {
+            stdoutReader.read(stdout);
+          } catch (IOException e) {
+            destroyTree(this, process, KillReason.CANCELLED);
+            throw new ConversionException(killReason != null
+                                              ? "Process of job " + jobId + " was killed: "
+                                                    + killReason
+                                              : "Cannot read output of " + command.get(0), e);
+          }
+        }
+
+        final int exitCode = process.waitFor();
+        outputDrain.join(OUTPUT_DRAIN_TIMEOUT_MILLIS);
+
+        if (killReason != null) {
+          throw new ConversionException("ffmpeg process of job " + jobId + " was killed: "
+                                            + killReason);
+        }
+
+        if (exitCode != 0) {
+          final String output;
+          synchronized (outputTail) {
+            output = String.join("\n", outputTail);
+          }
+          throw new ConversionException(
+              String.format("%s exited with code %d: %s", command.get(0), exitCode, output));
+        }
+      } catch (InterruptedException e) {
+        destroyTree(this, process, killReason != null ? killReason : KillReason.CANCELLED);
+        throw e;
+      } finally {
+        liveProcesses.remove(process);
+      }
+    }
+
+    /**
+     * Kills all live processes of the group, processes started afterwards are rejected.
+     */
+    public void kill(@NotNull KillReason reason) {
+      if (killReason == null) {
+        killReason = reason;
+      }
+
+      liveProcesses.forEach(process -> destroyTree(this, process, reason));
+    }
+
+    @Override
+    public void close() {
+      groups.remove(this);
+
+      if (!liveProcesses.isEmpty()) {
+        kill(KillReason.CANCELLED);
+      }
+    }
+
+    private void drainOutput(Process process, InputStream output,
+        ArrayDeque<String> outputTail) {
+      try (var reader = new BufferedReader(
+          new InputStreamReader(output, StandardCharsets.UTF_8))) {
+        String line;
+
+        while ((line = reader.readLine()) != null) {
+          synchronized (outputTail) {
+            if (outputTail.size() == OUTPUT_TAIL_LINES) {
+              outputTail.pollFirst();
+            }
+            outputTail.addLast(line);
+          }
+        }
+      } catch (IOException e) {
+        log.debug("message=ffmpeg output closed;job_id={};pid={}", jobId, process.pid(), e);
+      }
+    }
+  }
+}
@@ -0,0 +1,253 @@
+package io.github.akmal2409.ets.unboxing;
+
+import io.github.akmal2409.ets.control.StageStats;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Worker-wide admission control for ffmpeg child processes. Every process has to hold a weighted
+ * permit while it runs, video extraction is charged more than audio or subtitles because it moves
+ * most of the bytes.
+ * <p>
+ * Waiting tasks are queued per job and served round-robin across jobs, so a job with dozens of
+ * streams cannot starve jobs that arrived after it. A job whose next task does not fit into the
+ * free permits blocks the rotation until enough permits are released, which keeps heavy tasks from
+ * being overtaken indefinitely by light ones.
+ */
+public class FFmpegProcessScheduler {
+
+  private final int capacity;
+  private final Map<MediaType, Integer> weights;
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition dispatched = lock.newCondition();
+  private final Map<UUID, ArrayDeque<Ticket>> waitingByJob = new HashMap<>();
+  private final ArrayDeque<UUID> rotation = new ArrayDeque<>();
+  private final Timer queueWaitTimer;
+  private final StageStats queueWaits;
+
+  private int usedPermits;
+  private int runningProcesses;
+  private int queuedTasks;
+
+  /**
+   * @param capacity total permits shared by all ffmpeg processes of the worker
+   * @param weights  permits charged per extracted stream of the given type
+   * @param queueWaits receives the time every task waited for its permits
+   */
+  public FFmpegProcessScheduler(int capacity, @NotNull Map<MediaType, Integer> weights,
+      @NotNull StageStats queueWaits, @NotNull MeterRegistry meterRegistry) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("Capacity must be positive, got " + capacity);
+    }
+
+    this.capacity = capacity;
+    this.weights = Map.copyOf(weights);
+    this.queueWaits = queueWaits;
+
+    Gauge.builder("ffmpeg.scheduler.permits.capacity", this, s -> s.capacity)
+        .description("Permits shared by all ffmpeg processes")
+        .register(meterRegistry);
+    Gauge.builder("ffmpeg.scheduler.permits.used", this, FFmpegProcessScheduler::getUsedPermits)
+        .description("Permits held by running ffmpeg processes")
+        .register(meterRegistry);
+    Gauge.builder("ffmpeg.scheduler.processes.running", this,
+            FFmpegProcessScheduler::getRunningProcesses)
+        .description("ffmpeg processes admitted to run")
+        .register(meterRegistry);
+    Gauge.builder("ffmpeg.scheduler.tasks.queued", this, FFmpegProcessScheduler::getQueuedTasks)
+        .description("Tasks waiting for permits")
+        .register(meterRegistry);
+    this.queueWaitTimer = Timer.builder("ffmpeg.scheduler.queue.wait")
+                              .description("Time a task waited for its permits")
+                              .register(meterRegistry);
+  }
+
+  /**
+   * Returns permits charged for a process that extracts a single stream of the type.
+   */
+  public int weightOf(@NotNull MediaType type) {
+    return weights.getOrDefault(type, 1);
+  }
+
+  /**
+   * Blocks until the process is admitted. Weights bigger than the capacity are capped, so that a
+   * single heavy process can still run on an otherwise idle worker.
+   *
+   * @param jobId  job the process belongs to, used for fair queueing across jobs
+   * @param weight permits the process needs
+   * @return permit that must be closed when the process exits
+   * @throws InterruptedException if interrupted while waiting, no permits are held in that case
+   */
+  public Permit acquire(@NotNull UUID jobId, int weight) throws InterruptedException {
+    final var ticket = new Ticket(Math.max(1, Math.min(weight, capacity)));
+    final long waitStart = System.nanoTime();
+
+    lock.lock();
+    try {
+      waitingByJob.computeIfAbsent(jobId, id -> {
+        rotation.addLast(id);
+        return new ArrayDeque<>();
+      }).addLast(ticket);
+      queuedTasks++;
+      dispatch();
+
+      while (!ticket.granted) {
+        try {
+          dispatched.await();
+        } catch (InterruptedException e) {
+          if (ticket.granted) {
+            releasePermits(ticket.weight);
+          } else {
+            withdraw(jobId, ticket);
+          }
+          throw e;
+        }
+      }
+
+      runningProcesses++;
+    } finally {
+      lock.unlock();
+    }
+
+    final var queueWait = Duration.ofNanos(System.nanoTime() - waitStart);
+    queueWaitTimer.record(queueWait);
+    queueWaits.record(0, queueWait);
+    return new Permit(ticket.weight);
+  }
+
+  public int getCapacity() {
+    return capacity;
+  }
+
+  public int getUsedPermits() {
+    lock.lock();
+    try {
+      return usedPermits;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public int getRunningProcesses() {
+    lock.lock();
+    try {
+      return runningProcesses;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public int getQueuedTasks() {
+    lock.lock();
+    try {
+      return queuedTasks;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Grants permits to the waiting tickets, one ticket per job in turn. Must be called while holding
+   * the lock.
+   */
+  private void dispatch() {
+    boolean granted = false;
+
+    while (!rotation.isEmpty()) {
+      final var jobId = rotation.peekFirst();
+      final var queue = waitingByJob.get(jobId);
+      final var head = queue.peekFirst();
+
+      if (head.weight > capacity - usedPermits) {
+        break;
+      }
+
+      rotation.pollFirst();
+      queue.pollFirst();
+      queuedTasks--;
+      usedPermits += head.weight;
+      head.granted = true;
+      granted = true;
+
+      if (queue.isEmpty()) {
+        waitingByJob.remove(jobId);
+      } else {
+        rotation.addLast(jobId);
+      }
+    }
+
+    if (granted) {
+      dispatched.signalAll();
+    }
+  }
+
+  private void withdraw(UUID jobId, Ticket ticket) {
+    final var queue = waitingByJob.get(jobId);
+
+    if (queue != null && queue.remove(ticket)) {
+      queuedTasks--;
+
+      if (queue.isEmpty()) {
+        waitingByJob.remove(jobId);
+        rotation.remove(jobId);
+      }
+      dispatch(); // the withdrawn ticket might have been blocking the rotation
+    }
+  }
+
+  private void releasePermits(int weight) {
+    usedPermits -= weight;
+    dispatch();
+  }
+
+  private void release(int weight) {
+    lock.lock();
+    try {
+      runningProcesses--;
+      releasePermits(weight);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private static final class Ticket {
+
+    private final int weight;
+    private boolean granted;
+
+    private Ticket(int weight) {
+      this.weight = weight;
+    }
+  }
+
+  /**
+   * Admission of a single ffmpeg process, releases its permits when closed.
+   */
+  public final class Permit implements AutoCloseable {
+
+    private final int weight;
+    private boolean released;
+
+    private Permit(int weight) {
+      this.weight = weight;
+    }
+
+    @Override
+    public void close() {
+      if (!released) {
+        released = true;
+        release(weight);
+      }
+    }
+  }
+}
@@ -0,0 +1,98 @@
+package io.github.akmal2409.ets.unboxing;
+
+import io.github.akmal2409.ets.unboxing.FFmpegProcessRunner.KillReason;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Session of engines that remux and index on the calling thread. Killing the session interrupts
+ * the threads that are working at that moment.
+ */
+public final class InProcessSession implements UnboxingEngine.Session {
+
+  @FunctionalInterface
+  public interface Remuxer {
+
+    void remux(Path src, List<RemuxOutput> outputs, String format) throws InterruptedException;
+  }
+
+  @FunctionalInterface
+  public interface Indexer {
+
+    PacketIndex indexPackets(Path media) throws InterruptedException;
+  }
+
+  @FunctionalInterface
+  private interface Work<T> {
+
+    T run() throws InterruptedException;
+  }
+
+  private final UUID jobId;
+  private final Remuxer remuxer;
+  private final Indexer indexer;
+  private final Set<Thread> workingThreads = new HashSet<>();
+  private KillReason killReason;
+
+  public InProcessSession(@NotNull UUID jobId, @NotNull Remuxer remuxer,
+      @NotNull Indexer indexer) {
+    this.jobId = jobId;
+    this.remuxer = remuxer;
+    this.indexer = indexer;
+  }
+
+  @Override
+  public void remux(@NotNull Path src, @NotNull List<RemuxOutput> outputs,
+      @NotNull String format) throws InterruptedException {
+    track(() -> {
+      remuxer.remux(src, outputs, format);
+      return null;
+    });
+  }
+
+  @Override
+  public PacketIndex indexPackets(@NotNull Path media) throws InterruptedException {
+    return track(() -> indexer.indexPackets(media));
+  }
+
+  @Override
+  public void kill(@NotNull KillReason reason) {
+    synchronized (workingThreads) {
+      if (killReason == null) {
+        killReason = reason;
+      }
+
+      workingThreads.forEach(Thread::interrupt);
+    }
+  }
+
+  @Override
+  public void close() {
+    synchronized (workingThreads) {
+      if (!workingThreads.isEmpty()) {
+        kill(KillReason.CANCELLED);
+      }
+    }
+  }
+
+  private <T> T track(Work<T> work) throws InterruptedException {
+    synchronized (workingThreads) {
+      if (killReason != null) {
+        throw new ConversionException("Session of job " + jobId + " was killed: " + killReason);
+      }
+      workingThreads.add(Thread.currentThread());
+    }
+
+    try {
+      return work.run();
+    } finally {
+      synchronized (workingThreads) {
+        workingThreads.remove(Thread.currentThread());
+      }
+    }
+  }
+}
@@ -0,0 +1,461 @@
+package io.github.akmal2409.ets.unboxing;
+
+import io.github.akmal2409.ets.unboxing.ContainerMetadataParser.UnsupportedMetadataException;
+import io.github.akmal2409.ets.unboxing.MediaStreams.AudioStream;
+import io.github.akmal2409.ets.unboxing.MediaStreams.Subtitles;
+import io.github.akmal2409.ets.unboxing.MediaStreams.VideoStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Parses the EBML header, segment info and tracks of a Matroska/WebM file. The level 1 elements of
+ * the segment are walked by their sizes until both sections are found, clusters are never read.
+ */
+final class MatroskaMetadataParser {
+
+  private record Element(long id, ByteBuffer data) {
+
+  }
+
+  /**
+   * @param headerLength length of the id and size fields
+   * @param size         length of the data, -1 when unknown
+   */
+  private record ElementHeader(long id, long size, int headerLength) {
+
+  }
+
+  static final String FORMAT_NAME = "matroska,webm";
+
+  private static final long EBML_ID = 0x1A45DFA3L;
+  private static final long DOC_TYPE_ID = 0x4282;
+  private static final long SEGMENT_ID = 0x18538067L;
+  private static final long INFO_ID = 0x1549A966L;
+  private static final long TRACKS_ID = 0x1654AE6BL;
+  private static final long CLUSTER_ID = 0x1F43B675L;
+  private static final long TIMESTAMP_SCALE_ID = 0x2AD7B1;
+  private static final long DURATION_ID = 0x4489;
+  private static final long TRACK_ENTRY_ID = 0xAE;
+  private static final long TRACK_TYPE_ID = 0x83;
+  private static final long CODEC_ID_ID = 0x86;
+  private static final long LANGUAGE_ID = 0x22B59C;
+  private static final long LANGUAGE_BCP47_ID = 0x22B59D;
+  private static final long DEFAULT_DURATION_ID = 0x23E383;
+  private static final long VIDEO_ID = 0xE0;
+  private static final long PIXEL_WIDTH_ID = 0xB0;
+  private static final long PIXEL_HEIGHT_ID = 0xBA;
+  private static final long COLOUR_ID = 0x55B0;
+  private static final long MATRIX_COEFFICIENTS_ID = 0x55B1;
+  private static final long RANGE_ID = 0x55B9;
+  private static final long TRANSFER_CHARACTERISTICS_ID = 0x55BA;
+  private static final long PRIMARIES_ID = 0x55BB;
+  private static final long AUDIO_ID = 0xE1;
+  private static final long SAMPLING_FREQUENCY_ID = 0xB5;
+  private static final long OUTPUT_SAMPLING_FREQUENCY_ID = 0x78B5;
+  private static final long CHANNELS_ID = 0x9F;
+
+  private static final int VIDEO_TRACK = 1;
+  private static final int AUDIO_TRACK = 2;
+  private static final int SUBTITLE_TRACK = 0x11;
+
+  private static final long DEFAULT_TIMESTAMP_SCALE = 1_000_000;
+  private static final String DEFAULT_LANGUAGE = "eng";
+  private static final String UNDEFINED_LANGUAGE = "und";
+  /**
+   * Code point of colour properties that are left to the codec.
+   */
+  private static final int UNSPECIFIED_COLOR = 2;
+  private static final double DEFAULT_SAMPLING_FREQUENCY = 8000;
+  /**
+   * Largest term of the frame rate fraction, the same bound libavformat's Matroska demuxer uses.
+   */
+  private static final long MAX_FRAME_RATE_TERM = 30_000;
+  private static final int MAX_ELEMENT_HEADER_BYTES = 12;
+
+  /**
+   * Codec ids mapped to ffprobe codec names, matched by prefix like libavformat does.
+   */
+  private static final Map<Integer, List<Map.Entry<String, String>>> CODECS = Map.of(
+      VIDEO_TRACK, List.of(
+          Map.entry("V_MPEG4/ISO/AVC", "h264"),
+          Map.entry("V_MPEGH/ISO/HEVC", "hevc"),
+          Map.entry("V_MPEG4/ISO/ASP", "mpeg4"),
+          Map.entry("V_MPEG4/ISO/SP", "mpeg4"),
+          Map.entry("V_MPEG4/ISO/AP", "mpeg4"),
+          Map.entry("V_MPEG2", "mpeg2video"),
+          Map.entry("V_MPEG1", "mpeg1video"),
+          Map.entry("V_VP8", "vp8"),
+          Map.entry("V_VP9", "vp9"),
+          Map.entry("V_AV1", "av1"),
+          Map.entry("V_THEORA", "theora"),
+          Map.entry("V_PRORES", "prores")),
+      AUDIO_TRACK, List.of(
+          Map.entry("A_AAC", "aac"),
+          Map.entry("A_AC3", "ac3"),
+          Map.entry("A_EAC3", "eac3"),
+          Map.entry("A_DTS", "dts"),
+          Map.entry("A_FLAC", "flac"),
+          Map.entry("A_OPUS", "opus"),
+          Map.entry("A_VORBIS", "vorbis"),
+          Map.entry("A_MPEG/L3", "mp3"),
+          Map.entry("A_MPEG/L2", "mp2"),
+          Map.entry("A_TRUEHD", "truehd"),
+          Map.entry("A_ALAC", "alac")),
+      SUBTITLE_TRACK, List.of(
+          Map.entry("S_TEXT/UTF8", "subrip"),
+          Map.entry("S_TEXT/ASS", "ass"),
+          Map.entry("S_TEXT/SSA", "ass"),
+          Map.entry("S_ASS", "ass"),
+          Map.entry("S_SSA", "ass"),
+          Map.entry("S_TEXT/WEBVTT", "webvtt"),
+          Map.entry("S_HDMV/PGS", "hdmv_pgs_subtitle"),
+          Map.entry("S_VOBSUB", "dvd_subtitle"),
+          Map.entry("S_DVBSUB", "dvb_subtitle"))
+  );
+
+  private MatroskaMetadataParser() {
+    throw new IllegalStateException("Cannot instantiate a utility class");
+  }
+
+  static MediaStreams parse(FileChannel channel)
+      throws IOException, UnsupportedMetadataException {
+    final var ebml = readHeader(channel, 0);
+
+    if (ebml.id() != EBML_ID || ebml.size() < 0) {
+      throw new UnsupportedMetadataException("Malformed EBML header");
+    }
+
+    final var docType = findChild(readData(channel, 0, ebml), DOC_TYPE_ID);
+
+    if (docType == null
+            || !List.of("matroska", "webm").contains(readString(docType.data()))) {
+      throw new UnsupportedMetadataException("Unknown EBML document type");
+    }
+
+    long position = ebml.headerLength() + ebml.size();
+    final var segment = readHeader(channel, position);
+
+    if (segment.id() != SEGMENT_ID) {
+      throw new UnsupportedMetadataException("Segment does not follow the EBML header");
+    }
+
+    position += segment.headerLength();
+    final long segmentEnd = segment.size() < 0
+                                ? channel.size() : Math.min(channel.size(),
+        position + segment.size());
+
+    ByteBuffer info = null;
+    ByteBuffer tracks = null;
+
+    while (position < segmentEnd && (info == null || tracks == null)) {
+      final var element = readHeader(channel, position);
+
+      if (element.id() == CLUSTER_ID || element.size() < 0) {
+        break;
+      }
+
+      if (element.id() == INFO_ID) {
+        info = readData(channel, position, element);
+      } else if (element.id() == TRACKS_ID) {
+        tracks = readData(channel, position, element);
+      }
+
+      position += element.headerLength() + element.size();
+    }
+
+    if (tracks == null) {
+      throw new UnsupportedMetadataException("Tracks do not precede the clusters");
+    }
+
+    final List<VideoStream> videoStreams = new ArrayList<>();
+    final List<AudioStream> audioStreams = new ArrayList<>();
+    final List<Subtitles> subtitles = new ArrayList<>();
+    int index = 0;
+
+    for (Element entry : children(tracks)) {
+      if (entry.id() != TRACK_ENTRY_ID) {
+        continue;
+      }
+
+      addTrack(entry.data(), index++, videoStreams, audioStreams, subtitles);
+    }
+
+    return new MediaStreams(videoStreams, audioStreams, subtitles, FORMAT_NAME,
+        info == null ? 0 : durationSeconds(info));
+  }
+
+  private static void addTrack(ByteBuffer entry, int index, List<VideoStream> videoStreams,
+      List<AudioStream> audioStreams, List<Subtitles> subtitles)
+      throws UnsupportedMetadataException {
+    long trackType = 0;
+    String codecId = null;
+    String language = null;
+    boolean bcp47Language = false;
+    long defaultDuration = 0;
+    long width = 0;
+    long height = 0;
+    long range = 0;
+    long matrix = UNSPECIFIED_COLOR;
+    long transfer = UNSPECIFIED_COLOR;
+    long primaries = UNSPECIFIED_COLOR;
+    double samplingFrequency = DEFAULT_SAMPLING_FREQUENCY;
+    double outputSamplingFrequency = 0;
+    long channels = 1;
+
+    for (Element element : children(entry)) {
+      final long id = element.id();
+
+      if (id == TRACK_TYPE_ID) {
+        trackType = readUnsigned(element.data());
+      } else if (id == CODEC_ID_ID) {
+        codecId = readString(element.data());
+      } else if (id == LANGUAGE_ID) {
+        language = readString(element.data());
+      } else if (id == LANGUAGE_BCP47_ID) {
+        bcp47Language = true;
+      } else if (id == DEFAULT_DURATION_ID) {
+        defaultDuration = readUnsigned(element.data());
+      } else if (id == VIDEO_ID) {
+        for (Element setting : children(element.data())) {
+          if (setting.id() == PIXEL_WIDTH_ID) {
+            width = readUnsigned(setting.data());
+          } else if (setting.id() == PIXEL_HEIGHT_ID) {
+            height = readUnsigned(setting.data());
+          } else if (setting.id() == COLOUR_ID) {
+            for (Element colour : children(setting.data())) {
+              if (colour.id() == RANGE_ID) {
+                range = readUnsigned(colour.data());
+              } else if (colour.id() == MATRIX_COEFFICIENTS_ID) {
+                matrix = readUnsigned(colour.data());
+              } else if (colour.id() == TRANSFER_CHARACTERISTICS_ID) {
+                transfer = readUnsigned(colour.data());
+              } else if (colour.id() == PRIMARIES_ID) {
+                primaries = readUnsigned(colour.data());
+              }
+            }
+          }
+        }
+      } else if (id == AUDIO_ID) {
+        for (Element setting : children(element.data())) {
+          if (setting.id() == SAMPLING_FREQUENCY_ID) {
+            samplingFrequency = readFloat(setting.data());
+          } else if (setting.id() == OUTPUT_SAMPLING_FREQUENCY_ID) {
+            outputSamplingFrequency = readFloat(setting.data());
+          } else if (setting.id() == CHANNELS_ID) {
+            channels = readUnsigned(setting.data());
+          }
+        }
+      }
+    }
+
+    if (language == null && bcp47Language) {
+      throw new UnsupportedMetadataException("Track " + index + " has only a BCP 47 language");
+    }
+
+    final var codecs = CODECS.get((int) trackType);
+
+    if (codecs == null || codecId == null) {
+      throw new UnsupportedMetadataException("Unsupported track type of track " + index);
+    }
+
+    String codec = null;
+
+    for (var mapping : codecs) {
+      if (codecId.startsWith(mapping.getKey())) {
+        codec = mapping.getValue();
+        break;
+      }
+    }
+
+    if (codec == null) {
+      throw new UnsupportedMetadataException("Unknown codec " + codecId + " of track " + index);
+    }
+
+    final String lang = language == null ? DEFAULT_LANGUAGE
+                            : UNDEFINED_LANGUAGE.equals(language) ? null : language;
+
+    switch ((int) trackType) {
+      case VIDEO_TRACK -> {
+        if (defaultDuration == 0 || width == 0 || height == 0) {
+          throw new UnsupportedMetadataException("Incomplete video track " + index);
+        }
+
+        videoStreams.add(new VideoStream(index, codec, (int) height, (int) width,
+            ContainerMetadataParser.frameRate(1_000_000_000L, defaultDuration,
+                MAX_FRAME_RATE_TERM),
+            ContainerMetadataParser.videoDetails(colorRangeOf(range), (int) matrix,
+                (int) transfer, (int) primaries)));
+      }
+      // libavformat reports the output rate, e.g. of AAC with spectral band replication
+      case AUDIO_TRACK -> audioStreams.add(new AudioStream(index, codec, lang,
+          ContainerMetadataParser.audioDetails((int) (outputSamplingFrequency > 0
+                                                          ? outputSamplingFrequency
+                                                          : samplingFrequency),
+              (int) channels)));
+      default -> subtitles.add(new Subtitles(index, codec, lang));
+    }
+  }
+
+  /**
+   * @return name of the colour range, {@code null} when it is unspecified or derived from the other
+   * colour properties
+   */
+  private static String colorRangeOf(long range) {
+    return range == 1 ? "tv" : range == 2 ? "pc" : null;
+  }
+
+  private static double durationSeconds(ByteBuffer info) {
+    long timestampScale = DEFAULT_TIMESTAMP_SCALE;
+    double duration = 0;
+
+    for (Element element : children(info)) {
+      if (element.id() == TIMESTAMP_SCALE_ID) {
+        timestampScale = readUnsigned(element.data());
+      } else if (element.id() == DURATION_ID) {
+        duration = readFloat(element.data());
+      }
+    }
+
+    // libavformat keeps the duration in microseconds
+    return Math.round(duration * timestampScale / 1000) / 1_000_000.0;
+  }
+
+  private static ElementHeader readHeader(FileChannel channel, long position)
+      throws IOException, UnsupportedMetadataException {
+    final var buffer = ContainerMetadataParser.read(channel, position, MAX_ELEMENT_HEADER_BYTES);
+    final int idLength = vintLength(buffer, 4);
+    final long id = readId(buffer, idLength);
+    final int sizeLength = vintLength(buffer, 8);
+    final long size = readSize(buffer, sizeLength);
+
+    return new ElementHeader(id, size, idLength + sizeLength);
+  }
+
+  private static ByteBuffer readData(FileChannel channel, long position, ElementHeader header)
+      throws IOException, UnsupportedMetadataException {
+    if (header.size() > ContainerMetadataParser.MAX_SECTION_BYTES) {
+      throw new UnsupportedMetadataException("Metadata section is too big");
+    }
+
+    final var data = ContainerMetadataParser.read(channel, position + header.headerLength(),
+        (int) header.size());
+
+    if (data.remaining() < header.size()) {
+      throw new UnsupportedMetadataException("Truncated element");
+    }
+
+    return data;
+  }
+
+  private static List<Element> children(ByteBuffer data) {
+    final List<Element> elements = new ArrayList<>();
+    final var buffer = data.duplicate();
+
+    while (buffer.remaining() >= 2) {
+      try {
+        final long id = readId(buffer, vintLength(buffer, 4));
+        final long size = readSize(buffer, vintLength(buffer, 8));
+
+        if (size < 0 || size > buffer.remaining()) {
+          break;
+        }
+
+        final var child = buffer.slice(buffer.position(), (int) size);
+        buffer.position(buffer.position() + (int) size);
+        elements.add(new Element(id, child));
+      } catch (UnsupportedMetadataException e) {
+        break;
+      }
+    }
+
+    return elements;
+  }
+
+  private static Element findChild(ByteBuffer data, long id) {
+    return children(data).stream()
+               .filter(element -> element.id() == id)
+               .findFirst()
+               .orElse(null);
+  }
+
+  /**
+   * Length of the variable size integer at the position of the buffer, given by the position of the
+   * first set bit of its first byte.
+   */
+  private static int vintLength(ByteBuffer buffer, int maxLength)
+      throws UnsupportedMetadataException {
+    if (!buffer.hasRemaining()) {
+      throw new UnsupportedMetadataException("Truncated element");
+    }
+
+    final int first = buffer.get(buffer.position()) & 0xFF;
+    final int length = Integer.numberOfLeadingZeros(first) - 23;
+
+    if (first == 0 || length > maxLength || length > buffer.remaining()) {
+      throw new UnsupportedMetadataException("Malformed element");
+    }
+
+    return length;
+  }
+
+  /**
+   * Ids keep their length marker bit.
+   */
+  private static long readId(ByteBuffer buffer, int length) {
+    long id = 0;
+
+    for (int i = 0; i < length; i++) {
+      id = (id << 8) | (buffer.get() & 0xFF);
+    }
+
+    return id;
+  }
+
+  /**
+   * @return size without the length marker or -1 for the reserved unknown size
+   */
+  private static long readSize(ByteBuffer buffer, int length) {
+    long size = (buffer.get() & 0xFF) & (0xFF >> length);
+    boolean unknown = size == (0xFF >> length);
+
+    for (int i = 1; i < length; i++) {
+      final int value = buffer.get() & 0xFF;
+      unknown &= value == 0xFF;
+      size = (size << 8) | value;
+    }
+
+    return unknown ? -1 : size;
+  }
+
+  private static long readUnsigned(ByteBuffer data) {
+    long value = 0;
+
+    for (int i = data.position(); i < data.limit(); i++) {
+      value = (value << 8) | (data.get(i) & 0xFF);
+    }
+
+    return value;
+  }
+
+  private static double readFloat(ByteBuffer data) {
+    return data.remaining() == 4 ? data.getFloat(data.position())
+               : data.getDouble(data.position());
+  }
+
+  private static String readString(ByteBuffer data) {
+    final var bytes = new byte[data.remaining()];
+    data.get(data.position(), bytes);
+
+    int length = bytes.length;
+    while (length > 0 && bytes[length - 1] == 0) {
+      length--;
+    }
+
+    return new String(bytes, 0, length, StandardCharsets.UTF_8);
+  }
+}
@@ -1,5 +1,7 @@
 package io.github.akmal2409.ets.unboxing;
 
+import io.github.akmal2409.ets.unboxing.MediaStreams.AudioDetails;
+import io.github.akmal2409.ets.unboxing.MediaStreams.VideoDetails;
 import java.nio.file.Path;
 import java.util.List;
 
@@ -7,6 +9,7 @@ public record MediaCollection(
     List<Video> videos,
     List<Audio> audio,
     List<Subtitles> subtitles,
+    Source source, // null for collections recorded before it was collected
     Path basePath
 ) {
 
@@ -14,19 +17,56 @@ public record MediaCollection(
       String filename,
       String codec,
       int width,
-      int height
+      int height,
+      String packetIndex, // sidecar with the packets, see PacketIndex, null when not generated
+      List<Chunk> chunks, // keyframe aligned parts of the video, null when not chunked
+      double fps,
+      VideoDetails details, // null when unknown
+      Output output,
+      Output packetIndexOutput // sidecar as written, null when not generated
+  ) {}
+
+  /**
+   * Part of a video cut at a keyframe, stream-copied from the source.
+   */
+  public static record Chunk(
+      String filename,
+      long startPts, // in milliseconds, the Matroska time base, chunks keep source timestamps
+      double durationSeconds,
+      long sizeBytes,
+      String sha256 // lowercase hex, null for chunks recorded before they were checksummed
   ) {}
 
   public static record Audio(
       String filename,
       String codec,
-      String lang
+      String lang,
+      AudioDetails details, // null when unknown
+      Output output
   ) {
   }
 
   public static record Subtitles(
       String filename,
       String codec,
-      String lang
+      String lang,
+      Output output
+  ) {}
+
+  /**
+   * Extracted file as written to the output folder, lets downstream stages verify and plan without
+   * reading it.
+   */
+  public static record Output(
+      long sizeBytes,
+      String sha256, // lowercase hex
+      long bitRate // bits per second over the source duration, 0 when the duration is unknown
+  ) {}
+
+  public static record Source(
+      String containerFormat, // ffprobe format name e.g. "matroska,webm"
+      double durationSeconds, // 0 when unknown
+      long sizeBytes, // 0 when unknown e.g. for streamed sources
+      long bitRate // 0 when unknown
   ) {}
 }
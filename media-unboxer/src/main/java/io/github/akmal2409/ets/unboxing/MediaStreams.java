@@ -1,11 +1,14 @@
 package io.github.akmal2409.ets.unboxing;
 
 import java.util.List;
+import java.util.Set;
 
 public record MediaStreams(
     List<VideoStream> videoStreams,
     List<AudioStream> audioStreams,
-    List<Subtitles> subtitles
+    List<Subtitles> subtitles,
+    String containerFormat, // ffprobe format name e.g. "matroska,webm"
+    double durationSeconds // 0 when unknown
 ) {
 
   public static record VideoStream(
@@ -13,17 +16,25 @@ public record MediaStreams(
       String codec,
       int height,
       int width,
-      double fps
+      double fps,
+      VideoDetails details // null when the analyser does not decode the codec configuration
   ) {
 
+    public VideoStream(int index, String codec, int height, int width, double fps) {
+      this(index, codec, height, width, fps, null);
+    }
   }
 
   public static record AudioStream(
       int index,
       String codec,
-      String lang // 3 letter ISO code
+      String lang, // 3 letter ISO code
+      AudioDetails details // null when the analyser does not decode the codec configuration
   ) {
 
+    public AudioStream(int index, String codec, String lang) {
+      this(index, codec, lang, null);
+    }
   }
 
   public static record Subtitles(
@@ -33,4 +44,33 @@ public record MediaStreams(
   ) {
 
   }
+
+  /**
+   * Names as printed by ffprobe, null when unknown.
+   */
+  public static record VideoDetails(
+      String pixelFormat, // e.g. yuv420p10le
+      String colorRange, // tv or pc
+      String colorSpace, // e.g. bt2020nc
+      String colorTransfer, // e.g. smpte2084
+      String colorPrimaries, // e.g. bt2020
+      boolean hdr // PQ (HDR10, Dolby Vision) or HLG transfer
+  ) {
+
+    private static final Set<String> HDR_TRANSFERS = Set.of("smpte2084", "arib-std-b67");
+
+    public static VideoDetails of(String pixelFormat, String colorRange, String colorSpace,
+        String colorTransfer, String colorPrimaries) {
+      return new VideoDetails(pixelFormat, colorRange, colorSpace, colorTransfer, colorPrimaries,
+          colorTransfer != null && HDR_TRANSFERS.contains(colorTransfer));
+    }
+  }
+
+  public static record AudioDetails(
+      int sampleRate, // 0 when unknown
+      int channels, // 0 when unknown
+      String channelLayout // e.g. 5.1(side), null when unknown
+  ) {
+
+  }
 }
@@ -5,11 +5,11 @@ import static io.github.akmal2409.ets.WorkerConstants.DEFAULT_CONTAINER_FORMAT;
 import static io.github.akmal2409.ets.WorkerConstants.DEFAULT_SUBTITLES_CONTAINER;
 import static io.github.akmal2409.ets.WorkerConstants.DEFAULT_VIDEO_CONTAINER;
 
-import com.github.kokorin.jaffree.ffprobe.FFprobe;
-import com.github.kokorin.jaffree.ffprobe.FFprobeResult;
-import com.github.kokorin.jaffree.ffprobe.Stream;
+import io.github.akmal2409.ets.control.StageStats;
 import io.github.akmal2409.ets.exception.FileNotFoundException;
+import io.github.akmal2409.ets.unboxing.FFmpegProcessRunner.KillReason;
 import io.github.akmal2409.ets.unboxing.MediaCollection.Audio;
+import io.github.akmal2409.ets.unboxing.MediaCollection.Chunk;
 import io.github.akmal2409.ets.unboxing.MediaCollection.Video;
 import io.github.akmal2409.ets.unboxing.MediaStreams.AudioStream;
 import io.github.akmal2409.ets.unboxing.MediaStreams.Subtitles;
@@ -22,44 +22,85 @@ import java.time.Duration;
 import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
-import net.bramp.ffmpeg.FFmpegExecutor;
-import net.bramp.ffmpeg.builder.FFmpegBuilder;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 public class MediaUnboxer {
 
-  private static final String LANGUAGE_TAG = "language";
+  private static final Logger log = LoggerFactory.getLogger(MediaUnboxer.class);
 
-  private final FFmpegExecutor ffmpegExecutor;
-  private final FFprobe ffprobe;
+  /**
+   * Demuxers (as reported by ffprobe's format name) whose streams carry complete timestamps and
+   * can be stream-copied into Matroska without an intermediate remux.
+   */
+  private static final Set<String> DIRECTLY_DEMUXABLE_FORMATS = Set.of(
+      "matroska", "webm", "mov", "mp4", "m4a");
+
+  private final UnboxingEngine engine;
   private final ExecutorService executorService;
-  private final Duration taskTimeout;
+  private final TimeBudgetEstimator timeBudgetEstimator;
+  private final ExtractionMode extractionMode;
+  private final FFmpegProcessScheduler processScheduler;
+  private final StageStats extractionStats;
+  /**
+   * Whether known containers are analysed with {@link ContainerMetadataParser} instead of ffprobe.
+   */
+  private final boolean metadataParserEnabled;
+  /**
+   * Whether every extracted video gets a {@link PacketIndex} sidecar.
+   */
+  private final boolean packetIndexEnabled;
+  /**
+   * Target duration of the chunks every video is additionally split into, zero disables chunking.
+   */
+  private final Duration videoChunkDuration;
 
-  public MediaUnboxer(FFmpegExecutor ffmpegExecutor, FFprobe fFprobe,
-      ExecutorService executorService, Duration taskTimeout) {
-    this.ffmpegExecutor = ffmpegExecutor;
-    this.ffprobe = fFprobe;
+  public MediaUnboxer(UnboxingEngine engine, ExecutorService executorService,
+      TimeBudgetEstimator timeBudgetEstimator, ExtractionMode extractionMode,
+      FFmpegProcessScheduler processScheduler, StageStats extractionStats,
+      boolean metadataParserEnabled, boolean packetIndexEnabled, Duration videoChunkDuration) {
+    this.engine = engine;
     this.executorService = executorService;
-    this.taskTimeout = taskTimeout;
+    this.timeBudgetEstimator = timeBudgetEstimator;
+    this.extractionMode = extractionMode;
+    this.processScheduler = processScheduler;
+    this.extractionStats = extractionStats;
+    this.metadataParserEnabled = metadataParserEnabled;
+    this.packetIndexEnabled = packetIndexEnabled;
+    this.videoChunkDuration = videoChunkDuration;
   }
 
   /**
    * Will convert source media file to another with the same name but different container format at
    * the specified location out.
    *
+   * @param jobId                 job the conversion belongs to
    * @param src                   media file path
    * @param out                   output directory path!
    * @param outputContainerFormat desired container format
    * @return path to the converted media file
    */
-  public Path convertContainerFormat(Path src, Path out, ContainerFormat outputContainerFormat,
-      MediaType mediaType) {
+  public Path convertContainerFormat(UUID jobId, Path src, Path out,
+      ContainerFormat outputContainerFormat, MediaType mediaType) {
     if (!Files.exists(src)) {
       throw new FileNotFoundException(String.format("Provided media file %s doesn't exist", src));
     }
@@ -82,54 +123,170 @@ public class MediaUnboxer {
       return src; // already in the same format
     }
 
-    final var ffmpegJobBuilder = new FFmpegBuilder()
-                                     .addInput(src.toString())
-                                     .addOutput(outputFilePath.toString())
-                                     .addExtraArgs("-map", "0")
-                                     .addExtraArgs("-c", "copy")
-                                     .done();
+    // remuxing copies every stream, it is charged as heavy as a video extraction
+    try (var session = engine.newSession(jobId);
+        var permit = processScheduler.acquire(jobId, processScheduler.weightOf(MediaType.VIDEO))) {
+      session.remux(src, List.of(new RemuxOutput(outputFilePath, List.of())),
+          outputContainerFormat.getFormatName());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new ConversionException("Interrupted while waiting to convert " + src, e);
+    }
+
+    return outputFilePath;
+  }
+
+  /**
+   * Checks whether the streams of the probed media can be demuxed straight from its original
+   * container. Containers outside the known set, or streams ffprobe could not identify, need
+   * an intermediate remux with {@link #convertContainerFormat(UUID, Path, Path, ContainerFormat,
+   * MediaType)} first.
+   *
+   * @param streams result of {@link #analyseStreams(Path)} for the source
+   */
+  public boolean isDirectlyDemuxable(@NotNull MediaStreams streams) {
+    if (streams.containerFormat() == null) {
+      return false;
+    }
+
+    boolean knownContainer = false;
 
-    ffmpegExecutor.createJob(ffmpegJobBuilder).run();
-    return null;
+    for (String formatName : streams.containerFormat().split(",")) {
+      if (DIRECTLY_DEMUXABLE_FORMATS.contains(formatName.trim())) {
+        knownContainer = true;
+        break;
+      }
+    }
+
+    if (!knownContainer) {
+      return false;
+    }
+
+    return streams.videoStreams().stream().allMatch(stream -> stream.codec() != null)
+               && streams.audioStreams().stream().allMatch(stream -> stream.codec() != null)
+               && streams.subtitles().stream().allMatch(stream -> stream.codec() != null);
   }
 
   /**
-   * Analyses the media file by extracting the video, audio and subtitle information.
+   * Analyses the media file by extracting the video, audio and subtitle information. Matroska and
+   * MP4 files are parsed in process, anything else is probed by the engine.
    *
    * @param mediaPath path to the media
    */
   public MediaStreams analyseStreams(Path mediaPath) {
-    final FFprobeResult result = ffprobe.setShowStreams(true)
-                                     .setInput(mediaPath)
-                                     .execute();
-
-    final List<AudioStream> audioStreams = new ArrayList<>();
-    final List<VideoStream> videoStreams = new ArrayList<>();
-    final List<Subtitles> subtitles = new ArrayList<>();
-
-    String codec;
-
-    for (Stream stream : result.getStreams()) {
-      codec = stream.getCodecName();
-
-      switch (stream.getCodecType()) {
-        case AUDIO -> audioStreams.add(
-            new AudioStream(stream.getIndex(), codec, stream.getTag(LANGUAGE_TAG)));
-        case SUBTITLE ->
-            subtitles.add(new Subtitles(stream.getIndex(), codec, stream.getTag(LANGUAGE_TAG)));
-        case VIDEO -> {
-          final var videoStream = new VideoStream(stream.getIndex(), codec,
-              stream.getHeight(), stream.getWidth(), stream.getAvgFrameRate().doubleValue());
-          videoStreams.add(videoStream);
-        }
-        default -> {/* ignore */}
+    if (metadataParserEnabled) {
+      final var parsed = ContainerMetadataParser.parse(mediaPath);
+
+      if (parsed.isPresent()) {
+        return parsed.get();
       }
     }
 
-    return new MediaStreams(videoStreams, audioStreams, subtitles);
+    return probeStreams(mediaPath);
   }
 
-  public MediaCollection unboxMediaContainer(@NotNull Path src, @NotNull Path outDir) {
+  /**
+   * Same as {@link #analyseStreams(Path)}, always probing with the engine, e.g. ffprobe.
+   *
+   * @param mediaPath path to the media
+   */
+  public MediaStreams probeStreams(Path mediaPath) {
+    return engine.probe(mediaPath);
+  }
+
+  /**
+   * Analyses the streams of a source that is not downloaded yet. ffprobe runs on a sparse probe file
+   * that holds only the container header of the source, see {@link RemoteProbe}. Streams the
+   * parser did not describe in detail are probed from the same file once, a streamed source cannot
+   * be read again for them. The probe file is deleted afterwards.
+   *
+   * @param reader     of the source
+   * @param objectSize size of the source in bytes
+   * @param probeFile  path of the probe file
+   * @return streams or empty if the container is not recognised or ffprobe cannot make sense of the
+   * header, such source has to be analysed once downloaded
+   */
+  public Optional<RemoteStreams> analyseRemoteStreams(@NotNull UUID jobId,
+      @NotNull RemoteProbe.RangeReader reader, long objectSize, @NotNull Path probeFile)
+      throws IOException {
+    final long startNanos = System.nanoTime();
+
+    try {
+      final var written = RemoteProbe.write(reader, objectSize, probeFile);
+
+      if (written.isEmpty()) {
+        log.debug("message=Container cannot be probed remotely;job_id={}", jobId);
+        return Optional.empty();
+      }
+
+      final var probe = written.get();
+      var streams = analyseStreams(probe.path());
+
+      // the source is read only once when it is streamed, its details come from the header
+      if (!hasDetails(streams)) {
+        final var probed = probeDetails(jobId, probe.path());
+        streams = probed == null ? streams : withDetails(streams, probed);
+      }
+
+      log.debug(
+          "message=Probed source remotely;job_id={};container={};fetched_bytes={};source_bytes={};elapsed_ms={}",
+          jobId, streams.containerFormat(), probe.fetchedBytes(), objectSize,
+          Duration.ofNanos(System.nanoTime() - startNanos).toMillis());
+      return Optional.of(new RemoteStreams(streams, probe.indexed(), probe.fetchedBytes()));
+    } catch (ConversionException e) {
+      log.warn("message=Cannot probe source remotely;job_id={}", jobId, e);
+      return Optional.empty();
+    } finally {
+      Files.deleteIfExists(probeFile);
+    }
+  }
+
+  public MediaCollection unboxMediaContainer(@NotNull UUID jobId, @NotNull Path src,
+      @NotNull Path outDir) {
+    return unboxMediaContainer(jobId, src, analyseStreams(src), outDir, file -> {});
+  }
+
+  /**
+   * Extracts every stream of the source into its own file under {@code outDir} and notifies the
+   * listener about every extracted file as soon as ffmpeg has finalized it, so that it can be
+   * processed further (e.g. uploaded). With {@link ExtractionMode#PER_STREAM} this overlaps with
+   * the extraction of the other streams. With {@link ExtractionMode#SINGLE_PASS} one ffmpeg process
+   * finalizes all the outputs when it exits, so processing starts only after the whole remux.
+   *
+   * @param jobId       job the extraction belongs to, ffmpeg processes are scheduled fairly
+   *                    across jobs
+   * @param src         media file to unbox
+   * @param streams     result of {@link #analyseStreams(Path)} for {@code src}, allows callers
+   *                    that already probed the file to skip another ffprobe run
+   * @param outDir      directory for the extracted streams
+   * @param onExtracted called with the path of each finalized output, possibly concurrently
+   */
+  public MediaCollection unboxMediaContainer(@NotNull UUID jobId, @NotNull Path src,
+      @NotNull MediaStreams streams, @NotNull Path outDir, @NotNull Consumer<Path> onExtracted) {
+    return unbox(jobId, src, sizeOf(src), streams, outDir, extractionMode, onExtracted);
+  }
+
+  /**
+   * Extracts every stream of a source that can be read only once, such as a named pipe fed from
+   * S3. The streams are always demuxed in a single pass regardless of the configured
+   * {@link ExtractionMode}.
+   *
+   * @param jobId       job the extraction belongs to
+   * @param pipe        readable once media input
+   * @param sourceBytes size of the media, a pipe cannot tell it, the time budget depends on it
+   * @param streams     streams of the media, probed from its header
+   * @param outDir      directory for the extracted streams
+   * @param onExtracted called with the path of each finalized output
+   */
+  public MediaCollection unboxMediaStream(@NotNull UUID jobId, @NotNull Path pipe,
+      long sourceBytes, @NotNull MediaStreams streams, @NotNull Path outDir,
+      @NotNull Consumer<Path> onExtracted) {
+    return unbox(jobId, pipe, sourceBytes, streams, outDir, ExtractionMode.SINGLE_PASS,
+        onExtracted);
+  }
+
+  private MediaCollection unbox(UUID jobId, Path src, long sourceBytes, MediaStreams streams,
+      Path outDir, ExtractionMode mode, Consumer<Path> onExtracted) {
     if (!Files.exists(src)) {
       throw new FileNotFoundException("Source file " + src + " was not found");
     }
@@ -144,75 +301,485 @@ public class MediaUnboxer {
       throw new ConversionException("Cannot create output directories " + outDir);
     }
 
-    final var streams = analyseStreams(src);
+    final var extractions = new ArrayList<StreamExtraction>();
+    final var chunks = new ConcurrentHashMap<Integer, List<Chunk>>();
+    final var outputs = new ConcurrentHashMap<Integer, MediaCollection.Output>();
+    final var packetIndexes = new ConcurrentHashMap<Integer, MediaCollection.Output>();
+    final var probed = new AtomicReference<MediaStreams>();
+
+    for (VideoStream videoStream : streams.videoStreams()) {
+      final var outputPath = outDir.resolve(videoFilenameOf(videoStream));
+      RemuxOutput chunkOutput = null;
+
+      if (!videoChunkDuration.isZero()) {
+        // the segment muxer cuts at the first keyframe after every chunk duration
+        chunkOutput = new RemuxOutput(outDir.resolve(String.format("video-%d-%%05d.%s",
+            videoStream.index(), DEFAULT_VIDEO_CONTAINER)), List.of(videoStream.index()),
+            new RemuxOutput.Segmentation(videoChunkDuration,
+                outDir.resolve(String.format("video-%d-chunks.csv", videoStream.index()))));
+      }
+
+      extractions.add(new StreamExtraction(videoStream.index(), outputPath, MediaType.VIDEO,
+          chunkOutput));
+    }
+
+    for (AudioStream audioStream : streams.audioStreams()) {
+      extractions.add(new StreamExtraction(audioStream.index(),
+          outDir.resolve(audioFilenameOf(audioStream)), MediaType.AUDIO, null));
+    }
+
+    for (Subtitles subtitlesStream : streams.subtitles()) {
+      extractions.add(new StreamExtraction(subtitlesStream.index(),
+          outDir.resolve(subtitlesFilenameOf(subtitlesStream)), MediaType.SUBTITLES, null));
+    }
+
+    final var pendingFutures = new ArrayList<Future<?>>();
+    // checksums, packet indexes and the probe of the source read the files once more, they are
+    // not part of the extraction that the budget and the learned throughput describe
+    final var postProcessingFutures = new ArrayList<Future<?>>();
+    final var completedExtractions = new ExecutorCompletionService<List<StreamExtraction>>(
+        executorService);
+    final var permitted = new CompletableFuture<Long>();
+    final var prediction = timeBudgetEstimator.predict(sourceBytes, streams.durationSeconds());
+    final var budget = timeBudgetEstimator.budgetFor(prediction);
+    final Duration elapsed;
+
+    if (extractions.isEmpty()) {
+      permitted.complete(System.nanoTime());
+    }
+
+    // a pipe can be read only once, streamed sources are described by their remote probe
+    if (!hasDetails(streams) && Files.isRegularFile(src)) {
+      postProcessingFutures.add(executorService.submit(() -> {
+        probed.set(probeDetails(jobId, src));
+        return null;
+      }));
+    }
+
+    try (var session = engine.newSession(jobId)) {
+      submitExtractions(jobId, src, extractions, mode, session, onExtracted, completedExtractions,
+          pendingFutures, permitted);
+      // the budget and the learned throughput cover the extraction, not the wait for ffmpeg
+      // permits while other jobs extract
+      final long start = awaitFirstPermit(permitted, pendingFutures, session);
+
+      try {
+        awaitExtractions(completedExtractions, pendingFutures, postProcessingFutures, session,
+            start + budget.toNanos(), completed -> completed.forEach(
+                extraction -> postProcessingFutures.add(executorService.submit(() -> {
+                  postProcess(jobId, extraction, streams.durationSeconds(), session, onExtracted,
+                      chunks, outputs, packetIndexes);
+                  return null;
+                }))));
+      } catch (OperationTimeoutException e) {
+        if (e.getCause() instanceof TimeoutException) {
+          timeBudgetEstimator.record(sourceBytes, streams.durationSeconds(), prediction,
+              Duration.ofNanos(System.nanoTime() - start));
+        }
+        throw e;
+      }
+
+      elapsed = Duration.ofNanos(System.nanoTime() - start);
+      // reading the outputs again takes no longer than writing them, it gets a budget of its own
+      awaitPostProcessing(postProcessingFutures, session, System.nanoTime() + budget.toNanos());
+    }
+
+    timeBudgetEstimator.record(sourceBytes, streams.durationSeconds(), prediction, elapsed);
+    extractionStats.record(sourceBytes, elapsed);
+
+    log.info(
+        "message=Unboxed media;job_id={};source_bytes={};duration_s={};predicted_ms={};budget_ms={};actual_ms={}",
+        jobId, sourceBytes, streams.durationSeconds(), prediction.toMillis(), budget.toMillis(),
+        elapsed.toMillis());
 
+    final var described = probed.get() == null ? streams : withDetails(streams, probed.get());
     final var videos = new ArrayList<Video>();
     final var audios = new ArrayList<Audio>();
     final var subtitles = new ArrayList<MediaCollection.Subtitles>();
-    Future<?> future;
-    final var pendingFutures = new ArrayList<Future<?>>();
 
-    for (VideoStream videoStream : streams.videoStreams()) {
-      final var outputPath = outDir.resolve(String.format("video-%d.%s",
-          videoStream.index(), DEFAULT_VIDEO_CONTAINER));
-      videos.add(new Video(outputPath.getFileName().toString(),
-          videoStream.codec(), videoStream.width(), videoStream.height()));
-      future = executorService.submit(
-          () -> extractStream(src, videoStream.index(), outputPath, DEFAULT_CONTAINER_FORMAT));
-      pendingFutures.add(future);
+    for (VideoStream videoStream : described.videoStreams()) {
+      final var filename = videoFilenameOf(videoStream);
+      videos.add(new Video(filename, videoStream.codec(), videoStream.width(),
+          videoStream.height(), packetIndexEnabled ? PacketIndex.sidecarOf(filename) : null,
+          chunks.get(videoStream.index()), videoStream.fps(), videoStream.details(),
+          outputs.get(videoStream.index()), packetIndexes.get(videoStream.index())));
     }
 
-    for (AudioStream audioStream : streams.audioStreams()) {
-      final var outputPath = outDir.resolve(String.format("audio-%s-%d.%s",
-          audioStream.lang(), audioStream.index(), DEFAULT_AUDIO_CONTAINER));
-      audios.add(new Audio(outputPath.getFileName().toString(),
-          audioStream.codec(), audioStream.lang()));
+    for (AudioStream audioStream : described.audioStreams()) {
+      audios.add(new Audio(audioFilenameOf(audioStream), audioStream.codec(),
+          audioStream.lang(), audioStream.details(), outputs.get(audioStream.index())));
+    }
 
-      future = executorService.submit(
-          () -> extractStream(src, audioStream.index(), outputPath, DEFAULT_CONTAINER_FORMAT));
-      pendingFutures.add(future);
+    for (Subtitles subtitlesStream : described.subtitles()) {
+      subtitles.add(new MediaCollection.Subtitles(subtitlesFilenameOf(subtitlesStream),
+          subtitlesStream.codec(), subtitlesStream.lang(),
+          outputs.get(subtitlesStream.index())));
     }
 
-    for (Subtitles subtitlesStream : streams.subtitles()) {
-      final var outputPath = outDir.resolve(String.format("subtitles-%s-%d.%s",
-          subtitlesStream.lang(), subtitlesStream.index(), DEFAULT_SUBTITLES_CONTAINER));
-      subtitles.add(new MediaCollection.Subtitles(outputPath.getFileName().toString(),
-          subtitlesStream.codec(), subtitlesStream.lang()));
+    return new MediaCollection(videos, audios, subtitles,
+        new MediaCollection.Source(streams.containerFormat(), streams.durationSeconds(),
+            sourceBytes, bitRateOf(sourceBytes, streams.durationSeconds())),
+        outDir);
+  }
+
+  private static String videoFilenameOf(VideoStream videoStream) {
+    return String.format("video-%d.%s", videoStream.index(), DEFAULT_VIDEO_CONTAINER);
+  }
+
+  private static String audioFilenameOf(AudioStream audioStream) {
+    return String.format("audio-%s-%d.%s", audioStream.lang(), audioStream.index(),
+        DEFAULT_AUDIO_CONTAINER);
+  }
+
+  private static String subtitlesFilenameOf(Subtitles subtitlesStream) {
+    return String.format("subtitles-%s-%d.%s", subtitlesStream.lang(), subtitlesStream.index(),
+        DEFAULT_SUBTITLES_CONTAINER);
+  }
 
-      future = executorService.submit(
-          () -> extractStream(src, subtitlesStream.index(), outputPath, DEFAULT_CONTAINER_FORMAT));
-      pendingFutures.add(future);
+  /**
+   * Submits the remuxes, every task completes with the extractions it finalized and hands their
+   * files to the listener.
+   */
+  private void submitExtractions(UUID jobId, Path src, List<StreamExtraction> extractions,
+      ExtractionMode mode, UnboxingEngine.Session session, Consumer<Path> onExtracted,
+      CompletionService<List<StreamExtraction>> completedExtractions,
+      List<Future<?>> pendingFutures, CompletableFuture<Long> permitted) {
+    if (!extractions.isEmpty()) {
+      switch (mode) {
+        case SINGLE_PASS -> pendingFutures.add(completedExtractions.submit(() -> {
+          // one process carries all the streams, it is charged for all of them
+          final int weight = extractions.stream()
+                                 .mapToInt(extraction -> processScheduler.weightOf(
+                                     extraction.type()))
+                                 .sum();
+
+          try (var permit = processScheduler.acquire(jobId, weight)) {
+            permitted.complete(System.nanoTime());
+            extractStreams(src, extractions, DEFAULT_CONTAINER_FORMAT, session);
+          } finally {
+            // a task that failed before its permit must not leave the job waiting for one
+            permitted.complete(System.nanoTime());
+          }
+          // the muxers write their trailers only when the process exits, so none of the outputs
+          // can be handed over earlier
+          extractions.forEach(extraction -> onExtracted.accept(extraction.out()));
+          return extractions;
+        }));
+        case PER_STREAM -> {
+          for (StreamExtraction extraction : extractions) {
+            pendingFutures.add(completedExtractions.submit(() -> {
+              try (var permit = processScheduler.acquire(jobId,
+                  processScheduler.weightOf(extraction.type()))) {
+                permitted.complete(System.nanoTime());
+                extractStream(src, extraction, DEFAULT_CONTAINER_FORMAT, session);
+              } finally {
+                permitted.complete(System.nanoTime());
+              }
+              onExtracted.accept(extraction.out());
+              return List.of(extraction);
+            }));
+          }
+        }
+      }
     }
+  }
 
-    long operationTimeLimit = taskTimeout.toMillis();
-    long start = System.currentTimeMillis();
+  /**
+   * Waits until the first extraction task of the job holds an ffmpeg permit.
+   *
+   * @return {@link System#nanoTime()} when the permit was granted
+   */
+  private long awaitFirstPermit(CompletableFuture<Long> permitted,
+      List<Future<?>> pendingFutures, UnboxingEngine.Session session) {
+    try {
+      return permitted.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      abortExtractions(pendingFutures, session, KillReason.CANCELLED);
+      throw new OperationTimeoutException("Interrupted while waiting for an ffmpeg permit", e);
+    } catch (ExecutionException e) {
+      // never completed exceptionally
+      throw new IllegalStateException(e);
+    }
+  }
 
-    for (Future<?> pendingFuture : pendingFutures) {
+  /**
+   * Waits for all the extraction tasks until the deadline of the job and hands the extractions of
+   * every completed task to {@code onCompleted}, so their post-processing starts while the other
+   * streams are still extracted. When the deadline passes, a task fails or the caller is
+   * interrupted, the remaining tasks and the post-processing are cancelled and their ffmpeg
+   * processes are killed, so that no orphaned work keeps running after the job has given up.
+   *
+   * @param deadline {@link System#nanoTime()} by which the tasks have to complete
+   */
+  private void awaitExtractions(CompletionService<List<StreamExtraction>> completedExtractions,
+      List<Future<?>> pendingFutures, List<Future<?>> postProcessingFutures,
+      UnboxingEngine.Session session, long deadline,
+      Consumer<List<StreamExtraction>> onCompleted) {
+    final Consumer<KillReason> abort = reason -> {
+      abortExtractions(pendingFutures, session, reason);
+      postProcessingFutures.forEach(future -> future.cancel(true));
+    };
+
+    for (int remaining = pendingFutures.size(); remaining > 0; remaining--) {
       try {
-        pendingFuture.get(operationTimeLimit, TimeUnit.MILLISECONDS);
-        operationTimeLimit -= (System.currentTimeMillis() - start);
-        start = System.currentTimeMillis();
-        if (operationTimeLimit <= 0) {
-          throw new OperationTimeoutException("Timeout reached");
+        final var completed = completedExtractions.poll(
+            Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+
+        if (completed == null) {
+          abort.accept(KillReason.DEADLINE);
+          throw new OperationTimeoutException("Unboxing tasks timed out", new TimeoutException());
         }
-      } catch (InterruptedException | ExecutionException | TimeoutException e) {
+
+        onCompleted.accept(completed.get());
+      } catch (ExecutionException e) {
+        abort.accept(KillReason.CANCELLED);
         throw new OperationTimeoutException("Unboxing tasks either errored or timed out", e);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        abort.accept(KillReason.CANCELLED);
+        throw new OperationTimeoutException("Interrupted while waiting for unboxing tasks", e);
       }
     }
+  }
 
-    return new MediaCollection(videos, audios, subtitles,
-        outDir);
+  /**
+   * Waits for the post-processing of the extracted files, cancelling it like the extraction when
+   * the deadline passes or a task fails.
+   *
+   * @param deadline {@link System#nanoTime()} by which the tasks have to complete
+   */
+  private void awaitPostProcessing(List<Future<?>> postProcessingFutures,
+      UnboxingEngine.Session session, long deadline) {
+
+    for (Future<?> postProcessingFuture : postProcessingFutures) {
+      try {
+        postProcessingFuture.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+      } catch (TimeoutException e) {
+        abortExtractions(postProcessingFutures, session, KillReason.DEADLINE);
+        throw new OperationTimeoutException("Post-processing of extracted files timed out", e);
+      } catch (ExecutionException e) {
+        abortExtractions(postProcessingFutures, session, KillReason.CANCELLED);
+        throw new OperationTimeoutException("Post-processing of extracted files failed", e);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        abortExtractions(postProcessingFutures, session, KillReason.CANCELLED);
+        throw new OperationTimeoutException("Interrupted while post-processing extracted files",
+            e);
+      }
+    }
+  }
+
+  private void abortExtractions(List<Future<?>> pendingFutures,
+      UnboxingEngine.Session session, KillReason reason) {
+    session.kill(reason);
+    // tasks that still wait for admission never start a remux
+    pendingFutures.forEach(future -> future.cancel(true));
+  }
+
+  /**
+   * Checksums an extracted file and its chunks and indexes its packets, while they are still in
+   * the page cache after the upload has started.
+   */
+  private void postProcess(UUID jobId, StreamExtraction extraction, double durationSeconds,
+      UnboxingEngine.Session session, Consumer<Path> onExtracted,
+      Map<Integer, List<Chunk>> chunks, Map<Integer, MediaCollection.Output> outputs,
+      Map<Integer, MediaCollection.Output> packetIndexes) throws InterruptedException {
+    collectChunks(extraction, onExtracted, chunks);
+
+    final var packetIndex = indexPackets(jobId, extraction, session, onExtracted);
+
+    if (packetIndex != null) {
+      packetIndexes.put(extraction.streamIndex(), describeOutput(packetIndex, durationSeconds));
+    }
+
+    outputs.put(extraction.streamIndex(), describeOutput(extraction.out(), durationSeconds));
+  }
+
+  /**
+   * Writes the packet index of an extracted video next to it. The video is read once more, while
+   * it is still in the page cache, as the byte positions refer to the extracted file. The read is
+   * charged like the extraction of a video, it competes for the same disk and CPU.
+   *
+   * @return the written sidecar, {@code null} if the extraction is not indexed
+   */
+  private Path indexPackets(UUID jobId, StreamExtraction extraction,
+      UnboxingEngine.Session session, Consumer<Path> onExtracted) throws InterruptedException {
+    if (!packetIndexEnabled || extraction.type() != MediaType.VIDEO) {
+      return null;
+    }
+
+    final var video = extraction.out();
+    final var sidecar = video.resolveSibling(
+        PacketIndex.sidecarOf(video.getFileName().toString()));
+    final PacketIndex index;
+
+    try (var permit = processScheduler.acquire(jobId, processScheduler.weightOf(
+        MediaType.VIDEO))) {
+      index = session.indexPackets(video);
+    }
+
+    try {
+      index.write(sidecar);
+    } catch (IOException e) {
+      throw new ConversionException("Cannot write packet index " + sidecar, e);
+    }
+
+    onExtracted.accept(sidecar);
+    return sidecar;
+  }
+
+  /**
+   * Sizes and checksums a written file for the manifest.
+   */
+  private static MediaCollection.Output describeOutput(Path file, double durationSeconds) {
+    try {
+      final long sizeBytes = Files.size(file);
+      return new MediaCollection.Output(sizeBytes, FileUtils.sha256(file),
+          bitRateOf(sizeBytes, durationSeconds));
+    } catch (IOException e) {
+      throw new ConversionException("Cannot read extracted file " + file, e);
+    }
+  }
+
+  /**
+   * @return whether every video and audio stream is described in detail.
+   */
+  private static boolean hasDetails(MediaStreams streams) {
+    return streams.videoStreams().stream().allMatch(stream -> stream.details() != null)
+               && streams.audioStreams().stream().allMatch(stream -> stream.details() != null);
+  }
+
+  /**
+   * Probes the media with the engine once for the details of the streams the analyser did not
+   * describe. {@link ContainerMetadataParser} fills the details from the headers, so this is only
+   * a fallback for streams that come without them. The probe may read the whole media, it waits for
+   * a permit like the extraction of a video.
+   *
+   * @return probed streams or {@code null} if the media cannot be probed
+   */
+  private MediaStreams probeDetails(UUID jobId, Path media) {
+    try (var permit = processScheduler.acquire(jobId, processScheduler.weightOf(
+        MediaType.VIDEO))) {
+      return engine.probe(media);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      log.warn("message=Interrupted while waiting to probe stream details;media={}", media);
+      return null;
+    } catch (ConversionException e) {
+      // the details are informative, the extraction itself does not depend on them
+      log.warn("message=Cannot probe stream details, leaving them out;media={}", media, e);
+      return null;
+    }
+  }
+
+  /**
+   * @return streams with the missing details taken from the probed streams of the same index.
+   */
+  private static MediaStreams withDetails(MediaStreams streams, MediaStreams probed) {
+    final var videoDetails = probed.videoStreams().stream()
+                                 .filter(stream -> stream.details() != null)
+                                 .collect(Collectors.toMap(VideoStream::index,
+                                     VideoStream::details));
+    final var audioDetails = probed.audioStreams().stream()
+                                 .filter(stream -> stream.details() != null)
+                                 .collect(Collectors.toMap(AudioStream::index,
+                                     AudioStream::details));
+
+    return new MediaStreams(
+        streams.videoStreams().stream()
+            .map(stream -> stream.details() != null ? stream
+                : new VideoStream(stream.index(), stream.codec(), stream.height(),
+                    stream.width(), stream.fps(), videoDetails.get(stream.index())))
+            .toList(),
+        streams.audioStreams().stream()
+            .map(stream -> stream.details() != null ? stream
+                : new AudioStream(stream.index(), stream.codec(), stream.lang(),
+                    audioDetails.get(stream.index())))
+            .toList(),
+        streams.subtitles(), streams.containerFormat(), streams.durationSeconds());
+  }
+
+  private static long bitRateOf(long sizeBytes, double durationSeconds) {
+    return durationSeconds > 0 ? Math.round(sizeBytes * 8 / durationSeconds) : 0;
+  }
+
+  /**
+   * Reads the chunks of a video from the list of the segment muxer, hands them to the listener and
+   * checksums them.
+   */
+  private void collectChunks(StreamExtraction extraction, Consumer<Path> onExtracted,
+      Map<Integer, List<Chunk>> chunks) {
+    if (extraction.chunks() == null) {
+      return;
+    }
+
+    final var segmentList = extraction.chunks().segmentation().segmentList();
+    final var videoChunks = new ArrayList<Chunk>();
+
+    try {
+      for (String line : Files.readAllLines(segmentList)) {
+        if (line.isBlank()) {
+          continue;
+        }
+
+        // filename,start,end
+        final var fields = line.split(",");
+        final var chunk = segmentList.resolveSibling(fields[0]);
+        final double startSeconds = Double.parseDouble(fields[1]);
+        final double endSeconds = Double.parseDouble(fields[2]);
+
+        onExtracted.accept(chunk);
+        videoChunks.add(new Chunk(fields[0], Math.round(startSeconds * 1000),
+            endSeconds - startSeconds, Files.size(chunk), FileUtils.sha256(chunk)));
+      }
+
+      Files.delete(segmentList);
+    } catch (IOException | RuntimeException e) {
+      throw new ConversionException("Cannot read chunk list " + segmentList, e);
+    }
+
+    chunks.put(extraction.streamIndex(), List.copyOf(videoChunks));
+  }
+
+  private void extractStream(Path src, StreamExtraction extraction, String format,
+      UnboxingEngine.Session session) throws InterruptedException {
+    session.remux(src, outputsOf(extraction).toList(), format);
   }
 
-  private void extractStream(Path src, int streamIndex, Path out, String format) {
-    final var ffmpegJob = new FFmpegBuilder()
-                              .addInput(src.toString())
-                              .overrideOutputFiles(true)
-                              .addOutput(out.toString())
-                              .addExtraArgs("-map", "0:" + streamIndex)
-                              .addExtraArgs("-c", "copy")
-                              .setFormat(format)
-                              .done();
-    ffmpegExecutor.createJob(ffmpegJob).run();
+  /**
+   * Demuxes all the streams with a single remux. Every extraction becomes a separate output, e.g.
+   * with its own {@code -map 0:N} for ffmpeg, therefore the source is read only once regardless of
+   * the number of streams.
+   */
+  private void extractStreams(Path src, List<StreamExtraction> extractions, String format,
+      UnboxingEngine.Session session) throws InterruptedException {
+    session.remux(src, extractions.stream()
+                           .flatMap(MediaUnboxer::outputsOf)
+                           .toList(), format);
   }
+
+  /**
+   * The extracted stream and its chunks if any, both written by the same remux.
+   */
+  private static Stream<RemuxOutput> outputsOf(StreamExtraction extraction) {
+    final var output = new RemuxOutput(extraction.out(), List.of(extraction.streamIndex()));
+
+    return extraction.chunks() == null ? Stream.of(output)
+               : Stream.of(output, extraction.chunks());
+  }
+
+  /**
+   * Size of the source or 0 for inputs without a known size such as pipes.
+   */
+  private static long sizeOf(Path src) {
+    try {
+      return Files.isRegularFile(src) ? Files.size(src) : 0;
+    } catch (IOException e) {
+      return 0;
+    }
+  }
+
+  private record StreamExtraction(int streamIndex, Path out, MediaType type,
+                                  RemuxOutput chunks) {}
 }
@@ -0,0 +1,494 @@
+package io.github.akmal2409.ets.unboxing;
+
+import io.github.akmal2409.ets.unboxing.ContainerMetadataParser.UnsupportedMetadataException;
+import io.github.akmal2409.ets.unboxing.MediaStreams.AudioDetails;
+import io.github.akmal2409.ets.unboxing.MediaStreams.AudioStream;
+import io.github.akmal2409.ets.unboxing.MediaStreams.Subtitles;
+import io.github.akmal2409.ets.unboxing.MediaStreams.VideoDetails;
+import io.github.akmal2409.ets.unboxing.MediaStreams.VideoStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Parses the {@code moov} atom of an MP4/MOV file. The top level boxes are walked by their sizes,
+ * so the atom is found wherever it sits, and only the boxes of the tracks that describe the
+ * streams are decoded: {@code mdhd}, {@code hdlr}, {@code stsd} and {@code stts}. The details come
+ * from the sample entries, the {@code colr} box of a video and the sample rate and channels of an
+ * audio entry.
+ */
+final class Mp4MetadataParser {
+
+  private record Box(String type, ByteBuffer data) {
+
+  }
+
+  static final String FORMAT_NAME = "mov,mp4,m4a,3gp,3g2,mj2";
+
+  private static final int BOX_HEADER_SIZE = ContainerSniffer.MP4_BOX_HEADER_SIZE;
+  private static final int LARGE_BOX_HEADER_SIZE = 2 * BOX_HEADER_SIZE;
+  /**
+   * Size of the fields every sample entry starts with, the header and the data reference index.
+   */
+  private static final int SAMPLE_ENTRY_SIZE = 16;
+  private static final int VISUAL_SAMPLE_ENTRY_DIMENSIONS_OFFSET = 32;
+  private static final int VISUAL_SAMPLE_ENTRY_SIZE = 86;
+  private static final int AUDIO_SAMPLE_ENTRY_SIZE = 36;
+  private static final int AUDIO_SAMPLE_ENTRY_CHANNELS_OFFSET = 24;
+  private static final int AUDIO_SAMPLE_ENTRY_SAMPLE_RATE_OFFSET = 32;
+  /**
+   * Offsets of the sample rate and the channels of a QuickTime sound description of version 2,
+   * which leaves the fields of the first version at fixed values.
+   */
+  private static final int SOUND_DESCRIPTION_V2_SAMPLE_RATE_OFFSET = 40;
+  private static final int SOUND_DESCRIPTION_V2_CHANNELS_OFFSET = 48;
+  /**
+   * Code point of colour properties that are left to the codec.
+   */
+  private static final int UNSPECIFIED_COLOR = 2;
+  /**
+   * Language codes below this value are Macintosh language codes, zero is English.
+   */
+  private static final int FIRST_PACKED_LANGUAGE = 0x400;
+  private static final int NO_LANGUAGE = 0x7FFF;
+  private static final int ES_DESCRIPTOR_TAG = 0x03;
+  private static final int DECODER_CONFIG_DESCRIPTOR_TAG = 0x04;
+
+  private static final Set<String> VIDEO_HANDLERS = Set.of("vide");
+  private static final Set<String> AUDIO_HANDLERS = Set.of("soun");
+  private static final Set<String> SUBTITLE_HANDLERS = Set.of("sbtl", "subt", "text");
+
+  /**
+   * Sample entry types mapped to ffprobe codec names, entries that need the object type of the
+   * elementary stream descriptor are resolved with {@link #OBJECT_TYPES}.
+   */
+  private static final Map<String, String> SAMPLE_ENTRIES = Map.ofEntries(
+      Map.entry("avc1", "h264"),
+      Map.entry("avc3", "h264"),
+      Map.entry("hvc1", "hevc"),
+      Map.entry("hev1", "hevc"),
+      Map.entry("vp08", "vp8"),
+      Map.entry("vp09", "vp9"),
+      Map.entry("av01", "av1"),
+      Map.entry("apch", "prores"),
+      Map.entry("apcn", "prores"),
+      Map.entry("apcs", "prores"),
+      Map.entry("apco", "prores"),
+      Map.entry("ap4h", "prores"),
+      Map.entry("ac-3", "ac3"),
+      Map.entry("ec-3", "eac3"),
+      Map.entry("Opus", "opus"),
+      Map.entry("fLaC", "flac"),
+      Map.entry("alac", "alac"),
+      Map.entry("tx3g", "mov_text"),
+      Map.entry("wvtt", "webvtt")
+  );
+
+  private static final Map<Integer, String> OBJECT_TYPES = Map.of(
+      0x20, "mpeg4",
+      0x40, "aac",
+      0x66, "aac",
+      0x67, "aac",
+      0x68, "aac",
+      0x69, "mp3",
+      0x6B, "mp3",
+      0x61, "mpeg2video",
+      0x6A, "mpeg1video"
+  );
+
+  private Mp4MetadataParser() {
+    throw new IllegalStateException("Cannot instantiate a utility class");
+  }
+
+  static MediaStreams parse(FileChannel channel)
+      throws IOException, UnsupportedMetadataException {
+    final var moov = readMoov(channel);
+
+    final List<VideoStream> videoStreams = new ArrayList<>();
+    final List<AudioStream> audioStreams = new ArrayList<>();
+    final List<Subtitles> subtitles = new ArrayList<>();
+    double durationSeconds = 0;
+    int index = 0;
+
+    for (Box box : children(moov)) {
+      switch (box.type()) {
+        case "mvhd" -> durationSeconds = movieDurationSeconds(box.data());
+        case "trak" -> addTrack(box.data(), index++, videoStreams, audioStreams, subtitles);
+        case "mvex" -> throw new UnsupportedMetadataException("Fragmented file");
+        default -> {/* ignore */}
+      }
+    }
+
+    return new MediaStreams(videoStreams, audioStreams, subtitles, FORMAT_NAME,
+        durationSeconds);
+  }
+
+  private static ByteBuffer readMoov(FileChannel channel)
+      throws IOException, UnsupportedMetadataException {
+    final long fileSize = channel.size();
+    long position = 0;
+
+    while (position + BOX_HEADER_SIZE <= fileSize) {
+      final var header = ContainerMetadataParser.read(channel, position, LARGE_BOX_HEADER_SIZE);
+      long size = Integer.toUnsignedLong(header.getInt());
+      final String type = fourCc(header);
+      int headerSize = BOX_HEADER_SIZE;
+
+      if (size == 1) {
+        if (header.remaining() < Long.BYTES) {
+          throw new UnsupportedMetadataException("Truncated box");
+        }
+        size = header.getLong();
+        headerSize = LARGE_BOX_HEADER_SIZE;
+      } else if (size == 0) {
+        size = fileSize - position;
+      }
+
+      if (size < headerSize) {
+        throw new UnsupportedMetadataException("Malformed box " + type);
+      }
+
+      if ("moov".equals(type)) {
+        if (size > ContainerMetadataParser.MAX_SECTION_BYTES) {
+          throw new UnsupportedMetadataException("Metadata section is too big");
+        }
+
+        final var moov = ContainerMetadataParser.read(channel, position + headerSize,
+            (int) (size - headerSize));
+
+        if (moov.remaining() < size - headerSize) {
+          throw new UnsupportedMetadataException("Truncated moov atom");
+        }
+
+        return moov;
+      }
+
+      position += size;
+    }
+
+    throw new UnsupportedMetadataException("File has no moov atom");
+  }
+
+  private static void addTrack(ByteBuffer trak, int index, List<VideoStream> videoStreams,
+      List<AudioStream> audioStreams, List<Subtitles> subtitles)
+      throws UnsupportedMetadataException {
+    final var tref = findChild(trak, "tref");
+
+    if (tref != null && findChild(tref, "chap") != null) {
+      // chapter tracks turn into extra streams that ffprobe lists differently
+      throw new UnsupportedMetadataException("Track " + index + " references chapters");
+    }
+
+    final var mdia = requireChild(trak, "mdia");
+    final var mdhd = requireChild(mdia, "mdhd");
+    final var hdlr = requireChild(mdia, "hdlr");
+    final var stbl = requireChild(requireChild(mdia, "minf"), "stbl");
+    final var stsd = requireChild(stbl, "stsd");
+
+    final String handler = fourCc(hdlr.duplicate().position(hdlr.position() + 8));
+    final boolean largeMdhd = mdhd.get(mdhd.position()) == 1;
+    final long timescale = Integer.toUnsignedLong(
+        mdhd.getInt(mdhd.position() + (largeMdhd ? 20 : 12)));
+    final String lang = language(
+        mdhd.getShort(mdhd.position() + (largeMdhd ? 32 : 20)) & 0xFFFF, index);
+
+    // version and flags, entry count
+    final var entry = stsd.slice(stsd.position() + 8, stsd.remaining() - 8);
+
+    if (entry.remaining() < SAMPLE_ENTRY_SIZE) {
+      throw new UnsupportedMetadataException("Track " + index + " has no sample entry");
+    }
+
+    final String codec = codecOf(entry, index);
+
+    if (VIDEO_HANDLERS.contains(handler)) {
+      if (entry.remaining() < VISUAL_SAMPLE_ENTRY_DIMENSIONS_OFFSET + 4) {
+        throw new UnsupportedMetadataException("Truncated video sample entry of track " + index);
+      }
+
+      final int width = entry.getShort(VISUAL_SAMPLE_ENTRY_DIMENSIONS_OFFSET) & 0xFFFF;
+      final int height = entry.getShort(VISUAL_SAMPLE_ENTRY_DIMENSIONS_OFFSET + 2) & 0xFFFF;
+
+      videoStreams.add(new VideoStream(index, codec, height, width,
+          frameRate(requireChild(stbl, "stts"), timescale, index), videoDetails(entry)));
+    } else if (AUDIO_HANDLERS.contains(handler)) {
+      audioStreams.add(new AudioStream(index, codec, lang, audioDetails(entry, index)));
+    } else if (SUBTITLE_HANDLERS.contains(handler)) {
+      subtitles.add(new Subtitles(index, codec, lang));
+    } else {
+      throw new UnsupportedMetadataException("Unsupported handler " + handler + " of track "
+                                                 + index);
+    }
+  }
+
+  /**
+   * Colour properties of the {@code colr} box of the visual sample entry.
+   */
+  private static VideoDetails videoDetails(ByteBuffer entry) {
+    final int entrySize = Math.min(entry.remaining(), entry.getInt(0));
+    final var colr = entrySize <= VISUAL_SAMPLE_ENTRY_SIZE ? null
+                         : findChild(entry.slice(VISUAL_SAMPLE_ENTRY_SIZE,
+                             entrySize - VISUAL_SAMPLE_ENTRY_SIZE), "colr");
+
+    if (colr == null || colr.remaining() < 10) {
+      return ContainerMetadataParser.videoDetails(null, UNSPECIFIED_COLOR, UNSPECIFIED_COLOR,
+          UNSPECIFIED_COLOR);
+    }
+
+    final String type = fourCc(colr.duplicate());
+    final int primaries = colr.getShort(colr.position() + 4) & 0xFFFF;
+    final int transfer = colr.getShort(colr.position() + 6) & 0xFFFF;
+    final int matrix = colr.getShort(colr.position() + 8) & 0xFFFF;
+
+    // the full range flag is the top bit of the byte after the code points
+    final boolean fullRange = colr.remaining() > 10
+                                  && (colr.get(colr.position() + 10) & 0x80) != 0;
+
+    return switch (type) {
+      case "nclx" -> ContainerMetadataParser.videoDetails(fullRange ? "pc" : "tv", matrix,
+          transfer, primaries);
+      // QuickTime colour parameters do not carry the range
+      case "nclc" -> ContainerMetadataParser.videoDetails(null, matrix, transfer, primaries);
+      default -> ContainerMetadataParser.videoDetails(null, UNSPECIFIED_COLOR, UNSPECIFIED_COLOR,
+          UNSPECIFIED_COLOR);
+    };
+  }
+
+  /**
+   * Sample rate and channels of the audio sample entry.
+   */
+  private static AudioDetails audioDetails(ByteBuffer entry, int index)
+      throws UnsupportedMetadataException {
+    if (entry.remaining() < AUDIO_SAMPLE_ENTRY_SIZE) {
+      throw new UnsupportedMetadataException("Truncated audio sample entry of track " + index);
+    }
+
+    if ((entry.getShort(SAMPLE_ENTRY_SIZE) & 0xFFFF) == 2) {
+      if (entry.remaining() < SOUND_DESCRIPTION_V2_CHANNELS_OFFSET + 4) {
+        throw new UnsupportedMetadataException("Truncated audio sample entry of track " + index);
+      }
+
+      return ContainerMetadataParser.audioDetails(
+          (int) Math.round(entry.getDouble(SOUND_DESCRIPTION_V2_SAMPLE_RATE_OFFSET)),
+          entry.getInt(SOUND_DESCRIPTION_V2_CHANNELS_OFFSET));
+    }
+
+    // the sample rate is a 16.16 fixed point number
+    return ContainerMetadataParser.audioDetails(
+        entry.getShort(AUDIO_SAMPLE_ENTRY_SAMPLE_RATE_OFFSET) & 0xFFFF,
+        entry.getShort(AUDIO_SAMPLE_ENTRY_CHANNELS_OFFSET) & 0xFFFF);
+  }
+
+  private static String codecOf(ByteBuffer entry, int index) throws UnsupportedMetadataException {
+    final String type = fourCc(entry.duplicate().position(4));
+    final String codec = SAMPLE_ENTRIES.get(type);
+
+    if (codec != null) {
+      return codec;
+    }
+
+    if ("mp4a".equals(type) || "mp4v".equals(type)) {
+      final int objectType = objectTypeOf(entry, "mp4a".equals(type), index);
+      final String objectCodec = OBJECT_TYPES.get(objectType);
+
+      if (objectCodec != null) {
+        return objectCodec;
+      }
+    }
+
+    throw new UnsupportedMetadataException("Unknown sample entry " + type + " of track " + index);
+  }
+
+  /**
+   * Reads the object type indication from the decoder config descriptor in the {@code esds} box of
+   * the sample entry.
+   */
+  private static int objectTypeOf(ByteBuffer entry, boolean audio, int index)
+      throws UnsupportedMetadataException {
+    final int childrenOffset;
+
+    if (audio) {
+      // QuickTime sound descriptions of version 1 and 2 carry extra fields
+      final int version = entry.getShort(SAMPLE_ENTRY_SIZE) & 0xFFFF;
+      childrenOffset = AUDIO_SAMPLE_ENTRY_SIZE + switch (version) {
+        case 0 -> 0;
+        case 1 -> 16;
+        case 2 -> 36;
+        default -> throw new UnsupportedMetadataException(
+            "Unknown sound description version of track " + index);
+      };
+    } else {
+      childrenOffset = VISUAL_SAMPLE_ENTRY_SIZE;
+    }
+
+    final int entrySize = Math.min(entry.remaining(), entry.getInt(0));
+
+    if (childrenOffset >= entrySize) {
+      throw new UnsupportedMetadataException("Track " + index + " has no esds box");
+    }
+
+    final var esds = findChild(entry.slice(childrenOffset, entrySize - childrenOffset), "esds");
+
+    if (esds == null) {
+      throw new UnsupportedMetadataException("Track " + index + " has no esds box");
+    }
+
+    final var descriptor = esds.duplicate().position(esds.position() + 4);
+
+    if ((descriptor.get() & 0xFF) != ES_DESCRIPTOR_TAG) {
+      throw new UnsupportedMetadataException("Malformed esds box of track " + index);
+    }
+
+    skipDescriptorLength(descriptor);
+    descriptor.getShort(); // ES_ID
+    final int flags = descriptor.get() & 0xFF;
+
+    if ((flags & 0x80) != 0) {
+      descriptor.getShort(); // dependsOn_ES_ID
+    }
+    if ((flags & 0x40) != 0) {
+      descriptor.position(descriptor.position() + (descriptor.get() & 0xFF)); // URL
+    }
+    if ((flags & 0x20) != 0) {
+      descriptor.getShort(); // OCR_ES_Id
+    }
+
+    if ((descriptor.get() & 0xFF) != DECODER_CONFIG_DESCRIPTOR_TAG) {
+      throw new UnsupportedMetadataException("Malformed esds box of track " + index);
+    }
+
+    skipDescriptorLength(descriptor);
+    return descriptor.get() & 0xFF;
+  }
+
+  private static void skipDescriptorLength(ByteBuffer descriptor) {
+    for (int i = 0; i < 4 && (descriptor.get() & 0x80) != 0; i++) {
+      // every byte with the high bit set is followed by another one
+    }
+  }
+
+  /**
+   * Average frame rate the same way libavformat derives it from the sample durations.
+   */
+  private static double frameRate(ByteBuffer stts, long timescale, int index)
+      throws UnsupportedMetadataException {
+    final long entries = Integer.toUnsignedLong(stts.getInt(stts.position() + 4));
+    long frames = 0;
+    long duration = 0;
+
+    for (int i = 0; i < entries; i++) {
+      final int offset = stts.position() + 8 + i * 8;
+
+      if (offset + 8 > stts.limit()) {
+        throw new UnsupportedMetadataException("Truncated stts box of track " + index);
+      }
+
+      frames += Integer.toUnsignedLong(stts.getInt(offset));
+      duration += Integer.toUnsignedLong(stts.getInt(offset + 4))
+                      * Integer.toUnsignedLong(stts.getInt(offset));
+    }
+
+    if (frames == 0 || duration == 0) {
+      throw new UnsupportedMetadataException("Track " + index + " has no sample durations");
+    }
+
+    return ContainerMetadataParser.frameRate(timescale * frames, duration, Integer.MAX_VALUE);
+  }
+
+  private static double movieDurationSeconds(ByteBuffer mvhd) {
+    final boolean large = mvhd.get(mvhd.position()) == 1;
+    final long timescale = Integer.toUnsignedLong(
+        mvhd.getInt(mvhd.position() + (large ? 20 : 12)));
+    final long duration = large ? mvhd.getLong(mvhd.position() + 24)
+                              : Integer.toUnsignedLong(mvhd.getInt(mvhd.position() + 16));
+
+    if (timescale == 0) {
+      return 0;
+    }
+
+    // libavformat keeps the duration in microseconds
+    return Math.round(duration * 1_000_000.0 / timescale) / 1_000_000.0;
+  }
+
+  /**
+   * Decodes the ISO 639-2/T code packed into three 5 bit letters.
+   *
+   * @return language or {@code null} when the track has none
+   */
+  private static String language(int code, int index) throws UnsupportedMetadataException {
+    if (code == NO_LANGUAGE) {
+      return null;
+    }
+
+    if (code < FIRST_PACKED_LANGUAGE) {
+      if (code == 0) {
+        return "eng";
+      }
+      throw new UnsupportedMetadataException("Macintosh language code of track " + index);
+    }
+
+    return new String(new char[]{
+        (char) (((code >> 10) & 0x1F) + 0x60),
+        (char) (((code >> 5) & 0x1F) + 0x60),
+        (char) ((code & 0x1F) + 0x60)
+    });
+  }
+
+  private static List<Box> children(ByteBuffer data) {
+    final List<Box> boxes = new ArrayList<>();
+    final var buffer = data.duplicate();
+
+    while (buffer.remaining() >= BOX_HEADER_SIZE) {
+      long size = Integer.toUnsignedLong(buffer.getInt());
+      final String type = fourCc(buffer);
+      int headerSize = BOX_HEADER_SIZE;
+
+      if (size == 1 && buffer.remaining() >= Long.BYTES) {
+        size = buffer.getLong();
+        headerSize = LARGE_BOX_HEADER_SIZE;
+      } else if (size == 0) {
+        size = buffer.remaining() + BOX_HEADER_SIZE;
+      }
+
+      if (size < headerSize || size - headerSize > buffer.remaining()) {
+        break;
+      }
+
+      final int length = (int) (size - headerSize);
+      boxes.add(new Box(type, buffer.slice(buffer.position(), length)));
+      buffer.position(buffer.position() + length);
+    }
+
+    return boxes;
+  }
+
+  private static ByteBuffer findChild(ByteBuffer data, String type) {
+    return children(data).stream()
+               .filter(box -> box.type().equals(type))
+               .map(Box::data)
+               .findFirst()
+               .orElse(null);
+  }
+
+  private static ByteBuffer requireChild(ByteBuffer data, String type)
+      throws UnsupportedMetadataException {
+    final var child = findChild(data, type);
+
+    if (child == null) {
+      throw new UnsupportedMetadataException("Missing " + type + " box");
+    }
+
+    return child;
+  }
+
+  private static String fourCc(ByteBuffer buffer) {
+    final var bytes = new byte[4];
+    buffer.get(bytes);
+    return new String(bytes, StandardCharsets.ISO_8859_1);
+  }
+}
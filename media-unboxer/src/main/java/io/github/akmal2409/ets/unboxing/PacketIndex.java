@@ -0,0 +1,158 @@
+package io.github.akmal2409.ets.unboxing;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Timestamps, byte positions, sizes and keyframe flags of every packet of a video stream, used by
+ * the transcoders to split the work at keyframes without scanning the file again.
+ * <p>
+ * Packets are kept column-wise in primitive arrays, a two-hour 60 fps video has around half a
+ * million of them. The sidecar file written next to the video is big-endian:
+ * <pre>
+ * int  magic "PIDX"
+ * int  version
+ * int  time base numerator
+ * int  time base denominator
+ * int  packet count
+ * per packet: long pts, long dts, long position, int size, byte flags
+ * </pre>
+ * Unknown timestamps and positions are stored as {@link #UNKNOWN}. Flag bit 0 marks keyframes.
+ */
+public final class PacketIndex {
+
+  public static final String SIDECAR_EXTENSION = "pidx";
+  public static final long UNKNOWN = Long.MIN_VALUE;
+
+  private static final int MAGIC = 0x50494458;
+  private static final int VERSION = 1;
+  private static final byte KEYFRAME_FLAG = 1;
+  private static final int INITIAL_CAPACITY = 4096;
+
+  private int timeBaseNum;
+  private int timeBaseDen;
+  private int count;
+  private long[] pts = new long[INITIAL_CAPACITY];
+  private long[] dts = new long[INITIAL_CAPACITY];
+  private long[] positions = new long[INITIAL_CAPACITY];
+  private int[] sizes = new int[INITIAL_CAPACITY];
+  private byte[] flags = new byte[INITIAL_CAPACITY];
+
+  /**
+   * Name of the sidecar of the video file, e.g. video-0.pidx for video-0.mkv.
+   */
+  public static String sidecarOf(String videoFilename) {
+    final int lastDotIndex = videoFilename.lastIndexOf('.');
+    final var baseName = lastDotIndex > 0 ? videoFilename.substring(0, lastDotIndex)
+                             : videoFilename;
+
+    return baseName + "." + SIDECAR_EXTENSION;
+  }
+
+  public void setTimeBase(int num, int den) {
+    this.timeBaseNum = num;
+    this.timeBaseDen = den;
+  }
+
+  public void add(long pts, long dts, long position, int size, boolean keyframe) {
+    if (count == sizes.length) {
+      final int capacity = count * 2;
+      this.pts = Arrays.copyOf(this.pts, capacity);
+      this.dts = Arrays.copyOf(this.dts, capacity);
+      this.positions = Arrays.copyOf(this.positions, capacity);
+      this.sizes = Arrays.copyOf(this.sizes, capacity);
+      this.flags = Arrays.copyOf(this.flags, capacity);
+    }
+
+    this.pts[count] = pts;
+    this.dts[count] = dts;
+    this.positions[count] = position;
+    this.sizes[count] = size;
+    this.flags[count] = keyframe ? KEYFRAME_FLAG : 0;
+    count++;
+  }
+
+  public int size() {
+    return count;
+  }
+
+  public int timeBaseNum() {
+    return timeBaseNum;
+  }
+
+  public int timeBaseDen() {
+    return timeBaseDen;
+  }
+
+  public long pts(int packet) {
+    return pts[packet];
+  }
+
+  public long dts(int packet) {
+    return dts[packet];
+  }
+
+  public long position(int packet) {
+    return positions[packet];
+  }
+
+  public int packetSize(int packet) {
+    return sizes[packet];
+  }
+
+  public boolean isKeyframe(int packet) {
+    return (flags[packet] & KEYFRAME_FLAG) != 0;
+  }
+
+  public void write(Path file) throws IOException {
+    try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(timeBaseNum);
+      out.writeInt(timeBaseDen);
+      out.writeInt(count);
+
+      for (int i = 0; i < count; i++) {
+        out.writeLong(pts[i]);
+        out.writeLong(dts[i]);
+        out.writeLong(positions[i]);
+        out.writeInt(sizes[i]);
+        out.writeByte(flags[i]);
+      }
+    }
+  }
+
+  public static PacketIndex read(Path file) throws IOException {
+    try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+      if (in.readInt() != MAGIC) {
+        throw new IOException("Not a packet index: " + file);
+      }
+
+      final int version = in.readInt();
+
+      if (version != VERSION) {
+        throw new IOException("Unsupported packet index version " + version + ": " + file);
+      }
+
+      final var index = new PacketIndex();
+      index.setTimeBase(in.readInt(), in.readInt());
+      final int count = in.readInt();
+
+      for (int i = 0; i < count; i++) {
+        final long pts = in.readLong();
+        final long dts = in.readLong();
+        final long position = in.readLong();
+        final int size = in.readInt();
+        index.add(pts, dts, position, size, (in.readByte() & KEYFRAME_FLAG) != 0);
+      }
+
+      return index;
+    }
+  }
+}
@@ -0,0 +1,143 @@
+package io.github.akmal2409.ets.unboxing;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Streaming parser of the CSV printed by
+ * {@code ffprobe -select_streams v:0 -show_entries stream=time_base:packet=pts,dts,size,pos,flags
+ * -of csv}, i.e. one {@code stream,1/1000} line and a {@code packet,pts,dts,size,pos,flags} line
+ * per packet. The bytes are parsed in place, no strings are created per line.
+ */
+final class PacketIndexParser {
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+  private static final int MAX_FIELDS = 6;
+
+  private static final int SECTION_UNKNOWN = 0;
+  private static final int SECTION_PACKET = 1;
+  private static final int SECTION_STREAM = 2;
+
+  private static final int PACKET_PTS = 1;
+  private static final int PACKET_DTS = 2;
+  private static final int PACKET_SIZE = 3;
+  private static final int PACKET_POS = 4;
+  private static final int PACKET_FLAGS = 5;
+
+  private final PacketIndex index = new PacketIndex();
+  private final long[] fields = new long[MAX_FIELDS];
+  private final boolean[] missing = new boolean[MAX_FIELDS];
+
+  private int section;
+  private int field;
+  private boolean negative;
+  private boolean fieldStart = true;
+  private long timeBaseNum;
+
+  private PacketIndexParser() {
+  }
+
+  static PacketIndex parse(InputStream in) throws IOException {
+    final var parser = new PacketIndexParser();
+    final var buffer = new byte[BUFFER_SIZE];
+    int read;
+
+    while ((read = in.read(buffer)) != -1) {
+      for (int i = 0; i < read; i++) {
+        parser.accept(buffer[i]);
+      }
+    }
+
+    parser.accept((byte) '\n'); // last line may not be terminated
+    return parser.index;
+  }
+
+  private void accept(byte b) {
+    switch (b) {
+      case '\n' -> {
+        endField();
+        endLine();
+      }
+      case '\r' -> {/* ignore */}
+      case ',' -> endField();
+      default -> acceptFieldByte(b);
+    }
+  }
+
+  private void acceptFieldByte(byte b) {
+    final boolean first = fieldStart;
+    fieldStart = false;
+
+    if (field == 0) {
+      if (first) {
+        section = switch (b) {
+          case 'p' -> SECTION_PACKET;
+          case 's' -> SECTION_STREAM;
+          default -> SECTION_UNKNOWN;
+        };
+      }
+      return;
+    }
+
+    if (field >= MAX_FIELDS) {
+      return;
+    }
+
+    if (section == SECTION_PACKET && field == PACKET_FLAGS) {
+      // K for keyframes, the remaining flag letters are not needed
+      if (first) {
+        fields[field] = b == 'K' ? 1 : 0;
+      }
+      return;
+    }
+
+    if (section == SECTION_STREAM && field == 1 && b == '/') {
+      timeBaseNum = negative ? -fields[1] : fields[1];
+      fields[1] = 0;
+      negative = false;
+      return;
+    }
+
+    if (b >= '0' && b <= '9') {
+      fields[field] = fields[field] * 10 + (b - '0');
+    } else if (b == '-' && first) {
+      negative = true;
+    } else {
+      missing[field] = true; // N/A
+    }
+  }
+
+  private void endField() {
+    if (field > 0 && field < MAX_FIELDS && negative) {
+      fields[field] = -fields[field];
+    }
+
+    negative = false;
+    fieldStart = true;
+    field++;
+  }
+
+  private void endLine() {
+    if (section == SECTION_PACKET && field > PACKET_FLAGS) {
+      index.add(valueOf(PACKET_PTS), valueOf(PACKET_DTS), valueOf(PACKET_POS),
+          (int) fields[PACKET_SIZE], fields[PACKET_FLAGS] == 1);
+    } else if (section == SECTION_STREAM && field > 1 && index.timeBaseDen() == 0) {
+      index.setTimeBase((int) timeBaseNum, (int) fields[1]);
+    }
+
+    for (int i = 0; i < MAX_FIELDS; i++) {
+      fields[i] = 0;
+      missing[i] = false;
+    }
+
+    section = SECTION_UNKNOWN;
+    field = 0;
+    negative = false;
+    fieldStart = true;
+    timeBaseNum = 0;
+  }
+
+  private long valueOf(int packetField) {
+    return missing[packetField] ? PacketIndex.UNKNOWN : fields[packetField];
+  }
+}
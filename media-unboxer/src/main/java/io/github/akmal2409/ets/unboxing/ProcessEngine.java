@@ -0,0 +1,181 @@
+package io.github.akmal2409.ets.unboxing;
+
+import com.github.kokorin.jaffree.JaffreeException;
+import com.github.kokorin.jaffree.ffprobe.FFprobe;
+import com.github.kokorin.jaffree.ffprobe.FFprobeResult;
+import com.github.kokorin.jaffree.ffprobe.Stream;
+import io.github.akmal2409.ets.unboxing.FFmpegProcessRunner.KillReason;
+import io.github.akmal2409.ets.unboxing.MediaStreams.AudioDetails;
+import io.github.akmal2409.ets.unboxing.MediaStreams.AudioStream;
+import io.github.akmal2409.ets.unboxing.MediaStreams.Subtitles;
+import io.github.akmal2409.ets.unboxing.MediaStreams.VideoDetails;
+import io.github.akmal2409.ets.unboxing.MediaStreams.VideoStream;
+import java.math.BigDecimal;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.function.Supplier;
+import net.bramp.ffmpeg.builder.FFmpegBuilder;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Probes with ffprobe and remuxes with ffmpeg child processes. Each remux is a single ffmpeg
+ * invocation with one output per {@link RemuxOutput}. Packets are listed by ffprobe and parsed
+ * while it prints them.
+ */
+public class ProcessEngine implements UnboxingEngine {
+
+  private static final String LANGUAGE_TAG = "language";
+  private static final String SEGMENT_FORMAT = "segment";
+
+  private final FFmpegProcessRunner processRunner;
+  /**
+   * FFprobe keeps the options of the invocation, so every probe needs its own instance.
+   */
+  private final Supplier<FFprobe> ffprobeFactory;
+  private final Path ffprobePath;
+
+  public ProcessEngine(FFmpegProcessRunner processRunner, Supplier<FFprobe> ffprobeFactory,
+      Path ffprobePath) {
+    this.processRunner = processRunner;
+    this.ffprobeFactory = ffprobeFactory;
+    this.ffprobePath = ffprobePath;
+  }
+
+  @Override
+  public MediaStreams probe(@NotNull Path media) {
+    final FFprobeResult result;
+
+    try {
+      result = ffprobeFactory.get()
+                   .setShowStreams(true)
+                   .setShowFormat(true)
+                   .setInput(media)
+                   .execute();
+    } catch (JaffreeException e) {
+      throw new ConversionException("Cannot probe " + media, e);
+    }
+
+    final List<AudioStream> audioStreams = new ArrayList<>();
+    final List<VideoStream> videoStreams = new ArrayList<>();
+    final List<Subtitles> subtitles = new ArrayList<>();
+
+    String codec;
+
+    for (Stream stream : result.getStreams()) {
+      codec = stream.getCodecName();
+
+      switch (stream.getCodecType()) {
+        case AUDIO -> audioStreams.add(
+            new AudioStream(stream.getIndex(), codec, stream.getTag(LANGUAGE_TAG),
+                new AudioDetails(valueOf(stream.getSampleRate()), valueOf(stream.getChannels()),
+                    nameOf(stream.getChannelLayout()))));
+        case SUBTITLE ->
+            subtitles.add(new Subtitles(stream.getIndex(), codec, stream.getTag(LANGUAGE_TAG)));
+        case VIDEO -> {
+          final var videoStream = new VideoStream(stream.getIndex(), codec,
+              stream.getHeight(), stream.getWidth(), stream.getAvgFrameRate().doubleValue(),
+              VideoDetails.of(nameOf(stream.getPixFmt()), nameOf(stream.getColorRange()),
+                  nameOf(stream.getColorSpace()), nameOf(stream.getColorTransfer()),
+                  nameOf(stream.getColorPrimaries())));
+          videoStreams.add(videoStream);
+        }
+        default -> {/* ignore */}
+      }
+    }
+
+    final String containerFormat = result.getFormat() != null
+                                       ? result.getFormat().getFormatName() : null;
+
+    final double durationSeconds = result.getFormat() != null
+                                       && result.getFormat().getDuration() != null
+                                       ? result.getFormat().getDuration() : 0;
+
+    return new MediaStreams(videoStreams, audioStreams, subtitles, containerFormat,
+        durationSeconds);
+  }
+
+  private static int valueOf(Integer value) {
+    return value != null ? value : 0;
+  }
+
+  private static String nameOf(String value) {
+    return value == null || value.equals("unknown") ? null : value;
+  }
+
+  /**
+   * Segment duration in seconds as accepted by the segment muxer.
+   */
+  static String segmentTimeOf(RemuxOutput.Segmentation segmentation) {
+    return BigDecimal.valueOf(segmentation.duration().toMillis(), 3).toPlainString();
+  }
+
+  @Override
+  public Session newSession(@NotNull UUID jobId) {
+    final var processGroup = processRunner.newGroup(jobId);
+
+    return new Session() {
+      @Override
+      public void remux(@NotNull Path src, @NotNull List<RemuxOutput> outputs,
+          @NotNull String format) throws InterruptedException {
+        final var ffmpegJob = new FFmpegBuilder()
+                                  .addInput(src.toString())
+                                  .overrideOutputFiles(true);
+
+        for (RemuxOutput output : outputs) {
+          final var ffmpegOutput = ffmpegJob.addOutput(output.path().toString());
+
+          if (output.streamIndexes().isEmpty()) {
+            ffmpegOutput.addExtraArgs("-map", "0");
+          }
+
+          for (int streamIndex : output.streamIndexes()) {
+            ffmpegOutput.addExtraArgs("-map", "0:" + streamIndex);
+          }
+
+          ffmpegOutput.addExtraArgs("-c", "copy");
+
+          final var segmentation = output.segmentation();
+
+          if (segmentation == null) {
+            ffmpegOutput.setFormat(format);
+          } else {
+            ffmpegOutput.setFormat(SEGMENT_FORMAT)
+                .addExtraArgs("-segment_format", format)
+                .addExtraArgs("-segment_time", segmentTimeOf(segmentation))
+                .addExtraArgs("-segment_list", segmentation.segmentList().toString())
+                .addExtraArgs("-segment_list_type", "csv");
+          }
+
+          ffmpegOutput.done();
+        }
+
+        processGroup.run(ffmpegJob);
+      }
+
+      @Override
+      public PacketIndex indexPackets(@NotNull Path media) throws InterruptedException {
+        final var index = new PacketIndex[1];
+
+        // Jaffree would materialize every packet as an object
+        processGroup.run(List.of(ffprobePath.toString(), "-v", "error",
+            "-select_streams", "v:0",
+            "-show_entries", "stream=time_base:packet=pts,dts,size,pos,flags",
+            "-of", "csv", media.toString()), stdout -> index[0] = PacketIndexParser.parse(stdout));
+
+        return index[0];
+      }
+
+      @Override
+      public void kill(@NotNull KillReason reason) {
+        processGroup.kill(reason);
+      }
+
+      @Override
+      public void close() {
+        processGroup.close();
+      }
+    };
+  }
+}
@@ -0,0 +1,210 @@
+package io.github.akmal2409.ets.unboxing;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Optional;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Prepares a probe file for a source that is not downloaded yet. The probe file is a sparse file
+ * of the size of the source in which only the parts of the container that ffprobe reads are
+ * present, all of them fetched with ranged reads:
+ * <ul>
+ *   <li>Matroska/WebM: the leading bytes with the EBML header, segment info and tracks, and the
+ *   trailing bytes where muxers tend to put cues and tags.</li>
+ *   <li>MP4/MOV: the leading bytes and the {@code moov} atom, which is located by walking the top
+ *   level boxes and may sit at the end of the file.</li>
+ *   <li>MPEG-TS: the first packets and the last ones, which give the duration.</li>
+ * </ul>
+ * Other containers are not recognised and have to be probed once downloaded.
+ */
+public final class RemoteProbe {
+
+  /**
+   * Reads a byte range of the source.
+   */
+  @FunctionalInterface
+  public interface RangeReader {
+
+    /**
+     * @return at most {@code length} bytes starting at {@code offset}
+     */
+    byte[] read(long offset, int length);
+  }
+
+  /**
+   * @param path         of the sparse probe file
+   * @param indexed      whether the container lists all of its streams in the fetched header, so
+   *                     the probed streams are the same as the ones of the whole file. Streams of
+   *                     an MPEG-TS may first appear later in the file.
+   * @param fetchedBytes number of bytes read from the source
+   */
+  public record ProbeFile(Path path, boolean indexed, long fetchedBytes) {
+
+  }
+
+  private static final int TAIL_BYTES = 1 << 20;
+  private static final int TS_PACKET_SIZE = 188;
+  private static final byte TS_SYNC_BYTE = 0x47;
+
+  private RemoteProbe() {
+    throw new IllegalStateException("Cannot instantiate a utility class");
+  }
+
+  /**
+   * Fetches the container header of the source into a sparse probe file.
+   *
+   * @param reader     of the source
+   * @param objectSize size of the source in bytes
+   * @param probeFile  path of the probe file, an existing file is replaced
+   * @return the probe file or empty if the container is not recognised or its header is bigger
+   * than {@link ContainerSniffer#MAX_HEADER_BYTES}
+   */
+  public static Optional<ProbeFile> write(@NotNull RangeReader reader, long objectSize,
+      @NotNull Path probeFile) throws IOException {
+    if (objectSize <= 0) {
+      return Optional.empty();
+    }
+
+    final byte[] head = reader.read(0,
+        (int) Math.min(objectSize, ContainerSniffer.INITIAL_HEADER_BYTES));
+
+    try (var channel = FileChannel.open(probeFile, StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING,
+        StandardOpenOption.SPARSE)) {
+      long fetchedBytes = head.length;
+      final boolean indexed;
+
+      if (ContainerSniffer.startsWith(head, head.length, ContainerSniffer.EBML_MAGIC)) {
+        fetchedBytes += writeTail(reader, objectSize, head.length, channel);
+        indexed = true;
+      } else if (isTransportStream(head)) {
+        fetchedBytes += writeTail(reader, objectSize, head.length, channel);
+        indexed = false;
+      } else {
+        final long moovBytes = writeMp4Moov(reader, objectSize, head, channel);
+
+        if (moovBytes < 0) {
+          return Optional.empty();
+        }
+
+        fetchedBytes += moovBytes;
+        indexed = true;
+      }
+
+      writeFully(channel, head, 0);
+
+      if (channel.size() < objectSize) {
+        // the holes read as zeros, the size keeps offsets and durations in line with the source
+        writeFully(channel, new byte[1], objectSize - 1);
+      }
+
+      return Optional.of(new ProbeFile(probeFile, indexed, fetchedBytes));
+    }
+  }
+
+  private static boolean isTransportStream(byte[] head) {
+    if (head.length < 3 * TS_PACKET_SIZE) {
+      return false;
+    }
+
+    return head[0] == TS_SYNC_BYTE && head[TS_PACKET_SIZE] == TS_SYNC_BYTE
+               && head[2 * TS_PACKET_SIZE] == TS_SYNC_BYTE;
+  }
+
+  private static long writeTail(RangeReader reader, long objectSize, long headLength,
+      FileChannel channel) throws IOException {
+    final long tailOffset = Math.max(headLength, objectSize - TAIL_BYTES);
+
+    if (tailOffset >= objectSize) {
+      return 0;
+    }
+
+    final byte[] tail = reader.read(tailOffset, (int) (objectSize - tailOffset));
+    writeFully(channel, tail, tailOffset);
+    return tail.length;
+  }
+
+  /**
+   * Walks the top level boxes until {@code moov} and writes it unless it is part of the head.
+   *
+   * @return number of fetched bytes or -1 if the source is not an ISO base media file or the
+   * {@code moov} atom cannot be found or is too big
+   */
+  private static long writeMp4Moov(RangeReader reader, long objectSize, byte[] head,
+      FileChannel channel) throws IOException {
+    final int boxHeaderSize = 2 * ContainerSniffer.MP4_BOX_HEADER_SIZE;
+    long fetchedBytes = 0;
+    long offset = 0;
+
+    while (offset + ContainerSniffer.MP4_BOX_HEADER_SIZE <= objectSize) {
+      final byte[] header;
+      final int position;
+
+      if (offset + boxHeaderSize <= head.length) {
+        header = head;
+        position = (int) offset;
+      } else {
+        header = reader.read(offset, (int) Math.min(boxHeaderSize, objectSize - offset));
+        position = 0;
+        fetchedBytes += header.length;
+
+        if (header.length < ContainerSniffer.MP4_BOX_HEADER_SIZE) {
+          return -1;
+        }
+      }
+
+      long boxSize = ContainerSniffer.readUInt32(header, position);
+      final String type = new String(header, position + 4, 4, StandardCharsets.US_ASCII);
+
+      if (offset == 0 && !"ftyp".equals(type)) {
+        return -1;
+      }
+
+      if (boxSize == 1) {
+        if (position + boxHeaderSize > header.length) {
+          return -1;
+        }
+        boxSize = ContainerSniffer.readUInt64(header, position + 8);
+      } else if (boxSize == 0) {
+        boxSize = objectSize - offset; // the last box extends to the end of the file
+      }
+
+      if (boxSize < ContainerSniffer.MP4_BOX_HEADER_SIZE) {
+        return -1;
+      }
+
+      if ("moov".equals(type)) {
+        if (boxSize > ContainerSniffer.MAX_HEADER_BYTES) {
+          return -1;
+        }
+
+        if (offset + boxSize > head.length) {
+          final byte[] moov = reader.read(offset, (int) boxSize);
+          writeFully(channel, moov, offset);
+          fetchedBytes += moov.length;
+        }
+
+        return fetchedBytes;
+      }
+
+      offset += boxSize;
+    }
+
+    return -1;
+  }
+
+  private static void writeFully(FileChannel channel, byte[] data, long offset)
+      throws IOException {
+    final var buffer = ByteBuffer.wrap(data);
+    long position = offset;
+
+    while (buffer.hasRemaining()) {
+      position += channel.write(buffer, position);
+    }
+  }
+}
@@ -0,0 +1,17 @@
+package io.github.akmal2409.ets.unboxing;
+
+/**
+ * Streams of a source probed before it was downloaded.
+ *
+ * @param streams      as reported by ffprobe for the probe file
+ * @param indexed      whether the streams are the same as the ones of the whole file, see
+ *                     {@link RemoteProbe.ProbeFile#indexed()}
+ * @param fetchedBytes number of bytes read from the source
+ */
+public record RemoteStreams(
+    MediaStreams streams,
+    boolean indexed,
+    long fetchedBytes
+) {
+
+}
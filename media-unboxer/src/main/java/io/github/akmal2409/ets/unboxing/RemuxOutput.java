@@ -0,0 +1,34 @@
+package io.github.akmal2409.ets.unboxing;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+
+/**
+ * Output of {@link UnboxingEngine.Session#remux(Path, List, String)}.
+ *
+ * @param path          of the output file, overwritten if it exists. Pattern of the chunk files
+ *                      with a {@code %05d} placeholder when segmented, e.g. video-0-%05d.mkv
+ * @param streamIndexes source streams copied into the output in this order, all of them when
+ *                      empty
+ * @param segmentation  splits the output into chunks with the segment muxer, {@code null} for a
+ *                      single file
+ */
+public record RemuxOutput(Path path, List<Integer> streamIndexes, Segmentation segmentation) {
+
+  public RemuxOutput(Path path, List<Integer> streamIndexes) {
+    this(path, streamIndexes, null);
+  }
+
+  /**
+   * Chunks are cut at the first keyframe after every {@code duration} and keep the timestamps of
+   * the source.
+   *
+   * @param duration    target duration of a chunk
+   * @param segmentList CSV file the segment muxer lists the chunks in, one
+   *                    {@code filename,start,end} line per chunk with times in seconds
+   */
+  public record Segmentation(Duration duration, Path segmentList) {
+
+  }
+}
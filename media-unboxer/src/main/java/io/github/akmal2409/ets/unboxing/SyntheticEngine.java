@@ -0,0 +1,187 @@
+package io.github.akmal2409.ets.unboxing;
+
+import io.github.akmal2409.ets.unboxing.MediaStreams.AudioDetails;
+import io.github.akmal2409.ets.unboxing.MediaStreams.AudioStream;
+import io.github.akmal2409.ets.unboxing.MediaStreams.Subtitles;
+import io.github.akmal2409.ets.unboxing.MediaStreams.VideoDetails;
+import io.github.akmal2409.ets.unboxing.MediaStreams.VideoStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Engine for capacity tests that never looks into the media, so the admission, S3 and AMQP paths
+ * of the worker can be exercised on any machine without ffmpeg.
+ * <p>
+ * Every source is reported to hold the configured streams, each of them an equal share of the
+ * source bytes. A remux copies its streams concurrently at the configured per stream throughput
+ * and writes sparse outputs of the share size. Remuxes fail at random with the configured
+ * probability, halfway through their simulated duration. Videos are indexed as 24 fps with a
+ * keyframe every two seconds.
+ */
+public class SyntheticEngine implements UnboxingEngine {
+
+  private static final String CONTAINER_FORMAT = "matroska,webm";
+  private static final String LANGUAGE = "eng";
+  private static final int FPS = 24;
+  private static final int GOP_SIZE = 2 * FPS;
+  private static final int TIME_BASE_DEN = 1000;
+
+  private final int videoStreams;
+  private final int audioStreams;
+  private final int subtitleStreams;
+  private final long streamBytesPerSecond;
+  private final long mediaBytesPerSecond;
+  private final double failureProbability;
+
+  /**
+   * @param streamBytesPerSecond throughput of copying a single stream
+   * @param mediaBytesPerSecond  bitrate of the simulated media, determines the reported duration
+   * @param failureProbability   of every remux, between 0 and 1
+   */
+  public SyntheticEngine(int videoStreams, int audioStreams, int subtitleStreams,
+      long streamBytesPerSecond, long mediaBytesPerSecond, double failureProbability) {
+    if (videoStreams + audioStreams + subtitleStreams <= 0) {
+      throw new IllegalArgumentException("Synthetic media needs at least one stream");
+    }
+
+    if (streamBytesPerSecond <= 0 || mediaBytesPerSecond <= 0) {
+      throw new IllegalArgumentException("Synthetic throughput must be positive");
+    }
+
+    this.videoStreams = videoStreams;
+    this.audioStreams = audioStreams;
+    this.subtitleStreams = subtitleStreams;
+    this.streamBytesPerSecond = streamBytesPerSecond;
+    this.mediaBytesPerSecond = mediaBytesPerSecond;
+    this.failureProbability = failureProbability;
+  }
+
+  @Override
+  public MediaStreams probe(@NotNull Path media) {
+    final var videos = new ArrayList<VideoStream>();
+    final var audios = new ArrayList<AudioStream>();
+    final var subtitles = new ArrayList<Subtitles>();
+    int index = 0;
+
+    for (int i = 0; i < videoStreams; i++) {
+      videos.add(new VideoStream(index++, "h264", 1080, 1920, 24,
+          VideoDetails.of("yuv420p", "tv", "bt709", "bt709", "bt709")));
+    }
+
+    for (int i = 0; i < audioStreams; i++) {
+      audios.add(new AudioStream(index++, "aac", LANGUAGE,
+          new AudioDetails(48_000, 2, "stereo")));
+    }
+
+    for (int i = 0; i < subtitleStreams; i++) {
+      subtitles.add(new Subtitles(index++, "subrip", LANGUAGE));
+    }
+
+    return new MediaStreams(videos, audios, subtitles, CONTAINER_FORMAT,
+        (double) sizeOf(media) / mediaBytesPerSecond);
+  }
+
+  @Override
+  public Session newSession(@NotNull UUID jobId) {
+    return new InProcessSession(jobId, this::remux, this::indexPackets);
+  }
+
+  private PacketIndex indexPackets(Path media) {
+    final long videoBytes = sizeOf(media);
+    final int streamCount = videoStreams + audioStreams + subtitleStreams;
+    final double durationSeconds = (double) videoBytes * streamCount / mediaBytesPerSecond;
+    final int packets = (int) Math.max(1, Math.min(Integer.MAX_VALUE, durationSeconds * FPS));
+    final int packetSize = (int) Math.min(Integer.MAX_VALUE, videoBytes / packets);
+    final var index = new PacketIndex();
+    index.setTimeBase(1, TIME_BASE_DEN);
+
+    for (int i = 0; i < packets; i++) {
+      final long pts = (long) i * TIME_BASE_DEN / FPS;
+      index.add(pts, pts, (long) i * packetSize, packetSize, i % GOP_SIZE == 0);
+    }
+
+    return index;
+  }
+
+  private void remux(Path src, List<RemuxOutput> outputs, String format)
+      throws InterruptedException {
+    final int streamCount = videoStreams + audioStreams + subtitleStreams;
+    final long streamBytes = sizeOf(src) / streamCount;
+    final var duration = Duration.ofNanos(
+        (long) ((double) streamBytes / streamBytesPerSecond * 1_000_000_000L));
+
+    if (failureProbability > 0 && ThreadLocalRandom.current().nextDouble() < failureProbability) {
+      Thread.sleep(duration.dividedBy(2));
+      throw new ConversionException("Synthetic failure while remuxing " + src);
+    }
+
+    Thread.sleep(duration);
+
+    for (RemuxOutput output : outputs) {
+      final int streams = output.streamIndexes().isEmpty() ? streamCount
+                              : output.streamIndexes().size();
+
+      if (output.segmentation() == null) {
+        writeSparse(output.path(), streamBytes * streams);
+      } else {
+        writeChunks(output, streamBytes * streams, (double) sizeOf(src) / mediaBytesPerSecond);
+      }
+    }
+  }
+
+  /**
+   * Splits the output evenly into chunks of the segmentation duration and lists them the same way
+   * as the segment muxer.
+   */
+  private static void writeChunks(RemuxOutput output, long bytes, double durationSeconds) {
+    final double chunkSeconds = output.segmentation().duration().toMillis() / 1000.0;
+    final int chunkCount = (int) Math.max(1, Math.ceil(durationSeconds / chunkSeconds));
+    final var list = new StringBuilder();
+
+    for (int i = 0; i < chunkCount; i++) {
+      final var chunk = output.path().resolveSibling(
+          String.format(output.path().getFileName().toString(), i));
+      final double start = i * chunkSeconds;
+
+      writeSparse(chunk, bytes / chunkCount);
+      list.append(chunk.getFileName()).append(',').append(start).append(',')
+          .append(Math.min(durationSeconds, start + chunkSeconds)).append('\n');
+    }
+
+    try {
+      Files.writeString(output.segmentation().segmentList(), list);
+    } catch (IOException e) {
+      throw new ConversionException(
+          "Cannot write synthetic chunk list " + output.segmentation().segmentList(), e);
+    }
+  }
+
+  private static void writeSparse(Path path, long size) {
+    try (var channel = FileChannel.open(path, StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      if (size > 0) {
+        channel.write(ByteBuffer.allocate(1), size - 1);
+      }
+    } catch (IOException e) {
+      throw new ConversionException("Cannot write synthetic output " + path, e);
+    }
+  }
+
+  private static long sizeOf(Path media) {
+    try {
+      return Files.isRegularFile(media) ? Files.size(media) : 0;
+    } catch (IOException e) {
+      return 0;
+    }
+  }
+}
@@ -0,0 +1,134 @@
+package io.github.akmal2409.ets.unboxing;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import java.time.Duration;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Derives the time budget of an unboxing job from the size and duration of the source and the
+ * stream-copy throughput this worker achieved on recent jobs.
+ * <p>
+ * Throughput is tracked as two exponentially weighted moving averages: bytes copied per second and
+ * seconds of media copied per second. The slower of the two predictions wins, which covers both
+ * large high bitrate files and long files with many small packets. The budget is the prediction
+ * multiplied by a slack factor and clamped to the configured bounds.
+ */
+public class TimeBudgetEstimator {
+
+  private final Duration minimumBudget;
+  private final Duration maximumBudget;
+  private final double slack;
+  private final double smoothingFactor;
+
+  private double bytesPerSecond;
+  private double mediaSecondsPerSecond;
+
+  private final Timer predictedTime;
+  private final Timer actualTime;
+
+  /**
+   * @param minimumBudget                lower bound of any budget, covers process start-up
+   * @param maximumBudget                upper bound of any budget
+   * @param slack                        multiplier applied to the prediction
+   * @param smoothingFactor              weight of the newest observation in (0, 1]
+   * @param initialBytesPerSecond        throughput assumed before the first observation
+   * @param initialMediaSecondsPerSecond media seconds per wall second assumed before the first
+   *                                     observation
+   */
+  public TimeBudgetEstimator(@NotNull Duration minimumBudget, @NotNull Duration maximumBudget,
+      double slack, double smoothingFactor, double initialBytesPerSecond,
+      double initialMediaSecondsPerSecond, @NotNull MeterRegistry meterRegistry) {
+    if (smoothingFactor <= 0 || smoothingFactor > 1) {
+      throw new IllegalArgumentException("Smoothing factor must be in (0, 1], got "
+                                             + smoothingFactor);
+    }
+
+    this.minimumBudget = minimumBudget;
+    this.maximumBudget = maximumBudget;
+    this.slack = slack;
+    this.smoothingFactor = smoothingFactor;
+    this.bytesPerSecond = initialBytesPerSecond;
+    this.mediaSecondsPerSecond = initialMediaSecondsPerSecond;
+
+    this.predictedTime = Timer.builder("unboxing.time.predicted")
+                             .description("Predicted stream-copy time of a job")
+                             .register(meterRegistry);
+    this.actualTime = Timer.builder("unboxing.time.actual")
+                          .description("Measured stream-copy time of a job")
+                          .register(meterRegistry);
+    Gauge.builder("unboxing.throughput.bytes", this, TimeBudgetEstimator::getBytesPerSecond)
+        .description("Moving average of stream-copy throughput")
+        .baseUnit("bytes per second")
+        .register(meterRegistry);
+    Gauge.builder("unboxing.throughput.media", this,
+            TimeBudgetEstimator::getMediaSecondsPerSecond)
+        .description("Moving average of media seconds copied per second")
+        .register(meterRegistry);
+  }
+
+  /**
+   * Predicts how long copying the streams will take.
+   *
+   * @param sourceBytes     size of the source, 0 when unknown
+   * @param durationSeconds duration of the media, 0 when unknown
+   */
+  public synchronized Duration predict(long sourceBytes, double durationSeconds) {
+    final double bySize = sourceBytes / bytesPerSecond;
+    final double byDuration = durationSeconds / mediaSecondsPerSecond;
+
+    return Duration.ofMillis((long) (Math.max(bySize, byDuration) * 1000));
+  }
+
+  /**
+   * Returns the time the job may take before it is considered hung.
+   */
+  public Duration budgetFor(@NotNull Duration prediction) {
+    final var budget = Duration.ofMillis((long) (prediction.toMillis() * slack));
+
+    if (budget.compareTo(minimumBudget) < 0) {
+      return minimumBudget;
+    }
+
+    return budget.compareTo(maximumBudget) > 0 ? maximumBudget : budget;
+  }
+
+  /**
+   * Feeds the measured time of a job into the moving averages. For jobs that ran out of budget the
+   * elapsed time is a lower bound of the real one, it still pulls the averages down so that
+   * subsequent budgets grow.
+   *
+   * @param sourceBytes     size of the source, 0 when unknown
+   * @param durationSeconds duration of the media, 0 when unknown
+   * @param prediction      value returned by {@link #predict(long, double)} for the job
+   * @param elapsed         measured time
+   */
+  public synchronized void record(long sourceBytes, double durationSeconds,
+      @NotNull Duration prediction, @NotNull Duration elapsed) {
+    predictedTime.record(prediction);
+    actualTime.record(elapsed);
+
+    final double elapsedSeconds = Math.max(elapsed.toMillis(), 1) / 1000.0;
+
+    if (sourceBytes > 0) {
+      bytesPerSecond = smooth(bytesPerSecond, sourceBytes / elapsedSeconds);
+    }
+
+    if (durationSeconds > 0) {
+      mediaSecondsPerSecond = smooth(mediaSecondsPerSecond, durationSeconds / elapsedSeconds);
+    }
+  }
+
+  public synchronized double getBytesPerSecond() {
+    return bytesPerSecond;
+  }
+
+  public synchronized double getMediaSecondsPerSecond() {
+    return mediaSecondsPerSecond;
+  }
+
+  private double smooth(double average, double observation) {
+    return smoothingFactor * observation + (1 - smoothingFactor) * average;
+  }
+}
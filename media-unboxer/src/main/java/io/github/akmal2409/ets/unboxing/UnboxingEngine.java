@@ -0,0 +1,63 @@
+package io.github.akmal2409.ets.unboxing;
+
+import io.github.akmal2409.ets.unboxing.FFmpegProcessRunner.KillReason;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.UUID;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Probes media and copies its streams into new containers on behalf of {@link MediaUnboxer},
+ * which keeps the admission, time budgets and naming of the outputs regardless of the engine.
+ */
+public interface UnboxingEngine {
+
+  /**
+   * Analyses the streams of the media.
+   *
+   * @throws ConversionException if the media cannot be analysed
+   */
+  MediaStreams probe(@NotNull Path media);
+
+  /**
+   * Opens a session for the remuxes of a job.
+   */
+  Session newSession(@NotNull UUID jobId);
+
+  /**
+   * Remuxes that belong to a single job and are aborted together.
+   */
+  interface Session extends AutoCloseable {
+
+    /**
+     * Copies streams of the source into the outputs without re-encoding them. The source is read
+     * once regardless of the number of outputs.
+     *
+     * @param format name of the muxer used for every output, e.g. matroska
+     * @throws ConversionException  if the remux fails or the session was killed
+     * @throws InterruptedException if interrupted while remuxing, the remux is aborted in that
+     *                              case
+     */
+    void remux(@NotNull Path src, @NotNull List<RemuxOutput> outputs, @NotNull String format)
+        throws InterruptedException;
+
+    /**
+     * Collects the packets of the first video stream of the media, e.g. of an extracted video.
+     *
+     * @throws ConversionException  if the media cannot be read or the session was killed
+     * @throws InterruptedException if interrupted while reading the media
+     */
+    PacketIndex indexPackets(@NotNull Path media) throws InterruptedException;
+
+    /**
+     * Aborts all running remuxes of the session, remuxes started afterwards are rejected.
+     */
+    void kill(@NotNull KillReason reason);
+
+    /**
+     * Kills remuxes that are still running.
+     */
+    @Override
+    void close();
+  }
+}
@@ -0,0 +1,26 @@
+package io.github.akmal2409.ets.unboxing;
+
+/**
+ * {@link UnboxingEngine} implementation the worker runs with. Every engine supports both
+ * {@link ExtractionMode}s.
+ */
+public enum UnboxingEngineType {
+
+  /**
+   * ffprobe and ffmpeg child processes, see {@link ProcessEngine}. Serves as the reference for the
+   * other engines.
+   */
+  PROCESS,
+
+  /**
+   * libavformat called in process through the foreign function API, see
+   * {@link io.github.akmal2409.ets.unboxing.libav.LibAvEngine}. Needs the JVM to run with
+   * {@code --enable-preview}.
+   */
+  LIBAV,
+
+  /**
+   * Simulated media without ffmpeg for capacity tests, see {@link SyntheticEngine}.
+   */
+  SYNTHETIC
+}
@@ -0,0 +1,266 @@
+package io.github.akmal2409.ets.unboxing.libav;
+
+import io.github.akmal2409.ets.exception.ConfigurationException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.FunctionDescriptor;
+import java.lang.foreign.Linker;
+import java.lang.foreign.MemoryLayout;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.SymbolLookup;
+import java.lang.foreign.ValueLayout;
+import java.lang.invoke.MethodHandle;
+
+/**
+ * Downcall handles of the libavformat, libavcodec and libavutil functions used by
+ * {@link LibAvEngine} and the offsets of the few struct fields that are accessed directly.
+ * <p>
+ * The offsets follow the public headers of FFmpeg 5 and 6 (libavformat and libavcodec 59 and 60),
+ * other versions of either library are refused when the libraries are loaded. FFmpeg 7 reordered
+ * {@code AVCodecParameters}. {@code AVStream} gained a class pointer as its first field within
+ * libavformat 60, its presence is detected through {@code av_stream_get_class}, which was added
+ * along with it. {@code AVCodecParameters.ch_layout} only exists from libavcodec 59.24 (FFmpeg 5.1)
+ * on, so it is read only when the loaded libavcodec is at least that version, libavformat 59 also
+ * covers FFmpeg 5.0.
+ */
+final class LibAv {
+
+  static final int AVMEDIA_TYPE_VIDEO = 0;
+  static final int AVMEDIA_TYPE_AUDIO = 1;
+  static final int AVMEDIA_TYPE_SUBTITLE = 3;
+  static final int AVERROR_EOF = -('E' | ('O' << 8) | ('F' << 16) | (' ' << 24));
+  static final int AVIO_FLAG_WRITE = 2;
+  static final int AV_PKT_FLAG_KEY = 1;
+  static final long AV_NOPTS_VALUE = Long.MIN_VALUE;
+  static final double AV_TIME_BASE = 1_000_000;
+
+  static final long FORMAT_CONTEXT_IFORMAT = 8;
+  static final long FORMAT_CONTEXT_PB = 32;
+  static final long FORMAT_CONTEXT_NB_STREAMS = 44;
+  static final long FORMAT_CONTEXT_STREAMS = 48;
+  /**
+   * Large enough for every field of {@code AVFormatContext} that is read.
+   */
+  static final long FORMAT_CONTEXT_SIZE = 112;
+  static final long INPUT_FORMAT_NAME = 0;
+
+  static final long STREAM_SIZE = 128;
+
+  static final long CODEC_PARAMETERS_TYPE = 0;
+  static final long CODEC_PARAMETERS_ID = 4;
+  static final long CODEC_PARAMETERS_TAG = 8;
+  static final long CODEC_PARAMETERS_FORMAT = 28;
+  static final long CODEC_PARAMETERS_WIDTH = 56;
+  static final long CODEC_PARAMETERS_HEIGHT = 60;
+  static final long CODEC_PARAMETERS_COLOR_RANGE = 76;
+  static final long CODEC_PARAMETERS_COLOR_PRIMARIES = 80;
+  static final long CODEC_PARAMETERS_COLOR_TRC = 84;
+  static final long CODEC_PARAMETERS_COLOR_SPACE = 88;
+  static final long CODEC_PARAMETERS_CHANNELS = 112;
+  static final long CODEC_PARAMETERS_SAMPLE_RATE = 116;
+  static final long CODEC_PARAMETERS_CH_LAYOUT = 144;
+  static final long CODEC_PARAMETERS_SIZE = 168;
+  static final long CHANNEL_LAYOUT_NB_CHANNELS = 4;
+
+  static final long PACKET_PTS = 8;
+  static final long PACKET_DTS = 16;
+  static final long PACKET_DATA_SIZE = 32;
+  static final long PACKET_STREAM_INDEX = 36;
+  static final long PACKET_FLAGS = 40;
+  static final long PACKET_POS = 72;
+  static final long PACKET_SIZE = 80;
+
+  static final long DICTIONARY_ENTRY_VALUE = 8;
+  static final long DICTIONARY_ENTRY_SIZE = 16;
+
+  static final MemoryLayout RATIONAL = MemoryLayout.structLayout(
+      ValueLayout.JAVA_INT.withName("num"), ValueLayout.JAVA_INT.withName("den"));
+
+  private static final int MIN_FORMAT_MAJOR = 59;
+  private static final int MAX_FORMAT_MAJOR = 60;
+  private static final int MIN_CODEC_MAJOR = 59;
+  private static final int MAX_CODEC_MAJOR = 60;
+  /**
+   * First libavcodec with {@code AVCodecParameters.ch_layout}, 59.24.
+   */
+  private static final int CHANNEL_LAYOUT_CODEC_VERSION = (59 << 16) | (24 << 8);
+
+  final int formatMajor;
+  final int codecVersion;
+  final long formatContextDuration = 72;
+  final long streamIndex;
+  final long streamCodecParameters;
+  final long streamTimeBase;
+  final long streamMetadata;
+  final long streamAverageFrameRate;
+
+  final MethodHandle avformatOpenInput;
+  final MethodHandle avformatFindStreamInfo;
+  final MethodHandle avformatCloseInput;
+  final MethodHandle avformatAllocOutputContext2;
+  final MethodHandle avformatNewStream;
+  final MethodHandle avformatWriteHeader;
+  final MethodHandle avformatFreeContext;
+  final MethodHandle avioOpen;
+  final MethodHandle avioClosep;
+  final MethodHandle avReadFrame;
+  final MethodHandle avInterleavedWriteFrame;
+  final MethodHandle avWriteTrailer;
+  final MethodHandle avcodecParametersCopy;
+  final MethodHandle avcodecGetName;
+  final MethodHandle avGetPixFmtName;
+  final MethodHandle avColorRangeName;
+  final MethodHandle avColorPrimariesName;
+  final MethodHandle avColorTransferName;
+  final MethodHandle avColorSpaceName;
+  /**
+   * Null before libavcodec 59.24, whose {@code AVCodecParameters} have no {@code ch_layout}.
+   */
+  final MethodHandle avChannelLayoutDescribe;
+  final MethodHandle avPacketAlloc;
+  final MethodHandle avPacketFree;
+  final MethodHandle avPacketUnref;
+  final MethodHandle avPacketRef;
+  final MethodHandle avPacketRescaleTs;
+  final MethodHandle avDictGet;
+  final MethodHandle avDictSet;
+  final MethodHandle avDictFree;
+  final MethodHandle avStrerror;
+
+  private final Linker linker = Linker.nativeLinker();
+  private final SymbolLookup lookup;
+
+  private LibAv(SymbolLookup lookup) throws Throwable {
+    this.lookup = lookup;
+
+    final var avformatVersion = handle("avformat_version",
+        FunctionDescriptor.of(ValueLayout.JAVA_INT));
+    this.formatMajor = ((int) avformatVersion.invokeExact()) >>> 16;
+
+    if (formatMajor < MIN_FORMAT_MAJOR || formatMajor > MAX_FORMAT_MAJOR) {
+      throw new ConfigurationException(
+          "libavformat " + formatMajor + " is not supported, expected " + MIN_FORMAT_MAJOR
+              + " to " + MAX_FORMAT_MAJOR);
+    }
+
+    final var avcodecVersion = handle("avcodec_version",
+        FunctionDescriptor.of(ValueLayout.JAVA_INT));
+    this.codecVersion = (int) avcodecVersion.invokeExact();
+    final int codecMajor = codecVersion >>> 16;
+
+    if (codecMajor < MIN_CODEC_MAJOR || codecMajor > MAX_CODEC_MAJOR) {
+      throw new ConfigurationException(
+          "libavcodec " + codecMajor + " is not supported, expected " + MIN_CODEC_MAJOR + " to "
+              + MAX_CODEC_MAJOR);
+    }
+
+    final long streamBase = lookup.find("av_stream_get_class").isPresent() ? 8 : 0;
+    this.streamIndex = streamBase;
+    this.streamCodecParameters = streamBase + 8;
+    this.streamTimeBase = streamBase + 24;
+    this.streamMetadata = streamBase + 72;
+    this.streamAverageFrameRate = streamBase + 80;
+
+    final var address = ValueLayout.ADDRESS;
+    final var integer = ValueLayout.JAVA_INT;
+
+    this.avformatOpenInput = handle("avformat_open_input",
+        FunctionDescriptor.of(integer, address, address, address, address));
+    this.avformatFindStreamInfo = handle("avformat_find_stream_info",
+        FunctionDescriptor.of(integer, address, address));
+    this.avformatCloseInput = handle("avformat_close_input",
+        FunctionDescriptor.ofVoid(address));
+    this.avformatAllocOutputContext2 = handle("avformat_alloc_output_context2",
+        FunctionDescriptor.of(integer, address, address, address, address));
+    this.avformatNewStream = handle("avformat_new_stream",
+        FunctionDescriptor.of(address, address, address));
+    this.avformatWriteHeader = handle("avformat_write_header",
+        FunctionDescriptor.of(integer, address, address));
+    this.avformatFreeContext = handle("avformat_free_context",
+        FunctionDescriptor.ofVoid(address));
+    this.avioOpen = handle("avio_open",
+        FunctionDescriptor.of(integer, address, address, integer));
+    this.avioClosep = handle("avio_closep", FunctionDescriptor.of(integer, address));
+    this.avReadFrame = handle("av_read_frame", FunctionDescriptor.of(integer, address, address));
+    this.avInterleavedWriteFrame = handle("av_interleaved_write_frame",
+        FunctionDescriptor.of(integer, address, address));
+    this.avWriteTrailer = handle("av_write_trailer", FunctionDescriptor.of(integer, address));
+    this.avcodecParametersCopy = handle("avcodec_parameters_copy",
+        FunctionDescriptor.of(integer, address, address));
+    this.avcodecGetName = handle("avcodec_get_name", FunctionDescriptor.of(address, integer));
+    this.avGetPixFmtName = handle("av_get_pix_fmt_name", FunctionDescriptor.of(address, integer));
+    this.avColorRangeName = handle("av_color_range_name",
+        FunctionDescriptor.of(address, integer));
+    this.avColorPrimariesName = handle("av_color_primaries_name",
+        FunctionDescriptor.of(address, integer));
+    this.avColorTransferName = handle("av_color_transfer_name",
+        FunctionDescriptor.of(address, integer));
+    this.avColorSpaceName = handle("av_color_space_name",
+        FunctionDescriptor.of(address, integer));
+    // a libavutil of FFmpeg 5.1 may be paired with an older libavcodec
+    this.avChannelLayoutDescribe = codecVersion < CHANNEL_LAYOUT_CODEC_VERSION
+                                       || lookup.find("av_channel_layout_describe").isEmpty()
+        ? null : handle("av_channel_layout_describe",
+            FunctionDescriptor.of(integer, address, address, ValueLayout.JAVA_LONG));
+    this.avPacketAlloc = handle("av_packet_alloc", FunctionDescriptor.of(address));
+    this.avPacketFree = handle("av_packet_free", FunctionDescriptor.ofVoid(address));
+    this.avPacketUnref = handle("av_packet_unref", FunctionDescriptor.ofVoid(address));
+    this.avPacketRef = handle("av_packet_ref", FunctionDescriptor.of(integer, address, address));
+    this.avPacketRescaleTs = handle("av_packet_rescale_ts",
+        FunctionDescriptor.ofVoid(address, RATIONAL, RATIONAL));
+    this.avDictGet = handle("av_dict_get",
+        FunctionDescriptor.of(address, address, address, address, integer));
+    this.avDictSet = handle("av_dict_set",
+        FunctionDescriptor.of(integer, address, address, address, integer));
+    this.avDictFree = handle("av_dict_free", FunctionDescriptor.ofVoid(address));
+    this.avStrerror = handle("av_strerror",
+        FunctionDescriptor.of(integer, integer, address, ValueLayout.JAVA_LONG));
+  }
+
+  /**
+   * Loads the libraries for the lifetime of the JVM.
+   *
+   * @param libraries names or paths of libavformat, libavcodec and libavutil as accepted by
+   *                  dlopen, e.g. libavformat.so.60
+   * @throws ConfigurationException if the libraries are missing or of an unsupported version
+   */
+  static LibAv load(String... libraries) {
+    SymbolLookup lookup = null;
+
+    try {
+      for (String library : libraries) {
+        final var libraryLookup = SymbolLookup.libraryLookup(library, Arena.global());
+        lookup = lookup == null ? libraryLookup : lookup.or(libraryLookup);
+      }
+
+      return new LibAv(lookup);
+    } catch (ConfigurationException e) {
+      throw e;
+    } catch (Throwable e) {
+      throw new ConfigurationException("Cannot load libav libraries", e);
+    }
+  }
+
+  /**
+   * Describes a negative return code of a libav function.
+   */
+  String describe(int error) {
+    try (var arena = Arena.ofConfined()) {
+      final var buffer = arena.allocate(256);
+
+      if ((int) avStrerror.invokeExact(error, buffer, buffer.byteSize()) < 0) {
+        return "error " + error;
+      }
+
+      return buffer.getUtf8String(0);
+    } catch (Throwable e) {
+      return "error " + error;
+    }
+  }
+
+  private MethodHandle handle(String name, FunctionDescriptor descriptor) {
+    final var symbol = lookup.find(name)
+                           .orElseThrow(() -> new ConfigurationException(
+                               "Missing libav function " + name));
+    return linker.downcallHandle(symbol, descriptor);
+  }
+}
@@ -0,0 +1,515 @@
+package io.github.akmal2409.ets.unboxing.libav;
+
+import io.github.akmal2409.ets.exception.ConfigurationException;
+import io.github.akmal2409.ets.unboxing.ConversionException;
+import io.github.akmal2409.ets.unboxing.InProcessSession;
+import io.github.akmal2409.ets.unboxing.MediaStreams;
+import io.github.akmal2409.ets.unboxing.MediaStreams.AudioDetails;
+import io.github.akmal2409.ets.unboxing.MediaStreams.AudioStream;
+import io.github.akmal2409.ets.unboxing.MediaStreams.Subtitles;
+import io.github.akmal2409.ets.unboxing.MediaStreams.VideoDetails;
+import io.github.akmal2409.ets.unboxing.MediaStreams.VideoStream;
+import io.github.akmal2409.ets.unboxing.PacketIndex;
+import io.github.akmal2409.ets.unboxing.RemuxOutput;
+import io.github.akmal2409.ets.unboxing.UnboxingEngine;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.math.BigDecimal;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.IntStream;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Probes and remuxes media in process through libavformat instead of spawning ffprobe and ffmpeg.
+ * The source is opened once and its packets are handed from the demuxer to every output muxer
+ * without leaving native memory, which mirrors {@code ffmpeg -i src -map 0:N -c copy out ...}.
+ * <p>
+ * Requires the JVM to run with {@code --enable-preview} and FFmpeg 5 or 6 shared libraries, see
+ * {@link LibAv}. The ffmpeg processes remain the reference the results are verified against.
+ */
+public class LibAvEngine implements UnboxingEngine {
+
+  private static final Logger log = LoggerFactory.getLogger(LibAvEngine.class);
+
+  private static final String LANGUAGE_TAG = "language";
+  private static final String SEGMENT_FORMAT = "segment";
+
+  private final LibAv libAv;
+
+  /**
+   * Output stream a source stream is copied into.
+   */
+  private record Target(MemorySegment muxer, MemorySegment stream) {
+
+  }
+
+  LibAvEngine(LibAv libAv) {
+    this.libAv = libAv;
+  }
+
+  /**
+   * Loads the libraries for the lifetime of the JVM.
+   *
+   * @param libraries names or paths of libavformat, libavcodec and libavutil
+   * @throws ConfigurationException if the libraries are missing or of an unsupported version
+   */
+  public static LibAvEngine load(@NotNull List<String> libraries) {
+    final var libAv = LibAv.load(libraries.toArray(String[]::new));
+
+    log.info(
+        "message=Loaded libav libraries;libraries={};avformat_major={};avcodec_version={}.{};channel_layout={}",
+        libraries, libAv.formatMajor, libAv.codecVersion >>> 16, (libAv.codecVersion >>> 8) & 0xff,
+        libAv.avChannelLayoutDescribe != null);
+    return new LibAvEngine(libAv);
+  }
+
+  /**
+   * Reads the container header and analyses the first packets of the media the same way ffprobe
+   * does.
+   *
+   * @throws ConversionException if the media cannot be opened or analysed
+   */
+  @Override
+  public MediaStreams probe(@NotNull Path media) {
+    try (var arena = Arena.ofConfined()) {
+      final var inputPointer = openInput(arena, media);
+
+      try {
+        return probe(media, context(inputPointer));
+      } finally {
+        libAv.avformatCloseInput.invokeExact(inputPointer);
+      }
+    } catch (ConversionException e) {
+      throw e;
+    } catch (Throwable e) {
+      throw new ConversionException("Cannot probe " + media, e);
+    }
+  }
+
+  /**
+   * Remuxes on the calling thread, killing the session interrupts it.
+   */
+  @Override
+  public Session newSession(@NotNull UUID jobId) {
+    return new InProcessSession(jobId, this::remux, this::indexPackets);
+  }
+
+  /**
+   * Collects the packets of the first video stream of the media on the calling thread.
+   *
+   * @throws ConversionException if the media has no video, any of the libav calls fails or the
+   *                             thread was interrupted
+   */
+  public PacketIndex indexPackets(@NotNull Path media) {
+    try (var arena = Arena.ofConfined()) {
+      final var inputPointer = openInput(arena, media);
+      final var packetPointer = arena.allocate(ValueLayout.ADDRESS);
+
+      try {
+        return indexPackets(media, context(inputPointer), packetPointer);
+      } finally {
+        libAv.avPacketFree.invokeExact(packetPointer);
+        libAv.avformatCloseInput.invokeExact(inputPointer);
+      }
+    } catch (ConversionException e) {
+      throw e;
+    } catch (Throwable e) {
+      throw new ConversionException("Cannot index packets of " + media, e);
+    }
+  }
+
+  /**
+   * Copies the streams of the source into the outputs without decoding them. The source is read
+   * once regardless of the number of outputs, a stream may be copied into several of them.
+   * <p>
+   * The calling thread performs the remux, interrupting it aborts the remux.
+   *
+   * @param format name of the muxer used for every output, e.g. matroska
+   * @throws ConversionException if any of the libav calls fails or the thread was interrupted
+   */
+  public void remux(@NotNull Path src, @NotNull List<RemuxOutput> outputs,
+      @NotNull String format) {
+    try (var arena = Arena.ofConfined()) {
+      final var inputPointer = openInput(arena, src);
+      final var muxers = new ArrayList<MemorySegment>();
+      final var packetPointer = arena.allocate(ValueLayout.ADDRESS);
+      final var copyPointer = arena.allocate(ValueLayout.ADDRESS);
+
+      try {
+        remux(arena, src, context(inputPointer), outputs, format, muxers, packetPointer,
+            copyPointer);
+      } finally {
+        for (MemorySegment muxer : muxers) {
+          if (muxer.get(ValueLayout.ADDRESS, LibAv.FORMAT_CONTEXT_PB).address() != 0) {
+            final int ignored = (int) libAv.avioClosep.invokeExact(
+                muxer.asSlice(LibAv.FORMAT_CONTEXT_PB, ValueLayout.ADDRESS.byteSize()));
+          }
+          libAv.avformatFreeContext.invokeExact(muxer);
+        }
+
+        libAv.avPacketFree.invokeExact(packetPointer);
+        libAv.avPacketFree.invokeExact(copyPointer);
+        libAv.avformatCloseInput.invokeExact(inputPointer);
+      }
+    } catch (ConversionException e) {
+      throw e;
+    } catch (Throwable e) {
+      throw new ConversionException("Cannot remux " + src, e);
+    }
+  }
+
+  private MediaStreams probe(Path media, MemorySegment input) throws Throwable {
+    check((int) libAv.avformatFindStreamInfo.invokeExact(input, MemorySegment.NULL),
+        "Cannot find stream info of " + media);
+
+    final List<VideoStream> videoStreams = new ArrayList<>();
+    final List<AudioStream> audioStreams = new ArrayList<>();
+    final List<Subtitles> subtitles = new ArrayList<>();
+    final int streamCount = input.get(ValueLayout.JAVA_INT, LibAv.FORMAT_CONTEXT_NB_STREAMS);
+
+    for (int i = 0; i < streamCount; i++) {
+      final var stream = stream(input, i);
+      final var parameters = codecParameters(stream);
+      final int index = stream.get(ValueLayout.JAVA_INT, libAv.streamIndex);
+      final int codecId = parameters.get(ValueLayout.JAVA_INT, LibAv.CODEC_PARAMETERS_ID);
+      // ffprobe does not name streams of unknown codecs (AV_CODEC_ID_NONE)
+      final String codec = codecId == 0 ? null
+                               : string((MemorySegment) libAv.avcodecGetName.invokeExact(codecId));
+
+      switch (parameters.get(ValueLayout.JAVA_INT, LibAv.CODEC_PARAMETERS_TYPE)) {
+        case LibAv.AVMEDIA_TYPE_VIDEO -> {
+          final int num = stream.get(ValueLayout.JAVA_INT, libAv.streamAverageFrameRate);
+          final int den = stream.get(ValueLayout.JAVA_INT, libAv.streamAverageFrameRate + 4);
+
+          videoStreams.add(new VideoStream(index, codec,
+              parameters.get(ValueLayout.JAVA_INT, LibAv.CODEC_PARAMETERS_HEIGHT),
+              parameters.get(ValueLayout.JAVA_INT, LibAv.CODEC_PARAMETERS_WIDTH),
+              den == 0 ? 0 : (double) num / den, videoDetails(parameters)));
+        }
+        case LibAv.AVMEDIA_TYPE_AUDIO -> audioStreams.add(
+            new AudioStream(index, codec, language(stream), audioDetails(parameters)));
+        case LibAv.AVMEDIA_TYPE_SUBTITLE ->
+            subtitles.add(new Subtitles(index, codec, language(stream)));
+        default -> {/* ignore */}
+      }
+    }
+
+    final var inputFormat = input.get(ValueLayout.ADDRESS, LibAv.FORMAT_CONTEXT_IFORMAT)
+                                .reinterpret(ValueLayout.ADDRESS.byteSize());
+    final long duration = input.get(ValueLayout.JAVA_LONG, libAv.formatContextDuration);
+
+    return new MediaStreams(videoStreams, audioStreams, subtitles,
+        string(inputFormat.get(ValueLayout.ADDRESS, LibAv.INPUT_FORMAT_NAME)),
+        duration == LibAv.AV_NOPTS_VALUE ? 0 : duration / LibAv.AV_TIME_BASE);
+  }
+
+  private void remux(Arena arena, Path src, MemorySegment input, List<RemuxOutput> outputs,
+      String format, List<MemorySegment> muxers, MemorySegment packetPointer,
+      MemorySegment copyPointer) throws Throwable {
+    check((int) libAv.avformatFindStreamInfo.invokeExact(input, MemorySegment.NULL),
+        "Cannot find stream info of " + src);
+
+    final int streamCount = input.get(ValueLayout.JAVA_INT, LibAv.FORMAT_CONTEXT_NB_STREAMS);
+    final var inputStreams = new MemorySegment[streamCount];
+    // a stream may be copied into several outputs, e.g. a video and its chunks
+    final List<List<Target>> targets = new ArrayList<>();
+
+    for (int i = 0; i < streamCount; i++) {
+      inputStreams[i] = stream(input, i);
+      targets.add(new ArrayList<>());
+    }
+
+    for (RemuxOutput output : outputs) {
+      final var segmentation = output.segmentation();
+      final var muxerPointer = arena.allocate(ValueLayout.ADDRESS);
+      check((int) libAv.avformatAllocOutputContext2.invokeExact(muxerPointer, MemorySegment.NULL,
+              arena.allocateUtf8String(segmentation == null ? format : SEGMENT_FORMAT),
+              arena.allocateUtf8String(output.path().toString())),
+          "Cannot allocate " + format + " muxer for " + output.path());
+
+      final var muxer = context(muxerPointer);
+      muxers.add(muxer);
+
+      final var streamIndexes = output.streamIndexes().isEmpty()
+                                    ? IntStream.range(0, streamCount).boxed().toList()
+                                    : output.streamIndexes();
+
+      for (int index : streamIndexes) {
+        if (index < 0 || index >= streamCount) {
+          throw new ConversionException("Stream " + index + " of " + src + " does not exist");
+        }
+
+        final var outputStream = ((MemorySegment) libAv.avformatNewStream.invokeExact(muxer,
+            MemorySegment.NULL)).reinterpret(LibAv.STREAM_SIZE);
+
+        if (outputStream.address() == 0) {
+          throw new ConversionException("Cannot allocate stream for " + output.path());
+        }
+
+        final var outputParameters = codecParameters(outputStream);
+        check((int) libAv.avcodecParametersCopy.invokeExact(outputParameters,
+            codecParameters(inputStreams[index])), "Cannot copy codec parameters");
+        // the tag of the source container may not be valid in the target one, same as ffmpeg
+        outputParameters.set(ValueLayout.JAVA_INT, LibAv.CODEC_PARAMETERS_TAG, 0);
+
+        targets.get(index).add(new Target(muxer, outputStream));
+      }
+
+      final var options = arena.allocate(ValueLayout.ADDRESS);
+
+      try {
+        if (segmentation == null) {
+          check((int) libAv.avioOpen.invokeExact(
+                  muxer.asSlice(LibAv.FORMAT_CONTEXT_PB, ValueLayout.ADDRESS.byteSize()),
+                  arena.allocateUtf8String(output.path().toString()), LibAv.AVIO_FLAG_WRITE),
+              "Cannot open " + output.path());
+        } else {
+          // the segment muxer opens the chunk files itself
+          setOption(arena, options, "segment_format", format);
+          setOption(arena, options, "segment_time",
+              BigDecimal.valueOf(segmentation.duration().toMillis(), 3).toPlainString());
+          setOption(arena, options, "segment_list", segmentation.segmentList().toString());
+          setOption(arena, options, "segment_list_type", "csv");
+        }
+
+        check((int) libAv.avformatWriteHeader.invokeExact(muxer, options),
+            "Cannot write header of " + output.path());
+      } finally {
+        libAv.avDictFree.invokeExact(options);
+      }
+    }
+
+    final var packet = allocatePacket(packetPointer);
+    final var copy = allocatePacket(copyPointer);
+
+    while (true) {
+      if (Thread.currentThread().isInterrupted()) {
+        throw new ConversionException("Interrupted while remuxing " + src);
+      }
+
+      final int read = (int) libAv.avReadFrame.invokeExact(input, packet);
+
+      if (read == LibAv.AVERROR_EOF) {
+        break;
+      }
+      check(read, "Cannot read packet of " + src);
+
+      final int index = packet.get(ValueLayout.JAVA_INT, LibAv.PACKET_STREAM_INDEX);
+
+      // streams found while reading are never mapped
+      if (index >= streamCount || targets.get(index).isEmpty()) {
+        libAv.avPacketUnref.invokeExact(packet);
+        continue;
+      }
+
+      final var streamTargets = targets.get(index);
+
+      for (int i = 0; i < streamTargets.size(); i++) {
+        final boolean last = i == streamTargets.size() - 1;
+
+        // the last output takes the packet itself, the others a reference to its data
+        if (!last) {
+          check((int) libAv.avPacketRef.invokeExact(copy, packet), "Cannot reference packet");
+        }
+
+        write(last ? packet : copy, inputStreams[index], streamTargets.get(i));
+      }
+    }
+
+    for (MemorySegment muxer : muxers) {
+      check((int) libAv.avWriteTrailer.invokeExact(muxer), "Cannot write trailer");
+    }
+  }
+
+  private void write(MemorySegment packet, MemorySegment inputStream, Target target)
+      throws Throwable {
+    packet.set(ValueLayout.JAVA_INT, LibAv.PACKET_STREAM_INDEX,
+        target.stream().get(ValueLayout.JAVA_INT, libAv.streamIndex));
+    libAv.avPacketRescaleTs.invokeExact(packet, timeBase(inputStream), timeBase(target.stream()));
+    packet.set(ValueLayout.JAVA_LONG, LibAv.PACKET_POS, -1L);
+
+    // takes over the packet data and resets the packet
+    check((int) libAv.avInterleavedWriteFrame.invokeExact(target.muxer(), packet),
+        "Cannot write packet");
+  }
+
+  private MemorySegment allocatePacket(MemorySegment packetPointer) throws Throwable {
+    final var packet = ((MemorySegment) libAv.avPacketAlloc.invokeExact())
+                           .reinterpret(LibAv.PACKET_SIZE);
+
+    if (packet.address() == 0) {
+      throw new ConversionException("Cannot allocate packet");
+    }
+
+    packetPointer.set(ValueLayout.ADDRESS, 0, packet);
+    return packet;
+  }
+
+  private void setOption(Arena arena, MemorySegment options, String key, String value)
+      throws Throwable {
+    check((int) libAv.avDictSet.invokeExact(options, arena.allocateUtf8String(key),
+        arena.allocateUtf8String(value), 0), "Cannot set option " + key);
+  }
+
+  private PacketIndex indexPackets(Path media, MemorySegment input, MemorySegment packetPointer)
+      throws Throwable {
+    final int streamCount = input.get(ValueLayout.JAVA_INT, LibAv.FORMAT_CONTEXT_NB_STREAMS);
+    int videoIndex = -1;
+
+    for (int i = 0; i < streamCount && videoIndex == -1; i++) {
+      if (codecParameters(stream(input, i)).get(ValueLayout.JAVA_INT,
+          LibAv.CODEC_PARAMETERS_TYPE) == LibAv.AVMEDIA_TYPE_VIDEO) {
+        videoIndex = i;
+      }
+    }
+
+    if (videoIndex == -1) {
+      throw new ConversionException("No video stream in " + media);
+    }
+
+    final var timeBase = timeBase(stream(input, videoIndex));
+    final var index = new PacketIndex();
+    index.setTimeBase(timeBase.get(ValueLayout.JAVA_INT, 0), timeBase.get(ValueLayout.JAVA_INT, 4));
+
+    final var packet = allocatePacket(packetPointer);
+
+    while (true) {
+      if (Thread.currentThread().isInterrupted()) {
+        throw new ConversionException("Interrupted while indexing " + media);
+      }
+
+      final int read = (int) libAv.avReadFrame.invokeExact(input, packet);
+
+      if (read == LibAv.AVERROR_EOF) {
+        return index;
+      }
+      check(read, "Cannot read packet of " + media);
+
+      if (packet.get(ValueLayout.JAVA_INT, LibAv.PACKET_STREAM_INDEX) == videoIndex) {
+        final long position = packet.get(ValueLayout.JAVA_LONG, LibAv.PACKET_POS);
+
+        index.add(timestamp(packet.get(ValueLayout.JAVA_LONG, LibAv.PACKET_PTS)),
+            timestamp(packet.get(ValueLayout.JAVA_LONG, LibAv.PACKET_DTS)),
+            position < 0 ? PacketIndex.UNKNOWN : position,
+            packet.get(ValueLayout.JAVA_INT, LibAv.PACKET_DATA_SIZE),
+            (packet.get(ValueLayout.JAVA_INT, LibAv.PACKET_FLAGS) & LibAv.AV_PKT_FLAG_KEY) != 0);
+      }
+
+      libAv.avPacketUnref.invokeExact(packet);
+    }
+  }
+
+  private static long timestamp(long value) {
+    return value == LibAv.AV_NOPTS_VALUE ? PacketIndex.UNKNOWN : value;
+  }
+
+  /**
+   * @return pointer to the opened AVFormatContext as expected by avformat_close_input
+   */
+  private MemorySegment openInput(Arena arena, Path media) throws Throwable {
+    final var inputPointer = arena.allocate(ValueLayout.ADDRESS);
+
+    check((int) libAv.avformatOpenInput.invokeExact(inputPointer,
+            arena.allocateUtf8String(media.toString()), MemorySegment.NULL, MemorySegment.NULL),
+        "Cannot open " + media);
+    return inputPointer;
+  }
+
+  private static MemorySegment context(MemorySegment contextPointer) {
+    return contextPointer.get(ValueLayout.ADDRESS, 0).reinterpret(LibAv.FORMAT_CONTEXT_SIZE);
+  }
+
+  private static MemorySegment stream(MemorySegment context, int index) {
+    final int streamCount = context.get(ValueLayout.JAVA_INT, LibAv.FORMAT_CONTEXT_NB_STREAMS);
+    final var streams = context.get(ValueLayout.ADDRESS, LibAv.FORMAT_CONTEXT_STREAMS)
+                            .reinterpret(streamCount * ValueLayout.ADDRESS.byteSize());
+
+    return streams.getAtIndex(ValueLayout.ADDRESS, index).reinterpret(LibAv.STREAM_SIZE);
+  }
+
+  private MemorySegment codecParameters(MemorySegment stream) {
+    return stream.get(ValueLayout.ADDRESS, libAv.streamCodecParameters)
+               .reinterpret(LibAv.CODEC_PARAMETERS_SIZE);
+  }
+
+  private MemorySegment timeBase(MemorySegment stream) {
+    return stream.asSlice(libAv.streamTimeBase, LibAv.RATIONAL.byteSize());
+  }
+
+  /**
+   * Names the pixel format and colour properties like ffprobe does.
+   */
+  private VideoDetails videoDetails(MemorySegment parameters) throws Throwable {
+    return VideoDetails.of(
+        string((MemorySegment) libAv.avGetPixFmtName.invokeExact(
+            parameters.get(ValueLayout.JAVA_INT, LibAv.CODEC_PARAMETERS_FORMAT))),
+        known(string((MemorySegment) libAv.avColorRangeName.invokeExact(
+            parameters.get(ValueLayout.JAVA_INT, LibAv.CODEC_PARAMETERS_COLOR_RANGE)))),
+        known(string((MemorySegment) libAv.avColorSpaceName.invokeExact(
+            parameters.get(ValueLayout.JAVA_INT, LibAv.CODEC_PARAMETERS_COLOR_SPACE)))),
+        known(string((MemorySegment) libAv.avColorTransferName.invokeExact(
+            parameters.get(ValueLayout.JAVA_INT, LibAv.CODEC_PARAMETERS_COLOR_TRC)))),
+        known(string((MemorySegment) libAv.avColorPrimariesName.invokeExact(
+            parameters.get(ValueLayout.JAVA_INT, LibAv.CODEC_PARAMETERS_COLOR_PRIMARIES)))));
+  }
+
+  private AudioDetails audioDetails(MemorySegment parameters) throws Throwable {
+    final int sampleRate = parameters.get(ValueLayout.JAVA_INT,
+        LibAv.CODEC_PARAMETERS_SAMPLE_RATE);
+
+    if (libAv.avChannelLayoutDescribe == null) {
+      return new AudioDetails(sampleRate,
+          parameters.get(ValueLayout.JAVA_INT, LibAv.CODEC_PARAMETERS_CHANNELS), null);
+    }
+
+    final var layout = parameters.asSlice(LibAv.CODEC_PARAMETERS_CH_LAYOUT);
+    final int channels = layout.get(ValueLayout.JAVA_INT, LibAv.CHANNEL_LAYOUT_NB_CHANNELS);
+
+    try (var arena = Arena.ofConfined()) {
+      final var buffer = arena.allocate(128);
+      final int length = (int) libAv.avChannelLayoutDescribe.invokeExact(layout, buffer,
+          buffer.byteSize());
+
+      return new AudioDetails(sampleRate, channels,
+          length < 0 || channels == 0 ? null : buffer.getUtf8String(0));
+    }
+  }
+
+  /**
+   * libav names unspecified values "unknown", ffprobe leaves them out.
+   */
+  private static String known(String name) {
+    return name == null || name.equals("unknown") ? null : name;
+  }
+
+  private String language(MemorySegment stream) throws Throwable {
+    try (var arena = Arena.ofConfined()) {
+      final var entry = (MemorySegment) libAv.avDictGet.invokeExact(
+          stream.get(ValueLayout.ADDRESS, libAv.streamMetadata),
+          arena.allocateUtf8String(LANGUAGE_TAG), MemorySegment.NULL, 0);
+
+      if (entry.address() == 0) {
+        return null;
+      }
+
+      return string(entry.reinterpret(LibAv.DICTIONARY_ENTRY_SIZE)
+                        .get(ValueLayout.ADDRESS, LibAv.DICTIONARY_ENTRY_VALUE));
+    }
+  }
+
+  private static String string(MemorySegment pointer) {
+    return pointer.address() == 0 ? null : pointer.reinterpret(Long.MAX_VALUE).getUtf8String(0);
+  }
+
+  private void check(int result, String message) {
+    if (result < 0) {
+      throw new ConversionException(message + ": " + libAv.describe(result));
+    }
+  }
+}
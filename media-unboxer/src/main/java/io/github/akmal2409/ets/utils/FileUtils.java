@@ -2,14 +2,23 @@ package io.github.akmal2409.ets.utils;
 
 import java.io.IOException;
 import java.nio.file.FileVisitResult;
+import java.nio.file.FileSystems;
 import java.nio.file.FileVisitor;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
 import java.util.Set;
 
 public final class FileUtils {
 
+  private static final boolean UNIX_ATTRIBUTES_SUPPORTED =
+      FileSystems.getDefault().supportedFileAttributeViews().contains("unix");
+
   private FileUtils() {
     throw new IllegalStateException("Cannot instantiate a utility class");
   }
@@ -23,8 +32,16 @@ public final class FileUtils {
     return name.substring(0, lastDotIndex);
   }
 
-  public static void deleteDirectory(Path directory) throws IOException {
-    Files.walkFileTree(directory, Set.of(), 10, new FileVisitor<>() {
+  /**
+   * Deletes the directory with all of its contents, symbolic links are deleted but not followed.
+   *
+   * @return bytes freed on the disk, files with other hard links, e.g. cached sources, are not
+   * freed by deleting them and are not counted.
+   */
+  public static long deleteDirectory(Path directory) throws IOException {
+    final var deletedBytes = new long[1];
+
+    Files.walkFileTree(directory, Set.of(), Integer.MAX_VALUE, new FileVisitor<>() {
       @Override
       public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs)
           throws IOException {
@@ -33,6 +50,7 @@ public final class FileUtils {
 
       @Override
       public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+        deletedBytes[0] += exclusiveSize(file, attrs);
         Files.delete(file);
         return FileVisitResult.CONTINUE;
       }
@@ -50,5 +68,74 @@ public final class FileUtils {
         return FileVisitResult.CONTINUE;
       }
     });
+
+    return deletedBytes[0];
+  }
+
+  /**
+   * Disk space held only by the files under the directory, without the files that have other hard
+   * links, e.g. cached sources. Files that disappear while walking are skipped.
+   *
+   * @return size in bytes, 0 if the directory does not exist
+   */
+  public static long diskUsage(Path directory) throws IOException {
+    if (Files.notExists(directory)) {
+      return 0;
+    }
+
+    final var usedBytes = new long[1];
+
+    Files.walkFileTree(directory, new SimpleFileVisitor<>() {
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+        usedBytes[0] += exclusiveSize(file, attrs);
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult visitFileFailed(Path file, IOException exc) {
+        return FileVisitResult.CONTINUE;
+      }
+    });
+
+    return usedBytes[0];
+  }
+
+  /**
+   * Size of the file if this is its only hard link, 0 otherwise. File systems without link counts
+   * report the size of every file.
+   */
+  private static long exclusiveSize(Path file, BasicFileAttributes attrs) throws IOException {
+    if (!attrs.isRegularFile() || !UNIX_ATTRIBUTES_SUPPORTED) {
+      return attrs.size();
+    }
+
+    return (int) Files.getAttribute(file, "unix:nlink", LinkOption.NOFOLLOW_LINKS) > 1
+               ? 0 : attrs.size();
+  }
+
+  /**
+   * Reads the whole file and returns its SHA-256 digest as a lowercase hex string.
+   */
+  public static String sha256(Path file) throws IOException {
+    final var digest = newSha256Digest();
+    final var buffer = new byte[1024 * 1024];
+
+    try (var in = Files.newInputStream(file)) {
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        digest.update(buffer, 0, read);
+      }
+    }
+
+    return HexFormat.of().formatHex(digest.digest());
+  }
+
+  public static MessageDigest newSha256Digest() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 is not supported by the platform", e);
+    }
   }
 }
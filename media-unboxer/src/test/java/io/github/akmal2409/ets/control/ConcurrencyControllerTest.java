@@ -0,0 +1,195 @@
+package io.github.akmal2409.ets.control;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.DefaultConsumer;
+import io.github.akmal2409.ets.JobExecutor;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import org.junit.jupiter.api.Test;
+
+class ConcurrencyControllerTest {
+
+  /**
+   * Channel of a broker with a backlog of deliveries that follows the RabbitMQ prefetch rules: a
+   * per-consumer prefetch is fixed when the consumer starts, a channel-wide one applies to the
+   * running consumers at once. Unacknowledged deliveries of a cancelled consumer stay on the
+   * channel.
+   */
+  private static final class Broker implements InvocationHandler {
+
+    private final Map<String, Integer> consumerPrefetches = new HashMap<>();
+    private final Map<String, Integer> consumerOutstanding = new HashMap<>();
+    private int nextConsumerPrefetch;
+    private int channelPrefetch;
+    private int outstanding;
+    private int peakOutstanding;
+    private int consumersStarted;
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) {
+      switch (method.getName()) {
+        case "basicQos" -> {
+          final boolean global = args.length > 1 && (boolean) args[1];
+
+          if (global) {
+            channelPrefetch = (int) args[0];
+          } else {
+            nextConsumerPrefetch = (int) args[0];
+          }
+          deliver();
+          return null;
+        }
+        case "basicConsume" -> {
+          final var consumerTag = "consumer-" + ++consumersStarted;
+          consumerPrefetches.put(consumerTag, nextConsumerPrefetch);
+          consumerOutstanding.put(consumerTag, 0);
+          deliver();
+          return consumerTag;
+        }
+        case "basicCancel" -> {
+          consumerPrefetches.remove(args[0]);
+          return null;
+        }
+        case "hashCode" -> {
+          return System.identityHashCode(proxy);
+        }
+        case "equals" -> {
+          return proxy == args[0];
+        }
+        case "toString" -> {
+          return "Broker channel";
+        }
+        default -> throw new UnsupportedOperationException(method.getName());
+      }
+    }
+
+    /**
+     * Pushes deliveries to the running consumers until the prefetches stop it.
+     */
+    private void deliver() {
+      for (var consumer : consumerPrefetches.entrySet()) {
+        final int consumerPrefetch = consumer.getValue();
+
+        while ((channelPrefetch == 0 || outstanding < channelPrefetch)
+                   && (consumerPrefetch == 0
+                           || consumerOutstanding.get(consumer.getKey()) < consumerPrefetch)) {
+          consumerOutstanding.merge(consumer.getKey(), 1, Integer::sum);
+          outstanding++;
+          peakOutstanding = Math.max(peakOutstanding, outstanding);
+        }
+      }
+    }
+
+    /**
+     * Acknowledges the given number of the deliveries, whichever consumer they went to.
+     */
+    private void ack(int deliveries) {
+      outstanding -= deliveries;
+
+      for (var consumer : consumerOutstanding.entrySet()) {
+        final int acked = Math.min(deliveries, consumer.getValue());
+        consumer.setValue(consumer.getValue() - acked);
+        deliveries -= acked;
+      }
+
+      deliver();
+    }
+  }
+
+  private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+  private final StageStats queueWaits = new StageStats();
+  private final Broker broker = new Broker();
+  private final Channel channel = (Channel) Proxy.newProxyInstance(
+      Channel.class.getClassLoader(), new Class<?>[]{Channel.class}, broker);
+
+  @Test
+  void decreaseNeverExceedsOutstandingLimit() throws IOException {
+    final var jobExecutor = new JobExecutor(10, meterRegistry);
+
+    try (var controller = newController(jobExecutor)) {
+      controller.start();
+      assertThat(broker.outstanding).isEqualTo(10);
+
+      congest();
+      controller.adjust();
+
+      assertThat(jobExecutor.getLimit()).isEqualTo(7);
+      assertThat(broker.outstanding).isEqualTo(10);
+
+      // nothing is delivered until the outstanding deliveries drop below the new limit
+      broker.ack(2);
+      assertThat(broker.outstanding).isEqualTo(8);
+      broker.ack(4);
+      assertThat(broker.outstanding).isEqualTo(7);
+
+      congest();
+      controller.adjust();
+
+      assertThat(jobExecutor.getLimit()).isEqualTo(4);
+      broker.ack(7);
+      assertThat(broker.outstanding).isEqualTo(4);
+      assertThat(broker.peakOutstanding).isEqualTo(10);
+      assertThat(broker.consumersStarted).isEqualTo(1);
+    }
+  }
+
+  @Test
+  void increaseDeliversOnlyUpToTheLimit() throws IOException, InterruptedException {
+    final var jobExecutor = new JobExecutor(2, meterRegistry);
+    final var running = new CountDownLatch(2);
+    final var release = new CountDownLatch(1);
+
+    try (var controller = newController(jobExecutor)) {
+      controller.start();
+      assertThat(broker.outstanding).isEqualTo(2);
+
+      // every slot is used, so the limit grows by one
+      for (int i = 0; i < 2; i++) {
+        jobExecutor.submit(() -> {
+          running.countDown();
+          awaitQuietly(release);
+        });
+      }
+      running.await();
+      controller.adjust();
+
+      assertThat(jobExecutor.getLimit()).isEqualTo(3);
+      assertThat(broker.outstanding).isEqualTo(3);
+      assertThat(broker.consumersStarted).isEqualTo(1);
+    } finally {
+      release.countDown();
+    }
+  }
+
+  private ConcurrencyController newController(JobExecutor jobExecutor) {
+    final var controller = new ConcurrencyController(jobExecutor, new StageStats(),
+        new StageStats(), queueWaits, 1, 10, Duration.ofHours(1), 0.7, 0.6,
+        Duration.ofSeconds(1), 0.2, meterRegistry);
+    controller.attach(channel, "jobs", new DefaultConsumer(channel));
+    return controller;
+  }
+
+  private static void awaitQuietly(CountDownLatch latch) {
+    try {
+      latch.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Ffmpeg permits that were waited for longer than allowed make the controller back off.
+   */
+  private void congest() {
+    queueWaits.record(0, Duration.ofSeconds(10));
+  }
+}
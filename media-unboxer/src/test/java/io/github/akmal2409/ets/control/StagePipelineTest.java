@@ -0,0 +1,183 @@
+package io.github.akmal2409.ets.control;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+class StagePipelineTest {
+
+  private static final List<Stage> STREAMED = List.of(Stage.REMOTE_PROBE, Stage.EXTRACT,
+      Stage.UPLOAD);
+  private static final List<Stage> DOWNLOADED = List.of(Stage.REMOTE_PROBE, Stage.DOWNLOAD,
+      Stage.EXTRACT, Stage.UPLOAD);
+  private static final List<Stage> FALLBACK = List.of(Stage.REMOTE_PROBE, Stage.DOWNLOAD,
+      Stage.PROBE, Stage.EXTRACT, Stage.UPLOAD);
+  private static final List<Stage> PREPARED = List.of(Stage.EXTRACT, Stage.UPLOAD);
+  private static final List<Stage> EXTRACTED = List.of(Stage.UPLOAD);
+
+  @Test
+  void reservesQueueOfNextStage() throws InterruptedException {
+    final var pipeline = pipeline(1, 1);
+
+    try (var ticket = pipeline.admit(UUID.randomUUID())) {
+      ticket.enter(Stage.DOWNLOAD);
+
+      assertThat(pipeline.runningJobs(Stage.DOWNLOAD)).isEqualTo(1);
+      assertThat(pipeline.queuedJobs(Stage.PROBE)).isEqualTo(1);
+
+      ticket.enter(Stage.PROBE);
+
+      assertThat(pipeline.runningJobs(Stage.DOWNLOAD)).isZero();
+      assertThat(pipeline.runningJobs(Stage.PROBE)).isEqualTo(1);
+      assertThat(pipeline.queuedJobs(Stage.PROBE)).isZero();
+      assertThat(pipeline.queuedJobs(Stage.EXTRACT)).isEqualTo(1);
+    }
+
+    assertEmpty(pipeline);
+  }
+
+  @Test
+  void releasesQueueOfSkippedStageBeforeWaiting() throws InterruptedException {
+    final var pipeline = pipeline(1, 1);
+    final var extracting = pipeline.admit(UUID.randomUUID());
+    extracting.enter(Stage.EXTRACT);
+
+    final var streamed = pipeline.admit(UUID.randomUUID());
+    streamed.enter(Stage.REMOTE_PROBE);
+    assertThat(pipeline.queuedJobs(Stage.DOWNLOAD)).isEqualTo(1);
+
+    final var extractEntered = new CountDownLatch(1);
+    final var skipping = Thread.ofVirtual().start(() -> {
+      try {
+        streamed.enter(Stage.EXTRACT);
+        extractEntered.countDown();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    });
+
+    // the streamed job waits for the extraction worker without holding the download queue
+    assertThat(extractEntered.await(200, TimeUnit.MILLISECONDS)).isFalse();
+    assertThat(pipeline.queuedJobs(Stage.DOWNLOAD)).isZero();
+
+    try (var downloaded = pipeline.admit(UUID.randomUUID())) {
+      downloaded.enter(Stage.REMOTE_PROBE);
+      downloaded.enter(Stage.DOWNLOAD);
+    }
+
+    extracting.close();
+    assertThat(extractEntered.await(5, TimeUnit.SECONDS)).isTrue();
+    skipping.join();
+    streamed.close();
+
+    assertEmpty(pipeline);
+  }
+
+  @Test
+  void rejectsEarlierAndRepeatedStages() throws InterruptedException {
+    final var pipeline = pipeline(1, 1);
+
+    try (var ticket = pipeline.admit(UUID.randomUUID())) {
+      ticket.enter(Stage.DOWNLOAD);
+
+      assertThatThrownBy(() -> ticket.enter(Stage.REMOTE_PROBE))
+          .isInstanceOf(IllegalStateException.class);
+      assertThatThrownBy(() -> ticket.enter(Stage.DOWNLOAD))
+          .isInstanceOf(IllegalStateException.class);
+      assertThat(pipeline.runningJobs(Stage.DOWNLOAD)).isEqualTo(1);
+    }
+
+    assertEmpty(pipeline);
+  }
+
+  @Test
+  void jobsOnSkippingAndFallbackPathsComplete() throws InterruptedException {
+    final var pipeline = pipeline(1, 1);
+    final var paths = List.of(STREAMED, DOWNLOADED, FALLBACK, PREPARED, EXTRACTED);
+    final int jobs = 200;
+    final var completed = new CountDownLatch(jobs);
+
+    try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+      for (int job = 0; job < jobs; job++) {
+        final var path = paths.get(job % paths.size());
+
+        executor.submit(() -> {
+          try (var ticket = pipeline.admit(UUID.randomUUID())) {
+            for (Stage stage : path) {
+              ticket.enter(stage);
+              Thread.sleep(ThreadLocalRandom.current().nextInt(2));
+            }
+          }
+          completed.countDown();
+          return null;
+        });
+      }
+
+      assertThat(completed.await(30, TimeUnit.SECONDS))
+          .as("all jobs left the pipeline").isTrue();
+    }
+
+    assertEmpty(pipeline);
+  }
+
+  @Test
+  void runsStagesUpToTheirWorkers() throws InterruptedException {
+    final var pipeline = pipeline(2, 4);
+    final List<StagePipeline.Ticket> tickets = new ArrayList<>();
+
+    for (int job = 0; job < 2; job++) {
+      final var ticket = pipeline.admit(UUID.randomUUID());
+      ticket.enter(Stage.DOWNLOAD);
+      tickets.add(ticket);
+    }
+
+    final var third = pipeline.admit(UUID.randomUUID());
+    final var entered = new CountDownLatch(1);
+    Thread.ofVirtual().start(() -> {
+      try {
+        third.enter(Stage.DOWNLOAD);
+        entered.countDown();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    });
+
+    assertThat(entered.await(200, TimeUnit.MILLISECONDS)).isFalse();
+    tickets.get(0).close();
+    assertThat(entered.await(5, TimeUnit.SECONDS)).isTrue();
+
+    tickets.get(1).close();
+    third.close();
+    assertEmpty(pipeline);
+  }
+
+  private static StagePipeline pipeline(int workers, int queueCapacity) {
+    final Map<Stage, Integer> stageWorkers = new EnumMap<>(Stage.class);
+    final Map<Stage, Integer> stageQueueCapacity = new EnumMap<>(Stage.class);
+
+    for (Stage stage : Stage.values()) {
+      stageWorkers.put(stage, workers);
+      stageQueueCapacity.put(stage, queueCapacity);
+    }
+
+    return new StagePipeline(stageWorkers, stageQueueCapacity, new SimpleMeterRegistry());
+  }
+
+  private static void assertEmpty(StagePipeline pipeline) {
+    for (Stage stage : Stage.values()) {
+      assertThat(pipeline.runningJobs(stage)).as("running %s", stage).isZero();
+      assertThat(pipeline.queuedJobs(stage)).as("queued %s", stage).isZero();
+    }
+  }
+}
@@ -0,0 +1,101 @@
+package io.github.akmal2409.ets.store;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class DownloadJournalTest {
+
+  private static final String ETAG = "\"9b2cf535f27731c974343645a3985328\"";
+  private static final long PART_SIZE = 16;
+  // 5 parts, the last one is short
+  private static final long OBJECT_SIZE = 4 * PART_SIZE + 3;
+  private static final String HEADER = "etag=" + ETAG + ";size=67;part_size=16\n";
+
+  @TempDir
+  Path directory;
+
+  @Test
+  void resumesCompletedParts() throws IOException {
+    try (var journal = open()) {
+      journal.markCompleted(List.of(3, 0));
+      journal.markCompleted(List.of(4));
+    }
+
+    try (var journal = open()) {
+      assertThat(journal.completedCount()).isEqualTo(3);
+      assertThat(journal.isCompleted(0)).isTrue();
+      assertThat(journal.isCompleted(1)).isFalse();
+      assertThat(journal.isCompleted(3)).isTrue();
+      assertThat(journal.isCompleted(4)).isTrue();
+    }
+  }
+
+  @Test
+  void dropsTruncatedLastLine() throws IOException {
+    // the worker died while appending the line of part 3
+    writeJournal(HEADER + "1\n3");
+
+    try (var journal = open()) {
+      assertThat(journal.completedCount()).isEqualTo(1);
+      assertThat(journal.isCompleted(1)).isTrue();
+      assertThat(journal.isCompleted(3)).isFalse();
+      journal.markCompleted(List.of(2));
+    }
+
+    assertThat(readJournal()).isEqualTo(HEADER + "1\n2\n");
+  }
+
+  @Test
+  void rejectsPartsBeyondTheObject() throws IOException {
+    writeJournal(HEADER + "0\n5\n2\n");
+
+    try (var journal = open()) {
+      assertThat(journal.completedCount()).isEqualTo(1);
+      assertThat(journal.isCompleted(0)).isTrue();
+      assertThat(journal.isCompleted(2)).isFalse();
+    }
+
+    assertThat(readJournal()).isEqualTo(HEADER + "0\n");
+  }
+
+  @Test
+  void restartsJournalOfOtherObjectVersion() throws IOException {
+    writeJournal("etag=\"other\";size=67;part_size=16\n0\n1\n");
+
+    try (var journal = open()) {
+      assertThat(journal.completedCount()).isZero();
+    }
+
+    assertThat(readJournal()).isEqualTo(HEADER);
+  }
+
+  @Test
+  void restartsJournalWithTruncatedHeader() throws IOException {
+    writeJournal(HEADER.substring(0, HEADER.length() - 3));
+
+    try (var journal = open()) {
+      assertThat(journal.completedCount()).isZero();
+    }
+
+    assertThat(readJournal()).isEqualTo(HEADER);
+  }
+
+  private DownloadJournal open() throws IOException {
+    return DownloadJournal.open(directory.resolve("source"), ETAG, OBJECT_SIZE, PART_SIZE);
+  }
+
+  private void writeJournal(String content) throws IOException {
+    Files.writeString(directory.resolve("source.parts"), content, StandardCharsets.UTF_8);
+  }
+
+  private String readJournal() throws IOException {
+    return Files.readString(directory.resolve("source.parts"), StandardCharsets.UTF_8);
+  }
+}
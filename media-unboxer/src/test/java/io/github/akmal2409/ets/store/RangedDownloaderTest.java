@@ -0,0 +1,135 @@
+package io.github.akmal2409.ets.store;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import io.github.akmal2409.ets.utils.FileUtils;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import software.amazon.awssdk.core.ResponseBytes;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+
+class RangedDownloaderTest {
+
+  private static final String ETAG = "\"5d41402abc4b2a76b9719d911017c592\"";
+  private static final int PART_SIZE = 1000;
+  private static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-(\\d+)");
+
+  /**
+   * Serves ranged GETs of the object from memory, the later a part in every group of four is, the
+   * sooner it arrives, so the parts are written out of order.
+   */
+  private static final class Bucket implements InvocationHandler {
+
+    private final byte[] object;
+    private final List<Long> requestedOffsets = new CopyOnWriteArrayList<>();
+
+    private Bucket(byte[] object) {
+      this.object = object;
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      // the client methods are defaults that throw, the builder variants delegate to the others
+      if (!method.getName().equals("getObject") || !(args[0] instanceof GetObjectRequest)) {
+        return InvocationHandler.invokeDefault(proxy, method, args);
+      }
+
+      final var request = (GetObjectRequest) args[0];
+      final var range = RANGE.matcher(request.range());
+      assertThat(range.matches()).isTrue();
+      assertThat(request.ifMatch()).isEqualTo(ETAG);
+
+      final int first = Integer.parseInt(range.group(1));
+      final int last = Integer.parseInt(range.group(2));
+      final int part = first / PART_SIZE;
+      requestedOffsets.add((long) first);
+
+      // the transformer is skipped, the downloader only reads the bytes of the response
+      return CompletableFuture.supplyAsync(
+          () -> ResponseBytes.fromByteArray(GetObjectResponse.builder().build(),
+              Arrays.copyOfRange(object, first, last + 1)),
+          CompletableFuture.delayedExecutor(10L * (3 - part % 4), TimeUnit.MILLISECONDS));
+    }
+  }
+
+  @TempDir
+  Path directory;
+
+  @Test
+  void hashesPartsArrivingOutOfOrder() throws IOException, InterruptedException {
+    final var object = pattern(10 * PART_SIZE + 321);
+    final var bucket = new Bucket(object);
+    final var destination = directory.resolve("source");
+
+    final var contentHash = newDownloader(bucket, 1)
+                                .download("bucket", "key", ETAG, object.length, destination);
+
+    assertThat(Files.readAllBytes(destination)).isEqualTo(object);
+    assertThat(contentHash).isEqualTo(FileUtils.sha256(destination));
+    assertThat(bucket.requestedOffsets).hasSize(11);
+  }
+
+  @Test
+  void hashesPartsOfEarlierAttemptFromDestination() throws IOException, InterruptedException {
+    final var object = pattern(6 * PART_SIZE);
+    final var bucket = new Bucket(object);
+    final var destination = directory.resolve("source");
+
+    // the earlier attempt wrote the parts 0, 1 and 4
+    final var partial = new byte[object.length];
+    for (int part : new int[]{0, 1, 4}) {
+      System.arraycopy(object, part * PART_SIZE, partial, part * PART_SIZE, PART_SIZE);
+    }
+    Files.write(destination, partial);
+    Files.writeString(directory.resolve("source.parts"),
+        "etag=" + ETAG + ";size=6000;part_size=1000\n0\n1\n4\n", StandardCharsets.UTF_8);
+
+    final var contentHash = newDownloader(bucket, 16)
+                                .download("bucket", "key", ETAG, object.length, destination);
+
+    assertThat(Files.readAllBytes(destination)).isEqualTo(object);
+    assertThat(contentHash).isEqualTo(FileUtils.sha256(destination));
+    assertThat(bucket.requestedOffsets).containsExactlyInAnyOrder(2000L, 3000L, 5000L);
+  }
+
+  @Test
+  void hashesEmptyObject() throws IOException, InterruptedException {
+    final var destination = directory.resolve("source");
+
+    final var contentHash = newDownloader(new Bucket(new byte[0]), 1)
+                                .download("bucket", "key", ETAG, 0, destination);
+
+    assertThat(contentHash).isEqualTo(FileUtils.sha256(destination));
+  }
+
+  private static RangedDownloader newDownloader(Bucket bucket, int partsPerSync) {
+    final var client = (S3AsyncClient) Proxy.newProxyInstance(
+        S3AsyncClient.class.getClassLoader(), new Class<?>[]{S3AsyncClient.class}, bucket);
+    return new RangedDownloader(client, PART_SIZE, 4, partsPerSync);
+  }
+
+  private static byte[] pattern(int size) {
+    final var data = new byte[size];
+
+    for (int i = 0; i < size; i++) {
+      data[i] = (byte) (i * 31 + i / 251);
+    }
+
+    return data;
+  }
+}
@@ -0,0 +1,376 @@
+package io.github.akmal2409.ets.unboxing;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import io.github.akmal2409.ets.control.StageStats;
+import io.github.akmal2409.ets.unboxing.MediaStreams.AudioDetails;
+import io.github.akmal2409.ets.unboxing.MediaStreams.AudioStream;
+import io.github.akmal2409.ets.unboxing.MediaStreams.Subtitles;
+import io.github.akmal2409.ets.unboxing.MediaStreams.VideoDetails;
+import io.github.akmal2409.ets.unboxing.MediaStreams.VideoStream;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * The headers are built element by element the way ffmpeg's Matroska muxer writes them. The
+ * expected streams are the ones ffprobe reports for the same headers, e.g. {@code
+ * r_frame_rate=24000/1001} for a default duration of 41708333 ns.
+ */
+class MatroskaMetadataParserTest {
+
+  private static final long EBML = 0x1A45DFA3L;
+  private static final long EBML_VERSION = 0x4286;
+  private static final long EBML_READ_VERSION = 0x42F7;
+  private static final long EBML_MAX_ID_LENGTH = 0x42F2;
+  private static final long EBML_MAX_SIZE_LENGTH = 0x42F3;
+  private static final long DOC_TYPE = 0x4282;
+  private static final long DOC_TYPE_VERSION = 0x4287;
+  private static final long DOC_TYPE_READ_VERSION = 0x4285;
+  private static final long SEGMENT = 0x18538067L;
+  private static final long SEEK_HEAD = 0x114D9B74L;
+  private static final long VOID = 0xEC;
+  private static final long INFO = 0x1549A966L;
+  private static final long TIMESTAMP_SCALE = 0x2AD7B1;
+  private static final long DURATION = 0x4489;
+  private static final long MUXING_APP = 0x4D80;
+  private static final long TRACKS = 0x1654AE6BL;
+  private static final long TRACK_ENTRY = 0xAE;
+  private static final long TRACK_NUMBER = 0xD7;
+  private static final long TRACK_TYPE = 0x83;
+  private static final long CODEC_ID = 0x86;
+  private static final long LANGUAGE = 0x22B59C;
+  private static final long LANGUAGE_BCP47 = 0x22B59D;
+  private static final long DEFAULT_DURATION = 0x23E383;
+  private static final long VIDEO = 0xE0;
+  private static final long PIXEL_WIDTH = 0xB0;
+  private static final long PIXEL_HEIGHT = 0xBA;
+  private static final long COLOUR = 0x55B0;
+  private static final long MATRIX_COEFFICIENTS = 0x55B1;
+  private static final long RANGE = 0x55B9;
+  private static final long TRANSFER_CHARACTERISTICS = 0x55BA;
+  private static final long PRIMARIES = 0x55BB;
+  private static final long AUDIO = 0xE1;
+  private static final long SAMPLING_FREQUENCY = 0xB5;
+  private static final long OUTPUT_SAMPLING_FREQUENCY = 0x78B5;
+  private static final long CHANNELS = 0x9F;
+  private static final long CLUSTER = 0x1F43B675L;
+  private static final long TIMESTAMP = 0xE7;
+
+  private static final int VIDEO_TRACK = 1;
+  private static final int AUDIO_TRACK = 2;
+  private static final int SUBTITLE_TRACK = 0x11;
+
+  @TempDir
+  Path directory;
+
+  @Test
+  void parsesMatroskaTracks() throws IOException {
+    final var file = write("movie.mkv", matroska("matroska",
+        element(SEEK_HEAD, element(VOID, new byte[16])),
+        info(float64(DURATION, 60_060.0)),
+        element(TRACKS,
+            videoTrack(1, "V_MPEG4/ISO/AVC", 1920, 1080, 41_708_333, colour(1, 1, 1, 1)),
+            track(2, AUDIO_TRACK, "A_AAC", string(LANGUAGE, "ger"), audio(48_000, 2)),
+            track(3, AUDIO_TRACK, "A_AC3", audio(48_000, 6)),
+            track(4, SUBTITLE_TRACK, "S_TEXT/UTF8", string(LANGUAGE, "und"))),
+        cluster(64)));
+
+    assertThat(ContainerMetadataParser.parse(file)).isEqualTo(Optional.of(new MediaStreams(
+        List.of(new VideoStream(0, "h264", 1080, 1920, 24000 / 1001.0,
+            VideoDetails.of(null, "tv", "bt709", "bt709", "bt709"))),
+        List.of(new AudioStream(1, "aac", "ger", new AudioDetails(48_000, 2, "stereo")),
+            new AudioStream(2, "ac3", "eng", new AudioDetails(48_000, 6, null))),
+        List.of(new Subtitles(3, "subrip", null)),
+        "matroska,webm", 60.06)));
+  }
+
+  @Test
+  void parsesWebMWithUnknownSegmentSize() throws IOException {
+    final var file = write("live.webm", matroskaLive("webm",
+        info(float32(DURATION, 10_000.5f)),
+        element(TRACKS,
+            videoTrack(1, "V_VP9", 640, 360, 33_333_333, colour(1, 9, 16, 9)),
+            track(2, AUDIO_TRACK, "A_OPUS", string(LANGUAGE, "jpn"), audio(48_000, 2)),
+            track(3, SUBTITLE_TRACK, "S_TEXT/WEBVTT", string(LANGUAGE, "eng"))),
+        cluster(64)));
+
+    assertThat(ContainerMetadataParser.parse(file)).isEqualTo(Optional.of(new MediaStreams(
+        List.of(new VideoStream(0, "vp9", 360, 640, 30.0,
+            VideoDetails.of(null, "tv", "bt2020nc", "smpte2084", "bt2020"))),
+        List.of(new AudioStream(1, "opus", "jpn", new AudioDetails(48_000, 2, "stereo"))),
+        List.of(new Subtitles(2, "webvtt", "eng")),
+        "matroska,webm", 10.0005)));
+  }
+
+  @Test
+  void reportsUnknownDurationWithoutSegmentInfo() throws IOException {
+    final var file = write("no-info.mkv", matroska("matroska",
+        element(TRACKS, track(1, AUDIO_TRACK, "A_FLAC", audio(44_100, 1))),
+        cluster(16)));
+
+    assertThat(ContainerMetadataParser.parse(file)).isEqualTo(Optional.of(new MediaStreams(
+        List.of(), List.of(new AudioStream(0, "flac", "eng", new AudioDetails(44_100, 1, "mono"))),
+        List.of(), "matroska,webm", 0)));
+  }
+
+  @Test
+  void fillsDetailsLeftOutOfTrackEntries() throws IOException {
+    final var file = write("defaults.mkv", matroska("matroska",
+        info(float64(DURATION, 1000)),
+        element(TRACKS,
+            videoTrack(1, "V_MPEG4/ISO/AVC", 1280, 720, 40_000_000),
+            track(2, AUDIO_TRACK, "A_AAC",
+                element(AUDIO, float32(SAMPLING_FREQUENCY, 24_000),
+                    float32(OUTPUT_SAMPLING_FREQUENCY, 48_000))),
+            track(3, AUDIO_TRACK, "A_MPEG/L3"))));
+
+    // the colour properties are left to the codec, the audio defaults are the specification's
+    assertThat(ContainerMetadataParser.parse(file)).isEqualTo(Optional.of(new MediaStreams(
+        List.of(new VideoStream(0, "h264", 720, 1280, 25.0,
+            VideoDetails.of(null, null, null, null, null))),
+        List.of(new AudioStream(1, "aac", "eng", new AudioDetails(48_000, 1, "mono")),
+            new AudioStream(2, "mp3", "eng", new AudioDetails(8000, 1, "mono"))),
+        List.of(), "matroska,webm", 1.0)));
+  }
+
+  @Test
+  void analysesParsedSourceWithoutProbe() throws IOException {
+    final var content = matroska("matroska",
+        info(float64(DURATION, 1000)),
+        element(TRACKS,
+            videoTrack(1, "V_MPEG4/ISO/AVC", 1280, 720, 40_000_000),
+            track(2, AUDIO_TRACK, "A_AAC", audio(48_000, 2))),
+        cluster(64));
+    final var probed = new ArrayList<Path>();
+
+    final var remoteStreams = newUnboxer(probed).analyseRemoteStreams(UUID.randomUUID(),
+        (offset, length) -> Arrays.copyOfRange(content, (int) offset,
+            (int) Math.min(content.length, offset + length)),
+        content.length, directory.resolve("probe"));
+
+    assertThat(remoteStreams.map(RemoteStreams::streams))
+        .isEqualTo(ContainerMetadataParser.parse(write("movie.mkv", content)));
+    assertThat(probed).isEmpty();
+  }
+
+  @Test
+  void fallsBackOnUnknownCodec() throws IOException {
+    assertFallsBack(matroska("matroska",
+        info(float64(DURATION, 1000)),
+        element(TRACKS, videoTrack(1, "V_MS/VFW/FOURCC", 720, 576, 40_000_000))));
+  }
+
+  @Test
+  void fallsBackOnVideoWithoutDefaultDuration() throws IOException {
+    // ffprobe derives the frame rate of such tracks from the packets
+    assertFallsBack(matroska("matroska",
+        info(float64(DURATION, 1000)),
+        element(TRACKS, track(1, VIDEO_TRACK, "V_MPEG4/ISO/AVC",
+            element(VIDEO, uint(PIXEL_WIDTH, 1280), uint(PIXEL_HEIGHT, 720))))));
+  }
+
+  @Test
+  void fallsBackOnBcp47OnlyLanguage() throws IOException {
+    assertFallsBack(matroska("matroska",
+        info(float64(DURATION, 1000)),
+        element(TRACKS, track(1, AUDIO_TRACK, "A_AAC", string(LANGUAGE_BCP47, "pt-BR")))));
+  }
+
+  @Test
+  void fallsBackWhenTracksFollowClusters() throws IOException {
+    assertFallsBack(matroska("matroska",
+        info(float64(DURATION, 1000)),
+        cluster(64),
+        element(TRACKS, track(1, AUDIO_TRACK, "A_AAC"))));
+  }
+
+  @Test
+  void fallsBackOnUnknownDocType() throws IOException {
+    assertFallsBack(matroska("unknown",
+        info(float64(DURATION, 1000)),
+        element(TRACKS, track(1, AUDIO_TRACK, "A_AAC"))));
+  }
+
+  @Test
+  void fallsBackOnTruncatedTracks() throws IOException {
+    final var file = matroska("matroska",
+        info(float64(DURATION, 1000)),
+        element(TRACKS, videoTrack(1, "V_VP8", 640, 480, 40_000_000),
+            track(2, AUDIO_TRACK, "A_VORBIS")));
+
+    assertFallsBack(Arrays.copyOf(file, file.length - 10));
+  }
+
+  private void assertFallsBack(byte[] content) throws IOException {
+    assertThat(ContainerMetadataParser.parse(write("fallback.mkv", content)))
+        .isEqualTo(Optional.empty());
+  }
+
+  private Path write(String name, byte[] content) throws IOException {
+    return Files.write(directory.resolve(name), content);
+  }
+
+  /**
+   * Unboxer that parses the containers and records the media the engine is asked to probe.
+   */
+  private static MediaUnboxer newUnboxer(List<Path> probed) {
+    final var engine = (UnboxingEngine) Proxy.newProxyInstance(
+        UnboxingEngine.class.getClassLoader(), new Class<?>[]{UnboxingEngine.class},
+        (proxy, method, args) -> {
+          if (!method.getName().equals("probe")) {
+            throw new UnsupportedOperationException(method.getName());
+          }
+          probed.add((Path) args[0]);
+          throw new ConversionException("Cannot probe " + args[0]);
+        });
+    final var meterRegistry = new SimpleMeterRegistry();
+
+    return new MediaUnboxer(engine, ForkJoinPool.commonPool(),
+        new TimeBudgetEstimator(Duration.ofSeconds(1), Duration.ofMinutes(1), 2, 0.2, 1e6, 1,
+            meterRegistry), ExtractionMode.PER_STREAM,
+        new FFmpegProcessScheduler(1, Map.of(), new StageStats(), meterRegistry),
+        new StageStats(), true, false, Duration.ZERO);
+  }
+
+  private static byte[] concat(byte[]... parts) {
+    final var out = new ByteArrayOutputStream();
+
+    for (byte[] part : parts) {
+      out.writeBytes(part);
+    }
+
+    return out.toByteArray();
+  }
+
+  /**
+   * File with the EBML header of the document type and a segment of the children.
+   */
+  private static byte[] matroska(String docType, byte[]... segmentChildren) {
+    return concat(ebmlHeader(docType), element(SEGMENT, segmentChildren));
+  }
+
+  /**
+   * Same as {@link #matroska(String, byte[]...)} with a segment of unknown size, as written by live
+   * muxers.
+   */
+  private static byte[] matroskaLive(String docType, byte[]... segmentChildren) {
+    return concat(ebmlHeader(docType), id(SEGMENT),
+        new byte[]{0x01, -1, -1, -1, -1, -1, -1, -1}, concat(segmentChildren));
+  }
+
+  private static byte[] ebmlHeader(String docType) {
+    return element(EBML,
+        uint(EBML_VERSION, 1),
+        uint(EBML_READ_VERSION, 1),
+        uint(EBML_MAX_ID_LENGTH, 4),
+        uint(EBML_MAX_SIZE_LENGTH, 8),
+        string(DOC_TYPE, docType),
+        uint(DOC_TYPE_VERSION, 4),
+        uint(DOC_TYPE_READ_VERSION, 2));
+  }
+
+  /**
+   * Segment info with the default timestamp scale of 1 ms.
+   */
+  private static byte[] info(byte[] duration) {
+    return element(INFO, uint(TIMESTAMP_SCALE, 1_000_000), string(MUXING_APP, "Lavf60.16.100"),
+        duration);
+  }
+
+  private static byte[] track(int number, int type, String codecId, byte[]... settings) {
+    return element(TRACK_ENTRY, concat(
+        uint(TRACK_NUMBER, number),
+        uint(TRACK_TYPE, type),
+        string(CODEC_ID, codecId),
+        concat(settings)));
+  }
+
+  private static byte[] videoTrack(int number, String codecId, int width, int height,
+      long defaultDuration, byte[]... videoSettings) {
+    return track(number, VIDEO_TRACK, codecId,
+        uint(DEFAULT_DURATION, defaultDuration),
+        element(VIDEO, uint(PIXEL_WIDTH, width), uint(PIXEL_HEIGHT, height),
+            concat(videoSettings)));
+  }
+
+  /**
+   * Colour element with the code points of ISO/IEC 23091-4 and the range, 1 for limited.
+   */
+  private static byte[] colour(int range, int matrix, int transfer, int primaries) {
+    return element(COLOUR, uint(MATRIX_COEFFICIENTS, matrix), uint(RANGE, range),
+        uint(TRANSFER_CHARACTERISTICS, transfer), uint(PRIMARIES, primaries));
+  }
+
+  private static byte[] audio(double samplingFrequency, int channels) {
+    return element(AUDIO, float64(SAMPLING_FREQUENCY, samplingFrequency),
+        uint(CHANNELS, channels));
+  }
+
+  private static byte[] cluster(int payloadBytes) {
+    return element(CLUSTER, uint(TIMESTAMP, 0), new byte[payloadBytes]);
+  }
+
+  private static byte[] element(long id, byte[]... data) {
+    final var payload = concat(data);
+    return concat(id(id), size(payload.length), payload);
+  }
+
+  private static byte[] uint(long id, long value) {
+    final int length = Math.max(1, (64 - Long.numberOfLeadingZeros(value) + 7) / 8);
+    return element(id, Arrays.copyOfRange(ByteBuffer.allocate(Long.BYTES).putLong(value).array(),
+        Long.BYTES - length, Long.BYTES));
+  }
+
+  private static byte[] string(long id, String value) {
+    return element(id, value.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static byte[] float32(long id, float value) {
+    return element(id, ByteBuffer.allocate(Float.BYTES).putFloat(value).array());
+  }
+
+  private static byte[] float64(long id, double value) {
+    return element(id, ByteBuffer.allocate(Double.BYTES).putDouble(value).array());
+  }
+
+  /**
+   * Ids are written with their length marker.
+   */
+  private static byte[] id(long id) {
+    final int length = (64 - Long.numberOfLeadingZeros(id) + 7) / 8;
+    return Arrays.copyOfRange(ByteBuffer.allocate(Long.BYTES).putLong(id).array(),
+        Long.BYTES - length, Long.BYTES);
+  }
+
+  /**
+   * Shortest variable size integer of the size, the all ones value is reserved for unknown sizes.
+   */
+  private static byte[] size(long size) {
+    int length = 1;
+
+    while (length < 8 && size >= (1L << (7 * length)) - 1) {
+      length++;
+    }
+
+    final var bytes = Arrays.copyOfRange(ByteBuffer.allocate(Long.BYTES).putLong(size).array(),
+        Long.BYTES - length, Long.BYTES);
+    bytes[0] |= (byte) (0x80 >> (length - 1));
+    return bytes;
+  }
+}
@@ -0,0 +1,432 @@
+package io.github.akmal2409.ets.unboxing;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import io.github.akmal2409.ets.control.StageStats;
+import io.github.akmal2409.ets.unboxing.MediaStreams.AudioDetails;
+import io.github.akmal2409.ets.unboxing.MediaStreams.AudioStream;
+import io.github.akmal2409.ets.unboxing.MediaStreams.Subtitles;
+import io.github.akmal2409.ets.unboxing.MediaStreams.VideoDetails;
+import io.github.akmal2409.ets.unboxing.MediaStreams.VideoStream;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * The headers are built box by box the way ffmpeg's MP4 and MOV muxers write them. The expected
+ * streams are the ones ffprobe reports for the same headers, the frame rate is its
+ * {@code avg_frame_rate}, e.g. {@code 24000/1001} for 240 samples of 1001 ticks at 24000 Hz.
+ */
+class Mp4MetadataParserTest {
+
+  /**
+   * Packed ISO 639-2/T codes of the {@code mdhd} box.
+   */
+  private static final int UND = 0x55C4;
+  private static final int ENG = 0x15C7;
+  private static final int NO_LANGUAGE = 0x7FFF;
+  private static final AudioDetails STEREO_48K = new AudioDetails(48_000, 2, "stereo");
+  private static final VideoDetails UNSPECIFIED_COLOR =
+      VideoDetails.of(null, null, null, null, null);
+
+  @TempDir
+  Path directory;
+
+  @Test
+  void parsesFastStartMp4() throws IOException {
+    final var file = write("movie.mp4", concat(
+        ftyp("isom", "isom", "iso2", "avc1", "mp41"),
+        box("moov",
+            mvhd(1000, 10_010),
+            trak(mdhd(24_000, 240_240, UND), "vide",
+                visualSampleEntry("avc1", 1280, 720, box("avcC", new byte[16]),
+                    colr(1, 1, 1, false)), 240, 1001),
+            trak(mdhd(48_000, 480_480, ENG), "soun",
+                audioSampleEntry("mp4a", 0, esds(0x40)), 469, 1024),
+            trak(mdhd(1000, 10_010, NO_LANGUAGE), "sbtl", textSampleEntry("tx3g"), 3,
+                3336)),
+        box("free"),
+        box("mdat", new byte[256])));
+
+    assertThat(ContainerMetadataParser.parse(file)).isEqualTo(Optional.of(new MediaStreams(
+        List.of(new VideoStream(0, "h264", 720, 1280, 24000 / 1001.0,
+            VideoDetails.of(null, "tv", "bt709", "bt709", "bt709"))),
+        List.of(new AudioStream(1, "aac", "eng", STEREO_48K)),
+        List.of(new Subtitles(2, "mov_text", null)),
+        "mov,mp4,m4a,3gp,3g2,mj2", 10.01)));
+  }
+
+  @Test
+  void parsesMovWithMoovAfterLargeMdat() throws IOException {
+    final var file = write("movie.mov", concat(
+        ftyp("qt  ", "qt  "),
+        box("wide"),
+        largeBox("mdat", new byte[1024]),
+        box("moov",
+            mvhdV1(600, 6006),
+            trak(mdhdV1(60_000, 600_600, UND), "vide",
+                visualSampleEntry("hvc1", 3840, 2160, box("hvcC", new byte[23]),
+                    colr(9, 16, 9, true)), 600, 1001),
+            trak(mdhd(48_000, 480_480, ENG), "soun",
+                audioSampleEntry("mp4a", 1, esds(0x40)), 469, 1024),
+            trak(mdhd(48_000, 480_480, UND), "soun",
+                audioSampleEntry("ac-3", 0, box("dac3", new byte[3])), 313, 1536))));
+
+    assertThat(ContainerMetadataParser.parse(file)).isEqualTo(Optional.of(new MediaStreams(
+        List.of(new VideoStream(0, "hevc", 2160, 3840, 60000 / 1001.0,
+            VideoDetails.of(null, "pc", "bt2020nc", "smpte2084", "bt2020"))),
+        List.of(new AudioStream(1, "aac", "eng", STEREO_48K),
+            new AudioStream(2, "ac3", "und", STEREO_48K)),
+        List.of(),
+        "mov,mp4,m4a,3gp,3g2,mj2", 10.01)));
+  }
+
+  @Test
+  void averagesVariableFrameDurations() throws IOException {
+    final var file = write("vfr.mp4", concat(
+        ftyp("isom", "isom"),
+        box("moov",
+            mvhd(1000, 6667),
+            trak(mdhd(30_000, 200_000, UND), "vide", visualSampleEntry("av01", 1920, 1080),
+                100, 1000, 50, 2000))));
+
+    assertThat(ContainerMetadataParser.parse(file)).isEqualTo(Optional.of(new MediaStreams(
+        List.of(new VideoStream(0, "av1", 1080, 1920, 22.5, UNSPECIFIED_COLOR)), List.of(),
+        List.of(),
+        "mov,mp4,m4a,3gp,3g2,mj2", 6.667)));
+  }
+
+  @Test
+  void readsQuickTimeColourAndSoundDescriptionV2() throws IOException {
+    final var file = write("prores.mov", concat(
+        ftyp("qt  ", "qt  "),
+        box("moov",
+            mvhd(600, 6000),
+            trak(mdhd(25, 250, UND), "vide",
+                visualSampleEntry("avc1", 1920, 1080, box("avcC", new byte[16]),
+                    box("colr", fourCc("nclc"), int16(1), int16(1), int16(6))), 250, 1),
+            trak(mdhd(96_000, 960_000, ENG), "soun",
+                soundDescriptionV2("ac-3", 96_000, 6, box("dac3", new byte[3])), 313, 3072))));
+
+    // the range of QuickTime colour parameters is left to the codec
+    assertThat(ContainerMetadataParser.parse(file)).isEqualTo(Optional.of(new MediaStreams(
+        List.of(new VideoStream(0, "h264", 1080, 1920, 25.0,
+            VideoDetails.of(null, null, "smpte170m", "bt709", "bt709"))),
+        List.of(new AudioStream(1, "ac3", "eng", new AudioDetails(96_000, 6, null))),
+        List.of(), "mov,mp4,m4a,3gp,3g2,mj2", 10.0)));
+  }
+
+  @Test
+  void analysesParsedSourceWithoutProbe() throws IOException {
+    final var content = concat(
+        ftyp("isom", "isom"),
+        box("moov",
+            mvhd(1000, 10_000),
+            trak(mdhd(25, 250, UND), "vide", visualSampleEntry("avc1", 1280, 720), 250, 1),
+            trak(mdhd(48_000, 480_000, ENG), "soun",
+                audioSampleEntry("mp4a", 0, esds(0x40)), 469, 1024)),
+        box("mdat", new byte[256]));
+    final var probed = new ArrayList<Path>();
+
+    final var remoteStreams = newUnboxer(probed).analyseRemoteStreams(UUID.randomUUID(),
+        (offset, length) -> Arrays.copyOfRange(content, (int) offset,
+            (int) Math.min(content.length, offset + length)),
+        content.length, directory.resolve("probe"));
+
+    assertThat(remoteStreams.map(RemoteStreams::streams))
+        .isEqualTo(ContainerMetadataParser.parse(write("movie.mp4", content)));
+    assertThat(probed).isEmpty();
+  }
+
+  @Test
+  void fallsBackOnFragmentedFile() throws IOException {
+    assertFallsBack(concat(
+        ftyp("iso6", "iso6", "dash"),
+        box("moov",
+            mvhd(1000, 0),
+            trak(mdhd(24_000, 0, UND), "vide", visualSampleEntry("avc1", 1280, 720)),
+            box("mvex", fullBox("trex", 0, new byte[20])))));
+  }
+
+  @Test
+  void fallsBackOnUnknownSampleEntry() throws IOException {
+    assertFallsBack(concat(
+        ftyp("3gp4", "3gp4"),
+        box("moov",
+            mvhd(1000, 10_000),
+            trak(mdhd(30_000, 300_000, UND), "vide", visualSampleEntry("s263", 176, 144),
+                300, 1000))));
+  }
+
+  @Test
+  void fallsBackWithoutMoov() throws IOException {
+    assertFallsBack(concat(ftyp("isom", "isom"), box("mdat", new byte[64])));
+  }
+
+  @Test
+  void fallsBackOnChapterTrack() throws IOException {
+    // ffprobe lists the referenced text track as data, not as subtitles
+    assertFallsBack(concat(
+        ftyp("M4A ", "M4A ", "mp42"),
+        box("moov",
+            mvhd(1000, 10_000),
+            trak(box("tref", box("chap", int32(2))), mdhd(44_100, 441_000, ENG), "soun",
+                audioSampleEntry("mp4a", 0, esds(0x40)), 431, 1024),
+            trak(mdhd(1000, 10_000, ENG), "text", textSampleEntry("text"), 1, 10_000))));
+  }
+
+  @Test
+  void fallsBackOnEsdsInsideWaveAtom() throws IOException {
+    // QuickTime sound descriptions written by ffmpeg nest the descriptor
+    assertFallsBack(concat(
+        ftyp("qt  ", "qt  "),
+        box("moov",
+            mvhd(1000, 10_000),
+            trak(mdhd(48_000, 480_000, ENG), "soun",
+                audioSampleEntry("mp4a", 1, box("wave", box("frma", fourCc("mp4a")),
+                    esds(0x40))), 469, 1024))));
+  }
+
+  @Test
+  void fallsBackOnMacintoshLanguageCode() throws IOException {
+    assertFallsBack(concat(
+        ftyp("qt  ", "qt  "),
+        box("moov",
+            mvhd(600, 6000),
+            trak(mdhd(48_000, 480_000, 2), "soun", audioSampleEntry("ac-3", 0), 313, 1536))));
+  }
+
+  @Test
+  void fallsBackOnTruncatedMoov() throws IOException {
+    final var file = concat(
+        ftyp("isom", "isom"),
+        box("moov",
+            mvhd(1000, 10_010),
+            trak(mdhd(24_000, 240_240, UND), "vide", visualSampleEntry("avc1", 1280, 720),
+                240, 1001),
+            trak(mdhd(48_000, 480_480, ENG), "soun",
+                audioSampleEntry("mp4a", 0, esds(0x40)), 469, 1024)));
+
+    assertFallsBack(Arrays.copyOf(file, file.length - 32));
+  }
+
+  @Test
+  void fallsBackOnUnknownTopLevelBox() throws IOException {
+    assertFallsBack(Arrays.copyOf(fourCc("RIFF\0\0\0\0AVI LIST"), 64));
+  }
+
+  private void assertFallsBack(byte[] content) throws IOException {
+    assertThat(ContainerMetadataParser.parse(write("fallback.mp4", content)))
+        .isEqualTo(Optional.empty());
+  }
+
+  private Path write(String name, byte[] content) throws IOException {
+    return Files.write(directory.resolve(name), content);
+  }
+
+  /**
+   * Unboxer that parses the containers and records the media the engine is asked to probe.
+   */
+  private static MediaUnboxer newUnboxer(List<Path> probed) {
+    final var engine = (UnboxingEngine) Proxy.newProxyInstance(
+        UnboxingEngine.class.getClassLoader(), new Class<?>[]{UnboxingEngine.class},
+        (proxy, method, args) -> {
+          if (!method.getName().equals("probe")) {
+            throw new UnsupportedOperationException(method.getName());
+          }
+          probed.add((Path) args[0]);
+          throw new ConversionException("Cannot probe " + args[0]);
+        });
+    final var meterRegistry = new SimpleMeterRegistry();
+
+    return new MediaUnboxer(engine, ForkJoinPool.commonPool(),
+        new TimeBudgetEstimator(Duration.ofSeconds(1), Duration.ofMinutes(1), 2, 0.2, 1e6, 1,
+            meterRegistry), ExtractionMode.PER_STREAM,
+        new FFmpegProcessScheduler(1, Map.of(), new StageStats(), meterRegistry),
+        new StageStats(), true, false, Duration.ZERO);
+  }
+
+  private static byte[] concat(byte[]... parts) {
+    final var out = new ByteArrayOutputStream();
+
+    for (byte[] part : parts) {
+      out.writeBytes(part);
+    }
+
+    return out.toByteArray();
+  }
+
+  private static byte[] box(String type, byte[]... data) {
+    final var payload = concat(data);
+    return concat(int32(8 + payload.length), fourCc(type), payload);
+  }
+
+  /**
+   * Box with a 64-bit size, as written for an {@code mdat} bigger than 4 GiB.
+   */
+  private static byte[] largeBox(String type, byte[]... data) {
+    final var payload = concat(data);
+    return concat(int32(1), fourCc(type), int64(16L + payload.length), payload);
+  }
+
+  private static byte[] fullBox(String type, int version, byte[]... data) {
+    return box(type, int32(version << 24), concat(data));
+  }
+
+  private static byte[] ftyp(String majorBrand, String... compatibleBrands) {
+    return box("ftyp", fourCc(majorBrand), int32(0x200),
+        fourCc(String.join("", compatibleBrands)));
+  }
+
+  private static byte[] mvhd(long timescale, long duration) {
+    return fullBox("mvhd", 0, int32(0), int32(0), int32((int) timescale), int32((int) duration),
+        int32(0x00010000), int16(0x0100), new byte[10], matrix(), new byte[24], int32(4));
+  }
+
+  private static byte[] mvhdV1(long timescale, long duration) {
+    return fullBox("mvhd", 1, int64(0), int64(0), int32((int) timescale), int64(duration),
+        int32(0x00010000), int16(0x0100), new byte[10], matrix(), new byte[24], int32(4));
+  }
+
+  private static byte[] mdhd(long timescale, long duration, int language) {
+    return fullBox("mdhd", 0, int32(0), int32(0), int32((int) timescale), int32((int) duration),
+        int16(language), int16(0));
+  }
+
+  private static byte[] mdhdV1(long timescale, long duration, int language) {
+    return fullBox("mdhd", 1, int64(0), int64(0), int32((int) timescale), int64(duration),
+        int16(language), int16(0));
+  }
+
+  private static byte[] hdlr(String handler, String name) {
+    return fullBox("hdlr", 0, int32(0), fourCc(handler), new byte[12],
+        (name + "\0").getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Track with a single sample description and the sample durations given as pairs of count and
+   * delta.
+   */
+  private static byte[] trak(byte[] mdhd, String handler, byte[] sampleEntry, int... stts) {
+    return trak(new byte[0], mdhd, handler, sampleEntry, stts);
+  }
+
+  private static byte[] trak(byte[] tref, byte[] mdhd, String handler, byte[] sampleEntry,
+      int... stts) {
+    final var timeToSample = new ByteArrayOutputStream();
+    timeToSample.writeBytes(int32(stts.length / 2));
+
+    for (int value : stts) {
+      timeToSample.writeBytes(int32(value));
+    }
+
+    return box("trak",
+        fullBox("tkhd", 0, new byte[80]),
+        tref,
+        box("mdia",
+            mdhd,
+            hdlr(handler, "Handler"),
+            box("minf",
+                box("dinf", fullBox("dref", 0, int32(1), fullBox("url ", 0))),
+                box("stbl",
+                    fullBox("stsd", 0, int32(1), sampleEntry),
+                    fullBox("stts", 0, timeToSample.toByteArray()),
+                    fullBox("stsc", 0, int32(0)),
+                    fullBox("stsz", 0, int32(0), int32(0)),
+                    fullBox("stco", 0, int32(0))))));
+  }
+
+  private static byte[] visualSampleEntry(String type, int width, int height, byte[]... children) {
+    return box(type, new byte[6], int16(1), new byte[16], int16(width), int16(height),
+        int32(0x00480000), int32(0x00480000), int32(0), int16(1), new byte[32], int16(0x18),
+        int16(0xFFFF), concat(children));
+  }
+
+  /**
+   * QuickTime sound description, version 1 adds four fields of 4 bytes.
+   */
+  private static byte[] audioSampleEntry(String type, int version, byte[]... children) {
+    return box(type, new byte[6], int16(1), int16(version), int16(0), int32(0), int16(2),
+        int16(16), int16(version == 1 ? 0xFFFE : 0), int16(0), int32(48_000 << 16),
+        version == 1 ? concat(int32(1024), int32(0), int32(0), int32(2)) : new byte[0],
+        concat(children));
+  }
+
+  /**
+   * QuickTime sound description of version 2, the fields of version 0 hold fixed values and the
+   * sample rate and channels follow them.
+   */
+  private static byte[] soundDescriptionV2(String type, double sampleRate, int channels,
+      byte[]... children) {
+    return box(type, new byte[6], int16(1), int16(2), int16(0), int32(0), int16(3), int16(16),
+        int16(0xFFFE), int16(0), int32(0x00010000), int32(72),
+        ByteBuffer.allocate(Double.BYTES).putDouble(sampleRate).array(), int32(channels),
+        int32(0x7F000000), int32(16), int32(0), int32(0), int32(1536), concat(children));
+  }
+
+  /**
+   * {@code colr} box of type {@code nclx} with the code points of ISO/IEC 23091-4.
+   */
+  private static byte[] colr(int primaries, int transfer, int matrix, boolean fullRange) {
+    return box("colr", fourCc("nclx"), int16(primaries), int16(transfer), int16(matrix),
+        new byte[]{(byte) (fullRange ? 0x80 : 0)});
+  }
+
+  private static byte[] textSampleEntry(String type) {
+    return box(type, new byte[6], int16(1), new byte[30]);
+  }
+
+  /**
+   * Elementary stream descriptor with descriptor lengths padded to 4 bytes like ffmpeg writes them.
+   */
+  private static byte[] esds(int objectType) {
+    final var decoderSpecificInfo = descriptor(0x05, new byte[]{0x11, (byte) 0x90});
+    final var decoderConfig = descriptor(0x04, concat(new byte[]{(byte) objectType, 0x15},
+        new byte[3], int32(128_000), int32(128_000), decoderSpecificInfo));
+    final var slConfig = descriptor(0x06, new byte[]{0x02});
+
+    return fullBox("esds", 0, descriptor(0x03, concat(int16(1), new byte[]{0}, decoderConfig,
+        slConfig)));
+  }
+
+  private static byte[] int16(int value) {
+    return ByteBuffer.allocate(Short.BYTES).putShort((short) value).array();
+  }
+
+  private static byte[] int32(int value) {
+    return ByteBuffer.allocate(Integer.BYTES).putInt(value).array();
+  }
+
+  private static byte[] int64(long value) {
+    return ByteBuffer.allocate(Long.BYTES).putLong(value).array();
+  }
+
+  private static byte[] fourCc(String value) {
+    return value.getBytes(StandardCharsets.ISO_8859_1);
+  }
+
+  private static byte[] descriptor(int tag, byte[] content) {
+    return concat(new byte[]{(byte) tag, (byte) 0x80, (byte) 0x80, (byte) 0x80,
+        (byte) content.length}, content);
+  }
+
+  private static byte[] matrix() {
+    return concat(int32(0x00010000), int32(0), int32(0), int32(0), int32(0x00010000), int32(0),
+        int32(0), int32(0), int32(0x40000000));
+  }
+}
@@ -0,0 +1,123 @@
+package io.github.akmal2409.ets.unboxing;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import org.junit.jupiter.api.Test;
+
+class PacketIndexParserTest {
+
+  /**
+   * Output of {@code ffprobe -select_streams v:0 -show_entries
+   * stream=time_base:packet=pts,dts,size,pos,flags -of csv} for the start of an MKV with B-frames,
+   * the packets are printed before the stream.
+   */
+  private static final String MATROSKA_PACKETS = """
+      packet,0,-83,28476,5037,K__
+      packet,167,-42,2213,33525,___
+      packet,83,0,612,35750,___
+      packet,42,42,501,36374,___
+      packet,N/A,83,1024,N/A,_D_
+      stream,1/1000
+      """;
+
+  @Test
+  void parsesPacketsAndTimeBase() throws IOException {
+    final var index = parse(MATROSKA_PACKETS);
+
+    assertThat(index.size()).isEqualTo(5);
+    assertThat(index.timeBaseNum()).isEqualTo(1);
+    assertThat(index.timeBaseDen()).isEqualTo(1000);
+
+    assertThat(index.pts(0)).isZero();
+    assertThat(index.dts(0)).isEqualTo(-83L);
+    assertThat(index.packetSize(0)).isEqualTo(28476);
+    assertThat(index.position(0)).isEqualTo(5037L);
+    assertThat(index.isKeyframe(0)).isTrue();
+
+    assertThat(index.pts(1)).isEqualTo(167L);
+    assertThat(index.dts(1)).isEqualTo(-42L);
+    assertThat(index.isKeyframe(1)).isFalse();
+  }
+
+  @Test
+  void marksMissingValuesUnknown() throws IOException {
+    final var index = parse(MATROSKA_PACKETS);
+
+    assertThat(index.pts(4)).isEqualTo(PacketIndex.UNKNOWN);
+    assertThat(index.dts(4)).isEqualTo(83L);
+    assertThat(index.packetSize(4)).isEqualTo(1024);
+    assertThat(index.position(4)).isEqualTo(PacketIndex.UNKNOWN);
+    assertThat(index.isKeyframe(4)).isFalse();
+  }
+
+  @Test
+  void acceptsCrlfAndUnterminatedLastLine() throws IOException {
+    final var index = parse("stream,1/90000\r\npacket,3003,0,4096,564,K_\r\npacket,6006,3003,"
+                                + "512,4660,__");
+
+    assertThat(index.size()).isEqualTo(2);
+    assertThat(index.timeBaseDen()).isEqualTo(90000);
+    assertThat(index.pts(0)).isEqualTo(3003L);
+    assertThat(index.position(0)).isEqualTo(564L);
+    assertThat(index.isKeyframe(0)).isTrue();
+    assertThat(index.pts(1)).isEqualTo(6006L);
+    assertThat(index.position(1)).isEqualTo(4660L);
+    assertThat(index.isKeyframe(1)).isFalse();
+  }
+
+  @Test
+  void keepsFirstTimeBaseAndSkipsIncompleteLines() throws IOException {
+    final var index = parse("""
+        stream,1/1000
+        packet,0,0
+        packet,40,40,100,200,K__
+        stream,1/90000
+        """);
+
+    assertThat(index.size()).isEqualTo(1);
+    assertThat(index.pts(0)).isEqualTo(40L);
+    assertThat(index.timeBaseNum()).isEqualTo(1);
+    assertThat(index.timeBaseDen()).isEqualTo(1000);
+  }
+
+  @Test
+  void parsesEmptyOutput() throws IOException {
+    final var index = parse("");
+
+    assertThat(index.size()).isZero();
+    assertThat(index.timeBaseDen()).isZero();
+  }
+
+  @Test
+  void parsesLinesAcrossReadBuffers() throws IOException {
+    final var csv = new StringBuilder();
+    final int packets = 20_000;
+
+    for (int i = 0; i < packets; i++) {
+      csv.append("packet,").append(i * 40L).append(',').append(i * 40L - 80).append(',')
+          .append(1000 + i).append(',').append(100_000L * i).append(',')
+          .append(i % 250 == 0 ? "K__" : "___").append('\n');
+    }
+    csv.append("stream,1/1000\n");
+
+    final var index = parse(csv.toString());
+
+    assertThat(index.size()).isEqualTo(packets);
+
+    for (int i = 0; i < packets; i++) {
+      assertThat(index.pts(i)).isEqualTo(i * 40L);
+      assertThat(index.dts(i)).isEqualTo(i * 40L - 80);
+      assertThat(index.packetSize(i)).isEqualTo(1000 + i);
+      assertThat(index.position(i)).isEqualTo(100_000L * i);
+      assertThat(index.isKeyframe(i)).isEqualTo(i % 250 == 0);
+    }
+  }
+
+  private static PacketIndex parse(String csv) throws IOException {
+    return PacketIndexParser.parse(
+        new ByteArrayInputStream(csv.getBytes(StandardCharsets.US_ASCII)));
+  }
+}
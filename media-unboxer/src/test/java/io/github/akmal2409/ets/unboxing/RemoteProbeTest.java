@@ -0,0 +1,252 @@
+package io.github.akmal2409.ets.unboxing;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import io.github.akmal2409.ets.unboxing.RemoteProbe.ProbeFile;
+import io.github.akmal2409.ets.unboxing.RemoteProbe.RangeReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Only the layout of the containers matters to the probe, so the sources are made of the leading
+ * magic or the top level boxes with patterned payloads.
+ */
+class RemoteProbeTest {
+
+  private static final int MIB = 1 << 20;
+  private static final byte[] EBML_HEADER = {0x1A, 0x45, (byte) 0xDF, (byte) 0xA3, (byte) 0x9F,
+      0x42, (byte) 0x82, (byte) 0x88, 'm', 'a', 't', 'r', 'o', 's', 'k', 'a'};
+
+  /**
+   * Source served from memory that records the offsets of the reads.
+   */
+  private static final class Source implements RangeReader {
+
+    private final byte[] data;
+    private final List<Long> reads = new ArrayList<>();
+
+    private Source(byte[] data) {
+      this.data = data;
+    }
+
+    @Override
+    public byte[] read(long offset, int length) {
+      reads.add(offset);
+      return Arrays.copyOfRange(data, (int) offset,
+          (int) Math.min(data.length, offset + length));
+    }
+  }
+
+  @TempDir
+  Path directory;
+
+  @Test
+  void fetchesHeadAndTailOfMatroska() throws IOException {
+    final var source = new Source(concat(EBML_HEADER, pattern(3 * MIB)));
+
+    final var probe = write(source, source.data.length).orElseThrow();
+
+    assertThat(probe.indexed()).isTrue();
+    assertThat(probe.fetchedBytes()).isEqualTo(2L * MIB);
+    assertThat(source.reads).containsExactly(0L, (long) source.data.length - MIB);
+    assertSameRange(source.data, probe.path(), 0, MIB);
+    assertSameRange(source.data, probe.path(), source.data.length - MIB, source.data.length);
+    assertHole(probe.path(), MIB, source.data.length - MIB);
+  }
+
+  @Test
+  void fetchesMoovAtTheEnd() throws IOException {
+    final var moov = box("moov", pattern(4096));
+    final var source = new Source(concat(
+        ftyp(),
+        box("free"),
+        box("mdat", pattern(3 * MIB)),
+        moov));
+
+    final var probe = write(source, source.data.length).orElseThrow();
+    final long moovOffset = source.data.length - moov.length;
+
+    assertThat(probe.indexed()).isTrue();
+    // head, box header after the mdat, moov
+    assertThat(probe.fetchedBytes()).isEqualTo((long) MIB + 16 + moov.length);
+    assertThat(source.reads).containsExactly(0L, moovOffset, moovOffset);
+    assertSameRange(source.data, probe.path(), 0, MIB);
+    assertSameRange(source.data, probe.path(), (int) moovOffset, source.data.length);
+    assertHole(probe.path(), MIB, (int) moovOffset);
+  }
+
+  @Test
+  void fetchesMoovAfterLargeMdat() throws IOException {
+    final var moov = box("moov", pattern(4096));
+    final var source = new Source(concat(ftyp(), largeBox("mdat", pattern(2 * MIB)), moov));
+
+    final var probe = write(source, source.data.length).orElseThrow();
+
+    assertThat(probe.fetchedBytes()).isEqualTo((long) MIB + 16 + moov.length);
+    assertSameRange(source.data, probe.path(), source.data.length - moov.length,
+        source.data.length);
+  }
+
+  @Test
+  void fetchesOnlyHeadOfFastStartMp4() throws IOException {
+    final var source = new Source(concat(
+        ftyp(),
+        box("moov", pattern(4096)),
+        box("mdat", pattern(2 * MIB))));
+
+    final var probe = write(source, source.data.length).orElseThrow();
+
+    assertThat(probe.fetchedBytes()).isEqualTo((long) MIB);
+    assertThat(source.reads).containsExactly(0L);
+    assertSameRange(source.data, probe.path(), 0, MIB);
+  }
+
+  @Test
+  void fetchesWholeSmallSourceOnce() throws IOException {
+    final var source = new Source(concat(ftyp(), box("mdat", pattern(512)),
+        box("moov", pattern(256))));
+
+    final var probe = write(source, source.data.length).orElseThrow();
+
+    assertThat(probe.fetchedBytes()).isEqualTo((long) source.data.length);
+    assertThat(source.reads).containsExactly(0L);
+    assertThat(Files.readAllBytes(probe.path())).isEqualTo(source.data);
+  }
+
+  @Test
+  void marksTransportStreamNotIndexed() throws IOException {
+    final var packets = new byte[14_000 * 188];
+
+    for (int offset = 0; offset < packets.length; offset += 188) {
+      packets[offset] = 0x47;
+    }
+
+    final var source = new Source(packets);
+    final var probe = write(source, packets.length).orElseThrow();
+
+    assertThat(probe.indexed()).isFalse();
+    assertThat(probe.fetchedBytes()).isEqualTo(2L * MIB);
+    assertThat(Files.size(probe.path())).isEqualTo((long) packets.length);
+  }
+
+  @Test
+  void skipsUnknownContainer() throws IOException {
+    final var source = new Source(concat(fourCc("RIFF"), int32(2 * MIB), fourCc("AVI LIST"),
+        pattern(2 * MIB)));
+
+    assertThat(write(source, source.data.length)).isEqualTo(Optional.empty());
+    assertThat(source.reads).containsExactly(0L);
+  }
+
+  @Test
+  void skipsMp4WithoutLeadingFtyp() throws IOException {
+    final var source = new Source(concat(box("mdat", pattern(1024)), box("moov", pattern(64))));
+
+    assertThat(write(source, source.data.length)).isEqualTo(Optional.empty());
+  }
+
+  @Test
+  void skipsMp4WithoutMoov() throws IOException {
+    final var source = new Source(concat(ftyp(), box("mdat", pattern(2 * MIB))));
+
+    assertThat(write(source, source.data.length)).isEqualTo(Optional.empty());
+  }
+
+  @Test
+  void skipsMoovBiggerThanHeaderLimit() throws IOException {
+    final var ftyp = ftyp();
+    // only the box header is present, the declared size is never fetched
+    final var source = new Source(concat(ftyp,
+        int32(ContainerSniffer.MAX_HEADER_BYTES + 1), fourCc("moov")));
+
+    assertThat(write(source, ftyp.length + ContainerSniffer.MAX_HEADER_BYTES + 1L))
+        .isEqualTo(Optional.empty());
+    // head and the header of the moov box
+    assertThat(source.reads).containsExactly(0L, (long) ftyp.length);
+  }
+
+  @Test
+  void skipsEmptySource() throws IOException {
+    final var source = new Source(new byte[0]);
+
+    assertThat(write(source, 0)).isEqualTo(Optional.empty());
+    assertThat(source.reads).isEmpty();
+  }
+
+  private Optional<ProbeFile> write(Source source, long objectSize) throws IOException {
+    return RemoteProbe.write(source, objectSize, directory.resolve("probe"));
+  }
+
+  private static void assertSameRange(byte[] source, Path probe, int from, int to)
+      throws IOException {
+    final var probed = Files.readAllBytes(probe);
+
+    assertThat(probed.length).isEqualTo(source.length);
+    assertThat(Arrays.copyOfRange(probed, from, to))
+        .isEqualTo(Arrays.copyOfRange(source, from, to));
+  }
+
+  private static void assertHole(Path probe, int from, int to) throws IOException {
+    final var probed = Files.readAllBytes(probe);
+
+    assertThat(Arrays.copyOfRange(probed, from, to)).isEqualTo(new byte[to - from]);
+  }
+
+  private static byte[] ftyp() {
+    return box("ftyp", fourCc("isom"), int32(0x200), fourCc("isomiso2avc1mp41"));
+  }
+
+  private static byte[] box(String type, byte[]... data) {
+    final var payload = concat(data);
+    return concat(int32(8 + payload.length), fourCc(type), payload);
+  }
+
+  /**
+   * Box with a 64-bit size, as written for an {@code mdat} bigger than 4 GiB.
+   */
+  private static byte[] largeBox(String type, byte[] payload) {
+    return concat(int32(1), fourCc(type),
+        ByteBuffer.allocate(Long.BYTES).putLong(16L + payload.length).array(), payload);
+  }
+
+  /**
+   * Payload without zeros, so the holes of the probe file stand out.
+   */
+  private static byte[] pattern(int size) {
+    final var data = new byte[size];
+
+    for (int i = 0; i < size; i++) {
+      data[i] = (byte) (1 + i % 251);
+    }
+
+    return data;
+  }
+
+  private static byte[] int32(int value) {
+    return ByteBuffer.allocate(Integer.BYTES).putInt(value).array();
+  }
+
+  private static byte[] fourCc(String value) {
+    return value.getBytes(StandardCharsets.ISO_8859_1);
+  }
+
+  private static byte[] concat(byte[]... parts) {
+    final var out = new ByteArrayOutputStream();
+
+    for (byte[] part : parts) {
+      out.writeBytes(part);
+    }
+
+    return out.toByteArray();
+  }
+}
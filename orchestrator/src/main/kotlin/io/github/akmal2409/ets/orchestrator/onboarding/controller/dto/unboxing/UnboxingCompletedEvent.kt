@@ -4,23 +4,75 @@ import io.github.akmal2409.ets.orchestrator.onboarding.domain.UnboxingJob
 import java.util.*
 
 data class VideoDto(
-    val filename: String, val codec: String, val width: Int, val height: Int
+    val filename: String, val codec: String, val width: Int, val height: Int,
+    val packetIndex: String? = null, // binary sidecar with the packets of the video
+    val chunks: List<ChunkDto>? = null, // keyframe aligned parts of the video when chunked
+    val fps: Double? = null,
+    val details: VideoDetailsDto? = null,
+    val output: OutputDto? = null,
+    val packetIndexOutput: OutputDto? = null // size and checksum of the packet index
 )
 
+data class ChunkDto(
+    val filename: String, val startPts: Long, val durationSeconds: Double, val sizeBytes: Long,
+    val sha256: String? = null
+)
+
+data class VideoDetailsDto(
+    val pixelFormat: String?, val colorRange: String?, val colorSpace: String?,
+    val colorTransfer: String?, val colorPrimaries: String?, val hdr: Boolean
+) {
+    fun toDomain() = UnboxingJob.UnboxedFiles.VideoDetails(
+        pixelFormat, colorRange, colorSpace, colorTransfer, colorPrimaries, hdr
+    )
+}
+
 data class AudioDto(
-    val filename: String, val codec: String, val lang: String
+    val filename: String, val codec: String, val lang: String,
+    val details: AudioDetailsDto? = null,
+    val output: OutputDto? = null
 )
 
+data class AudioDetailsDto(
+    val sampleRate: Int, val channels: Int, val channelLayout: String?
+) {
+    fun toDomain() = UnboxingJob.UnboxedFiles.AudioDetails(sampleRate, channels, channelLayout)
+}
+
 data class SubtitlesDto(
-    val filename: String, val codec: String, val lang: String
+    val filename: String, val codec: String, val lang: String,
+    val output: OutputDto? = null
 )
 
+/**
+ * Extracted file, bit rate is averaged over the source duration
+ */
+data class OutputDto(
+    val sizeBytes: Long, val sha256: String, val bitRate: Long
+) {
+    fun toDomain() = UnboxingJob.UnboxedFiles.Output(sizeBytes, sha256, bitRate)
+}
+
+data class SourceDto(
+    val containerFormat: String?, val durationSeconds: Double, val sizeBytes: Long,
+    val bitRate: Long
+) {
+    fun toDomain() =
+        UnboxingJob.UnboxedFiles.Source(containerFormat, durationSeconds, sizeBytes, bitRate)
+}
+
+/**
+ * Manifest of the unboxed files. Version 1 has only the files with their codecs and languages,
+ * version 2 adds the stream details, the source and the size and checksum of every file.
+ */
 data class UnboxingCompletedEvent(
     val jobId: UUID,
     val videos: List<VideoDto>,
     val audio: List<AudioDto>,
     val subtitles: List<SubtitlesDto>,
-    val outputPrefix: String
+    val outputPrefix: String,
+    val source: SourceDto? = null,
+    val manifestVersion: Int = 1
 ) {
     fun toDomainUnboxedFiles(): UnboxingJob.UnboxedFiles =
         UnboxingJob.UnboxedFiles(
@@ -29,10 +81,34 @@ data class UnboxingCompletedEvent(
                     it.filename,
                     it.codec,
                     it.width,
-                    it.height
+                    it.height,
+                    it.packetIndex,
+                    it.chunks?.map { chunk ->
+                        UnboxingJob.UnboxedFiles.Chunk(
+                            chunk.filename,
+                            chunk.startPts,
+                            chunk.durationSeconds,
+                            chunk.sizeBytes,
+                            chunk.sha256
+                        )
+                    },
+                    it.fps,
+                    it.details?.toDomain(),
+                    it.output?.toDomain(),
+                    it.packetIndexOutput?.toDomain()
+                )
+            },
+            audio.map {
+                UnboxingJob.UnboxedFiles.Audio(
+                    it.filename, it.codec, it.lang, it.details?.toDomain(), it.output?.toDomain()
+                )
+            },
+            subtitles.map {
+                UnboxingJob.UnboxedFiles.Subtitles(
+                    it.filename, it.codec, it.lang, it.output?.toDomain()
                 )
             },
-            audio.map { UnboxingJob.UnboxedFiles.Audio(it.filename, it.codec, it.lang) },
-            subtitles.map { UnboxingJob.UnboxedFiles.Subtitles(it.filename, it.codec, it.lang) }
+            source?.toDomain(),
+            manifestVersion
         )
 }
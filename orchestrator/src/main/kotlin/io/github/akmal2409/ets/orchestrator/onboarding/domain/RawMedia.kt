@@ -94,20 +94,51 @@ data class UnboxingJob(
         STARTED, FAILED_START, FAILED, COMPLETED
     }
 
+    /**
+     * Stream details, sizes and checksums are present from manifest version 2 on
+     */
     data class UnboxedFiles(
-        val videos: List<Video>, val audio: List<Audio>, val subtitles: List<Subtitles>
+        val videos: List<Video>, val audio: List<Audio>, val subtitles: List<Subtitles>,
+        val source: Source? = null, val manifestVersion: Int = 1
     ) {
 
         data class Video(
-            val filename: String, val codec: String, val width: Int, val height: Int
+            val filename: String, val codec: String, val width: Int, val height: Int,
+            val packetIndex: String? = null, val chunks: List<Chunk>? = null,
+            val fps: Double? = null, val details: VideoDetails? = null, val output: Output? = null,
+            val packetIndexOutput: Output? = null
+        )
+
+        data class Chunk(
+            val filename: String, val startPts: Long, val durationSeconds: Double, val sizeBytes: Long,
+            val sha256: String? = null
+        )
+
+        data class VideoDetails(
+            val pixelFormat: String?, val colorRange: String?, val colorSpace: String?,
+            val colorTransfer: String?, val colorPrimaries: String?, val hdr: Boolean
         )
 
         data class Audio(
-            val filename: String, val codec: String, val lang: String
+            val filename: String, val codec: String, val lang: String,
+            val details: AudioDetails? = null, val output: Output? = null
+        )
+
+        data class AudioDetails(
+            val sampleRate: Int, val channels: Int, val channelLayout: String?
         )
 
         data class Subtitles(
-            val filename: String, val codec: String, val lang: String
+            val filename: String, val codec: String, val lang: String, val output: Output? = null
+        )
+
+        data class Output(
+            val sizeBytes: Long, val sha256: String, val bitRate: Long
+        )
+
+        data class Source(
+            val containerFormat: String?, val durationSeconds: Double, val sizeBytes: Long,
+            val bitRate: Long
         )
     }
 }
@@ -0,0 +1,78 @@
+package io.github.akmal2409.ets.orchestrator.onboarding.controller.dto.unboxing
+
+import com.fasterxml.jackson.databind.ObjectMapper
+import com.fasterxml.jackson.module.kotlin.readValue
+import com.fasterxml.jackson.module.kotlin.registerKotlinModule
+import io.github.akmal2409.ets.orchestrator.onboarding.domain.UnboxingJob
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.jupiter.api.Test
+
+class UnboxingCompletedEventTest {
+
+    private val objectMapper = ObjectMapper().findAndRegisterModules().registerKotlinModule()
+
+    @Test
+    fun `Reads manifest without version as version 1`() {
+        val event = objectMapper.readValue<UnboxingCompletedEvent>(
+            """
+            {"jobId": "19ffc231-8d62-47bf-9e36-5509f95cd0f4",
+             "videos": [{"filename": "video-0.mkv", "codec": "h264", "width": 1920, "height": 1080}],
+             "audio": [{"filename": "audio-eng-1.mka", "codec": "aac", "lang": "eng"}],
+             "subtitles": [],
+             "outputPrefix": "bucket/some_prefix"}
+            """
+        )
+
+        val unboxedFiles = event.toDomainUnboxedFiles()
+
+        assertThat(unboxedFiles.manifestVersion).isEqualTo(1)
+        assertThat(unboxedFiles.source).isNull()
+        assertThat(unboxedFiles.videos.single().details).isNull()
+        assertThat(unboxedFiles.audio.single().output).isNull()
+    }
+
+    @Test
+    fun `Maps stream details and outputs of version 2 manifest`() {
+        val event = objectMapper.readValue<UnboxingCompletedEvent>(
+            """
+            {"manifestVersion": 2,
+             "jobId": "19ffc231-8d62-47bf-9e36-5509f95cd0f4",
+             "videos": [{"filename": "video-0.mkv", "codec": "hevc", "width": 3840, "height": 2160,
+                         "packetIndex": "video-0.pidx", "fps": 23.976,
+                         "chunks": [{"filename": "video-0-00000.mkv", "startPts": 0,
+                                     "durationSeconds": 4.0, "sizeBytes": 400, "sha256": "0a1b"}],
+                         "details": {"pixelFormat": "yuv420p10le", "colorRange": "tv",
+                                     "colorSpace": "bt2020nc", "colorTransfer": "smpte2084",
+                                     "colorPrimaries": "bt2020", "hdr": true},
+                         "output": {"sizeBytes": 1000, "sha256": "ab12", "bitRate": 800},
+                         "packetIndexOutput": {"sizeBytes": 50, "sha256": "9f8e", "bitRate": 40}}],
+             "audio": [{"filename": "audio-eng-1.mka", "codec": "eac3", "lang": "eng",
+                        "details": {"sampleRate": 48000, "channels": 6, "channelLayout": "5.1(side)"},
+                        "output": {"sizeBytes": 100, "sha256": "cd34", "bitRate": 80}}],
+             "subtitles": [{"filename": "subtitles-eng-2.mks", "codec": "subrip", "lang": "eng",
+                            "output": {"sizeBytes": 10, "sha256": "ef56", "bitRate": 8}}],
+             "outputPrefix": "bucket/some_prefix",
+             "source": {"containerFormat": "matroska,webm", "durationSeconds": 10.0,
+                        "sizeBytes": 1200, "bitRate": 960}}
+            """
+        )
+
+        val unboxedFiles = event.toDomainUnboxedFiles()
+
+        assertThat(unboxedFiles.manifestVersion).isEqualTo(2)
+        assertThat(unboxedFiles.source)
+            .isEqualTo(UnboxingJob.UnboxedFiles.Source("matroska,webm", 10.0, 1200, 960))
+        assertThat(unboxedFiles.videos.single().details).isEqualTo(
+            UnboxingJob.UnboxedFiles.VideoDetails(
+                "yuv420p10le", "tv", "bt2020nc", "smpte2084", "bt2020", true
+            )
+        )
+        assertThat(unboxedFiles.videos.single().output)
+            .isEqualTo(UnboxingJob.UnboxedFiles.Output(1000, "ab12", 800))
+        assertThat(unboxedFiles.videos.single().packetIndexOutput?.sha256).isEqualTo("9f8e")
+        assertThat(unboxedFiles.videos.single().chunks?.single()?.sha256).isEqualTo("0a1b")
+        assertThat(unboxedFiles.audio.single().details)
+            .isEqualTo(UnboxingJob.UnboxedFiles.AudioDetails(48000, 6, "5.1(side)"))
+        assertThat(unboxedFiles.subtitles.single().output?.sha256).isEqualTo("ef56")
+    }
+}